@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.dex.Dex;
+import com.android.dex.DexFormat;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.merge.CollisionPolicy;
+import com.android.dx.merge.DexMerger;
+import com.android.utils.FileUtils;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+/**
+ * Merges dex files as a tree of merges. Independent merges run in parallel and their results are
+ * kept in a directory, so that a following merge only merges again the branches of the tree whose
+ * inputs changed.
+ *
+ * <p>The tree is a trie of the hashes of the inputs: inputs are split in up to 16 groups by the
+ * first hexadecimal digit of their hash, each group is split again by the second digit, and so on
+ * until groups have a single input. Each group is merged into a dex file named after the hashes of
+ * its inputs. Since hashes are evenly distributed, the tree is balanced, and adding, removing or
+ * changing one input only changes the groups containing it, one per level of the tree.
+ *
+ * <p>Inputs are merged with {@link CollisionPolicy#FAIL}, so the order of the inputs does not
+ * matter, like when dx merges pre-dexed libraries. Inputs are dex files or jars with a
+ * {@code classes.dex} entry; jars without one are ignored.
+ */
+public class TreeDexMerger {
+
+    /**
+     * Extension of the intermediate merged dex files.
+     */
+    private static final String DEX_EXTENSION = ".dex";
+
+    /**
+     * Directory with the intermediate merged dex files.
+     */
+    @NonNull
+    private final File mIntermediateDir;
+
+    /**
+     * Pool running the merges.
+     */
+    @NonNull
+    private final ForkJoinPool mPool;
+
+    /**
+     * Number of merges done by the last call to {@link #merge(Collection, File)}.
+     */
+    @NonNull
+    private final AtomicInteger mMergeCount = new AtomicInteger();
+
+    /**
+     * Creates a new merger.
+     *
+     * @param intermediateDir the directory where to keep the intermediate merged dex files; files
+     * not used by the last merge are deleted from it
+     * @param pool the pool running the merges
+     */
+    public TreeDexMerger(@NonNull File intermediateDir, @NonNull ForkJoinPool pool) {
+        mIntermediateDir = intermediateDir;
+        mPool = pool;
+    }
+
+    /**
+     * Merges dex files.
+     *
+     * @param inputs the dex files or jars with a {@code classes.dex} entry to merge
+     * @param output the merged dex file; it is deleted if no input has any dex
+     * @throws IOException failed to read or write the files
+     */
+    public void merge(@NonNull Collection<File> inputs, @NonNull File output) throws IOException {
+        FileUtils.mkdirs(mIntermediateDir);
+        mMergeCount.set(0);
+
+        List<Node> leaves = Lists.newArrayList();
+        for (File input : inputs) {
+            if (hasDex(input)) {
+                leaves.add(new Node(input, Files.hash(input, Hashing.sha256()).toString()));
+            }
+        }
+
+        Set<File> used = ConcurrentHashMap.newKeySet();
+        if (leaves.isEmpty()) {
+            FileUtils.deleteIfExists(output);
+        } else {
+            leaves.sort(Comparator.comparing(leaf -> leaf.mHash));
+            Node root = makeNode(leaves, 0);
+
+            File merged;
+            try {
+                merged = mPool.invoke(new MergeTask(root, used));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            FileUtils.mkdirs(output.getParentFile());
+            if (root.mFile != null) {
+                // a single input, possibly in a jar
+                new Dex(merged).writeTo(output);
+            } else {
+                Files.copy(merged, output);
+            }
+        }
+
+        File[] intermediates = mIntermediateDir.listFiles();
+        if (intermediates != null) {
+            for (File intermediate : intermediates) {
+                if (!used.contains(intermediate)) {
+                    FileUtils.deletePath(intermediate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtains the number of merges done by the last call to {@link #merge(Collection, File)},
+     * excluding the merges whose result was kept from a previous call.
+     */
+    @VisibleForTesting
+    int getMergeCount() {
+        return mMergeCount.get();
+    }
+
+    /**
+     * Checks whether a file is a dex file or a jar with a dex file.
+     */
+    private static boolean hasDex(@NonNull File file) throws IOException {
+        if (file.getName().endsWith(DEX_EXTENSION)) {
+            return true;
+        }
+
+        try (ZipFile zip = new ZipFile(file)) {
+            return zip.getEntry(DexFormat.DEX_IN_JAR_NAME) != null;
+        }
+    }
+
+    /**
+     * Makes the node merging the given inputs.
+     *
+     * @param leaves the inputs to merge, sorted by hash
+     * @param depth the number of digits of the hashes shared by all inputs
+     * @return the node
+     */
+    @NonNull
+    private static Node makeNode(@NonNull List<Node> leaves, int depth) {
+        if (leaves.size() == 1) {
+            return leaves.get(0);
+        }
+
+        String firstHash = leaves.get(0).mHash;
+        if (depth == firstHash.length()) {
+            // all inputs are identical: merging them is expected to fail as it would in dx
+            return new Node(leaves);
+        }
+
+        TreeMap<Character, List<Node>> groups = new TreeMap<>();
+        for (Node leaf : leaves) {
+            groups.computeIfAbsent(leaf.mHash.charAt(depth), c -> Lists.newArrayList()).add(leaf);
+        }
+
+        if (groups.size() == 1) {
+            return makeNode(leaves, depth + 1);
+        }
+
+        List<Node> children = Lists.newArrayList();
+        for (List<Node> group : groups.values()) {
+            children.add(makeNode(group, depth + 1));
+        }
+        return new Node(children);
+    }
+
+    /**
+     * Node of the tree of merges: either an input or the merge of other nodes.
+     */
+    private static final class Node {
+
+        /**
+         * The input, {@code null} if this node merges other nodes.
+         */
+        @Nullable
+        private final File mFile;
+
+        /**
+         * The nodes to merge, empty if this node is an input.
+         */
+        @NonNull
+        private final List<Node> mChildren;
+
+        /**
+         * Hash of the input or of the hashes of the merged nodes.
+         */
+        @NonNull
+        private final String mHash;
+
+        Node(@NonNull File file, @NonNull String hash) {
+            mFile = file;
+            mChildren = Lists.newArrayList();
+            mHash = hash;
+        }
+
+        Node(@NonNull List<Node> children) {
+            mFile = null;
+            mChildren = children;
+            mHash = Hashing.sha256().hashString(
+                    Joiner.on(',').join(Lists.transform(children, child -> child.mHash)),
+                    StandardCharsets.UTF_8).toString();
+        }
+    }
+
+    /**
+     * Task computing the dex file of a node.
+     */
+    private final class MergeTask extends RecursiveTask<File> {
+
+        @NonNull
+        private final Node mNode;
+
+        /**
+         * Intermediate files used by the tree.
+         */
+        @NonNull
+        private final Set<File> mUsed;
+
+        MergeTask(@NonNull Node node, @NonNull Set<File> used) {
+            mNode = node;
+            mUsed = used;
+        }
+
+        @Override
+        protected File compute() {
+            if (mNode.mFile != null) {
+                return mNode.mFile;
+            }
+
+            File merged = new File(mIntermediateDir, mNode.mHash + DEX_EXTENSION);
+            if (merged.isFile()) {
+                // keep the results of the merges below, to merge again only one branch next time
+                markUsed(mNode);
+                return merged;
+            }
+
+            List<MergeTask> tasks = Lists.newArrayList();
+            for (Node child : mNode.mChildren) {
+                tasks.add(new MergeTask(child, mUsed));
+            }
+            invokeAll(tasks);
+
+            try {
+                Dex[] dexes = new Dex[tasks.size()];
+                for (int i = 0; i < dexes.length; i++) {
+                    dexes[i] = new Dex(tasks.get(i).join());
+                }
+
+                DxContext context = new DxContext(
+                        ByteStreams.nullOutputStream(), ByteStreams.nullOutputStream());
+                Dex result = new DexMerger(dexes, CollisionPolicy.FAIL, context).merge();
+                mMergeCount.incrementAndGet();
+
+                File tmp = new File(mIntermediateDir, mNode.mHash + ".tmp");
+                result.writeTo(tmp);
+                java.nio.file.Files.move(tmp.toPath(), merged.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            mUsed.add(merged);
+            return merged;
+        }
+
+        private void markUsed(@NonNull Node node) {
+            if (node.mFile == null) {
+                mUsed.add(new File(mIntermediateDir, node.mHash + DEX_EXTENSION));
+                for (Node child : node.mChildren) {
+                    markUsed(child);
+                }
+            }
+        }
+    }
+}
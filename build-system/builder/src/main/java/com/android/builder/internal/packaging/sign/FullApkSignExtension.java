@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.packaging.sign.v2.ApkSignerV2;
 import com.android.builder.internal.packaging.sign.v2.ByteArrayDigestSource;
+import com.android.builder.internal.packaging.sign.v2.ChunkDigestCache;
 import com.android.builder.internal.packaging.sign.v2.DigestSource;
 import com.android.builder.internal.packaging.sign.v2.SignatureAlgorithm;
 import com.android.builder.internal.packaging.sign.v2.ZFileDigestSource;
@@ -30,13 +31,21 @@ import com.android.builder.internal.utils.IOExceptionRunnable;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Verify;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Extension that adds full APK signing. This extension will:
@@ -57,6 +66,20 @@ import java.util.List;
  */
 public class FullApkSignExtension {
 
+    /**
+     * Time after which an idle thread of {@link #DEFAULT_DIGEST_EXECUTOR} is stopped.
+     */
+    private static final long DIGEST_THREAD_SHUTDOWN_MS = 1000;
+
+    /**
+     * Executor computing the digests of the chunks of the APK when none is provided. It is a pool
+     * of daemon threads dedicated to digesting, with at most one thread per processor, whose
+     * threads stop when idle. Signing blocks until all digests are computed, so the digests are
+     * not run in the common fork/join pool, whose threads are shared with other work.
+     */
+    @NonNull
+    public static final Executor DEFAULT_DIGEST_EXECUTOR = createDefaultDigestExecutor();
+
     /**
      * The zip file this extension is registered with.
      */
@@ -80,6 +103,26 @@ public class FullApkSignExtension {
      */
     private final List<SignatureAlgorithm> mV2SignatureAlgorithms;
 
+    /**
+     * Executor computing the digests of the chunks of the APK.
+     */
+    @NonNull
+    private final Executor mDigestExecutor;
+
+    /**
+     * File where the digests of the chunks of the APK are kept between two signatures.
+     * {@code null} if digests are not kept.
+     */
+    @Nullable
+    private final File mDigestCacheFile;
+
+    /**
+     * Digests of the chunks of the APK that did not change since they were computed.
+     * {@code null} if digests are not kept or the extension is not registered.
+     */
+    @Nullable
+    private ChunkDigestCache mDigestCache;
+
     /**
      * {@code true} if the zip needs its signature to be updated.
      */
@@ -106,14 +149,86 @@ public class FullApkSignExtension {
             int minSdkVersion,
             @NonNull X509Certificate certificate,
             @NonNull PrivateKey privateKey) throws InvalidKeyException {
+        this(file, minSdkVersion, certificate, privateKey, DEFAULT_DIGEST_EXECUTOR);
+    }
+
+    /**
+     * Creates a new extension. This will not register the extension with the provided
+     * {@link ZFile}. Until {@link #register()} is invoked, this extension is not used.
+     *
+     * @param file the zip file to register the extension with
+     * @param minSdkVersion minSdkVersion of the package
+     * @param certificate sign certificate
+     * @param privateKey the private key to sign the jar
+     * @param digestExecutor executor computing the digests of the chunks of the APK in parallel,
+     * which must not be running the signature itself; see {@link #DEFAULT_DIGEST_EXECUTOR}
+     *
+     * @throws InvalidKeyException if the signing key is not suitable for signing this APK.
+     */
+    public FullApkSignExtension(@NonNull ZFile file,
+            int minSdkVersion,
+            @NonNull X509Certificate certificate,
+            @NonNull PrivateKey privateKey,
+            @NonNull Executor digestExecutor) throws InvalidKeyException {
+        this(file, minSdkVersion, certificate, privateKey, digestExecutor, null);
+    }
+
+    /**
+     * Creates a new extension. This will not register the extension with the provided
+     * {@link ZFile}. Until {@link #register()} is invoked, this extension is not used.
+     *
+     * <p>If a digest cache file is provided, the digests of the 1 MB chunks of the APK are saved
+     * in it when the zip file is closed. They are loaded back when the extension is registered
+     * with the same, unmodified, file, so that signing again only digests the chunks whose bytes
+     * have been written since.
+     *
+     * @param file the zip file to register the extension with
+     * @param minSdkVersion minSdkVersion of the package
+     * @param certificate sign certificate
+     * @param privateKey the private key to sign the jar
+     * @param digestExecutor executor computing the digests of the chunks of the APK in parallel,
+     * which must not be running the signature itself; see {@link #DEFAULT_DIGEST_EXECUTOR}
+     * @param digestCacheFile file where to keep the digests of the chunks of the APK, if any
+     *
+     * @throws InvalidKeyException if the signing key is not suitable for signing this APK.
+     */
+    public FullApkSignExtension(@NonNull ZFile file,
+            int minSdkVersion,
+            @NonNull X509Certificate certificate,
+            @NonNull PrivateKey privateKey,
+            @NonNull Executor digestExecutor,
+            @Nullable File digestCacheFile) throws InvalidKeyException {
         mFile = file;
         mCertificate = certificate;
         mPrivateKey = privateKey;
+        mDigestExecutor = digestExecutor;
+        mDigestCacheFile = digestCacheFile;
         mV2SignatureAlgorithms =
                 ApkSignerV2.getSuggestedSignatureAlgorithms(
                         certificate.getPublicKey(), minSdkVersion);
     }
 
+    /**
+     * Creates the executor described in {@link #DEFAULT_DIGEST_EXECUTOR}.
+     */
+    @NonNull
+    private static Executor createDefaultDigestExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        threads, // Core threads
+                        threads, // Maximum threads
+                        DIGEST_THREAD_SHUTDOWN_MS,
+                        TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(),
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("apk-digest-%d")
+                                .build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Registers the extension with the {@link ZFile} provided in the constructor.
      */
@@ -147,11 +262,101 @@ public class FullApkSignExtension {
             public void entriesWritten() throws IOException {
                 onEntriesWritten();
             }
+
+            @Override
+            public void written(long start, long end) {
+                if (mDigestCache != null) {
+                    mDigestCache.invalidate(start, end);
+                }
+            }
+
+            @Override
+            public void closed() {
+                saveDigestCache();
+            }
         };
 
+        if (mDigestCacheFile != null) {
+            mDigestCache = loadDigestCache(mDigestCacheFile);
+        }
+
         mFile.addZFileExtension(mExtension);
     }
 
+    /**
+     * Loads the digests of the chunks of the zip file, if they were saved for the file as it is
+     * on disk.
+     *
+     * @param digestCacheFile the file where the digests were saved
+     * @return the digests, possibly none
+     */
+    @NonNull
+    private ChunkDigestCache loadDigestCache(@NonNull File digestCacheFile) {
+        ChunkDigestCache cache = new ChunkDigestCache();
+        if (mFile.getFile().isFile()) {
+            try {
+                cache = ChunkDigestCache.read(digestCacheFile, computeFingerprint());
+            } catch (IOException e) {
+                /*
+                 * The digests are only an optimization, start over.
+                 */
+            }
+        }
+
+        /*
+         * The cache is saved again when the zip file is closed. Until then, it must not be
+         * trusted: if updating the zip file fails midway, the file will not match it anymore.
+         */
+        if (digestCacheFile.exists() && !digestCacheFile.delete()) {
+            cache.invalidateAll();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Saves the digests of the chunks of the zip file, if they are kept.
+     */
+    private void saveDigestCache() {
+        if (mDigestCache == null) {
+            return;
+        }
+
+        assert mDigestCacheFile != null;
+        try {
+            mDigestCache.write(mDigestCacheFile, computeFingerprint());
+        } catch (IOException e) {
+            /*
+             * A partially written cache would be rejected when read, but don't leave it behind.
+             */
+            mDigestCacheFile.delete();
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the zip file on disk, from its size, modification time, central
+     * directory and EOCD. Writing the zip file changes at least its modification time, so the
+     * fingerprint identifies the contents the digests of the chunks were computed from.
+     *
+     * @return the fingerprint
+     * @throws IOException failed to read the zip file
+     */
+    @NonNull
+    private byte[] computeFingerprint() throws IOException {
+        File file = mFile.getFile();
+        long length = file.length();
+        long directoryOffset = Math.min(mFile.getCentralDirectoryOffset(), length);
+        return Hashing.sha256().newHasher()
+                .putLong(length)
+                .putLong(file.lastModified())
+                .putBytes(
+                        Files.asByteSource(file)
+                                .slice(directoryOffset, length - directoryOffset)
+                                .read())
+                .hash()
+                .asBytes();
+    }
+
     /**
      * Invoked when the zip file has been changed.
      */
@@ -205,7 +410,9 @@ public class FullApkSignExtension {
                     zipEntries,
                     centralDir,
                     eocd,
-                    ImmutableList.of(signerConfig));
+                    ImmutableList.of(signerConfig),
+                    mDigestExecutor,
+                    mDigestCache);
         } catch (InvalidKeyException | SignatureException e) {
             throw new IOException("Failed to sign APK using APK Signature Scheme v2", e);
         }
@@ -17,11 +17,14 @@
 package com.android.builder.internal.packaging.sign.v2;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.utils.Pair;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -43,9 +46,14 @@ import java.security.interfaces.RSAKey;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 /**
  * APK Signature Scheme v2 signer.
@@ -74,7 +82,7 @@ public abstract class ApkSignerV2 {
      * protected by signatures inside the block.
      */
 
-    private static final int CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
+    static final int CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES = 1024 * 1024;
 
     private static final byte[] APK_SIGNING_BLOCK_MAGIC =
           new byte[] {
@@ -180,6 +188,69 @@ public abstract class ApkSignerV2 {
             @NonNull DigestSource eocd,
             @NonNull List<SignerConfig> signerConfigs)
                     throws InvalidKeyException, SignatureException {
+        return generateApkSigningBlock(
+                beforeCentralDir,
+                centralDir,
+                eocd,
+                signerConfigs,
+                MoreExecutors.sameThreadExecutor());
+    }
+
+    /**
+     * Signs the provided APK using APK Signature Scheme v2 and returns the APK Signing Block
+     * containing the signature, computing the digests of the 1 MB chunks of the APK in
+     * {@code executor}. The APK Signing Block is the same whatever the executor.
+     *
+     * @param signerConfigs signer configurations, one for each signer. At least one configuration
+     *        must be provided.
+     * @param executor the executor running the digests of chunks, which must not be waiting for
+     *        this method to return
+     *
+     * @throws InvalidKeyException if a signing key is not suitable for this signature scheme or
+     *         cannot be used in general
+     * @throws SignatureException if an error occurs when computing digests of generating
+     *         signatures
+     */
+    @NonNull
+    public static byte[] generateApkSigningBlock(
+            @NonNull DigestSource beforeCentralDir,
+            @NonNull DigestSource centralDir,
+            @NonNull DigestSource eocd,
+            @NonNull List<SignerConfig> signerConfigs,
+            @NonNull Executor executor)
+                    throws InvalidKeyException, SignatureException {
+        return generateApkSigningBlock(
+                beforeCentralDir, centralDir, eocd, signerConfigs, executor, null);
+    }
+
+    /**
+     * Signs the provided APK using APK Signature Scheme v2 and returns the APK Signing Block
+     * containing the signature, computing the digests of the 1 MB chunks of the APK in
+     * {@code executor} and reusing the digests of the chunks of {@code beforeCentralDir} found
+     * in {@code beforeCentralDirCache}. The cache is updated with the digests of all the chunks
+     * of {@code beforeCentralDir}.
+     *
+     * @param signerConfigs signer configurations, one for each signer. At least one configuration
+     *        must be provided.
+     * @param executor the executor running the digests of chunks, which must not be waiting for
+     *        this method to return
+     * @param beforeCentralDirCache the digests of the chunks of {@code beforeCentralDir} that
+     *        are known, if any
+     *
+     * @throws InvalidKeyException if a signing key is not suitable for this signature scheme or
+     *         cannot be used in general
+     * @throws SignatureException if an error occurs when computing digests of generating
+     *         signatures
+     */
+    @NonNull
+    public static byte[] generateApkSigningBlock(
+            @NonNull DigestSource beforeCentralDir,
+            @NonNull DigestSource centralDir,
+            @NonNull DigestSource eocd,
+            @NonNull List<SignerConfig> signerConfigs,
+            @NonNull Executor executor,
+            @Nullable ChunkDigestCache beforeCentralDirCache)
+                    throws InvalidKeyException, SignatureException {
         if (signerConfigs.isEmpty()) {
             throw new IllegalArgumentException(
                     "No signer configs provided. At least one is required");
@@ -199,7 +270,9 @@ public abstract class ApkSignerV2 {
             contentDigests =
                     computeContentDigests(
                             contentDigestAlgorithms,
-                            new DigestSource[] {beforeCentralDir, centralDir, eocd});
+                            new DigestSource[] {beforeCentralDir, centralDir, eocd},
+                            executor,
+                            beforeCentralDirCache);
         } catch (DigestException e) {
             throw new SignatureException("Failed to compute digests of APK", e);
         }
@@ -211,7 +284,9 @@ public abstract class ApkSignerV2 {
     @NonNull
     private static Map<ContentDigestAlgorithm, byte[]> computeContentDigests(
             @NonNull Set<ContentDigestAlgorithm> digestAlgorithms,
-            @NonNull DigestSource[] contents) throws DigestException {
+            @NonNull DigestSource[] contents,
+            @NonNull Executor executor,
+            @Nullable ChunkDigestCache firstContentsCache) throws DigestException {
         // For each digest algorithm the result is computed as follows:
         // 1. Each segment of contents is split into consecutive chunks of 1 MB in size.
         //    The final chunk will be shorter iff the length of segment is not a multiple of 1 MB.
@@ -233,78 +308,92 @@ public abstract class ApkSignerV2 {
 
         ContentDigestAlgorithm[] digestAlgorithmsArray =
                 digestAlgorithms.toArray(new ContentDigestAlgorithm[digestAlgorithms.size()]);
-        MessageDigest[] mds = new MessageDigest[digestAlgorithmsArray.length];
         byte[][] digestsOfChunks = new byte[digestAlgorithmsArray.length][];
-        int[] digestOutputSizes = new int[digestAlgorithmsArray.length];
         for (int i = 0; i < digestAlgorithmsArray.length; i++) {
             ContentDigestAlgorithm digestAlgorithm = digestAlgorithmsArray[i];
             int digestOutputSizeBytes = digestAlgorithm.getChunkDigestOutputSizeBytes();
-            digestOutputSizes[i] = digestOutputSizeBytes;
             byte[] concatenationOfChunkCountAndChunkDigests =
                     new byte[5 + chunkCount * digestOutputSizeBytes];
             concatenationOfChunkCountAndChunkDigests[0] = 0x5a;
             setUnsignedInt32LittleEndian(
                     chunkCount, concatenationOfChunkCountAndChunkDigests, 1);
             digestsOfChunks[i] = concatenationOfChunkCountAndChunkDigests;
-            String jcaAlgorithmName = digestAlgorithm.getJcaMessageDigestAlgorithmName();
-            try {
-                mds[i] = MessageDigest.getInstance(jcaAlgorithmName);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(jcaAlgorithmName + " MessageDigest not supported", e);
-            }
         }
 
-        byte[] chunkContentPrefix = new byte[5];
-        chunkContentPrefix[0] = (byte) 0xa5;
+        // Digests of chunks are computed in parallel, each task writing the digest of its chunk
+        // into the pre-allocated buffer at exactly the right position. The buffers are only read
+        // once all tasks are done, so the output does not depend on the order in which the tasks
+        // run. The chunks of the first segment whose digests are cached are not digested again;
+        // since it is the first segment, their index in the segment is also their index overall.
+        List<FutureTask<Void>> tasks = Lists.newArrayListWithCapacity(chunkCount);
+        List<ChunkDigestTask> tasksToCache = Lists.newArrayList();
         int chunkIndex = 0;
-        // Optimization opportunity: digests of chunks can be computed in parallel. However,
-        // determining the number of computations to be performed in parallel is non-trivial. This
-        // depends on a wide range of factors, such as data source type (e.g., in-memory or fetched
-        // from file), CPU/memory/disk cache bandwidth and latency, interconnect architecture of CPU
-        // cores, load on the system from other threads of execution and other processes, size of
-        // input.
-        // For now, we compute these digests sequentially and thus have the luxury of improving
-        // performance by writing the digest of each chunk into a pre-allocated buffer at exactly
-        // the right position. This avoids unnecessary allocations, copying, and enables the final
-        // digest to be more efficient because it's presented with all of its input in one go.
-        for (DigestSource input : contents) {
+        for (int inputIndex = 0; inputIndex < contents.length; inputIndex++) {
+            DigestSource input = contents[inputIndex];
+            ChunkDigestCache inputCache = (inputIndex == 0) ? firstContentsCache : null;
             long inputOffset = 0;
             long inputRemaining = input.size();
             while (inputRemaining > 0) {
                 int chunkSize =
                         (int) Math.min(inputRemaining, CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES);
-                setUnsignedInt32LittleEndian(chunkSize, chunkContentPrefix, 1);
-                for (int i = 0; i < mds.length; i++) {
-                    mds[i].update(chunkContentPrefix);
-                }
-                try {
-                    input.feedDigests(inputOffset, chunkSize, mds);
-                } catch (IOException e) {
-                    throw new DigestException("Failed to digest chunk #" + chunkIndex, e);
-                }
-                for (int i = 0; i < digestAlgorithmsArray.length; i++) {
-                    MessageDigest md = mds[i];
-                    byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
-                    int expectedDigestSizeBytes = digestOutputSizes[i];
-                    int actualDigestSizeBytes =
-                            md.digest(
-                                    concatenationOfChunkCountAndChunkDigests,
-                                    5 + chunkIndex * expectedDigestSizeBytes,
-                                    expectedDigestSizeBytes);
-                    if (actualDigestSizeBytes != expectedDigestSizeBytes) {
-                        throw new RuntimeException(
-                                "Unexpected output size of " + md.getAlgorithm()
-                                        + " digest: " + actualDigestSizeBytes);
+                if (inputCache == null
+                        || !copyCachedDigests(
+                                inputCache,
+                                digestAlgorithmsArray,
+                                digestsOfChunks,
+                                chunkSize,
+                                chunkIndex)) {
+                    ChunkDigestTask chunkTask =
+                            new ChunkDigestTask(
+                                    digestAlgorithmsArray,
+                                    digestsOfChunks,
+                                    input,
+                                    inputOffset,
+                                    chunkSize,
+                                    chunkIndex);
+                    if (inputCache != null) {
+                        tasksToCache.add(chunkTask);
                     }
+
+                    FutureTask<Void> task = new FutureTask<>(chunkTask);
+                    tasks.add(task);
+                    executor.execute(task);
                 }
                 inputOffset += chunkSize;
                 inputRemaining -= chunkSize;
                 chunkIndex++;
             }
+
+            if (inputCache != null) {
+                inputCache.truncate(chunkIndex);
+            }
+        }
+
+        try {
+            for (FutureTask<Void> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DigestException("Interrupted while digesting chunks", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), DigestException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            for (FutureTask<Void> task : tasks) {
+                task.cancel(false);
+            }
+        }
+
+        if (firstContentsCache != null) {
+            for (ChunkDigestTask chunkTask : tasksToCache) {
+                chunkTask.cache(firstContentsCache);
+            }
         }
 
         Map<ContentDigestAlgorithm, byte[]> result =
                 Maps.newHashMapWithExpectedSize(digestAlgorithmsArray.length);
+        MessageDigest[] mds = newMessageDigests(digestAlgorithmsArray);
         for (int i = 0; i < digestAlgorithmsArray.length; i++) {
             ContentDigestAlgorithm digestAlgorithm = digestAlgorithmsArray[i];
             byte[] concatenationOfChunkCountAndChunkDigests = digestsOfChunks[i];
@@ -315,6 +404,131 @@ public abstract class ApkSignerV2 {
         return result;
     }
 
+    /**
+     * Copies the cached digests of a chunk into the concatenations of chunk digests.
+     *
+     * @return {@code true} if the digests of the chunk with all algorithms were cached; if
+     * {@code false}, nothing was copied
+     */
+    private static boolean copyCachedDigests(
+            @NonNull ChunkDigestCache cache,
+            @NonNull ContentDigestAlgorithm[] digestAlgorithms,
+            @NonNull byte[][] digestsOfChunks,
+            int chunkSize,
+            int chunkIndex) {
+        byte[][] cached = new byte[digestAlgorithms.length][];
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            cached[i] = cache.get(chunkIndex, chunkSize, digestAlgorithms[i]);
+            if (cached[i] == null) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            int digestSizeBytes = digestAlgorithms[i].getChunkDigestOutputSizeBytes();
+            System.arraycopy(
+                    cached[i],
+                    0,
+                    digestsOfChunks[i],
+                    5 + chunkIndex * digestSizeBytes,
+                    digestSizeBytes);
+        }
+        return true;
+    }
+
+    @NonNull
+    private static MessageDigest[] newMessageDigests(
+            @NonNull ContentDigestAlgorithm[] digestAlgorithms) {
+        MessageDigest[] mds = new MessageDigest[digestAlgorithms.length];
+        for (int i = 0; i < digestAlgorithms.length; i++) {
+            String jcaAlgorithmName = digestAlgorithms[i].getJcaMessageDigestAlgorithmName();
+            try {
+                mds[i] = MessageDigest.getInstance(jcaAlgorithmName);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(jcaAlgorithmName + " MessageDigest not supported", e);
+            }
+        }
+        return mds;
+    }
+
+    /**
+     * Computes the digests of one chunk with each content digest algorithm, and writes them at
+     * the position of the chunk in the concatenation of chunk digests of each algorithm.
+     */
+    private static final class ChunkDigestTask implements Callable<Void> {
+        @NonNull
+        private final ContentDigestAlgorithm[] mDigestAlgorithms;
+        @NonNull
+        private final byte[][] mDigestsOfChunks;
+        @NonNull
+        private final DigestSource mInput;
+        private final long mOffset;
+        private final int mSize;
+        private final int mChunkIndex;
+
+        ChunkDigestTask(
+                @NonNull ContentDigestAlgorithm[] digestAlgorithms,
+                @NonNull byte[][] digestsOfChunks,
+                @NonNull DigestSource input,
+                long offset,
+                int size,
+                int chunkIndex) {
+            mDigestAlgorithms = digestAlgorithms;
+            mDigestsOfChunks = digestsOfChunks;
+            mInput = input;
+            mOffset = offset;
+            mSize = size;
+            mChunkIndex = chunkIndex;
+        }
+
+        @Override
+        public Void call() throws DigestException {
+            MessageDigest[] mds = newMessageDigests(mDigestAlgorithms);
+            byte[] chunkContentPrefix = new byte[5];
+            chunkContentPrefix[0] = (byte) 0xa5;
+            setUnsignedInt32LittleEndian(mSize, chunkContentPrefix, 1);
+            for (MessageDigest md : mds) {
+                md.update(chunkContentPrefix);
+            }
+            try {
+                mInput.feedDigests(mOffset, mSize, mds);
+            } catch (IOException e) {
+                throw new DigestException("Failed to digest chunk #" + mChunkIndex, e);
+            }
+            for (int i = 0; i < mds.length; i++) {
+                MessageDigest md = mds[i];
+                int expectedDigestSizeBytes = mDigestAlgorithms[i].getChunkDigestOutputSizeBytes();
+                int actualDigestSizeBytes =
+                        md.digest(
+                                mDigestsOfChunks[i],
+                                5 + mChunkIndex * expectedDigestSizeBytes,
+                                expectedDigestSizeBytes);
+                if (actualDigestSizeBytes != expectedDigestSizeBytes) {
+                    throw new RuntimeException(
+                            "Unexpected output size of " + md.getAlgorithm()
+                                    + " digest: " + actualDigestSizeBytes);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Stores the digests computed by this task in a cache. Must only be invoked once the task
+         * is done.
+         */
+        void cache(@NonNull ChunkDigestCache cache) {
+            for (int i = 0; i < mDigestAlgorithms.length; i++) {
+                int digestSizeBytes = mDigestAlgorithms[i].getChunkDigestOutputSizeBytes();
+                int start = 5 + mChunkIndex * digestSizeBytes;
+                cache.put(
+                        mChunkIndex,
+                        mSize,
+                        mDigestAlgorithms[i],
+                        Arrays.copyOfRange(mDigestsOfChunks[i], start, start + digestSizeBytes));
+            }
+        }
+    }
+
     private static final long getChunkCount(long inputSize, int chunkSize) {
         return (inputSize + chunkSize - 1) / chunkSize;
     }
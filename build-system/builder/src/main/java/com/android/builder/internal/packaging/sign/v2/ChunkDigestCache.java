@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.sign.v2;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Digests of the 1 MB chunks of a {@link DigestSource}, kept between two signatures of the same
+ * data to only digest again the chunks that changed.
+ *
+ * <p>{@link ApkSignerV2} looks up and stores the digests of the chunks. The owner of the cache
+ * must report every change to the data with {@link #invalidate(long, long)}, including bytes
+ * being moved, since chunks are identified by their position only.
+ */
+public class ChunkDigestCache {
+
+    /**
+     * Version of the format of the cache files.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of each chunk whose digests are known, or {@code 0} if they are not.
+     */
+    @NonNull
+    private int[] mChunkSizes;
+
+    /**
+     * Digests of each chunk, indexed by chunk and then by the ordinal of the
+     * {@link ContentDigestAlgorithm}. Digests not computed yet are {@code null}.
+     */
+    @NonNull
+    private byte[][][] mDigests;
+
+    /**
+     * Creates a new, empty, cache.
+     */
+    public ChunkDigestCache() {
+        mChunkSizes = new int[0];
+        mDigests = new byte[0][][];
+    }
+
+    /**
+     * Obtains the digest of a chunk, if known.
+     *
+     * @param chunkIndex the index of the chunk
+     * @param chunkSize the current size of the chunk
+     * @param algorithm the algorithm of the digest
+     * @return the digest or {@code null} if it is not known for a chunk of that size
+     */
+    @Nullable
+    byte[] get(int chunkIndex, int chunkSize, @NonNull ContentDigestAlgorithm algorithm) {
+        if (chunkIndex >= mChunkSizes.length || mChunkSizes[chunkIndex] != chunkSize) {
+            return null;
+        }
+
+        return mDigests[chunkIndex][algorithm.ordinal()];
+    }
+
+    /**
+     * Sets the digest of a chunk. If the size of the chunk changed, its other digests are
+     * discarded.
+     *
+     * @param chunkIndex the index of the chunk
+     * @param chunkSize the size of the chunk
+     * @param algorithm the algorithm of the digest
+     * @param digest the digest
+     */
+    void put(int chunkIndex, int chunkSize, @NonNull ContentDigestAlgorithm algorithm,
+            @NonNull byte[] digest) {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize <= 0");
+
+        if (chunkIndex >= mChunkSizes.length) {
+            int newLength = chunkIndex + 1;
+            mChunkSizes = Arrays.copyOf(mChunkSizes, newLength);
+            mDigests = Arrays.copyOf(mDigests, newLength);
+        }
+
+        if (mChunkSizes[chunkIndex] != chunkSize || mDigests[chunkIndex] == null) {
+            mChunkSizes[chunkIndex] = chunkSize;
+            mDigests[chunkIndex] = new byte[ContentDigestAlgorithm.values().length][];
+        }
+
+        mDigests[chunkIndex][algorithm.ordinal()] = digest;
+    }
+
+    /**
+     * Discards the digests of all chunks from index {@code chunkCount} on.
+     *
+     * @param chunkCount the number of chunks in the data
+     */
+    void truncate(int chunkCount) {
+        if (chunkCount < mChunkSizes.length) {
+            mChunkSizes = Arrays.copyOf(mChunkSizes, chunkCount);
+            mDigests = Arrays.copyOf(mDigests, chunkCount);
+        }
+    }
+
+    /**
+     * Discards the digests of all chunks containing bytes that changed.
+     *
+     * @param start the offset of the first byte that changed
+     * @param end the offset after the last byte that changed
+     */
+    public void invalidate(long start, long end) {
+        Preconditions.checkArgument(start >= 0, "start < 0");
+        if (end <= start) {
+            return;
+        }
+
+        long chunkSize = ApkSignerV2.CONTENT_DIGESTED_CHUNK_MAX_SIZE_BYTES;
+        long first = start / chunkSize;
+        long last = Math.min((end - 1) / chunkSize, mChunkSizes.length - 1);
+        for (long i = first; i <= last; i++) {
+            mChunkSizes[(int) i] = 0;
+            mDigests[(int) i] = null;
+        }
+    }
+
+    /**
+     * Discards all digests.
+     */
+    public void invalidateAll() {
+        mChunkSizes = new int[0];
+        mDigests = new byte[0][][];
+    }
+
+    /**
+     * Reads a cache written by {@link #write(File, byte[])}. The digests are only loaded if the
+     * cache was written with the same fingerprint, which should identify the state of the data.
+     *
+     * @param file the file to read
+     * @param fingerprint the fingerprint of the data
+     * @return the cache, which is empty if the file does not exist, is not readable or was
+     * written for different data
+     */
+    @NonNull
+    public static ChunkDigestCache read(@NonNull File file, @NonNull byte[] fingerprint) {
+        ChunkDigestCache cache = new ChunkDigestCache();
+        if (!file.isFile()) {
+            return cache;
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return cache;
+            }
+
+            byte[] cachedFingerprint = new byte[in.readInt()];
+            in.readFully(cachedFingerprint);
+            if (!Arrays.equals(fingerprint, cachedFingerprint)) {
+                return cache;
+            }
+
+            int chunkCount = in.readInt();
+            for (int i = 0; i < chunkCount; i++) {
+                int chunkSize = in.readInt();
+                if (chunkSize == 0) {
+                    continue;
+                }
+
+                for (ContentDigestAlgorithm algorithm : ContentDigestAlgorithm.values()) {
+                    if (in.readBoolean()) {
+                        byte[] digest = new byte[algorithm.getChunkDigestOutputSizeBytes()];
+                        in.readFully(digest);
+                        cache.put(i, chunkSize, algorithm, digest);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            /*
+             * The cache is only an optimization: start over if it cannot be read.
+             */
+            cache.invalidateAll();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Writes the cache to a file, to be read by {@link #read(File, byte[])}.
+     *
+     * @param file the file to write
+     * @param fingerprint the fingerprint of the data the digests were computed from
+     * @throws IOException failed to write the file
+     */
+    public void write(@NonNull File file, @NonNull byte[] fingerprint) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(fingerprint.length);
+            out.write(fingerprint);
+            out.writeInt(mChunkSizes.length);
+            for (int i = 0; i < mChunkSizes.length; i++) {
+                out.writeInt(mChunkSizes[i]);
+                if (mChunkSizes[i] == 0) {
+                    continue;
+                }
+
+                for (byte[] digest : mDigests[i]) {
+                    out.writeBoolean(digest != null);
+                    if (digest != null) {
+                        out.write(digest);
+                    }
+                }
+            }
+        }
+    }
+}
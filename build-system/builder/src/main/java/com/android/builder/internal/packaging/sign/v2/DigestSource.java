@@ -43,6 +43,9 @@ public interface DigestSource {
      * {@link MessageDigest} instances. Each {@code MessageDigest} instance receives the specified
      * chunk of data in full.
      *
+     * <p>This method may be invoked concurrently from several threads, each with its own
+     * {@code MessageDigest} instances.
+     *
      * @param offset index (in bytes) at which the chunk starts relative to the start of this data
      *        source.
      * @param size size (in bytes) of the chunk.
@@ -17,6 +17,7 @@
 package com.android.builder.internal.packaging.sign.v2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 
 import com.android.annotations.NonNull;
@@ -24,7 +25,8 @@ import com.android.builder.internal.packaging.zip.ZFile;
 import com.google.common.base.Preconditions;
 
 /**
- * Contiguous section of {@link ZFile} which is fed into {@link MessageDigest} instances.
+ * Contiguous section of {@link ZFile} which is fed into {@link MessageDigest} instances. Chunks
+ * are read without moving the file pointer, so they can be digested concurrently.
  */
 public class ZFileDigestSource implements DigestSource {
     private final ZFile mFile;
@@ -61,7 +63,7 @@ public class ZFileDigestSource implements DigestSource {
                 size <= availableSize, "offset: %s, size: %s, file size: %s", offset, size, mSize);
 
         byte[] chunk = new byte[size];
-        mFile.directFullyRead(chunkStartOffset, chunk);
+        mFile.directFullyRead(chunkStartOffset, ByteBuffer.wrap(chunk));
         for (MessageDigest md : digests) {
             md.update(chunk);
         }
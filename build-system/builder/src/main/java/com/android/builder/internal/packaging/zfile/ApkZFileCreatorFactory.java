@@ -42,6 +42,15 @@ public class ApkZFileCreatorFactory implements ApkCreatorFactory {
         mOptions = options;
     }
 
+    /**
+     * Obtains the options used for all instances created.
+     *
+     * @return the options
+     */
+    @NonNull
+    public ZFileOptions getOptions() {
+        return mOptions;
+    }
 
     @Override
     @NonNull
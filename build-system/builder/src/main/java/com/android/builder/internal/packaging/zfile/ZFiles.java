@@ -136,7 +136,9 @@ public class ZFiles {
                                     zfile,
                                     minSdkVersion,
                                     certificate,
-                                    key);
+                                    key,
+                                    FullApkSignExtension.DEFAULT_DIGEST_EXECUTOR,
+                                    getDigestCacheFile(f));
                     apkSignatureSchemeV2Ext.register();
                 }
                 if (!v1SigningEnabled) {
@@ -155,4 +157,17 @@ public class ZFiles {
 
         return zfile;
     }
+
+    /**
+     * Obtains the file where the digests of the chunks of an APK are kept, to only digest again
+     * the chunks that changed when the APK is incrementally updated. The file is next to the APK
+     * and hidden.
+     *
+     * @param apk the APK
+     * @return the file
+     */
+    @NonNull
+    private static File getDigestCacheFile(@NonNull File apk) {
+        return new File(apk.getAbsoluteFile().getParentFile(), "." + apk.getName() + ".digests");
+    }
 }
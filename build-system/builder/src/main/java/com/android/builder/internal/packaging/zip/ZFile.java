@@ -20,6 +20,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.builder.internal.packaging.zip.utils.ByteTracker;
 import com.android.builder.internal.packaging.zip.utils.CloseableByteSource;
+import com.android.builder.internal.packaging.zip.utils.FileRegionByteSource;
 import com.android.builder.internal.packaging.zip.utils.LittleEndianUtils;
 import com.android.builder.internal.packaging.zip.utils.RandomAccessFileUtils;
 import com.android.builder.internal.utils.CachedFileContents;
@@ -48,6 +49,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -161,6 +163,15 @@ import java.util.function.Predicate;
  * drawback of automatic sorting is that sorting will happen every time {@link #update()} is
  * called and the file is dirty having a possible penalty in performance.
  *
+ * <p>{@code ZFile} can read and copy entries using file channels, by setting
+ * {@link ZFileOptions#setUseFileChannels(boolean)} to {@code true}. Reads are then positional
+ * and do not move the file pointer, and entries merged from another zip file
+ * (see {@link #mergeFrom(ZFile, Predicate)}) are not copied into memory: their raw data is read
+ * again from the other zip file when written, and copied between the files using
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+ * Merging large archives then does not use heap memory proportional to their size. The other zip
+ * file must not be modified before this one is updated.
+ *
  * <p>To allow whole-apk signing, the {@code ZFile} allows the central directory location to be
  * offset by a fixed amount. This amount can be set using the {@link #setExtraDirectoryOffset(long)}
  * method. Setting a non-zero value will add extra (unused) space in the zip file before the
@@ -370,6 +381,10 @@ public class ZFile implements Closeable {
      */
     private boolean mAutoSortFiles;
 
+    /**
+     * Should entries be read and copied using file channels?
+     */
+    private final boolean mUseFileChannels;
 
     /**
      * Creates a new zip file. If the zip file does not exist, then no file is created at this
@@ -411,6 +426,7 @@ public class ZFile implements Closeable {
         mCompressor = options.getCompressor();
         mCoverEmptySpaceUsingExtraField = options.getCoverEmptySpaceUsingExtraField();
         mAutoSortFiles = options.getAutoSortFiles();
+        mUseFileChannels = options.getUseFileChannels();
 
         /*
          * These two values will be overwritten by openReadOnly() below if the file exists.
@@ -959,7 +975,9 @@ public class ZFile implements Closeable {
         appendEocd();
 
         Verify.verifyNotNull(mRaf);
+        long oldLength = mRaf.length();
         mRaf.setLength(mMap.size());
+        notifyWritten(Math.min(oldLength, mMap.size()), Math.max(oldLength, mMap.size()));
 
         mDirty = false;
 
@@ -1117,18 +1135,24 @@ public class ZFile implements Closeable {
         ByteSource rawContents = source.getRawByteSource();
 
         /*
-         * Write the source data.
+         * Write the source data. Data still in another zip file is copied directly between the
+         * files.
          */
-        byte[] chunk = new byte[IO_BUFFER_SIZE];
-        int r;
         long writeOffset = offset + headerData.length;
-        InputStream is = rawContents.openStream();
-        while ((r = is.read(chunk)) >= 0) {
-            directWrite(writeOffset, chunk, 0, r);
-            writeOffset += r;
-        }
+        if (mUseFileChannels && rawContents instanceof FileRegionByteSource) {
+            ((FileRegionByteSource) rawContents).transferTo(mRaf.getChannel(), writeOffset);
+            notifyWritten(writeOffset, writeOffset + rawContents.size());
+        } else {
+            byte[] chunk = new byte[IO_BUFFER_SIZE];
+            int r;
+            InputStream is = rawContents.openStream();
+            while ((r = is.read(chunk)) >= 0) {
+                directWrite(writeOffset, chunk, 0, r);
+                writeOffset += r;
+            }
 
-        is.close();
+            is.close();
+        }
 
         /*
          * Set the entry's offset and create the entry source.
@@ -1755,28 +1779,29 @@ public class ZFile implements Closeable {
                 }
 
                 /*
-                 * Read the data (read directly the compressed source if there is one).
+                 * Read the data (read directly the compressed source if there is one). When using
+                 * file channels, data that is written in the other zip file is left there and
+                 * only read when needed.
                  */
                 ProcessedAndRawByteSources fromSource = fromEntry.getSource();
-                InputStream fromInput = fromSource.getRawByteSource().openStream();
                 long sourceSize = fromSource.getRawByteSource().size();
                 if (sourceSize > Integer.MAX_VALUE) {
                     throw new IOException("Cannot read source with " + sourceSize + " bytes.");
                 }
 
-                byte data[] = new byte[Ints.checkedCast(sourceSize)];
-                int read = 0;
-                while (read < data.length) {
-                    int r = fromInput.read(data, read, data.length - read);
-                    Verify.verify(r >= 0, "There should be at least 'size' bytes in the stream.");
-                    read += r;
-                }
-
                 /*
                  * Build the new source and wrap it around an inflater source if data came from
                  * a compressed source.
                  */
-                CloseableByteSource rawContents = mTracker.fromSource(fromSource.getRawByteSource());
+                CloseableByteSource rawContents;
+                long fromOffset = fromCdr.getOffset();
+                if (mUseFileChannels && fromOffset >= 0) {
+                    rawContents = new FileRegionByteSource(src.getFile(),
+                            fromOffset + fromEntry.getLocalHeaderSize(), sourceSize);
+                } else {
+                    rawContents = mTracker.fromSource(fromSource.getRawByteSource());
+                }
+
                 CloseableByteSource processedContents;
                 if (fromCompressInfo.getMethod() == CompressionMethod.DEFLATE) {
                     //noinspection IOResourceOpenedButNotSafelyClosed
@@ -1983,6 +2008,22 @@ public class ZFile implements Closeable {
         }
     }
 
+    /**
+     * Notifies all extensions that bytes of the file have changed on disk.
+     *
+     * @param start the offset of the first byte that changed
+     * @param end the offset after the last byte that changed
+     */
+    private void notifyWritten(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+
+        for (ZFileExtension fl : Lists.newArrayList(mExtensions)) {
+            fl.written(start, end);
+        }
+    }
+
     /**
      * Directly writes data in the zip file. <strong>Incorrect use of this method may corrupt the
      * zip file</strong>. Invoking this method may force the zip to be reopened in read/write
@@ -2012,6 +2053,7 @@ public class ZFile implements Closeable {
 
         mRaf.seek(offset);
         mRaf.write(data, start, count);
+        notifyWritten(offset, offset + count);
     }
 
     /**
@@ -2058,6 +2100,10 @@ public class ZFile implements Closeable {
             assert mRaf != null;
         }
 
+        if (mUseFileChannels) {
+            return mRaf.getChannel().read(ByteBuffer.wrap(data, start, count), offset);
+        }
+
         mRaf.seek(offset);
         return mRaf.read(data, start, count);
     }
@@ -2089,6 +2135,35 @@ public class ZFile implements Closeable {
         RandomAccessFileUtils.fullyRead(mRaf, data);
     }
 
+    /**
+     * Reads exactly {@code data.remaining()} bytes of data, failing if it was not possible to read
+     * all the requested data. Unlike the other read methods, this one does not move the file
+     * pointer and can be invoked concurrently from several threads, as long as the file is not
+     * modified or closed meanwhile.
+     *
+     * @param offset the offset at which to start reading
+     * @param data the buffer that receives the data read
+     * @throws IOException failed to read some data or there is not enough data to read
+     */
+    public void directFullyRead(long offset, @NonNull ByteBuffer data) throws IOException {
+        Preconditions.checkArgument(offset >= 0, "offset < 0");
+        RandomAccessFile raf = mRaf;
+        Preconditions.checkNotNull(raf, "File is closed");
+
+        FileChannel channel = raf.getChannel();
+        int size = data.remaining();
+        long position = offset;
+        while (data.hasRemaining()) {
+            int r = channel.read(data, position);
+            if (r < 0) {
+                throw new IOException("Failed to read " + size + " bytes from file. Only "
+                        + (size - data.remaining()) + " bytes could be read.");
+            }
+
+            position += r;
+        }
+    }
+
     /**
      * Adds all files and directories recursively.
      * <p>
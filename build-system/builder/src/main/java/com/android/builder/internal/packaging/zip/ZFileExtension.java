@@ -110,6 +110,17 @@ public abstract class ZFileExtension {
     public void updated() throws IOException {
     }
 
+    /**
+     * Bytes of the zip file have been changed on disk, either because data was written or because
+     * the file was resized. This is notified for every change, including entries being moved
+     * around in the file. The default implementation does nothing.
+     *
+     * @param start the offset of the first byte that changed
+     * @param end the offset after the last byte that changed
+     */
+    public void written(long start, long end) {
+    }
+
     /**
      * The zip file has been closed. Note that if {@link ZFile#close()} requires that the zip file
      * be updated (because it had in-memory changes), {@link #updated()} will be called before
@@ -61,6 +61,11 @@ public class ZFileOptions {
      */
     private boolean mAutoSortFiles;
 
+    /**
+     * Should entries be read and copied using file channels?
+     */
+    private boolean mUseFileChannels;
+
     /**
      * Creates a new options object. All options are set to their defaults.
      */
@@ -177,4 +182,24 @@ public class ZFileOptions {
     public void setAutoSortFiles(boolean autoSortFiles) {
         mAutoSortFiles = autoSortFiles;
     }
+
+    /**
+     * Obtains whether entries are read and copied using file channels. See {@link ZFile} for an
+     * explanation on file channels.
+     *
+     * @return are file channels used?
+     */
+    public boolean getUseFileChannels() {
+        return mUseFileChannels;
+    }
+
+    /**
+     * Sets whether entries are read and copied using file channels. See {@link ZFile} for an
+     * explanation on file channels.
+     *
+     * @param useFileChannels should file channels be used?
+     */
+    public void setUseFileChannels(boolean useFileChannels) {
+        mUseFileChannels = useFileChannels;
+    }
 }
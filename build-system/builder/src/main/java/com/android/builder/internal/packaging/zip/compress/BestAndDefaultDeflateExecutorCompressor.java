@@ -17,10 +17,12 @@
 package com.android.builder.internal.packaging.zip.compress;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.builder.internal.packaging.zip.CompressionResult;
 import com.android.builder.internal.packaging.zip.utils.ByteTracker;
 import com.android.builder.internal.packaging.zip.utils.CloseableByteSource;
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
 
 import java.util.concurrent.Executor;
 import java.util.zip.Deflater;
@@ -61,15 +63,31 @@ public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor
      */
     public BestAndDefaultDeflateExecutorCompressor(@NonNull Executor executor,
             @NonNull ByteTracker tracker, double minRatio) {
+        this(executor, tracker, minRatio, null);
+    }
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param executor the executor used to perform compression activities.
+     * @param tracker the byte tracker to keep track of allocated bytes
+     * @param minRatio the minimum best compression size / default compression size needed to pick
+     * the default compression size; see
+     * {@link #BestAndDefaultDeflateExecutorCompressor(Executor, ByteTracker, double)}
+     * @param cache the cache with previously deflated data, used for both compression levels;
+     * {@code null} to always compress
+     */
+    public BestAndDefaultDeflateExecutorCompressor(@NonNull Executor executor,
+            @NonNull ByteTracker tracker, double minRatio, @Nullable DeflateCache cache) {
         super(executor);
 
         Preconditions.checkArgument(minRatio >= 0.0, "minRatio < 0.0");
         Preconditions.checkArgument(minRatio <= 1.0, "minRatio > 1.0");
 
         mDefaultDeflater = new DeflateExecutionCompressor(executor, tracker,
-                Deflater.DEFAULT_COMPRESSION);
+                Deflater.DEFAULT_COMPRESSION, cache);
         mBestDeflater = new DeflateExecutionCompressor(executor, tracker,
-                Deflater.BEST_COMPRESSION);
+                Deflater.BEST_COMPRESSION, cache);
         mMinRatio = minRatio;
     }
 
@@ -77,8 +95,11 @@ public class BestAndDefaultDeflateExecutorCompressor extends ExecutorCompressor
     @Override
     protected CompressionResult immediateCompress(@NonNull CloseableByteSource source)
             throws Exception {
-        CompressionResult defaultResult = mDefaultDeflater.immediateCompress(source);
-        CompressionResult bestResult = mBestDeflater.immediateCompress(source);
+        byte[] data = source.read();
+        HashCode contentHash = mDefaultDeflater.hashForCache(data);
+        CompressionResult defaultResult =
+                mDefaultDeflater.immediateCompress(source, data, contentHash);
+        CompressionResult bestResult = mBestDeflater.immediateCompress(source, data, contentHash);
 
         double sizeRatio = bestResult.getSize() / (double) defaultResult.getSize();
         if (sizeRatio >= mMinRatio) {
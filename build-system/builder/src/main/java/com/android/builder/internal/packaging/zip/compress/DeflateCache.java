@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip.compress;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+
+import java.io.IOException;
+
+/**
+ * Cache of deflated data, used by {@link DeflateExecutionCompressor} to avoid compressing the same
+ * data again, for example the same resources in several variants or in successive clean builds.
+ * Data is identified by the SHA-256 hash of its uncompressed contents and by the compression
+ * level, so the cache never needs to be invalidated.
+ *
+ * <p>Caches are used concurrently by all compression tasks and must be thread-safe. Since the
+ * cache is only an optimization, compression is done again if the cache fails.
+ */
+public interface DeflateCache {
+
+    /**
+     * Obtains the deflated data.
+     *
+     * @param contentHash the SHA-256 hash of the uncompressed data
+     * @param level the deflate compression level
+     * @return the raw deflated data or {@code null} if it is not in the cache
+     * @throws IOException failed to read the cache
+     */
+    @Nullable
+    ByteSource get(@NonNull HashCode contentHash, int level) throws IOException;
+
+    /**
+     * Adds deflated data to the cache.
+     *
+     * @param contentHash the SHA-256 hash of the uncompressed data
+     * @param level the deflate compression level
+     * @param deflated the raw deflated data
+     * @throws IOException failed to write the cache
+     */
+    void put(@NonNull HashCode contentHash, int level, @NonNull byte[] deflated)
+            throws IOException;
+}
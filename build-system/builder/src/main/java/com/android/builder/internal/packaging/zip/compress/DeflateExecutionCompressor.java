@@ -17,18 +17,24 @@
 package com.android.builder.internal.packaging.zip.compress;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.builder.internal.packaging.zip.CompressionMethod;
 import com.android.builder.internal.packaging.zip.CompressionResult;
 import com.android.builder.internal.packaging.zip.utils.ByteTracker;
 import com.android.builder.internal.packaging.zip.utils.CloseableByteSource;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.concurrent.Executor;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 
 /**
- * Compressor that uses deflate with an executor.
+ * Compressor that uses deflate with an executor. A {@link DeflateCache} may be provided to reuse
+ * data deflated before instead of compressing it again.
  */
 public class DeflateExecutionCompressor extends ExecutorCompressor {
 
@@ -44,6 +50,12 @@ public class DeflateExecutionCompressor extends ExecutorCompressor {
     @NonNull
     private final ByteTracker mTracker;
 
+    /**
+     * Cache with previously deflated data, {@code null} if not using a cache.
+     */
+    @Nullable
+    private final DeflateCache mCache;
+
     /**
      * Creates a new compressor.
      *
@@ -53,24 +65,96 @@ public class DeflateExecutionCompressor extends ExecutorCompressor {
      */
     public DeflateExecutionCompressor(@NonNull Executor executor, @NonNull ByteTracker tracker,
             int level) {
+        this(executor, tracker, level, null);
+    }
+
+    /**
+     * Creates a new compressor.
+     *
+     * @param executor the executor to run deflation tasks
+     * @param tracker the byte tracker to use to keep track of memory usage
+     * @param level the compression level
+     * @param cache the cache with previously deflated data; {@code null} to always compress
+     */
+    public DeflateExecutionCompressor(@NonNull Executor executor, @NonNull ByteTracker tracker,
+            int level, @Nullable DeflateCache cache) {
         super(executor);
 
         mLevel = level;
         mTracker = tracker;
+        mCache = cache;
     }
 
     @NonNull
     @Override
     protected CompressionResult immediateCompress(@NonNull CloseableByteSource source)
             throws Exception {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        Deflater deflater = new Deflater(mLevel, true);
+        byte[] data = source.read();
+        return immediateCompress(source, data, hashForCache(data));
+    }
+
+    /**
+     * Computes the hash of data to look it up in the cache.
+     *
+     * @param data the uncompressed data
+     * @return the hash or {@code null} if not using a cache
+     */
+    @Nullable
+    HashCode hashForCache(@NonNull byte[] data) {
+        if (mCache == null) {
+            return null;
+        }
+
+        return Hashing.sha256().hashBytes(data);
+    }
+
+    /**
+     * Compresses a source whose data has already been read.
+     *
+     * @param source the source to compress
+     * @param data the data in the source
+     * @param contentHash the hash of the data, as computed by {@link #hashForCache(byte[])}
+     * @return the result of compression
+     * @throws Exception failed to compress
+     */
+    @NonNull
+    CompressionResult immediateCompress(@NonNull CloseableByteSource source, @NonNull byte[] data,
+            @Nullable HashCode contentHash) throws Exception {
+        CloseableByteSource result = null;
+        if (mCache != null && contentHash != null) {
+            try {
+                ByteSource cached = mCache.get(contentHash, mLevel);
+                if (cached != null) {
+                    result = mTracker.fromSource(cached);
+                }
+            } catch (IOException e) {
+                /*
+                 * Compress the data instead.
+                 */
+            }
+        }
+
+        if (result == null) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(mLevel, true);
+
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(output, deflater)) {
+                dos.write(data);
+            }
+
+            result = mTracker.fromStream(output);
 
-        try (DeflaterOutputStream dos = new DeflaterOutputStream(output, deflater)) {
-            dos.write(source.read());
+            if (mCache != null && contentHash != null) {
+                try {
+                    mCache.put(contentHash, mLevel, result.read());
+                } catch (IOException e) {
+                    /*
+                     * The data will be compressed again next time.
+                     */
+                }
+            }
         }
 
-        CloseableByteSource result = mTracker.fromStream(output);
         if (result.size() >= source.size()) {
             return new CompressionResult(source, CompressionMethod.STORE, source.size());
         } else {
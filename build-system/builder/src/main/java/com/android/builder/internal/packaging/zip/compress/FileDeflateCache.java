@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip.compress;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link DeflateCache} keeping each deflated data in a file of a directory, which can be shared by
+ * all variants of a project, or even by several projects. Files are named after the hash of the
+ * data and the compression level.
+ *
+ * <p>Files are written under a temporary name and then renamed, so they are always complete when
+ * read, even with several builds using the same directory. Files that have not been used for
+ * {@link #MAX_AGE_DAYS} days are deleted, at most once a day, the first time data is added to the
+ * cache. A file deleted while another build looks it up is just not found, and that build
+ * compresses the data again. The directory must be used by this cache only; in particular, it
+ * must not be in the directory of a {@link com.android.builder.internal.utils.FileCache}, which
+ * locks and lays out its own entries.
+ */
+public class FileDeflateCache implements DeflateCache {
+
+    /**
+     * Files that have not been used for that many days are deleted.
+     */
+    private static final long MAX_AGE_DAYS = 30;
+
+    /**
+     * Interval between two deletions of the unused files of a directory.
+     */
+    private static final long PRUNE_INTERVAL_MS = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * Name of the file, in the directory, last modified when unused files were last deleted.
+     */
+    @VisibleForTesting
+    static final String PRUNE_MARKER = ".pruned";
+
+    /**
+     * Directory with the cached data.
+     */
+    @NonNull
+    private final File mDirectory;
+
+    /**
+     * Maximum time, in milliseconds, a file is kept without being used.
+     */
+    private final long mMaxAgeMs;
+
+    /**
+     * Whether this cache has checked for unused files to delete.
+     */
+    @NonNull
+    private final AtomicBoolean mPruned = new AtomicBoolean();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory the directory with the cached data; will be created if it does not exist
+     */
+    public FileDeflateCache(@NonNull File directory) {
+        this(directory, TimeUnit.DAYS.toMillis(MAX_AGE_DAYS));
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param directory the directory with the cached data; will be created if it does not exist
+     * @param maxAgeMs maximum time, in milliseconds, a file is kept without being used
+     */
+    @VisibleForTesting
+    FileDeflateCache(@NonNull File directory, long maxAgeMs) {
+        mDirectory = directory;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    @Nullable
+    @Override
+    public ByteSource get(@NonNull HashCode contentHash, int level) throws IOException {
+        File file = getFile(contentHash, level);
+
+        /*
+         * Read the data now: the file may be deleted as unused by another build at any time.
+         */
+        byte[] data;
+        try {
+            data = Files.toByteArray(file);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        /*
+         * Mark the file as used. This may fail if the file was just deleted.
+         */
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return ByteSource.wrap(data);
+    }
+
+    @Override
+    public void put(@NonNull HashCode contentHash, int level, @NonNull byte[] deflated)
+            throws IOException {
+        File file = getFile(contentHash, level);
+        if (file.isFile()) {
+            return;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs() && !mDirectory.isDirectory()) {
+            throw new IOException("Failed to create directory '" + mDirectory.getAbsolutePath()
+                    + "'.");
+        }
+
+        if (mPruned.compareAndSet(false, true)) {
+            prune();
+        }
+
+        File temporary = File.createTempFile(file.getName(), ".tmp", mDirectory);
+        try {
+            Files.write(deflated, temporary);
+            try {
+                java.nio.file.Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                java.nio.file.Files.move(temporary.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            if (temporary.exists() && !temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Deletes the files that have not been used for {@link #mMaxAgeMs}, unless that was done less
+     * than {@link #PRUNE_INTERVAL_MS} ago, possibly by another build. Temporary files being
+     * written by other builds are recent and are not deleted. Files that cannot be deleted, for
+     * example because they are being read, are left for next time.
+     *
+     * @throws IOException failed to mark the directory as pruned
+     */
+    private void prune() throws IOException {
+        long now = System.currentTimeMillis();
+        File marker = new File(mDirectory, PRUNE_MARKER);
+        if (marker.isFile() && marker.lastModified() > now - PRUNE_INTERVAL_MS) {
+            return;
+        }
+
+        Files.touch(marker);
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long oldest = now - mMaxAgeMs;
+        for (File f : files) {
+            if (!f.equals(marker) && f.lastModified() < oldest) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Obtains the file with cached data.
+     *
+     * @param contentHash the SHA-256 hash of the uncompressed data
+     * @param level the deflate compression level
+     * @return the file, which may not exist
+     */
+    @NonNull
+    private File getFile(@NonNull HashCode contentHash, int level) {
+        Preconditions.checkArgument(contentHash.bits() == 256, "contentHash is not SHA-256");
+        return new File(mDirectory, contentHash + "-" + level);
+    }
+}
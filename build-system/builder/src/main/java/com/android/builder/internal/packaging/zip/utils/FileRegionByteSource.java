@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip.utils;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Byte source with a region of a file, read from disk when needed instead of being kept in memory.
+ * The file is only open while reading it, so it is not locked in between.
+ *
+ * <p>The source records the size and modification time of the file when created and fails to
+ * read the file if either changed since: the data it would return may not be the data the
+ * source was created for.
+ */
+public class FileRegionByteSource extends CloseableByteSource {
+
+    /**
+     * The file with the data.
+     */
+    @NonNull
+    private final File mFile;
+
+    /**
+     * Offset of the data in the file.
+     */
+    private final long mOffset;
+
+    /**
+     * Size of the data.
+     */
+    private final long mSize;
+
+    /**
+     * Size of the file when this source was created.
+     */
+    private final long mFileSize;
+
+    /**
+     * Modification time of the file when this source was created.
+     */
+    private final long mFileLastModified;
+
+    /**
+     * Creates a new source.
+     *
+     * @param file the file with the data
+     * @param offset the offset of the data in the file
+     * @param size the size of the data
+     */
+    public FileRegionByteSource(@NonNull File file, long offset, long size) {
+        Preconditions.checkArgument(offset >= 0, "offset < 0");
+        Preconditions.checkArgument(size >= 0, "size < 0");
+        Preconditions.checkArgument(offset + size <= file.length(), "offset + size > file size");
+
+        mFile = file;
+        mOffset = offset;
+        mSize = size;
+        mFileSize = file.length();
+        mFileLastModified = file.lastModified();
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @NonNull
+    @Override
+    public InputStream openStream() throws IOException {
+        checkUnmodified();
+        return Files.asByteSource(mFile).slice(mOffset, mSize).openStream();
+    }
+
+    /**
+     * Copies the data to a file channel, letting the operating system move the bytes directly
+     * between the files when it can.
+     *
+     * @param target the channel to write to
+     * @param position the position in {@code target} where to write the data
+     * @throws IOException failed to read or write the data
+     */
+    public void transferTo(@NonNull FileChannel target, long position) throws IOException {
+        checkUnmodified();
+        try (FileChannel source = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+            target.position(position);
+            long transferred = 0;
+            while (transferred < mSize) {
+                long r = source.transferTo(mOffset + transferred, mSize - transferred, target);
+                if (r <= 0) {
+                    throw new IOException("Failed to read " + mSize + " bytes from '"
+                            + mFile.getAbsolutePath() + "'. Only " + transferred
+                            + " bytes could be read.");
+                }
+
+                transferred += r;
+            }
+        }
+    }
+
+    /**
+     * Makes sure the file has not been modified since this source was created.
+     *
+     * @throws IOException the file has been modified
+     */
+    private void checkUnmodified() throws IOException {
+        if (mFile.length() != mFileSize || mFile.lastModified() != mFileLastModified) {
+            throw new IOException("File '" + mFile.getAbsolutePath() + "' has been modified "
+                    + "by an external application.");
+        }
+    }
+
+    @Override
+    protected void innerClose() throws IOException {
+        /*
+         * Nothing to do here.
+         */
+    }
+}
@@ -116,6 +116,27 @@ public final class Dex {
         }
     }
 
+    /**
+     * Creates a new dex reading from a memory mapping of the dex file
+     * {@code file}, instead of loading it in the heap. The {@code classes.dex}
+     * entry of an archive is mapped if it is stored uncompressed, and loaded
+     * otherwise. It is an error to modify the file while the returned dex is
+     * in use.
+     */
+    public static Dex map(File file) throws IOException {
+        ByteBuffer data = null;
+        if (FileUtils.hasArchiveSuffix(file.getName())) {
+            data = FileUtils.mapStoredEntry(file, DexFormat.DEX_IN_JAR_NAME);
+        } else if (file.getName().endsWith(".dex")) {
+            data = FileUtils.mapFile(file);
+        }
+
+        if (data == null) {
+            return new Dex(file);
+        }
+        return new Dex(data);
+    }
+
     /**
      * Creates a new dex from the contents of {@code bytes}. This API supports
      * both {@code .dex} and {@code .odex} input. Calling this constructor
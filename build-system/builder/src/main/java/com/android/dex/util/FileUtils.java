@@ -19,11 +19,33 @@ package com.android.dex.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 /**
  * File I/O utilities.
  */
 public final class FileUtils {
+    /** signature of a zip end of central directory record */
+    private static final int ZIP_EOCD_SIGNATURE = 0x06054b50;
+
+    /** size of a zip end of central directory record, without comment */
+    private static final int ZIP_EOCD_SIZE = 22;
+
+    /** signature of a zip central directory file header */
+    private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    /** size of a zip central directory file header, without name, extra and comment */
+    private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+
+    /** signature of a zip local file header */
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    /** size of a zip local file header, without name and extra */
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+
     private FileUtils() {
     }
 
@@ -86,6 +108,138 @@ public final class FileUtils {
         return result;
     }
 
+    /**
+     * Maps the whole of the given file in memory, read-only. The mapping
+     * remains valid after this method returns, until it is garbage
+     * collected.
+     *
+     * @param file {@code non-null;} the file to map
+     * @return {@code non-null;} the contents of the file
+     */
+    public static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps the data of an entry of a zip archive in memory, read-only,
+     * straight from its offset in the archive. This is only possible for
+     * entries stored uncompressed.
+     *
+     * @param archive {@code non-null;} the archive
+     * @param entryName {@code non-null;} the name of the entry
+     * @return {@code null-ok;} the data of the entry, or {@code null} if the
+     * archive has no such entry, if the entry is compressed, or if the
+     * archive cannot be read this way (e.g. zip64 or truncated archives)
+     */
+    public static ByteBuffer mapStoredEntry(File archive, String entryName)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+
+            // The end of central directory record is at the end of the
+            // archive, followed by a comment of up to 64KiB.
+            int tailSize = (int) Math.min(size, ZIP_EOCD_SIZE + 0xffff);
+            ByteBuffer tail = read(channel, size - tailSize, tailSize);
+            int eocd = tailSize - ZIP_EOCD_SIZE;
+            while (eocd >= 0 && tail.getInt(eocd) != ZIP_EOCD_SIGNATURE) {
+                eocd--;
+            }
+            if (eocd < 0) {
+                return null;
+            }
+
+            long directorySize = tail.getInt(eocd + 12) & 0xffffffffL;
+            long directoryOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+            if (directoryOffset + directorySize > size) {
+                return null;
+            }
+
+            ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+            byte[] name = entryName.getBytes("UTF-8");
+            int at = 0;
+            while (at + ZIP_CENTRAL_HEADER_SIZE <= directorySize
+                    && directory.getInt(at) == ZIP_CENTRAL_HEADER_SIGNATURE) {
+                int method = directory.getShort(at + 10) & 0xffff;
+                long compressedSize = directory.getInt(at + 20) & 0xffffffffL;
+                long uncompressedSize = directory.getInt(at + 24) & 0xffffffffL;
+                int nameLength = directory.getShort(at + 28) & 0xffff;
+                int extraLength = directory.getShort(at + 30) & 0xffff;
+                int commentLength = directory.getShort(at + 32) & 0xffff;
+                long localOffset = directory.getInt(at + 42) & 0xffffffffL;
+
+                if (hasName(directory, at + ZIP_CENTRAL_HEADER_SIZE, nameLength, name)) {
+                    if (method != 0 || compressedSize != uncompressedSize) {
+                        return null;
+                    }
+
+                    if (localOffset + ZIP_LOCAL_HEADER_SIZE > size) {
+                        return null;
+                    }
+
+                    ByteBuffer local = read(channel, localOffset, ZIP_LOCAL_HEADER_SIZE);
+                    if (local.getInt(0) != ZIP_LOCAL_HEADER_SIGNATURE) {
+                        return null;
+                    }
+
+                    long dataOffset = localOffset + ZIP_LOCAL_HEADER_SIZE
+                            + (local.getShort(26) & 0xffff)
+                            + (local.getShort(28) & 0xffff);
+                    if (dataOffset + uncompressedSize > size) {
+                        return null;
+                    }
+
+                    return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset,
+                            uncompressedSize);
+                }
+
+                at += ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes at {@code offset} of a channel.
+     */
+    private static ByteBuffer read(FileChannel channel, long offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected EOF");
+            }
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Returns true if the {@code length} bytes at {@code at} of
+     * {@code buffer} are {@code name}.
+     */
+    private static boolean hasName(ByteBuffer buffer, int at, int length, byte[] name) {
+        if (length != name.length || at + length > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(at + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns true if {@code fileName} names a .zip, .jar, or .apk.
      */
@@ -27,7 +27,8 @@ public class Main {
         "usage:\n" +
         "  dx --dex [--debug] [--verbose] [--positions=<style>] " +
         "[--no-locals]\n" +
-        "  [--no-optimize] [--statistics] [--[no-]optimize-list=<file>] " +
+        "  [--no-optimize] [--statistics] [--optimizer-metrics=<n>]\n" +
+        "  [--[no-]optimize-list=<file>] " +
         "[--no-strict]\n" +
         "  [--keep-classes] [--output=<file>] [--dump-to=<file>] " +
         "[--dump-width=<n>]\n" +
@@ -35,7 +36,7 @@ public class Main {
         "[--core-library]\n" +
         "  [--num-threads=<n>] [--incremental] [--force-jumbo] [--no-warning]\n" +
         "  [--multi-dex [--main-dex-list=<file> [--minimal-main-dex]]\n" +
-        "  [--input-list=<file>]\n" +
+        "  [--input-list=<file>] [--class-cache=<directory>]\n" +
         "  [<file>.class | <file>.{zip,jar,apk} | <directory>] ...\n" +
         "    Convert a set of classfiles into a dex file, optionally " +
         "embedded in a\n" +
@@ -53,8 +54,17 @@ public class Main {
         "    --minimal-main-dex: only classes selected by --main-dex-list are " +
         "to be put in\n" +
         "    the main dex.\n" +
+        "    --optimizer-metrics=<n>: prints the time spent and the insns and " +
+        "registers\n" +
+        "    changed by each optimizer pass, in total and for the <n> slowest " +
+        "methods.\n" +
         "    --input-list: <file> is a list of inputs.\n" +
         "    Each line in <file> must end with one of: .class .jar .zip .apk or be a directory.\n" +
+        "    --class-cache=<directory>: keeps the translation of each class " +
+        "in <directory>,\n" +
+        "    and only translates again the classes that changed. Not " +
+        "supported with\n" +
+        "    --multi-dex.\n" +
         "  dx --annotool --annotation=<class> [--element=<element types>]\n" +
         "  [--print=<print types>]\n" +
         "  dx --dump [--debug] [--strict] [--bytes] [--optimize]\n" +
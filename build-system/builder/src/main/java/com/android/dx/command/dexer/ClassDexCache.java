@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.dx.command.dexer;
+
+import com.android.dex.util.FileUtils;
+import com.android.dx.Version;
+import com.android.dx.util.Hex;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache of the dex files translated from single class files,
+ * keyed by the contents of the class file and the options of the
+ * translation. Only the classes not found in the cache need to be
+ * translated again, the cached ones being merged into the output.
+ */
+final class ClassDexCache {
+
+    /** {@code non-null;} directory of the cached dex files */
+    private final File directory;
+
+    /**
+     * {@code non-null;} description of the options the classes are
+     * translated with, which is part of the key of each class
+     */
+    private final String options;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param directory {@code non-null;} directory of the cached dex files,
+     * created if needed
+     * @param args {@code non-null;} the arguments of the translation
+     */
+    public ClassDexCache(File directory, Main.Arguments args) {
+        this.directory = directory;
+        this.options = Version.VERSION
+                + "|positions=" + args.cfOptions.positionInfo
+                + "|locals=" + args.cfOptions.localInfo
+                + "|optimize=" + args.cfOptions.optimize
+                + "|api=" + args.dexOptions.targetApiLevel
+                + "|jumbo=" + args.dexOptions.forceJumbo
+                + "|align64=" + args.dexOptions.ALIGN_64BIT_REGS_IN_OUTPUT_FINISHER;
+    }
+
+    /**
+     * Computes the key of a class.
+     *
+     * @param name {@code non-null;} name of the class file
+     * @param bytes {@code non-null;} contents of the class file
+     * @return {@code non-null;} the key
+     */
+    public String getKey(String name, byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(options.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(name.getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(bytes);
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(Hex.u1(b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Gets the dex file of a class, if cached.
+     *
+     * @param key {@code non-null;} the key of the class
+     * @return {@code null-ok;} the contents of the dex file, or
+     * {@code null} if the class is not in the cache
+     */
+    public byte[] get(String key) {
+        File file = getFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        return FileUtils.readFile(file);
+    }
+
+    /**
+     * Adds the dex file of a class to the cache. The file is written
+     * under a temporary name first, so other instances of dx sharing
+     * the cache never read a partial file.
+     *
+     * @param key {@code non-null;} the key of the class
+     * @param dex {@code non-null;} the contents of the dex file
+     */
+    public void put(String key, byte[] dex) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create class cache directory " + directory);
+        }
+
+        File file = getFile(key);
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(dex);
+            } finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file) && !file.isFile()) {
+                throw new IOException("Cannot write " + file);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + ".dex");
+    }
+}
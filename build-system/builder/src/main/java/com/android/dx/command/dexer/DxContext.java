@@ -2,6 +2,7 @@ package com.android.dx.command.dexer;
 
 import com.android.dx.dex.cf.CodeStatistics;
 import com.android.dx.dex.cf.OptimizerOptions;
+import com.android.dx.ssa.OptimizerMetrics;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -13,6 +14,7 @@ import java.io.PrintStream;
 public class DxContext {
     public final CodeStatistics codeStatistics = new CodeStatistics();
     public final OptimizerOptions optimizerOptions = new OptimizerOptions();
+    public final OptimizerMetrics optimizerMetrics = new OptimizerMetrics();
     public final PrintStream out;
     public final PrintStream err;
 
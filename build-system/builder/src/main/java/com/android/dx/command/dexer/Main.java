@@ -68,14 +68,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
@@ -191,17 +192,49 @@ public class Main {
     /** Library .dex files to merge into the output .dex. */
     private final List<byte[]> libraryDexBuffers = new ArrayList<byte[]>();
 
+    /** {@code null-ok;} cache of the classes translated to dex files of
+     * their own, or {@code null} if classes are translated to the output
+     * dex directly */
+    private ClassDexCache classCache;
+
+    /** Dex files of single classes, in input file order, to merge into
+     * the output .dex. Only used with {@code classCache}. */
+    private final List<byte[]> classDexBuffers = new ArrayList<byte[]>();
+
     /** Thread pool object used for multi-thread class translation. */
     private ExecutorService classTranslatorPool;
 
-    /** Single thread executor, for collecting results of parallel translation,
-     * and adding classes to dex file in original input file order. */
-    private ExecutorService classDefItemConsumer;
-
-    /** Futures for {@code classDefItemConsumer} tasks. */
-    private List<Future<Boolean>> addToDexFutures =
+    /** Futures for {@code classTranslatorPool} tasks. */
+    private List<Future<Boolean>> translationFutures =
             new ArrayList<Future<Boolean>>();
 
+    /** Limits the number of classes submitted for translation and not
+     * yet added to the dex file, which also bounds the number of
+     * translated classes waiting for their turn to be added. */
+    private Semaphore classesInProcess;
+
+    /** Sequence number of the next class submitted for translation, in
+     * input file order. Only used by the thread reading the inputs. */
+    private int nextClassToTranslate = 0;
+
+    /** Translated classes not yet added to the dex file, by sequence
+     * number. */
+    private final Map<Integer, TranslatedClass> translatedClasses =
+            new ConcurrentHashMap<Integer, TranslatedClass>();
+
+    /** Sequence number of the next class to add to the dex file. Only
+     * used by the thread holding {@code addingToDex}. */
+    private int nextClassToAdd = 0;
+
+    /** Whether a thread is adding translated classes to the dex file.
+     * Whichever translation thread completes the next class in sequence
+     * adds it, instead of a single thread waiting for each class in turn. */
+    private final AtomicBoolean addingToDex = new AtomicBoolean(false);
+
+    /** Whether an error raised while adding a class to the dex file was
+     * beyond the error limit, in which case processing stops. */
+    private volatile boolean tooManyErrors = false;
+
     /** Thread pool object used for multi-thread dex conversion (to byte array).
      * Used in combination with multi-dex support, to allow outputing
      * a completed dex file, in parallel with continuing processing. */
@@ -272,13 +305,23 @@ public class Main {
 
         // Reset the error count to start fresh.
         errors.set(0);
+        tooManyErrors = false;
         // empty the list, so that  tools that load dx and keep it around
         // for multiple runs don't reuse older buffers.
         libraryDexBuffers.clear();
+        classDexBuffers.clear();
 
         args = arguments;
         args.makeOptionsObjects(context);
 
+        context.optimizerMetrics.setSlowestMethodCount(
+                args.optimizerMetricsMethodCount);
+
+        classCache = null;
+        if (args.classCacheDir != null) {
+            classCache = new ClassDexCache(new File(args.classCacheDir), args);
+        }
+
         OutputStream humanOutRaw = null;
         if (args.humanOutName != null) {
             humanOutRaw = openOutput(args.humanOutName);
@@ -337,6 +380,11 @@ public class Main {
             }
         }
 
+        // Classes translated with the class cache are part of the update,
+        // so they must replace their previous definition in an
+        // incremental build.
+        outArray = mergeClassDexBuffers(outArray);
+
         if (args.incremental) {
             outArray = mergeIncremental(outArray, incrementalOutFile);
         }
@@ -501,8 +549,41 @@ public class Main {
     }
 
     /**
-     * Merges the dex files in library jars. If multiple dex files define the
-     * same type, this fails with an exception.
+     * Merges the dex files of the classes translated with the class cache
+     * into the output dex file. If multiple dex files define the same
+     * type, this fails with an exception.
+     *
+     * @return the bytes of the merged dex file, or {@code outArray} if no
+     *     class was translated with the class cache
+     */
+    private byte[] mergeClassDexBuffers(byte[] outArray) throws IOException {
+        if (classDexBuffers.isEmpty()) {
+            return outArray;
+        }
+
+        // Merged on their own first, without reporting each of them.
+        Dex[] classDexes = new Dex[classDexBuffers.size()];
+        for (int i = 0; i < classDexes.length; i++) {
+            classDexes[i] = new Dex(classDexBuffers.get(i));
+        }
+        DexMerger classDexMerger = new DexMerger(classDexes,
+                CollisionPolicy.FAIL, new DxContext(context.noop, context.err));
+        classDexMerger.setNumThreads(args.numThreads);
+        Dex merged = classDexMerger.merge();
+        if (outArray != null) {
+            DexMerger dexMerger = new DexMerger(
+                    new Dex[] {new Dex(outArray), merged},
+                    CollisionPolicy.FAIL,
+                    context);
+            merged = dexMerger.merge();
+        }
+        return merged.getBytes();
+    }
+
+    /**
+     * Merges the dex files in library jars into the output dex file. If
+     * multiple dex files define the same type, this fails with an
+     * exception.
      */
     private byte[] mergeLibraryDexBuffers(byte[] outArray) throws IOException {
         ArrayList<Dex> dexes = new ArrayList<Dex>();
@@ -519,6 +600,7 @@ public class Main {
                 dexes.toArray(new Dex[dexes.size()]),
                 CollisionPolicy.FAIL,
                 context);
+        dexMerger.setNumThreads(args.numThreads);
         Dex merged = dexMerger.merge();
         return merged.getBytes();
     }
@@ -540,14 +622,10 @@ public class Main {
         String[] fileNames = args.fileNames;
         Arrays.sort(fileNames);
 
-        // translate classes in parallel
-        classTranslatorPool = new ThreadPoolExecutor(args.numThreads,
-               args.numThreads, 0, TimeUnit.SECONDS,
-               new ArrayBlockingQueue<Runnable>(2 * args.numThreads, true),
-               new ThreadPoolExecutor.CallerRunsPolicy());
-        // collect translated and write to dex in order
-        classDefItemConsumer = Executors.newSingleThreadExecutor();
-
+        // translate classes in parallel, and add them to dex in order
+        // from the translation threads
+        classTranslatorPool = Executors.newFixedThreadPool(args.numThreads);
+        classesInProcess = new Semaphore(4 * args.numThreads);
 
         try {
             if (args.mainDexListFile != null) {
@@ -602,36 +680,28 @@ public class Main {
         try {
             classTranslatorPool.shutdown();
             classTranslatorPool.awaitTermination(600L, TimeUnit.SECONDS);
-            classDefItemConsumer.shutdown();
-            classDefItemConsumer.awaitTermination(600L, TimeUnit.SECONDS);
 
-            for (Future<Boolean> f : addToDexFutures) {
+            for (Future<Boolean> f : translationFutures) {
                 try {
                     f.get();
                 } catch(ExecutionException ex) {
                     // Catch any previously uncaught exceptions from
-                    // class translation and adding to dex.
-                    int count = errors.incrementAndGet();
-                    if (count < 10) {
-                        if (args.debug) {
-                            context.err.println("Uncaught translation error:");
-                            ex.getCause().printStackTrace(context.err);
-                        } else {
-                            context.err.println("Uncaught translation error: " + ex.getCause());
-                        }
-                    } else {
+                    // class translation.
+                    if (!reportUncaughtError(ex.getCause())) {
                         throw new InterruptedException("Too many errors");
                     }
                 }
             }
+            if (tooManyErrors) {
+                // Reported while adding classes to the dex file.
+                throw new InterruptedException("Too many errors");
+            }
 
         } catch (InterruptedException ie) {
             classTranslatorPool.shutdownNow();
-            classDefItemConsumer.shutdownNow();
             throw new RuntimeException("Translation has been interrupted", ie);
         } catch (Exception e) {
             classTranslatorPool.shutdownNow();
-            classDefItemConsumer.shutdownNow();
             e.printStackTrace(out);
             throw new RuntimeException("Unexpected exception in translator thread.", e);
         }
@@ -656,6 +726,32 @@ public class Main {
             context.codeStatistics.dumpStatistics(context.out);
         }
 
+        if (args.optimize && args.optimizerMetrics) {
+            context.optimizerMetrics.dumpMetrics(context.out);
+        }
+
+        return true;
+    }
+
+    /**
+     * Reports an exception thrown while translating a class or adding
+     * it to the dex file, and not reported yet.
+     *
+     * @param t {@code non-null;} the exception
+     * @return false if there were too many errors to report this one
+     */
+    private boolean reportUncaughtError(Throwable t) {
+        int count = errors.incrementAndGet();
+        if (count >= 10) {
+            return false;
+        }
+
+        if (args.debug) {
+            context.err.println("Uncaught translation error:");
+            t.printStackTrace(context.err);
+        } else {
+            context.err.println("Uncaught translation error: " + t);
+        }
         return true;
     }
 
@@ -768,9 +864,18 @@ public class Main {
             checkClassName(name);
         }
 
+        if (!args.multiDex) {
+            // The class is parsed by the translation thread, as there
+            // are no indices to reserve in the dex file.
+            submitClass(name, bytes, null, 0, 0);
+            return true;
+        }
+
         try {
             new DirectClassFileConsumer(name, bytes, null).call(
                     new ClassParserTask(name, bytes).call());
+        } catch(StopProcessing ex) {
+            throw ex;
         } catch(Exception ex) {
             throw new RuntimeException("Exception parsing classes", ex);
         }
@@ -778,6 +883,90 @@ public class Main {
         return true;
     }
 
+    /**
+     * Submits a class to the translation phase, waiting first if too
+     * many classes are already in process.
+     *
+     * @param name {@code non-null;} name of the file
+     * @param bytes {@code non-null;} contents of the file
+     * @param cf {@code null-ok;} the parsed class, or {@code null} to
+     * parse it in the translation thread
+     * @param maxMethodIdsInClass number of method indices reserved for
+     * the class in the current dex file
+     * @param maxFieldIdsInClass number of field indices reserved for
+     * the class in the current dex file
+     */
+    private void submitClass(String name, byte[] bytes, DirectClassFile cf,
+            int maxMethodIdsInClass, int maxFieldIdsInClass) {
+        if (tooManyErrors) {
+            throw new StopProcessing();
+        }
+        classesInProcess.acquireUninterruptibly();
+        translationFutures.add(classTranslatorPool.submit(new ClassTranslatorTask(
+                nextClassToTranslate++, name, bytes, cf, maxMethodIdsInClass,
+                maxFieldIdsInClass)));
+    }
+
+    /**
+     * Adds the translated classes to the dex file, for as long as the
+     * next class in sequence is available. Does nothing if another
+     * thread is already adding classes, as that thread will pick up
+     * the ones already translated.
+     */
+    private void addTranslatedClasses() {
+        while (addingToDex.compareAndSet(false, true)) {
+            int next;
+            try {
+                TranslatedClass translated;
+                while ((translated = translatedClasses.remove(nextClassToAdd)) != null) {
+                    nextClassToAdd++;
+                    addTranslatedClass(translated);
+                }
+                next = nextClassToAdd;
+            } finally {
+                addingToDex.set(false);
+            }
+
+            // Another thread may have completed the next class after it
+            // was looked up, and found this thread still adding classes.
+            if (!translatedClasses.containsKey(next)) {
+                return;
+            }
+        }
+    }
+
+    private void addTranslatedClass(TranslatedClass translated) {
+        try {
+            if (translated.clazz != null) {
+                addClassToDex(translated.clazz);
+                updateStatus(true);
+            } else if (translated.dex != null) {
+                classDexBuffers.add(translated.dex);
+                updateStatus(true);
+            }
+        } catch (RuntimeException ex) {
+            // There is no task to rethrow this to, as the class may
+            // be added by the thread which translated another one.
+            if (!reportUncaughtError(ex)) {
+                tooManyErrors = true;
+            }
+        } finally {
+            classesInProcess.release();
+            if (args.multiDex) {
+                // Having added our actual indicies to the dex file,
+                // we subtract our original estimate from the total estimate,
+                // and signal the translation phase, which may be paused
+                // waiting to determine if more classes can be added to the
+                // current dex file, or if a new dex file must be created.
+                synchronized(dexRotationLock) {
+                    maxMethodIdsInProcess -= translated.maxMethodIdsInClass;
+                    maxFieldIdsInProcess -= translated.maxFieldIdsInClass;
+                    dexRotationLock.notifyAll();
+                }
+            }
+        }
+    }
+
 
     private DirectClassFile parseClass(String name, byte[] bytes) {
 
@@ -788,10 +977,35 @@ public class Main {
         return cf;
     }
 
+    /**
+     * Parses a class in a translation thread. A class which fails to parse
+     * is reported as {@link FileBytesConsumer} reports it when it is parsed
+     * in the reading thread.
+     *
+     * @param name {@code non-null;} name of the file
+     * @param bytes {@code non-null;} contents of the file
+     * @return {@code null-ok;} the parsed class, or {@code null} if there
+     * was a problem
+     */
+    private DirectClassFile parseClassInTranslator(String name, byte[] bytes) {
+        try {
+            return parseClass(name, bytes);
+        } catch (RuntimeException ex) {
+            new FileBytesConsumer().onException(
+                    new RuntimeException("Exception parsing classes", ex));
+            return null;
+        }
+    }
+
     private ClassDefItem translateClass(byte[] bytes, DirectClassFile cf) {
+        return translateClass(bytes, cf, outputDex);
+    }
+
+    private ClassDefItem translateClass(byte[] bytes, DirectClassFile cf,
+            DexFile dexFile) {
         try {
             return CfTranslator.translate(context, cf, bytes, args.cfOptions,
-                    args.dexOptions, outputDex);
+                    args.dexOptions, dexFile);
         } catch (ParseException ex) {
             context.err.println("\ntrouble processing:");
             if (args.debug) {
@@ -804,6 +1018,41 @@ public class Main {
         return null;
     }
 
+    /**
+     * Translates a class to a dex file of its own, or gets that dex file
+     * from the class cache if the class was translated before with the
+     * same options.
+     *
+     * @param name {@code non-null;} name of the file
+     * @param bytes {@code non-null;} contents of the file
+     * @return {@code null-ok;} the contents of the dex file, or
+     * {@code null} if there was a problem
+     */
+    private byte[] translateClassToDex(String name, byte[] bytes)
+            throws IOException {
+        String key = classCache.getKey(name, bytes);
+        byte[] dex = classCache.get(key);
+        if (dex != null) {
+            return dex;
+        }
+
+        DirectClassFile cf = parseClassInTranslator(name, bytes);
+        if (cf == null) {
+            return null;
+        }
+
+        DexFile classDex = new DexFile(args.dexOptions);
+        ClassDefItem clazz = translateClass(bytes, cf, classDex);
+        if (clazz == null) {
+            return null;
+        }
+
+        classDex.add(clazz);
+        dex = classDex.toDex(null, false);
+        classCache.put(key, dex);
+        return dex;
+    }
+
     private boolean addClassToDex(ClassDefItem clazz) {
         synchronized (outputDex) {
             outputDex.add(clazz);
@@ -1259,6 +1508,8 @@ public class Main {
 
         private static final String INCREMENTAL_OPTION = "--incremental";
 
+        private static final String CLASS_CACHE_OPTION = "--class-cache";
+
         private static final String INPUT_LIST_OPTION = "--input-list";
 
         /** whether to run in debug mode */
@@ -1318,6 +1569,11 @@ public class Main {
         /** whether to merge with the output dex file if it exists. */
         public boolean incremental = false;
 
+        /** {@code null-ok;} directory where each class is cached as a dex
+         * file of its own, keyed by the contents of the class file, so that
+         * only the classes that changed are translated again */
+        public String classCacheDir = null;
+
         /** whether to force generation of const-string/jumbo for all indexes,
          *  to allow merges between dex files with many strings. */
         public boolean forceJumbo = false;
@@ -1337,6 +1593,13 @@ public class Main {
         /** Whether to print statistics to stdout at end of compile cycle */
         public boolean statistics;
 
+        /** Whether to print the metrics of each optimizer pass to stdout at
+         * end of compile cycle */
+        public boolean optimizerMetrics;
+
+        /** number of slowest optimized methods to print the metrics of */
+        public int optimizerMetricsMethodCount = 0;
+
         /** Options for class file transformation */
         public CfOptions cfOptions;
 
@@ -1517,6 +1780,25 @@ public class Main {
                 throw new UsageException();
             }
 
+            if (classCacheDir != null && multiDex) {
+                err.println(CLASS_CACHE_OPTION + " is not supported with "
+                    + MULTI_DEX_OPTION);
+                throw new UsageException();
+            }
+
+            if (classCacheDir != null
+                    && (optimizeListFile != null || dontOptimizeListFile != null)) {
+                err.println(CLASS_CACHE_OPTION + " is not supported with "
+                    + "--optimize-list and --no-optimize-list");
+                throw new UsageException();
+            }
+
+            if (classCacheDir != null && humanOutName != null) {
+                err.println(CLASS_CACHE_OPTION + " is not supported with "
+                    + "--dump-to and --dump-method");
+                throw new UsageException();
+            }
+
             if (multiDex && outputOptions.outputIsDirectDex) {
                 err.println("Unsupported output \"" + outName +"\". " + MULTI_DEX_OPTION +
                         " supports only archive or directory output");
@@ -1557,6 +1839,9 @@ public class Main {
                     coreLibrary = true;
                 } else if (parser.isArg("--statistics")) {
                     statistics = true;
+                } else if (parser.isArg("--optimizer-metrics=")) {
+                    optimizerMetrics = true;
+                    optimizerMetricsMethodCount = Integer.parseInt(parser.getLastValue());
                 } else if (parser.isArg("--optimize-list=")) {
                     if (dontOptimizeListFile != null) {
                         err.println("--optimize-list and "
@@ -1617,6 +1902,8 @@ public class Main {
                     numThreads = Integer.parseInt(parser.getLastValue());
                 } else if (parser.isArg(INCREMENTAL_OPTION)) {
                     incremental = true;
+                } else if (parser.isArg(CLASS_CACHE_OPTION + "=")) {
+                    classCacheDir = parser.getLastValue();
                 } else if (parser.isArg("--force-jumbo")) {
                     forceJumbo = true;
                 } else if (parser.isArg(MULTI_DEX_OPTION)) {
@@ -1659,6 +1946,7 @@ public class Main {
             cfOptions.optimizeListFile = optimizeListFile;
             cfOptions.dontOptimizeListFile = dontOptimizeListFile;
             cfOptions.statistics = statistics;
+            cfOptions.optimizerMetrics = optimizerMetrics;
 
             if (warnings) {
                 cfOptions.warn = context.err;
@@ -1729,7 +2017,7 @@ public class Main {
      * Callable helper class used to sequentially collect the results of
      * the (optionally parallel) translation phase, in correct input file order.
      * This class is also responsible for coordinating dex file rotation
-     * with the ClassDefItemConsumer class.
+     * with the translation threads adding classes to the dex file.
      * We maintain invariant that the number of indices used in the current
      * dex file plus the max number of indices required by classes passed to
      * the translation phase and not yet added to the dex file, is less than
@@ -1827,90 +2115,87 @@ public class Main {
             }
 
             // Submit class to translation phase.
-            Future<ClassDefItem> cdif = classTranslatorPool.submit(
-                    new ClassTranslatorTask(name, bytes, cf));
-            Future<Boolean> res = classDefItemConsumer.submit(new ClassDefItemConsumer(
-                    name, cdif, maxMethodIdsInClass, maxFieldIdsInClass));
-            addToDexFutures.add(res);
+            submitClass(name, bytes, cf, maxMethodIdsInClass, maxFieldIdsInClass);
 
             return true;
         }
     }
 
 
-    /** Callable helper class to translate classes in parallel  */
-    private class ClassTranslatorTask implements Callable<ClassDefItem> {
+    /**
+     * Callable helper class to parse and translate classes in parallel.
+     * Once translated, the class is handed over, with its sequence number,
+     * to whichever thread is adding classes to the dex file in correct
+     * (deterministic) file order.
+     */
+    private class ClassTranslatorTask implements Callable<Boolean> {
 
+        int sequence;
         String name;
         byte[] bytes;
         DirectClassFile classFile;
+        int maxMethodIdsInClass;
+        int maxFieldIdsInClass;
 
-        private ClassTranslatorTask(String name, byte[] bytes,
-                DirectClassFile classFile) {
+        private ClassTranslatorTask(int sequence, String name, byte[] bytes,
+                DirectClassFile classFile, int maxMethodIdsInClass,
+                int maxFieldIdsInClass) {
+            this.sequence = sequence;
             this.name = name;
             this.bytes = bytes;
             this.classFile = classFile;
+            this.maxMethodIdsInClass = maxMethodIdsInClass;
+            this.maxFieldIdsInClass = maxFieldIdsInClass;
         }
 
         @Override
-        public ClassDefItem call() {
-            ClassDefItem clazz = translateClass(bytes, classFile);
-            return clazz;
+        public Boolean call() throws IOException {
+            ClassDefItem clazz = null;
+            byte[] dex = null;
+            try {
+                if (tooManyErrors) {
+                    // Processing stops, so the class is not translated.
+                } else if (classCache != null) {
+                    dex = translateClassToDex(name, bytes);
+                } else {
+                    DirectClassFile cf = classFile;
+                    if (cf == null) {
+                        cf = parseClassInTranslator(name, bytes);
+                    }
+                    if (cf != null) {
+                        clazz = translateClass(bytes, cf);
+                    }
+                }
+            } finally {
+                // Even if translation failed, its place in the sequence
+                // must be filled for the following classes to be added.
+                translatedClasses.put(sequence, new TranslatedClass(clazz, dex,
+                        maxMethodIdsInClass, maxFieldIdsInClass));
+                addTranslatedClasses();
+            }
+            return true;
         }
     }
 
-    /**
-     * Callable helper class used to collect the results of
-     * the parallel translation phase, adding the translated classes to
-     * the current dex file in correct (deterministic) file order.
-     * This class is also responsible for coordinating dex file rotation
-     * with the DirectClassFileConsumer class.
-     */
-    private class ClassDefItemConsumer implements Callable<Boolean> {
+    /** A translated class, waiting to be added to the dex file. */
+    private static class TranslatedClass {
 
-        String name;
-        Future<ClassDefItem> futureClazz;
+        /** {@code null-ok;} the class, or {@code null} if translation failed
+         * or the class was translated to a dex file of its own */
+        ClassDefItem clazz;
+        /** {@code null-ok;} the dex file of the class, when translated with
+         * the class cache */
+        byte[] dex;
         int maxMethodIdsInClass;
         int maxFieldIdsInClass;
 
-        private ClassDefItemConsumer(String name, Future<ClassDefItem> futureClazz,
+        private TranslatedClass(ClassDefItem clazz, byte[] dex,
                 int maxMethodIdsInClass, int maxFieldIdsInClass) {
-            this.name = name;
-            this.futureClazz = futureClazz;
+            this.clazz = clazz;
+            this.dex = dex;
             this.maxMethodIdsInClass = maxMethodIdsInClass;
             this.maxFieldIdsInClass = maxFieldIdsInClass;
         }
-
-        @Override
-        public Boolean call() throws Exception {
-            try {
-                ClassDefItem clazz = futureClazz.get();
-                if (clazz != null) {
-                    addClassToDex(clazz);
-                    updateStatus(true);
-                }
-                return true;
-            } catch(ExecutionException ex) {
-                // Rethrow previously uncaught translation exceptions.
-                // These, as well as any exceptions from addClassToDex,
-                // are handled and reported in processAllFiles().
-                Throwable t = ex.getCause();
-                throw (t instanceof Exception) ? (Exception) t : ex;
-            } finally {
-                if (args.multiDex) {
-                    // Having added our actual indicies to the dex file,
-                    // we subtract our original estimate from the total estimate,
-                    // and signal the translation phase, which may be paused
-                    // waiting to determine if more classes can be added to the
-                    // current dex file, or if a new dex file must be created.
-                    synchronized(dexRotationLock) {
-                        maxMethodIdsInProcess -= maxMethodIdsInClass;
-                        maxFieldIdsInProcess -= maxFieldIdsInClass;
-                        dexRotationLock.notifyAll();
-                    }
-                }
-            }
-        }
     }
 
     /** Callable helper class to convert dex files in worker threads */
@@ -45,6 +45,9 @@ public class CfOptions {
     /** whether to print statistics to stdout at end of compile cycle */
     public boolean statistics;
 
+    /** whether to record the metrics of each optimizer pass */
+    public boolean optimizerMetrics;
+
     /** where to issue warnings to */
     public PrintStream warn = System.err;
 }
@@ -61,6 +61,9 @@ import com.android.dx.rop.cst.TypedConstant;
 import com.android.dx.rop.type.Type;
 import com.android.dx.rop.type.TypeList;
 import com.android.dx.ssa.Optimizer;
+import com.android.dx.ssa.OptimizerMetrics;
+
+import java.util.EnumSet;
 
 /**
  * Static method that turns {@code byte[]}s containing Java
@@ -299,8 +302,18 @@ public class CfTranslator {
                         }
 
                         nonOptRmeth = rmeth;
-                        rmeth = Optimizer.optimize(rmeth,
-                                paramSize, isStatic, cfOptions.localInfo, advice);
+                        if (cfOptions.optimizerMetrics) {
+                            OptimizerMetrics.MethodMetrics metrics =
+                                    context.optimizerMetrics.newMethod(canonicalName
+                                            + one.getDescriptor().getString());
+                            rmeth = Optimizer.optimize(rmeth,
+                                    paramSize, isStatic, cfOptions.localInfo, advice,
+                                    EnumSet.allOf(Optimizer.OptionalStep.class), metrics);
+                            context.optimizerMetrics.add(metrics);
+                        } else {
+                            rmeth = Optimizer.optimize(rmeth,
+                                    paramSize, isStatic, cfOptions.localInfo, advice);
+                        }
 
                         if (DEBUG) {
                             context.optimizerOptions.compareOptimizerStep(nonOptRmeth,
@@ -33,7 +33,7 @@ public final class DexIndexPrinter {
     private final TableOfContents tableOfContents;
 
     public DexIndexPrinter(File file) throws IOException {
-        this.dex = new Dex(file);
+        this.dex = Dex.map(file);
         this.tableOfContents = dex.getTableOfContents();
     }
 
@@ -34,6 +34,11 @@ import com.android.dx.command.dexer.DxContext;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Combine two dex files into one.
@@ -86,6 +91,12 @@ public final class DexMerger {
     /** minimum number of wasted bytes before it's worthwhile to compact the result */
     private int compactWasteThreshold = 1024 * 1024; // 1MiB
 
+    /** number of threads reading the input dexes */
+    private int numThreads = 1;
+
+    /** executor reading the input dexes while merging, or null to read them in this thread */
+    private ExecutorService executor;
+
     public DexMerger(Dex[] dexes, CollisionPolicy collisionPolicy, DxContext context)
             throws IOException {
         this(dexes, collisionPolicy, context, new WriterSizes(dexes));
@@ -155,13 +166,31 @@ public final class DexMerger {
         this.compactWasteThreshold = compactWasteThreshold;
     }
 
+    /**
+     * Sets the number of threads reading and adjusting the IDs of the input
+     * dexes. With more than one thread, whole sections of all the input dexes
+     * are read in memory at once instead of one value at a time. The result
+     * does not depend on the number of threads.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads < 1");
+        }
+        this.numThreads = numThreads;
+    }
+
     private Dex mergeDexes() throws IOException {
         mergeStringIds();
         mergeTypeIds();
         mergeTypeLists();
         mergeProtoIds();
-        mergeFieldIds();
-        mergeMethodIds();
+        // field and method IDs only depend on the IDs above, read both at once
+        IdMerger<FieldId> fieldIdMerger = newFieldIdMerger();
+        IdMerger<MethodId> methodIdMerger = newMethodIdMerger();
+        fieldIdMerger.startReadingSorted();
+        methodIdMerger.startReadingSorted();
+        fieldIdMerger.mergeSorted();
+        methodIdMerger.mergeSorted();
         mergeAnnotations();
         unionAnnotationSetsAndDirectories();
         mergeClassDefs();
@@ -188,7 +217,18 @@ public final class DexMerger {
         }
 
         long start = System.nanoTime();
-        Dex result = mergeDexes();
+        Dex result;
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(Math.min(numThreads, dexes.length));
+        }
+        try {
+            result = mergeDexes();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
 
         /*
          * We use pessimistic sizes when merging dex files. If those sizes
@@ -225,67 +265,138 @@ public final class DexMerger {
     /**
      * Reads an IDs section of two dex files and writes an IDs section of a
      * merged dex file. Populates maps from old to new indices in the process.
+     *
+     * <p>When an executor is set, the values of each dex are read and adjusted
+     * concurrently before being merged. Only the merge itself, which assigns
+     * the new indices and writes the values, is sequential.
      */
     abstract class IdMerger<T extends Comparable<T>> {
         private final Dex.Section out;
 
+        /** values of each dex being read by the executor, or null if not reading in advance */
+        private List<Future<SortedSection>> sortedSections;
+
         protected IdMerger(Dex.Section out) {
             this.out = out;
         }
 
         /**
-         * Merges already-sorted sections, reading one value from each dex into memory
-         * at a time.
+         * Starts reading the values of all dexes with the executor, if there is
+         * one. This allows reading the values of independent sections
+         * concurrently before merging them with {@link #mergeSorted}.
          */
-        public final void mergeSorted() {
-            TableOfContents.Section[] sections = new TableOfContents.Section[dexes.length];
-            Dex.Section[] dexSections = new Dex.Section[dexes.length];
-            int[] offsets = new int[dexes.length];
-            int[] indexes = new int[dexes.length];
+        public final void startReadingSorted() {
+            if (executor == null || sortedSections != null) {
+                return;
+            }
 
-            // values contains one value from each dex, sorted for fast retrieval of
-            // the smallest value. The list associated with a value has the indexes
-            // of the dexes that had that value.
-            TreeMap<T, List<Integer>> values = new TreeMap<T, List<Integer>>();
+            sortedSections = new ArrayList<Future<SortedSection>>(dexes.length);
+            for (int i = 0; i < dexes.length; i++) {
+                final SortedSection sortedSection = new SortedSection(i);
+                sortedSections.add(executor.submit(new Callable<SortedSection>() {
+                    @Override
+                    public SortedSection call() {
+                        sortedSection.readAll();
+                        return sortedSection;
+                    }
+                }));
+            }
+        }
 
+        /**
+         * Merges already-sorted sections. Without an executor, this reads one
+         * value from each dex into memory at a time.
+         *
+         * <p>The dexes are kept in a binary heap ordered by their next value, so
+         * that merging N values from K dexes takes O(N log K) comparisons.
+         */
+        public final void mergeSorted() {
+            List<SortedSection> sections = new ArrayList<SortedSection>(dexes.length);
+            startReadingSorted();
             for (int i = 0; i < dexes.length; i++) {
-                sections[i] = getSection(dexes[i].getTableOfContents());
-                dexSections[i] = sections[i].exists() ? dexes[i].open(sections[i].off) : null;
-                // Fill in values with the first value of each dex.
-                offsets[i] = readIntoMap(
-                        dexSections[i], sections[i], indexMaps[i], indexes[i], values, i);
+                sections.add(sortedSections != null
+                        ? await(sortedSections.get(i))
+                        : new SortedSection(i));
             }
+            sortedSections = null;
             getSection(contentsOut).off = out.getPosition();
 
+            int[] heap = new int[dexes.length];
+            int heapSize = 0;
+            for (int i = 0; i < dexes.length; i++) {
+                if (sections.get(i).next()) {
+                    heapSize = heapAdd(sections, heap, heapSize, i);
+                }
+            }
+
+            // the dexes whose next value is the smallest value
+            int[] polled = new int[dexes.length];
             int outCount = 0;
-            while (!values.isEmpty()) {
-                Map.Entry<T, List<Integer>> first = values.pollFirstEntry();
-                for (Integer dex : first.getValue()) {
-                    updateIndex(offsets[dex], indexMaps[dex], indexes[dex]++, outCount);
+            while (heapSize > 0) {
+                T value = sections.get(heap[0]).value;
+                int polledCount = 0;
+                do {
+                    polled[polledCount++] = heap[0];
+                    heapSize = heapRemoveFirst(sections, heap, heapSize);
+                } while (heapSize > 0 && sections.get(heap[0]).value.compareTo(value) == 0);
+
+                for (int i = 0; i < polledCount; i++) {
+                    SortedSection section = sections.get(polled[i]);
+                    updateIndex(section.offset, indexMaps[section.dex], section.index, outCount);
                     // Fetch the next value of the dexes we just polled out
-                    offsets[dex] = readIntoMap(dexSections[dex], sections[dex],
-                            indexMaps[dex], indexes[dex], values, dex);
+                    if (section.next()) {
+                        heapSize = heapAdd(sections, heap, heapSize, polled[i]);
+                    }
                 }
-                write(first.getKey());
+                write(value);
                 outCount++;
             }
 
             getSection(contentsOut).size = outCount;
         }
 
-        private int readIntoMap(Dex.Section in, TableOfContents.Section section, IndexMap indexMap,
-                                int index, TreeMap<T, List<Integer>> values, int dex) {
-            int offset = in != null ? in.getPosition() : -1;
-            if (index < section.size) {
-                T v = read(in, indexMap, index);
-                List<Integer> l = values.get(v);
-                if (l == null) {
-                    l = new ArrayList<Integer>();
-                    values.put(v, l);
+        private int heapAdd(List<SortedSection> sections, int[] heap, int heapSize, int dex) {
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!isBefore(sections, dex, heap[parent])) {
+                    break;
+                }
+                heap[i] = heap[parent];
+                i = parent;
+            }
+            heap[i] = dex;
+            return heapSize;
+        }
+
+        private int heapRemoveFirst(List<SortedSection> sections, int[] heap, int heapSize) {
+            int last = heap[--heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && isBefore(sections, heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!isBefore(sections, heap[child], last)) {
+                    break;
                 }
-                l.add(new Integer(dex));
+                heap[i] = heap[child];
+                i = child;
             }
-            return offset;
+            heap[i] = last;
+            return heapSize;
+        }
+
+        /**
+         * Returns true if the next value of dex {@code a} comes before the next
+         * value of dex {@code b}. Equal values are ordered by dex.
+         */
+        private boolean isBefore(List<SortedSection> sections, int a, int b) {
+            int result = sections.get(a).value.compareTo(sections.get(b).value);
+            return result < 0 || (result == 0 && a < b);
         }
 
         /**
@@ -296,8 +407,26 @@ public final class DexMerger {
             getSection(contentsOut).off = out.getPosition();
 
             List<UnsortedValue> all = new ArrayList<UnsortedValue>();
-            for (int i = 0; i < dexes.length; i++) {
-                all.addAll(readUnsortedValues(dexes[i], indexMaps[i]));
+            if (executor != null) {
+                List<Future<List<UnsortedValue>>> values =
+                        new ArrayList<Future<List<UnsortedValue>>>(dexes.length);
+                for (int i = 0; i < dexes.length; i++) {
+                    final Dex source = dexes[i];
+                    final IndexMap indexMap = indexMaps[i];
+                    values.add(executor.submit(new Callable<List<UnsortedValue>>() {
+                        @Override
+                        public List<UnsortedValue> call() {
+                            return readUnsortedValues(source, indexMap);
+                        }
+                    }));
+                }
+                for (Future<List<UnsortedValue>> value : values) {
+                    all.addAll(await(value));
+                }
+            } else {
+                for (int i = 0; i < dexes.length; i++) {
+                    all.addAll(readUnsortedValues(dexes[i], indexMaps[i]));
+                }
             }
             Collections.sort(all);
 
@@ -339,6 +468,61 @@ public final class DexMerger {
         abstract void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex);
         abstract void write(T value);
 
+        /**
+         * The values of a sorted section of one dex, either read all at once
+         * with {@link #readAll} or one at a time.
+         */
+        private final class SortedSection {
+            final int dex;
+            private final TableOfContents.Section section;
+            private final Dex.Section in;
+
+            /** values read in advance and their offsets, or null if not read yet */
+            private List<T> values;
+            private int[] offsets;
+
+            /** index, value and offset of the current value */
+            int index = -1;
+            T value;
+            int offset;
+
+            SortedSection(int dex) {
+                this.dex = dex;
+                this.section = getSection(dexes[dex].getTableOfContents());
+                this.in = section.exists() ? dexes[dex].open(section.off) : null;
+            }
+
+            void readAll() {
+                values = new ArrayList<T>(section.size);
+                offsets = new int[section.size];
+                for (int i = 0; i < section.size; i++) {
+                    offsets[i] = in.getPosition();
+                    values.add(read(in, indexMaps[dex], i));
+                }
+            }
+
+            /**
+             * Moves to the next value. Returns false if there are no more
+             * values.
+             */
+            boolean next() {
+                if (index + 1 >= section.size) {
+                    value = null;
+                    return false;
+                }
+
+                index++;
+                if (values != null) {
+                    value = values.set(index, null);
+                    offset = offsets[index];
+                } else {
+                    offset = in.getPosition();
+                    value = read(in, indexMaps[dex], index);
+                }
+                return true;
+            }
+        }
+
         class UnsortedValue implements Comparable<UnsortedValue> {
             final Dex source;
             final IndexMap indexMap;
@@ -361,6 +545,27 @@ public final class DexMerger {
         }
     }
 
+    /**
+     * Waits for a value computed by the executor, rethrowing the exception
+     * that computing it threw, if any.
+     */
+    private static <V> V await(Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DexException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DexException(cause);
+        }
+    }
+
     private void mergeStringIds() {
         new IdMerger<String>(idsDefsOut) {
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
@@ -450,8 +655,8 @@ public final class DexMerger {
         }.mergeSorted();
     }
 
-    private void mergeFieldIds() {
-        new IdMerger<FieldId>(idsDefsOut) {
+    private IdMerger<FieldId> newFieldIdMerger() {
+        return new IdMerger<FieldId>(idsDefsOut) {
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
                 return tableOfContents.fieldIds;
             }
@@ -470,11 +675,11 @@ public final class DexMerger {
             @Override void write(FieldId value) {
                 value.writeTo(idsDefsOut);
             }
-        }.mergeSorted();
+        };
     }
 
-    private void mergeMethodIds() {
-        new IdMerger<MethodId>(idsDefsOut) {
+    private IdMerger<MethodId> newMethodIdMerger() {
+        return new IdMerger<MethodId>(idsDefsOut) {
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
                 return tableOfContents.methodIds;
             }
@@ -494,7 +699,7 @@ public final class DexMerger {
             @Override void write(MethodId methodId) {
                 methodId.writeTo(idsDefsOut);
             }
-        }.mergeSorted();
+        };
     }
 
     private void mergeAnnotations() {
@@ -1107,7 +1312,7 @@ public final class DexMerger {
 
         Dex[] dexes = new Dex[args.length - 1];
         for (int i = 1; i < args.length; i++) {
-            dexes[i - 1] = new Dex(new File(args[i]));
+            dexes[i - 1] = Dex.map(new File(args[i]));
         }
         Dex merged = new DexMerger(dexes, CollisionPolicy.KEEP_FIRST, new DxContext()).merge();
         merged.writeTo(new File(args[0]));
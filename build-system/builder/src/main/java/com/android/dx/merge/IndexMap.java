@@ -47,7 +47,6 @@ import com.android.dex.ProtoId;
 import com.android.dex.TableOfContents;
 import com.android.dex.TypeList;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
-import java.util.HashMap;
 
 /**
  * Maps the index offsets from one dex file to those in another. For example, if
@@ -61,12 +60,12 @@ public final class IndexMap {
     public final short[] protoIds;
     public final short[] fieldIds;
     public final short[] methodIds;
-    private final HashMap<Integer, Integer> typeListOffsets;
-    private final HashMap<Integer, Integer> annotationOffsets;
-    private final HashMap<Integer, Integer> annotationSetOffsets;
-    private final HashMap<Integer, Integer> annotationSetRefListOffsets;
-    private final HashMap<Integer, Integer> annotationDirectoryOffsets;
-    private final HashMap<Integer, Integer> staticValuesOffsets;
+    private final OffsetMap typeListOffsets;
+    private final OffsetMap annotationOffsets;
+    private final OffsetMap annotationSetOffsets;
+    private final OffsetMap annotationSetRefListOffsets;
+    private final OffsetMap annotationDirectoryOffsets;
+    private final OffsetMap staticValuesOffsets;
 
     public IndexMap(Dex target, TableOfContents tableOfContents) {
         this.target = target;
@@ -75,12 +74,12 @@ public final class IndexMap {
         this.protoIds = new short[tableOfContents.protoIds.size];
         this.fieldIds = new short[tableOfContents.fieldIds.size];
         this.methodIds = new short[tableOfContents.methodIds.size];
-        this.typeListOffsets = new HashMap<Integer, Integer>();
-        this.annotationOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetRefListOffsets = new HashMap<Integer, Integer>();
-        this.annotationDirectoryOffsets = new HashMap<Integer, Integer>();
-        this.staticValuesOffsets = new HashMap<Integer, Integer>();
+        this.typeListOffsets = new OffsetMap();
+        this.annotationOffsets = new OffsetMap();
+        this.annotationSetOffsets = new OffsetMap();
+        this.annotationSetRefListOffsets = new OffsetMap();
+        this.annotationDirectoryOffsets = new OffsetMap();
+        this.staticValuesOffsets = new OffsetMap();
 
         /*
          * A type list, annotation set, annotation directory, or static value at
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import java.util.Arrays;
+
+/**
+ * Maps offsets in a dex file to offsets in another. Offsets are kept in
+ * {@code int} arrays with open addressing, so no boxing is needed to store or
+ * look up an offset.
+ */
+final class OffsetMap {
+    /** key of the empty slots, offsets are never negative */
+    private static final int EMPTY = -1;
+
+    /** initial number of slots, a power of 2 */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] keys;
+    private int[] values;
+    private int size;
+
+    public OffsetMap() {
+        keys = new int[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Maps {@code oldOffset} to {@code newOffset}, replacing any previous
+     * mapping of {@code oldOffset}.
+     */
+    public void put(int oldOffset, int newOffset) {
+        if (oldOffset < 0) {
+            throw new IllegalArgumentException("oldOffset < 0");
+        }
+
+        int slot = findSlot(keys, oldOffset);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = oldOffset;
+            size++;
+        }
+        values[slot] = newOffset;
+
+        // keep at least half of the slots empty so probe sequences stay short
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Returns the offset {@code oldOffset} is mapped to.
+     *
+     * @throws IllegalArgumentException if {@code oldOffset} is not mapped
+     */
+    public int get(int oldOffset) {
+        int slot = oldOffset < 0 ? -1 : findSlot(keys, oldOffset);
+        if (slot < 0 || keys[slot] == EMPTY) {
+            throw new IllegalArgumentException("offset not mapped: " + oldOffset);
+        }
+        return values[slot];
+    }
+
+    /**
+     * Returns the slot containing {@code key}, or the empty slot where it
+     * should be added.
+     */
+    private static int findSlot(int[] keys, int key) {
+        int mask = keys.length - 1;
+        // spread the offsets, which are often multiples of 4, over all slots
+        int hash = key * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = findSlot(keys, oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -90,21 +90,49 @@ public class Optimizer {
     public static RopMethod optimize(RopMethod rmeth, int paramWidth,
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice, EnumSet<OptionalStep> steps) {
+
+        return optimize(rmeth, paramWidth, isStatic, inPreserveLocals, inAdvice,
+                steps, OptimizerMetrics.MethodMetrics.NONE);
+    }
+
+    /**
+     * Runs optimization algorthims over this method, and returns a new
+     * instance of RopMethod with the changes.
+     *
+     * @param rmeth method to process
+     * @param paramWidth the total width, in register-units, of this method's
+     * parameters
+     * @param isStatic true if this method has no 'this' pointer argument.
+     * @param inPreserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param inAdvice {@code non-null;} translation advice
+     * @param steps set of optional optimization steps to run
+     * @param metrics {@code non-null;} where to record each pass run
+     * @return optimized method
+     */
+    public static RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic, boolean inPreserveLocals,
+            TranslationAdvice inAdvice, EnumSet<OptionalStep> steps,
+            OptimizerMetrics.MethodMetrics metrics) {
         SsaMethod ssaMeth = null;
 
         preserveLocals = inPreserveLocals;
         advice = inAdvice;
 
+        metrics.startPass("SsaConverter", rmeth);
         ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
-        runSsaFormSteps(ssaMeth, steps);
+        metrics.endPass(ssaMeth);
+
+        runSsaFormSteps(ssaMeth, steps, metrics);
 
-        RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false);
+        RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false,
+                metrics);
 
         if (resultMeth.getBlocks().getRegCount()
                 > advice.getMaxOptimalRegisterCount()) {
             // Try to see if we can squeeze it under the register count bar
             resultMeth = optimizeMinimizeRegisters(rmeth, paramWidth, isStatic,
-                    steps);
+                    steps, metrics);
         }
         return resultMeth;
     }
@@ -122,16 +150,19 @@ public class Optimizer {
      * parameters
      * @param isStatic true if this method has no 'this' pointer argument.
      * @param steps set of optional optimization steps to run
+     * @param metrics {@code non-null;} where to record each pass run
      * @return optimized method
      */
     private static RopMethod optimizeMinimizeRegisters(RopMethod rmeth,
             int paramWidth, boolean isStatic,
-            EnumSet<OptionalStep> steps) {
+            EnumSet<OptionalStep> steps, OptimizerMetrics.MethodMetrics metrics) {
         SsaMethod ssaMeth;
         RopMethod resultMeth;
 
+        metrics.startPass("SsaConverter", rmeth);
         ssaMeth = SsaConverter.convertToSsaMethod(
                 rmeth, paramWidth, isStatic);
+        metrics.endPass(ssaMeth);
 
         EnumSet<OptionalStep> newSteps = steps.clone();
 
@@ -141,29 +172,40 @@ public class Optimizer {
          */
         newSteps.remove(OptionalStep.CONST_COLLECTOR);
 
-        runSsaFormSteps(ssaMeth, newSteps);
+        runSsaFormSteps(ssaMeth, newSteps, metrics);
 
-        resultMeth = SsaToRop.convertToRopMethod(ssaMeth, true);
+        resultMeth = SsaToRop.convertToRopMethod(ssaMeth, true, metrics);
         return resultMeth;
     }
 
     private static void runSsaFormSteps(SsaMethod ssaMeth,
             EnumSet<OptionalStep> steps) {
+        runSsaFormSteps(ssaMeth, steps, OptimizerMetrics.MethodMetrics.NONE);
+    }
+
+    private static void runSsaFormSteps(SsaMethod ssaMeth,
+            EnumSet<OptionalStep> steps, OptimizerMetrics.MethodMetrics metrics) {
         boolean needsDeadCodeRemover = true;
 
         if (steps.contains(OptionalStep.MOVE_PARAM_COMBINER)) {
+            metrics.startPass("MoveParamCombiner", ssaMeth);
             MoveParamCombiner.process(ssaMeth);
+            metrics.endPass(ssaMeth);
         }
 
         if (steps.contains(OptionalStep.SCCP)) {
+            metrics.startPass("SCCP", ssaMeth);
             SCCP.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            metrics.endPass(ssaMeth);
+            removeDeadCode(ssaMeth, metrics);
             needsDeadCodeRemover = false;
         }
 
         if (steps.contains(OptionalStep.LITERAL_UPGRADE)) {
+            metrics.startPass("LiteralOpUpgrader", ssaMeth);
             LiteralOpUpgrader.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            metrics.endPass(ssaMeth);
+            removeDeadCode(ssaMeth, metrics);
             needsDeadCodeRemover = false;
         }
 
@@ -172,23 +214,36 @@ public class Optimizer {
          */
         steps.remove(OptionalStep.ESCAPE_ANALYSIS);
         if (steps.contains(OptionalStep.ESCAPE_ANALYSIS)) {
+            metrics.startPass("EscapeAnalysis", ssaMeth);
             EscapeAnalysis.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            metrics.endPass(ssaMeth);
+            removeDeadCode(ssaMeth, metrics);
             needsDeadCodeRemover = false;
         }
 
         if (steps.contains(OptionalStep.CONST_COLLECTOR)) {
+            metrics.startPass("ConstCollector", ssaMeth);
             ConstCollector.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            metrics.endPass(ssaMeth);
+            removeDeadCode(ssaMeth, metrics);
             needsDeadCodeRemover = false;
         }
 
         // dead code remover must be run before phi type resolver
         if (needsDeadCodeRemover) {
-            DeadCodeRemover.process(ssaMeth);
+            removeDeadCode(ssaMeth, metrics);
         }
 
+        metrics.startPass("PhiTypeResolver", ssaMeth);
         PhiTypeResolver.process(ssaMeth);
+        metrics.endPass(ssaMeth);
+    }
+
+    private static void removeDeadCode(SsaMethod ssaMeth,
+            OptimizerMetrics.MethodMetrics metrics) {
+        metrics.startPass("DeadCodeRemover", ssaMeth);
+        DeadCodeRemover.process(ssaMeth);
+        metrics.endPass(ssaMeth);
     }
 
     public static SsaMethod debugEdgeSplit(RopMethod rmeth, int paramWidth,
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.dx.ssa;
+
+import com.android.dx.rop.code.RopMethod;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Time spent, and instructions and registers changed, by each pass of the
+ * {@link Optimizer}, summed over all the optimized methods and reported
+ * for each of the slowest methods, which are the ones worth looking into
+ * when translation takes too long.
+ */
+public final class OptimizerMetrics {
+    /** totals of each pass, by name, in the order the passes first ran */
+    private final Map<String, PassMetrics> passTotals =
+            new LinkedHashMap<String, PassMetrics>();
+
+    /** the slowest methods, the fastest of them first */
+    private final PriorityQueue<MethodMetrics> slowestMethods =
+            new PriorityQueue<MethodMetrics>(11, BY_TIME);
+
+    /** number of slowest methods to keep */
+    private int slowestMethodCount = 0;
+
+    /** number of methods recorded */
+    private int methodCount = 0;
+
+    /** total time spent optimizing the recorded methods */
+    private long totalNanos = 0;
+
+    /**
+     * {@code null-ok;} bean telling the bytes allocated by each thread, or
+     * {@code null} if the VM cannot tell
+     */
+    private final ThreadMXBean allocationBean = getAllocationBean();
+
+    private static final Comparator<MethodMetrics> BY_TIME =
+            new Comparator<MethodMetrics>() {
+        @Override
+        public int compare(MethodMetrics a, MethodMetrics b) {
+            return a.nanos < b.nanos ? -1 : (a.nanos == b.nanos ? 0 : 1);
+        }
+    };
+
+    /**
+     * Sets the number of slowest methods to report, which should be done
+     * before recording any method.
+     *
+     * @param count {@code >= 0;} the number of methods
+     */
+    public synchronized void setSlowestMethodCount(int count) {
+        slowestMethodCount = count;
+    }
+
+    /**
+     * Starts recording the optimization of a method. The returned metrics
+     * are passed to the optimizer, and then given back to {@link #add}.
+     *
+     * @param name {@code non-null;} the name of the method
+     * @return {@code non-null;} the metrics of the method
+     */
+    public MethodMetrics newMethod(String name) {
+        return new MethodMetrics(name, allocationBean);
+    }
+
+    /**
+     * Records the optimization of a method.
+     *
+     * @param method {@code non-null;} the metrics of the method
+     */
+    public synchronized void add(MethodMetrics method) {
+        if (method == MethodMetrics.NONE) {
+            return;
+        }
+
+        method.finish();
+        methodCount++;
+        totalNanos += method.nanos;
+        for (PassMetrics pass : method.passes) {
+            PassMetrics total = passTotals.get(pass.name);
+            if (total == null) {
+                total = new PassMetrics(pass.name);
+                passTotals.put(pass.name, total);
+            }
+            total.add(pass);
+        }
+
+        if (slowestMethodCount > 0) {
+            slowestMethods.add(method);
+            if (slowestMethods.size() > slowestMethodCount) {
+                slowestMethods.poll();
+            }
+        }
+    }
+
+    /**
+     * Prints out the collected metrics.
+     *
+     * @param out {@code non-null;} where to output to
+     */
+    public synchronized void dumpMetrics(PrintStream out) {
+        out.printf("Optimizer passes over %d methods, %.1fms:\n",
+                methodCount, totalNanos / 1e6);
+        for (PassMetrics pass : passTotals.values()) {
+            out.println("  " + pass.toHuman());
+        }
+
+        List<MethodMetrics> slowest = new ArrayList<MethodMetrics>(slowestMethods);
+        Collections.sort(slowest, Collections.reverseOrder(BY_TIME));
+        if (!slowest.isEmpty()) {
+            out.printf("Slowest %d optimized methods:\n", slowest.size());
+        }
+        for (MethodMetrics method : slowest) {
+            out.printf("  %s %.1fms\n", method.name, method.nanos / 1e6);
+            for (PassMetrics pass : method.passes) {
+                out.println("    " + pass.toHuman());
+            }
+        }
+    }
+
+    /**
+     * Metrics of the optimization of one method, recorded by the thread
+     * optimizing it.
+     */
+    public static class MethodMetrics {
+        /** metrics recording nothing, for methods not being measured */
+        public static final MethodMetrics NONE = new MethodMetrics(null, null);
+
+        /** {@code null-ok;} name of the method, {@code null} for {@link #NONE} */
+        private final String name;
+
+        /** passes run over the method, in order */
+        private final List<PassMetrics> passes = new ArrayList<PassMetrics>();
+
+        /** {@code null-ok;} the pass running */
+        private PassMetrics current;
+
+        /** {@code null-ok;} bean telling the bytes allocated by the thread */
+        private final ThreadMXBean allocationBean;
+
+        /** bytes allocated by the thread when the pass started */
+        private long allocatedBytesAtStart;
+
+        /** time spent in all the passes */
+        private long nanos;
+
+        private MethodMetrics(String name, ThreadMXBean allocationBean) {
+            this.name = name;
+            this.allocationBean = allocationBean;
+        }
+
+        /**
+         * Marks the start of a pass over a method in ssa form.
+         *
+         * @param pass {@code non-null;} the name of the pass
+         * @param ssaMeth {@code non-null;} the method before the pass
+         */
+        public void startPass(String pass, SsaMethod ssaMeth) {
+            if (name != null) {
+                startPass(pass, getInsnCount(ssaMeth), ssaMeth.getRegCount());
+            }
+        }
+
+        /**
+         * Marks the start of a pass over a method in rop form.
+         *
+         * @param pass {@code non-null;} the name of the pass
+         * @param rmeth {@code non-null;} the method before the pass
+         */
+        public void startPass(String pass, RopMethod rmeth) {
+            if (name != null) {
+                startPass(pass, rmeth.getBlocks().getEffectiveInstructionCount(),
+                        rmeth.getBlocks().getRegCount());
+            }
+        }
+
+        /**
+         * Marks the end of the running pass, which left the method in ssa
+         * form.
+         *
+         * @param ssaMeth {@code non-null;} the method after the pass
+         */
+        public void endPass(SsaMethod ssaMeth) {
+            if (name != null) {
+                endPass(getInsnCount(ssaMeth), ssaMeth.getRegCount());
+            }
+        }
+
+        /**
+         * Marks the end of the running pass, which left the method in rop
+         * form.
+         *
+         * @param rmeth {@code non-null;} the method after the pass
+         */
+        public void endPass(RopMethod rmeth) {
+            if (name != null) {
+                endPass(rmeth.getBlocks().getEffectiveInstructionCount(),
+                        rmeth.getBlocks().getRegCount());
+            }
+        }
+
+        private void startPass(String pass, int insns, int regs) {
+            current = new PassMetrics(pass);
+            current.insnsBefore = insns;
+            current.regsBefore = regs;
+            allocatedBytesAtStart = getAllocatedBytes(allocationBean);
+            current.nanos = -System.nanoTime();
+        }
+
+        private void endPass(int insns, int regs) {
+            current.nanos += System.nanoTime();
+            long allocatedBytes = getAllocatedBytes(allocationBean);
+            current.allocatedBytes = allocatedBytes >= 0 && allocatedBytesAtStart >= 0
+                    ? allocatedBytes - allocatedBytesAtStart : -1;
+            current.insnsAfter = insns;
+            current.regsAfter = regs;
+            current.count = 1;
+            passes.add(current);
+            current = null;
+        }
+
+        private void finish() {
+            nanos = 0;
+            for (PassMetrics pass : passes) {
+                nanos += pass.nanos;
+            }
+        }
+
+        private static int getInsnCount(SsaMethod ssaMeth) {
+            int count = 0;
+            for (SsaBasicBlock block : ssaMeth.getBlocks()) {
+                count += block.getInsns().size();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Metrics of one pass, over one method or summed over many.
+     */
+    private static class PassMetrics {
+        private final String name;
+        private int count;
+        private long nanos;
+        private long insnsBefore;
+        private long insnsAfter;
+        private long regsBefore;
+        private long regsAfter;
+        /** bytes allocated by the pass, or {@code < 0} if not known */
+        private long allocatedBytes;
+
+        private PassMetrics(String name) {
+            this.name = name;
+        }
+
+        private void add(PassMetrics other) {
+            count += other.count;
+            nanos += other.nanos;
+            insnsBefore += other.insnsBefore;
+            insnsAfter += other.insnsAfter;
+            regsBefore += other.regsBefore;
+            regsAfter += other.regsAfter;
+            if (allocatedBytes >= 0) {
+                allocatedBytes = other.allocatedBytes >= 0
+                        ? allocatedBytes + other.allocatedBytes : -1;
+            }
+        }
+
+        private String toHuman() {
+            return String.format("%-32s runs: %d time: %.2fms insns: %d->%d regs: %d->%d"
+                    + " allocated: %s",
+                    name, count, nanos / 1e6, insnsBefore, insnsAfter, regsBefore, regsAfter,
+                    allocatedBytes >= 0 ? (allocatedBytes / 1024) + "KiB" : "n/a");
+        }
+    }
+
+    /**
+     * Gets the thread bean of the VM, if it can tell the bytes allocated by
+     * each thread.
+     *
+     * @return {@code null-ok;} the bean, or {@code null} if the VM cannot tell
+     */
+    private static ThreadMXBean getAllocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return getAllocatedBytes(bean) >= 0 ? bean : null;
+    }
+
+    /**
+     * Gets the number of bytes allocated so far by the current thread. Only
+     * the {@code com.sun.management} extension of the bean can tell, and
+     * that package may be missing from the VM: it is only referred to here,
+     * where its absence is caught.
+     *
+     * @param bean {@code null-ok;} the thread bean of the VM
+     * @return the number of bytes, or {@code -1} if unknown
+     */
+    private static long getAllocatedBytes(ThreadMXBean bean) {
+        if (bean == null) {
+            return -1;
+        }
+
+        try {
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) bean)
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        } catch (LinkageError e) {
+            // No com.sun.management in this VM.
+        } catch (UnsupportedOperationException e) {
+            // Not supported by this VM.
+        }
+        return -1;
+    }
+}
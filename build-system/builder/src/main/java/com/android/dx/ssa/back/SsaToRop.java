@@ -25,6 +25,7 @@ import com.android.dx.rop.code.Rop;
 import com.android.dx.rop.code.RopMethod;
 import com.android.dx.rop.code.Rops;
 import com.android.dx.ssa.BasicRegisterMapper;
+import com.android.dx.ssa.OptimizerMetrics;
 import com.android.dx.ssa.PhiInsn;
 import com.android.dx.ssa.RegisterMapper;
 import com.android.dx.ssa.SsaBasicBlock;
@@ -56,6 +57,9 @@ public class SsaToRop {
     /** {@code non-null;} interference graph */
     private final InterferenceGraph interference;
 
+    /** {@code non-null;} where to record each pass run */
+    private final OptimizerMetrics.MethodMetrics metrics;
+
     /**
      * Converts a method in SSA form to ROP form.
      *
@@ -66,7 +70,22 @@ public class SsaToRop {
      */
     public static RopMethod convertToRopMethod(SsaMethod ssaMeth,
             boolean minimizeRegisters) {
-        return new SsaToRop(ssaMeth, minimizeRegisters).convert();
+        return convertToRopMethod(ssaMeth, minimizeRegisters,
+                OptimizerMetrics.MethodMetrics.NONE);
+    }
+
+    /**
+     * Converts a method in SSA form to ROP form.
+     *
+     * @param ssaMeth {@code non-null;} method to process
+     * @param minimizeRegisters {@code true} if the converter should
+     * attempt to minimize the rop-form register count
+     * @param metrics {@code non-null;} where to record each pass run
+     * @return {@code non-null;} rop-form output
+     */
+    public static RopMethod convertToRopMethod(SsaMethod ssaMeth,
+            boolean minimizeRegisters, OptimizerMetrics.MethodMetrics metrics) {
+        return new SsaToRop(ssaMeth, minimizeRegisters, metrics).convert();
     }
 
     /**
@@ -75,12 +94,17 @@ public class SsaToRop {
      * @param ssaMeth {@code non-null;} method to process
      * @param minimizeRegisters {@code true} if the converter should
      * attempt to minimize the rop-form register count
+     * @param metrics {@code non-null;} where to record each pass run
      */
-    private SsaToRop(SsaMethod ssaMethod, boolean minimizeRegisters) {
+    private SsaToRop(SsaMethod ssaMethod, boolean minimizeRegisters,
+            OptimizerMetrics.MethodMetrics metrics) {
         this.minimizeRegisters = minimizeRegisters;
         this.ssaMeth = ssaMethod;
+        this.metrics = metrics;
+        metrics.startPass("LivenessAnalyzer", ssaMethod);
         this.interference =
             LivenessAnalyzer.constructInterferenceGraph(ssaMethod);
+        metrics.endPass(ssaMethod);
     }
 
     /**
@@ -97,11 +121,15 @@ public class SsaToRop {
         // allocator = new NullRegisterAllocator(ssaMeth, interference);
         // allocator = new FirstFitAllocator(ssaMeth, interference);
 
+        metrics.startPass("FirstFitLocalCombiningAllocator", ssaMeth);
         RegisterAllocator allocator =
             new FirstFitLocalCombiningAllocator(ssaMeth, interference,
                     minimizeRegisters);
 
         RegisterMapper mapper = allocator.allocateRegisters();
+        metrics.endPass(ssaMeth);
+
+        metrics.startPass("SsaToRop", ssaMeth);
 
         if (DEBUG) {
             System.out.println("Printing reg map");
@@ -123,6 +151,7 @@ public class SsaToRop {
         RopMethod ropMethod = new RopMethod(convertBasicBlocks(),
                 ssaMeth.blockIndexToRopLabel(ssaMeth.getEntryBlockIndex()));
         ropMethod = new IdenticalBlockCombiner(ropMethod).process();
+        metrics.endPass(ropMethod);
 
         return ropMethod;
     }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.dex.ClassDef;
+import com.android.dex.Dex;
+import com.android.dex.DexFormat;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.rop.code.AccessFlags;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.StdTypeList;
+import com.android.dx.rop.type.Type;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class TreeDexMergerTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static final List<String> CLASSES =
+            ImmutableList.of("LA;", "LB;", "LC;", "LD;", "LE;", "LF;", "LG;");
+
+    /**
+     * Creates a pre-dexed library: a jar with a {@code classes.dex} entry defining an empty
+     * class.
+     */
+    @NonNull
+    private File preDex(@NonNull String type) throws Exception {
+        DexFile dexFile = new DexFile(new DexOptions());
+        dexFile.add(new ClassDefItem(CstType.intern(Type.intern(type)), AccessFlags.ACC_PUBLIC,
+                CstType.OBJECT, StdTypeList.EMPTY, null));
+
+        File dexJar = new File(mTemporaryFolder.getRoot(),
+                type.substring(1, type.length() - 1) + ".jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(dexJar))) {
+            out.putNextEntry(new ZipEntry(DexFormat.DEX_IN_JAR_NAME));
+            out.write(dexFile.toDex(null, false));
+        }
+        return dexJar;
+    }
+
+    @NonNull
+    private static Set<String> getClassNames(@NonNull File dexFile) throws Exception {
+        Dex dex = new Dex(dexFile);
+        Set<String> names = Sets.newHashSet();
+        for (ClassDef classDef : dex.classDefs()) {
+            names.add(dex.typeNames().get(classDef.getTypeIndex()));
+        }
+        return names;
+    }
+
+    @Test
+    public void mergeAll() throws Exception {
+        List<File> inputs = Lists.newArrayList();
+        for (String c : CLASSES) {
+            inputs.add(preDex(c));
+        }
+
+        File output = new File(mTemporaryFolder.getRoot(), "out/classes.dex");
+        TreeDexMerger merger = new TreeDexMerger(
+                mTemporaryFolder.newFolder("intermediates"), ForkJoinPool.commonPool());
+        merger.merge(inputs, output);
+
+        assertEquals(Sets.newHashSet(CLASSES), getClassNames(output));
+        assertTrue(merger.getMergeCount() > 0);
+    }
+
+    @Test
+    public void mergeSingleInput() throws Exception {
+        File output = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        TreeDexMerger merger = new TreeDexMerger(
+                mTemporaryFolder.newFolder("intermediates"), ForkJoinPool.commonPool());
+        merger.merge(ImmutableList.of(preDex("LA;")), output);
+
+        assertEquals(Sets.newHashSet("LA;"), getClassNames(output));
+        assertEquals(0, merger.getMergeCount());
+    }
+
+    @Test
+    public void changingOneInputOnlyMergesItsBranch() throws Exception {
+        List<String> classes = Lists.newArrayList();
+        List<File> inputs = Lists.newArrayList();
+        for (int i = 0; i < 50; i++) {
+            classes.add("LC" + i + ";");
+            inputs.add(preDex(classes.get(i)));
+        }
+
+        File intermediates = mTemporaryFolder.newFolder("intermediates");
+        File output = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        TreeDexMerger merger = new TreeDexMerger(intermediates, ForkJoinPool.commonPool());
+        merger.merge(inputs, output);
+        int fullMergeCount = merger.getMergeCount();
+        assertTrue(fullMergeCount > 4);
+
+        merger.merge(inputs, output);
+        assertEquals(0, merger.getMergeCount());
+        assertEquals(Sets.newHashSet(classes), getClassNames(output));
+
+        classes.set(0, "LChanged;");
+        inputs.set(0, preDex("LChanged;"));
+        merger.merge(inputs, output);
+        assertTrue(merger.getMergeCount() > 0);
+        assertTrue(merger.getMergeCount() < fullMergeCount / 2);
+        assertEquals(Sets.newHashSet(classes), getClassNames(output));
+
+        // the results of the merges containing C0 are not needed anymore
+        File[] remaining = intermediates.listFiles();
+        assertTrue(remaining != null);
+        for (File file : remaining) {
+            assertFalse(getClassNames(file).contains("LC0;"));
+        }
+    }
+
+    @Test
+    public void jarsWithoutDexAreIgnored() throws Exception {
+        File empty = mTemporaryFolder.newFile("empty.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(empty))) {
+            out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        }
+
+        File output = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        TreeDexMerger merger = new TreeDexMerger(
+                mTemporaryFolder.newFolder("intermediates"), ForkJoinPool.commonPool());
+        merger.merge(ImmutableList.of(empty, preDex("LB;"), preDex("LC;")), output);
+
+        assertEquals(Sets.newHashSet("LB;", "LC;"), getClassNames(output));
+    }
+}
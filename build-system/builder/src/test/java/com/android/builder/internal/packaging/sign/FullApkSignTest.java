@@ -17,8 +17,11 @@
 package com.android.builder.internal.packaging.sign;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import com.android.annotations.NonNull;
 import com.android.builder.internal.packaging.zip.AlignmentRule;
 import com.android.builder.internal.packaging.zip.AlignmentRules;
 import com.android.builder.internal.packaging.zip.StoredEntry;
@@ -27,6 +30,8 @@ import com.android.builder.internal.packaging.zip.ZFileOptions;
 import com.android.builder.internal.packaging.zip.ZFileTestConstants;
 import com.android.utils.FileUtils;
 import com.android.utils.Pair;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -36,6 +41,11 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests that verify {@link FullApkSignExtension}.
@@ -103,4 +113,109 @@ public class FullApkSignTest {
 
         zf2.close();
     }
+
+    @Test
+    public void testParallelSignatureMatchesSerial() throws Exception {
+        Pair<PrivateKey, X509Certificate> signData = SignatureTestUtils.generateSignaturePre18();
+
+        // Random data is stored uncompressed, so the zip spans several digested chunks.
+        byte[] data = new byte[5 * 1024 * 1024 + 13];
+        new Random(42).nextBytes(data);
+
+        File serial = new File(mTemporaryFolder.getRoot(), "serial.apk");
+        File parallel = new File(mTemporaryFolder.getRoot(), "parallel.apk");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (File out : new File[] { serial, parallel }) {
+                ZFileOptions options = new ZFileOptions();
+                options.setNoTimestamps(true);
+                ZFile zf = new ZFile(out, options);
+                FullApkSignExtension signExtension = new FullApkSignExtension(zf, 13,
+                        signData.getSecond(), signData.getFirst(),
+                        out == serial ? MoreExecutors.sameThreadExecutor() : executor);
+                signExtension.register();
+                zf.add("abc", new ByteArrayInputStream(data));
+                zf.add("defg", new ByteArrayInputStream(new byte[] { 1, 2, 3, 4 }));
+                zf.close();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertArrayEquals(Files.toByteArray(serial), Files.toByteArray(parallel));
+    }
+
+    @Test
+    public void testIncrementalSignatureMatchesFullSignature() throws Exception {
+        Pair<PrivateKey, X509Certificate> signData = SignatureTestUtils.generateSignaturePre18();
+        Random random = new Random(42);
+
+        File cached = new File(mTemporaryFolder.getRoot(), "cached.apk");
+        File cacheFile = new File(mTemporaryFolder.getRoot(), "cached.digests");
+        File uncached = new File(mTemporaryFolder.getRoot(), "uncached.apk");
+
+        AtomicInteger digestedChunks = new AtomicInteger();
+        Executor countingExecutor = command -> {
+            digestedChunks.incrementAndGet();
+            command.run();
+        };
+
+        /*
+         * Sign a zip with several large stored entries, spanning 6 chunks, plus one chunk for
+         * each of the central directory and EOCD.
+         */
+        ZFileOptions options = new ZFileOptions();
+        options.setNoTimestamps(true);
+        ZFile zf = new ZFile(cached, options);
+        new FullApkSignExtension(zf, 13, signData.getSecond(), signData.getFirst(),
+                countingExecutor, cacheFile).register();
+        for (String name : new String[] { "a", "b", "c", "d" }) {
+            zf.add(name, new ByteArrayInputStream(randomBytes(random, 1500 * 1024)));
+        }
+        zf.close();
+        assertEquals(8, digestedChunks.get());
+        assertTrue(cacheFile.isFile());
+        Files.copy(cached, uncached);
+
+        /*
+         * Replace an entry in the middle, and then remove an entry and sort the zip, moving all
+         * entries after it. Both zips must be signed the same, with only the chunks that changed
+         * digested again the first time.
+         */
+        byte[] newData = randomBytes(random, 10);
+        byte[] newLargeData = randomBytes(random, 800 * 1024);
+        for (int step = 0; step < 2; step++) {
+            for (File out : new File[] { cached, uncached }) {
+                ZFileOptions updateOptions = new ZFileOptions();
+                updateOptions.setNoTimestamps(true);
+                updateOptions.setAutoSortFiles(step == 1);
+                ZFile updated = new ZFile(out, updateOptions);
+                new FullApkSignExtension(updated, 13, signData.getSecond(), signData.getFirst(),
+                        countingExecutor, out == cached ? cacheFile : null).register();
+                if (step == 0) {
+                    updated.add("c", new ByteArrayInputStream(newData));
+                } else {
+                    StoredEntry a = updated.get("a");
+                    assertNotNull(a);
+                    a.delete();
+                    updated.add("e", new ByteArrayInputStream(newLargeData));
+                }
+
+                digestedChunks.set(0);
+                updated.close();
+                if (out == cached && step == 0) {
+                    assertTrue(digestedChunks.get() < 8);
+                }
+            }
+
+            assertArrayEquals(Files.toByteArray(uncached), Files.toByteArray(cached));
+        }
+    }
+
+    @NonNull
+    private static byte[] randomBytes(@NonNull Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
 }
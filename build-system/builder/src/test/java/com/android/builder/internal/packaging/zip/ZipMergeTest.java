@@ -172,6 +172,60 @@ public class ZipMergeTest {
         }
     }
 
+    @Test
+    public void mergeZipUsingFileChannelsDoesNotReadEntriesIntoMemory() throws Exception {
+        File foo = mTemporaryFolder.newFile("foo");
+
+        byte[] wBytes = Files.toByteArray(ZipTestUtils.rsrcFile("text-files/wikipedia.html"));
+        byte[] lBytes = Files.toByteArray(ZipTestUtils.rsrcFile("images/lena.png"));
+
+        try (ZipOutputStream fooOut = new ZipOutputStream(new FileOutputStream(foo))) {
+            fooOut.putNextEntry(new ZipEntry("w"));
+            fooOut.write(wBytes);
+            ZipEntry le = new ZipEntry("l");
+            le.setMethod(ZipEntry.STORED);
+            le.setSize(lBytes.length);
+            le.setCrc(Hashing.crc32().hashBytes(lBytes).padToLong());
+            fooOut.putNextEntry(le);
+            fooOut.write(lBytes);
+        }
+
+        ZFileOptions options = new ZFileOptions();
+        options.setUseFileChannels(true);
+
+        try (Closer closer = Closer.create()) {
+            ZFile fooZf = closer.register(new ZFile(foo));
+            ZFile merged = closer.register(
+                    new ZFile(new File(mTemporaryFolder.getRoot(), "bar"), options));
+            merged.mergeFrom(fooZf, f -> false);
+            merged.update();
+
+            assertEquals(0, options.getTracker().getMaxBytesUsed());
+
+            StoredEntry wmStored = merged.get("w");
+            assertNotNull(wmStored);
+            assertEquals(CompressionMethod.DEFLATE,
+                    wmStored.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+            assertArrayEquals(wBytes, wmStored.read());
+
+            StoredEntry lmStored = merged.get("l");
+            assertNotNull(lmStored);
+            assertEquals(CompressionMethod.STORE,
+                    lmStored.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+            assertArrayEquals(lBytes, lmStored.read());
+        }
+
+        try (ZFile reopened = new ZFile(new File(mTemporaryFolder.getRoot(), "bar"))) {
+            StoredEntry wStored = reopened.get("w");
+            assertNotNull(wStored);
+            assertArrayEquals(wBytes, wStored.read());
+
+            StoredEntry lStored = reopened.get("l");
+            assertNotNull(lStored);
+            assertArrayEquals(lBytes, lStored.read());
+        }
+    }
+
     @Test
     public void mergeZipWithSorting() throws Exception {
         File foo = mTemporaryFolder.newFile("foo");
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip.compress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.internal.packaging.zip.CompressionMethod;
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.ZFile;
+import com.android.builder.internal.packaging.zip.ZFileOptions;
+import com.android.testutils.TestUtils;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+public class FileDeflateCacheTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Cache counting the hits and misses of another cache.
+     */
+    private static class CountingCache implements DeflateCache {
+        @NonNull
+        private final DeflateCache mDelegate;
+
+        @NonNull
+        private final AtomicInteger mHits = new AtomicInteger();
+
+        @NonNull
+        private final AtomicInteger mMisses = new AtomicInteger();
+
+        CountingCache(@NonNull DeflateCache delegate) {
+            mDelegate = delegate;
+        }
+
+        @Nullable
+        @Override
+        public ByteSource get(@NonNull HashCode contentHash, int level) throws IOException {
+            ByteSource result = mDelegate.get(contentHash, level);
+            (result == null ? mMisses : mHits).incrementAndGet();
+            return result;
+        }
+
+        @Override
+        public void put(@NonNull HashCode contentHash, int level, @NonNull byte[] deflated)
+                throws IOException {
+            mDelegate.put(contentHash, level, deflated);
+        }
+    }
+
+    private byte[] getCompressibleData() throws Exception {
+        File wikipediaFile = new File(new File(TestUtils.getRoot("packaging"), "text-files"),
+                "wikipedia.html");
+        assertTrue(wikipediaFile.isFile());
+        return Files.asByteSource(wikipediaFile).read();
+    }
+
+    private void writeZip(@NonNull File zip, @NonNull DeflateCache cache, @NonNull byte[] data)
+            throws Exception {
+        ZFileOptions options = new ZFileOptions();
+        options.setNoTimestamps(true);
+        options.setCompressor(new BestAndDefaultDeflateExecutorCompressor(
+                MoreExecutors.sameThreadExecutor(), options.getTracker(), 1.0, cache));
+
+        try (ZFile zf = new ZFile(zip, options)) {
+            zf.add("wikipedia.html", new ByteArrayInputStream(data));
+        }
+    }
+
+    @Test
+    public void getAndPut() throws Exception {
+        FileDeflateCache cache = new FileDeflateCache(new File(mTemporaryFolder.getRoot(), "c"));
+        HashCode hash = Hashing.sha256().hashBytes(new byte[] { 1, 2, 3 });
+
+        assertNull(cache.get(hash, Deflater.BEST_SPEED));
+
+        cache.put(hash, Deflater.BEST_SPEED, new byte[] { 4, 5 });
+        ByteSource cached = cache.get(hash, Deflater.BEST_SPEED);
+        assertNotNull(cached);
+        assertArrayEquals(new byte[] { 4, 5 }, cached.read());
+        assertNull(cache.get(hash, Deflater.BEST_COMPRESSION));
+    }
+
+    @Test
+    public void unusedFilesAreDeleted() throws Exception {
+        File directory = new File(mTemporaryFolder.getRoot(), "c");
+        long maxAgeMs = TimeUnit.HOURS.toMillis(1);
+        FileDeflateCache cache = new FileDeflateCache(directory, maxAgeMs);
+        HashCode used = Hashing.sha256().hashBytes(new byte[] { 1 });
+        HashCode unused = Hashing.sha256().hashBytes(new byte[] { 2 });
+        cache.put(used, Deflater.BEST_SPEED, new byte[] { 1 });
+        cache.put(unused, Deflater.BEST_SPEED, new byte[] { 2 });
+
+        long old = System.currentTimeMillis() - 2 * maxAgeMs;
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertEquals(3, files.length);
+        for (File file : files) {
+            assertTrue(file.setLastModified(old));
+        }
+
+        /*
+         * Reading data marks it as used.
+         */
+        assertNotNull(cache.get(used, Deflater.BEST_SPEED));
+
+        /*
+         * The files are only checked once a day, by the first cache adding data.
+         */
+        FileDeflateCache other = new FileDeflateCache(directory, maxAgeMs);
+        File marker = new File(directory, FileDeflateCache.PRUNE_MARKER);
+        assertTrue(marker.setLastModified(System.currentTimeMillis()));
+        other.put(Hashing.sha256().hashBytes(new byte[] { 3 }), Deflater.BEST_SPEED,
+                new byte[] { 3 });
+        File unusedFile = new File(directory, unused + "-" + Deflater.BEST_SPEED);
+        assertTrue(unusedFile.isFile());
+
+        assertTrue(marker.setLastModified(old - TimeUnit.DAYS.toMillis(1)));
+        other = new FileDeflateCache(directory, maxAgeMs);
+        other.put(Hashing.sha256().hashBytes(new byte[] { 4 }), Deflater.BEST_SPEED,
+                new byte[] { 4 });
+
+        assertFalse(unusedFile.exists());
+        assertNull(other.get(unused, Deflater.BEST_SPEED));
+        ByteSource cached = other.get(used, Deflater.BEST_SPEED);
+        assertNotNull(cached);
+        assertArrayEquals(new byte[] { 1 }, cached.read());
+        assertNotNull(other.get(Hashing.sha256().hashBytes(new byte[] { 3 }), Deflater.BEST_SPEED));
+        assertTrue(marker.lastModified() > old);
+    }
+
+    @Test
+    public void secondCompressionUsesCache() throws Exception {
+        byte[] data = getCompressibleData();
+        CountingCache cache = new CountingCache(
+                new FileDeflateCache(new File(mTemporaryFolder.getRoot(), "cache")));
+
+        File first = new File(mTemporaryFolder.getRoot(), "first.zip");
+        writeZip(first, cache, data);
+        assertEquals(0, cache.mHits.get());
+        assertEquals(2, cache.mMisses.get());
+
+        File second = new File(mTemporaryFolder.getRoot(), "second.zip");
+        writeZip(second, cache, data);
+        assertEquals(2, cache.mHits.get());
+        assertEquals(2, cache.mMisses.get());
+
+        assertArrayEquals(Files.toByteArray(first), Files.toByteArray(second));
+
+        try (ZFile zf = new ZFile(second)) {
+            StoredEntry entry = zf.get("wikipedia.html");
+            assertNotNull(entry);
+            assertEquals(CompressionMethod.DEFLATE,
+                    entry.getCentralDirectoryHeader().getCompressionInfoWithWait().getMethod());
+            assertArrayEquals(data, entry.read());
+        }
+    }
+
+    @Test
+    public void failingCacheIsIgnored() throws Exception {
+        byte[] data = getCompressibleData();
+        DeflateCache failing = new DeflateCache() {
+            @Nullable
+            @Override
+            public ByteSource get(@NonNull HashCode contentHash, int level) throws IOException {
+                throw new IOException("get");
+            }
+
+            @Override
+            public void put(@NonNull HashCode contentHash, int level, @NonNull byte[] deflated)
+                    throws IOException {
+                throw new IOException("put");
+            }
+        };
+
+        File zip = new File(mTemporaryFolder.getRoot(), "a.zip");
+        writeZip(zip, failing, data);
+
+        try (ZFile zf = new ZFile(zip)) {
+            StoredEntry entry = zf.get("wikipedia.html");
+            assertNotNull(entry);
+            assertArrayEquals(data, entry.read());
+        }
+    }
+}
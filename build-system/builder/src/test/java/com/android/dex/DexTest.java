@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dex;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.dex.util.FileUtils;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.file.ClassDefItem;
+import com.android.dx.dex.file.DexFile;
+import com.android.dx.rop.code.AccessFlags;
+import com.android.dx.rop.cst.CstType;
+import com.android.dx.rop.type.StdTypeList;
+import com.android.dx.rop.type.Type;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class DexTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates the contents of a dex file defining an empty class.
+     */
+    @NonNull
+    private static byte[] createDex(@NonNull String type) throws IOException {
+        DexFile dexFile = new DexFile(new DexOptions());
+        dexFile.add(new ClassDefItem(CstType.intern(Type.intern(type)), AccessFlags.ACC_PUBLIC,
+                CstType.OBJECT, StdTypeList.EMPTY, null));
+        return dexFile.toDex(null, false);
+    }
+
+    /**
+     * Creates a jar with a {@code classes.dex} entry after another entry, so that the dex is
+     * not at the start of the jar.
+     */
+    @NonNull
+    private File createJar(@NonNull String name, @NonNull byte[] dex, int method)
+            throws Exception {
+        File jar = new File(mTemporaryFolder.getRoot(), name);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            out.write("Manifest-Version: 1.0\n".getBytes("UTF-8"));
+
+            ZipEntry entry = new ZipEntry(DexFormat.DEX_IN_JAR_NAME);
+            entry.setMethod(method);
+            if (method == ZipEntry.STORED) {
+                entry.setSize(dex.length);
+                entry.setCrc(Hashing.crc32().hashBytes(dex).padToLong());
+            }
+            out.putNextEntry(entry);
+            out.write(dex);
+        }
+        return jar;
+    }
+
+    @NonNull
+    private static List<String> getTypeNames(@NonNull Dex dex) {
+        return ImmutableList.copyOf(dex.typeNames());
+    }
+
+    @Test
+    public void mapDexFile() throws Exception {
+        byte[] bytes = createDex("LA;");
+        File file = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        Files.write(bytes, file);
+
+        Dex dex = Dex.map(file);
+        assertArrayEquals(bytes, dex.getBytes());
+        assertTrue(getTypeNames(dex).contains("LA;"));
+
+        assertTrue(FileUtils.mapFile(file) instanceof MappedByteBuffer);
+    }
+
+    @Test
+    public void mapStoredEntry() throws Exception {
+        byte[] bytes = createDex("LA;");
+        File jar = createJar("stored.jar", bytes, ZipEntry.STORED);
+
+        ByteBuffer data = FileUtils.mapStoredEntry(jar, DexFormat.DEX_IN_JAR_NAME);
+        assertTrue(data instanceof MappedByteBuffer);
+        assertEquals(bytes.length, data.capacity());
+        byte[] mapped = new byte[bytes.length];
+        data.get(mapped);
+        assertArrayEquals(bytes, mapped);
+
+        assertNull(FileUtils.mapStoredEntry(jar, "missing.dex"));
+
+        Dex dex = Dex.map(jar);
+        assertArrayEquals(bytes, dex.getBytes());
+        assertTrue(getTypeNames(dex).contains("LA;"));
+    }
+
+    @Test
+    public void mapDeflatedEntry() throws Exception {
+        byte[] bytes = createDex("LA;");
+        File jar = createJar("deflated.jar", bytes, ZipEntry.DEFLATED);
+
+        // Compressed data cannot be mapped, so the dex is loaded instead.
+        assertNull(FileUtils.mapStoredEntry(jar, DexFormat.DEX_IN_JAR_NAME));
+
+        Dex dex = Dex.map(jar);
+        assertArrayEquals(bytes, dex.getBytes());
+        assertTrue(getTypeNames(dex).contains("LA;"));
+    }
+
+    @Test
+    public void mapTruncatedLocalHeader() throws Exception {
+        byte[] bytes = createDex("LA;");
+        File jar = createJar("truncated.jar", bytes, ZipEntry.STORED);
+
+        // Point the central directory at a local header cut by the end of the archive.
+        byte[] archive = Files.toByteArray(jar);
+        ByteBuffer buffer = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = archive.length - 22;
+        assertEquals(0x06054b50, buffer.getInt(eocd));
+        int at = buffer.getInt(eocd + 16);
+        while (buffer.getInt(at) == 0x02014b50) {
+            int nameLength = buffer.getShort(at + 28);
+            String name = new String(archive, at + 46, nameLength, "UTF-8");
+            if (name.equals(DexFormat.DEX_IN_JAR_NAME)) {
+                buffer.putInt(at + 42, archive.length - 10);
+            }
+            at += 46 + nameLength + buffer.getShort(at + 30) + buffer.getShort(at + 32);
+        }
+        Files.write(archive, jar);
+
+        assertNull(FileUtils.mapStoredEntry(jar, DexFormat.DEX_IN_JAR_NAME));
+
+        // Loading the dex fails instead, as it did before mapping.
+        try {
+            Dex.map(jar);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.command.dexer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.dex.ClassData;
+import com.android.dex.ClassDef;
+import com.android.dex.Dex;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+public class MainTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates a class with static methods of the given names.
+     */
+    @NonNull
+    private static byte[] createClass(@NonNull String name, @NonNull String... methods) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        for (String method : methods) {
+            MethodVisitor visitor = writer.visitMethod(
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, method, "()V", null, null);
+            visitor.visitCode();
+            visitor.visitInsn(Opcodes.RETURN);
+            visitor.visitMaxs(0, 0);
+            visitor.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Returns the names of the methods of each class of a dex file, by class type name.
+     */
+    @NonNull
+    private static Map<String, Set<String>> getMethods(@NonNull File dexFile) throws Exception {
+        Dex dex = new Dex(dexFile);
+        Map<String, Set<String>> methods = Maps.newHashMap();
+        for (ClassDef classDef : dex.classDefs()) {
+            Set<String> names = Sets.newHashSet();
+            if (classDef.getClassDataOffset() != 0) {
+                ClassData classData = dex.readClassData(classDef);
+                for (ClassData.Method method : classData.allMethods()) {
+                    names.add(dex.strings().get(
+                            dex.methodIds().get(method.getMethodIndex()).getNameIndex()));
+                }
+            }
+            methods.put(dex.typeNames().get(classDef.getTypeIndex()), names);
+        }
+        return methods;
+    }
+
+    private static int runDx(@NonNull String... args) throws Exception {
+        return runDx(new DxContext(), args);
+    }
+
+    private static int runDx(@NonNull DxContext context, @NonNull String... args)
+            throws Exception {
+        Main.Arguments arguments = new Main.Arguments();
+        arguments.parseCommandLine(args, context);
+        return new Main(context).run(arguments);
+    }
+
+    @Test
+    public void incrementalBuildWithClassCache() throws Exception {
+        File classes = mTemporaryFolder.newFolder("classes");
+        File classA = new File(classes, "A.class");
+        File classB = new File(classes, "B.class");
+        Files.write(createClass("A", "first"), classA);
+        Files.write(createClass("B", "other"), classB);
+
+        File output = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        String[] args = {
+                "--incremental",
+                "--class-cache=" + mTemporaryFolder.newFolder("cache").getPath(),
+                "--output=" + output.getPath(),
+                classes.getPath()
+        };
+
+        assertEquals(0, runDx(args));
+        assertEquals(
+                ImmutableMap.of(
+                        "LA;", ImmutableSet.of("first"),
+                        "LB;", ImmutableSet.of("other")),
+                getMethods(output));
+
+        // Only A is newer than the output, so it is the only class processed again; its
+        // translation replaces the one in the previous output.
+        long outputTime = output.lastModified();
+        Files.write(createClass("A", "first", "second"), classA);
+        assertTrue(classA.setLastModified(outputTime + 10000));
+        assertTrue(classB.setLastModified(outputTime - 10000));
+
+        assertEquals(0, runDx(args));
+        assertEquals(
+                ImmutableMap.of(
+                        "LA;", ImmutableSet.of("first", "second"),
+                        "LB;", ImmutableSet.of("other")),
+                getMethods(output));
+
+        // The same classes come from the cache this time.
+        assertTrue(output.setLastModified(outputTime));
+        assertEquals(0, runDx(args));
+        assertEquals(
+                ImmutableSet.of("first", "second"),
+                getMethods(output).get("LA;"));
+    }
+
+    /**
+     * Creates class files of many classes with a few methods each, for translation to take
+     * some time.
+     */
+    @NonNull
+    private File createClasses() throws Exception {
+        File classes = mTemporaryFolder.newFolder("classes");
+        for (int i = 0; i < 200; i++) {
+            String name = "C" + i;
+            String[] methods = new String[1 + i % 7];
+            for (int j = 0; j < methods.length; j++) {
+                methods[j] = "m" + (i * 31 + j) % 100;
+            }
+            Files.write(createClass(name, methods), new File(classes, name + ".class"));
+        }
+        return classes;
+    }
+
+    @Test
+    public void multiThreadedTranslationIsDeterministic() throws Exception {
+        File classes = createClasses();
+
+        File single = new File(mTemporaryFolder.getRoot(), "single.dex");
+        assertEquals(0, runDx("--output=" + single.getPath(), classes.getPath()));
+
+        // Classes are added in the order they were read, whichever thread translates them.
+        for (int i = 0; i < 3; i++) {
+            File multi = new File(mTemporaryFolder.getRoot(), "multi" + i + ".dex");
+            assertEquals(0, runDx(
+                    "--num-threads=8",
+                    "--output=" + multi.getPath(),
+                    classes.getPath()));
+            assertArrayEquals(Files.toByteArray(single), Files.toByteArray(multi));
+        }
+    }
+
+    @Test
+    public void parseErrorStopsTranslation() throws Exception {
+        File classes = createClasses();
+        Files.write(new byte[] { (byte) 0xca, (byte) 0xfe, 0, 0 }, new File(classes, "Bad.class"));
+
+        File output = new File(mTemporaryFolder.getRoot(), "classes.dex");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        DxContext context = new DxContext(new ByteArrayOutputStream(), err);
+        assertEquals(1, runDx(
+                context,
+                "--num-threads=8",
+                "--output=" + output.getPath(),
+                classes.getPath()));
+        context.err.flush();
+
+        // Reported as when classes were parsed by the reading thread, and nothing is written.
+        String errors = err.toString("UTF-8");
+        assertTrue(errors, errors.contains("UNEXPECTED TOP-LEVEL EXCEPTION:"));
+        assertTrue(errors, errors.contains("Exception parsing classes"));
+        assertFalse(errors, errors.contains("Uncaught translation error"));
+        assertTrue(errors, errors.contains("1 error; aborting"));
+        assertFalse(output.exists());
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.dex.ClassData;
+import com.android.dex.ClassDef;
+import com.android.dex.Code;
+import com.android.dex.Dex;
+import com.android.dex.FieldId;
+import com.android.dex.MethodId;
+import com.android.dex.ProtoId;
+import com.android.dx.command.dexer.DxContext;
+import com.android.dx.command.dexer.Main;
+import com.android.dx.io.OpcodeInfo;
+import com.android.dx.io.instructions.DecodedInstruction;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.ObjectArrays;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+public class DexMergerTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates a class with a static int field and a static method for each of the given
+     * members, and a static factory method. Each method uses the field, method and factory
+     * of the same name of each of the referenced classes, so that classes translated to
+     * different dex files share IDs.
+     */
+    @NonNull
+    private static byte[] createClass(
+            @NonNull String name,
+            @NonNull String[] members,
+            @NonNull String... references) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+
+        MethodVisitor factory = writer.visitMethod(
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "create", "()L" + name + ";", null,
+                null);
+        factory.visitCode();
+        factory.visitInsn(Opcodes.ACONST_NULL);
+        factory.visitInsn(Opcodes.ARETURN);
+        factory.visitMaxs(0, 0);
+        factory.visitEnd();
+
+        for (String member : members) {
+            writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, member, "I", null, null)
+                    .visitEnd();
+
+            MethodVisitor method = writer.visitMethod(
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, member, "(I)V", null, null);
+            method.visitCode();
+            method.visitLdcInsn(name + "." + member);
+            method.visitInsn(Opcodes.POP);
+            for (String reference : references) {
+                method.visitFieldInsn(Opcodes.GETSTATIC, reference, member, "I");
+                method.visitMethodInsn(
+                        Opcodes.INVOKESTATIC, reference, member, "(I)V", false);
+                method.visitMethodInsn(
+                        Opcodes.INVOKESTATIC, reference, "create", "()L" + reference + ";",
+                        false);
+                method.visitInsn(Opcodes.POP);
+            }
+            method.visitInsn(Opcodes.RETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * Translates classes, given as pairs of name and contents, to a dex file.
+     */
+    @NonNull
+    private Dex translate(@NonNull Object... classes) throws Exception {
+        File dir = mTemporaryFolder.newFolder();
+        for (int i = 0; i < classes.length; i += 2) {
+            Files.write((byte[]) classes[i + 1], new File(dir, classes[i] + ".class"));
+        }
+
+        File output = new File(dir, "classes.dex");
+        DxContext context = new DxContext(
+                ByteStreams.nullOutputStream(), ByteStreams.nullOutputStream());
+        Main.Arguments arguments = new Main.Arguments();
+        arguments.parseCommandLine(new String[] { "--output=" + output, dir.getPath() }, context);
+        assertEquals(0, new Main(context).run(arguments));
+        return new Dex(output);
+    }
+
+    @NonNull
+    private static Dex merge(@NonNull Dex[] dexes, int numThreads) throws Exception {
+        DexMerger merger = new DexMerger(dexes, CollisionPolicy.FAIL, new DxContext(
+                ByteStreams.nullOutputStream(), ByteStreams.nullOutputStream()));
+        merger.setNumThreads(numThreads);
+        return merger.merge();
+    }
+
+    @NonNull
+    private static String describe(@NonNull Dex dex, @NonNull ProtoId protoId) {
+        return dex.readTypeList(protoId.getParametersOffset())
+                + dex.typeNames().get(protoId.getReturnTypeIndex());
+    }
+
+    @NonNull
+    private static String describe(@NonNull Dex dex, @NonNull FieldId fieldId) {
+        return dex.typeNames().get(fieldId.getDeclaringClassIndex())
+                + "." + dex.strings().get(fieldId.getNameIndex())
+                + ":" + dex.typeNames().get(fieldId.getTypeIndex());
+    }
+
+    @NonNull
+    private static String describe(@NonNull Dex dex, @NonNull MethodId methodId) {
+        return dex.typeNames().get(methodId.getDeclaringClassIndex())
+                + "." + dex.strings().get(methodId.getNameIndex())
+                + describe(dex, dex.protoIds().get(methodId.getProtoIndex()));
+    }
+
+    /**
+     * Describes the ID sections of a dex file, in order.
+     */
+    @NonNull
+    private static List<String> describeIds(@NonNull Dex dex) {
+        List<String> ids = Lists.newArrayList();
+        for (String string : dex.strings()) {
+            ids.add("string " + string);
+        }
+        for (String type : dex.typeNames()) {
+            ids.add("type " + type);
+        }
+        for (ProtoId protoId : dex.protoIds()) {
+            ids.add("proto " + describe(dex, protoId));
+        }
+        for (FieldId fieldId : dex.fieldIds()) {
+            ids.add("field " + describe(dex, fieldId));
+        }
+        for (MethodId methodId : dex.methodIds()) {
+            ids.add("method " + describe(dex, methodId));
+        }
+        return ids;
+    }
+
+    /**
+     * Describes the instructions of each method of a dex file, with the IDs they refer to.
+     */
+    @NonNull
+    private static Map<String, List<String>> describeCode(@NonNull Dex dex) {
+        Map<String, List<String>> code = Maps.newTreeMap();
+        for (ClassDef classDef : dex.classDefs()) {
+            ClassData classData = dex.readClassData(classDef);
+            for (ClassData.Method method : classData.allMethods()) {
+                Code methodCode = dex.readCode(method);
+                List<String> insns = Lists.newArrayList();
+                for (DecodedInstruction insn
+                        : DecodedInstruction.decodeAll(methodCode.getInstructions())) {
+                    if (insn == null) {
+                        continue;
+                    }
+                    String ref;
+                    switch (OpcodeInfo.getIndexType(insn.getOpcode())) {
+                        case STRING_REF:
+                            ref = dex.strings().get(insn.getIndex());
+                            break;
+                        case TYPE_REF:
+                            ref = dex.typeNames().get(insn.getIndex());
+                            break;
+                        case FIELD_REF:
+                            ref = describe(dex, dex.fieldIds().get(insn.getIndex()));
+                            break;
+                        case METHOD_REF:
+                            ref = describe(dex, dex.methodIds().get(insn.getIndex()));
+                            break;
+                        default:
+                            ref = "";
+                    }
+                    insns.add(insn.getOpcode() + " " + ref);
+                }
+                code.put(describe(dex, dex.methodIds().get(method.getMethodIndex())), insns);
+            }
+        }
+        return code;
+    }
+
+    @Test
+    public void mergeOverlappingAndInterleavedIds() throws Exception {
+        // Every class uses the members of Shared and some of the others, and the member names
+        // of the classes in each dex file alternate with the ones in the other dex files.
+        Object[] first = {
+                "A", createClass("A", new String[] { "a", "c", "e" }, "Shared", "B"),
+        };
+        Object[] second = {
+                "B", createClass("B", new String[] { "b", "d", "f" }, "Shared", "A", "C"),
+                "Shared", createClass("Shared", new String[] { "a", "b", "c", "d", "e", "f" }),
+        };
+        Object[] third = {
+                "C", createClass("C", new String[] { "a", "b" }, "Shared"),
+                "D", createClass("D", new String[] { "c", "f" }, "A", "B", "Shared"),
+        };
+        Dex[] dexes = { translate(first), translate(second), translate(third) };
+
+        // The merged IDs and references are the ones of all classes translated at once.
+        Dex all = translate(ObjectArrays.concat(
+                ObjectArrays.concat(first, second, Object.class), third, Object.class));
+        Dex merged = merge(dexes, 1);
+        assertEquals(describeIds(all), describeIds(merged));
+        assertEquals(describeCode(all), describeCode(merged));
+
+        List<String> ids = describeIds(merged);
+        assertTrue(ids.contains("field LShared;.a:I"));
+        assertTrue(ids.contains("method LShared;.f(I)V"));
+        assertTrue(ids.contains("proto ()LD;"));
+
+        // Reading the inputs concurrently does not change the result.
+        assertArrayEquals(merged.getBytes(), merge(dexes, 4).getBytes());
+    }
+}
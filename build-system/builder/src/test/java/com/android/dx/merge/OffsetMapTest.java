@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.merge;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class OffsetMapTest {
+
+    private static void assertNotMapped(OffsetMap map, int oldOffset) {
+        try {
+            map.get(oldOffset);
+            fail("offset mapped: " + oldOffset);
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void growKeepsMappings() {
+        // Offsets are aligned, like the ones of dex sections, and far more than the
+        // initial capacity.
+        OffsetMap map = new OffsetMap();
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 4, i * 8 + 1);
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i * 8 + 1, map.get(i * 4));
+            assertNotMapped(map, i * 4 + 2);
+        }
+        assertNotMapped(map, 40000);
+    }
+
+    @Test
+    public void putReplacesMapping() {
+        OffsetMap map = new OffsetMap();
+        map.put(0, 10);
+        map.put(0, 20);
+        assertEquals(20, map.get(0));
+
+        // Replacing a mapping many times keeps the other mappings.
+        for (int i = 0; i < 100; i++) {
+            map.put(16, i);
+        }
+        assertEquals(99, map.get(16));
+        assertEquals(20, map.get(0));
+    }
+
+    @Test
+    public void unmappedOffsets() {
+        OffsetMap map = new OffsetMap();
+        assertNotMapped(map, 0);
+        assertNotMapped(map, -1);
+        assertNotMapped(map, Integer.MAX_VALUE);
+
+        map.put(4, 0);
+        assertEquals(0, map.get(4));
+        assertNotMapped(map, 0);
+        assertNotMapped(map, 8);
+        assertNotMapped(map, -4);
+
+        try {
+            map.put(-1, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+}
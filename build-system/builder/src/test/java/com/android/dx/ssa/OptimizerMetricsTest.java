@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.ssa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.dx.cf.code.ConcreteMethod;
+import com.android.dx.cf.code.Ropper;
+import com.android.dx.cf.direct.DirectClassFile;
+import com.android.dx.cf.direct.StdAttributeFactory;
+import com.android.dx.cf.iface.Method;
+import com.android.dx.rop.code.DexTranslationAdvice;
+import com.android.dx.rop.code.RopMethod;
+import com.google.common.base.Charsets;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class OptimizerMetricsTest {
+
+    /**
+     * Creates a class with static methods of the given names, each summing the ints below its
+     * argument.
+     */
+    @NonNull
+    private static byte[] createClass(@NonNull String name, @NonNull String... methods) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        for (String method : methods) {
+            MethodVisitor visitor = writer.visitMethod(
+                    Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, method, "(I)I", null, null);
+            visitor.visitCode();
+            Label loop = new Label();
+            Label done = new Label();
+            visitor.visitInsn(Opcodes.ICONST_0);
+            visitor.visitVarInsn(Opcodes.ISTORE, 1);
+            visitor.visitInsn(Opcodes.ICONST_0);
+            visitor.visitVarInsn(Opcodes.ISTORE, 2);
+            visitor.visitLabel(loop);
+            visitor.visitVarInsn(Opcodes.ILOAD, 2);
+            visitor.visitVarInsn(Opcodes.ILOAD, 0);
+            visitor.visitJumpInsn(Opcodes.IF_ICMPGE, done);
+            visitor.visitVarInsn(Opcodes.ILOAD, 1);
+            visitor.visitVarInsn(Opcodes.ILOAD, 2);
+            visitor.visitInsn(Opcodes.IADD);
+            visitor.visitVarInsn(Opcodes.ISTORE, 1);
+            visitor.visitIincInsn(2, 1);
+            visitor.visitJumpInsn(Opcodes.GOTO, loop);
+            visitor.visitLabel(done);
+            visitor.visitVarInsn(Opcodes.ILOAD, 1);
+            visitor.visitInsn(Opcodes.IRETURN);
+            visitor.visitMaxs(0, 0);
+            visitor.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    @Test
+    public void passTotalsAndSlowestMethods() throws Exception {
+        DirectClassFile cf = new DirectClassFile(
+                createClass("test/Sum", "sum", "sumAgain"), "test/Sum.class", false);
+        cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
+
+        OptimizerMetrics metrics = new OptimizerMetrics();
+        metrics.setSlowestMethodCount(1);
+
+        List<String> names = new ArrayList<String>();
+        int insnsBefore = 0;
+        for (int i = 0; i < cf.getMethods().size(); i++) {
+            Method method = cf.getMethods().get(i);
+            RopMethod rmeth = Ropper.convert(
+                    new ConcreteMethod(method, cf, false, false),
+                    DexTranslationAdvice.THE_ONE,
+                    cf.getMethods());
+            insnsBefore += rmeth.getBlocks().getEffectiveInstructionCount();
+
+            String name = "Ltest/Sum;." + method.getName().getString()
+                    + method.getDescriptor().getString();
+            names.add(name);
+            OptimizerMetrics.MethodMetrics methodMetrics = metrics.newMethod(name);
+            Optimizer.optimize(rmeth, 1, true, false, DexTranslationAdvice.THE_ONE,
+                    EnumSet.allOf(Optimizer.OptionalStep.class), methodMetrics);
+            metrics.add(methodMetrics);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+        metrics.dumpMetrics(out);
+        String dump = new String(bytes.toByteArray(), Charsets.UTF_8);
+        String[] lines = dump.split("\n");
+
+        assertTrue(dump, lines[0].startsWith("Optimizer passes over 2 methods, "));
+
+        // Every method went through the same passes, starting with the conversion to ssa form
+        Matcher converter = Pattern.compile(
+                "^  SsaConverter +runs: 2 time: \\S+ insns: (\\d+)->\\d+ regs: \\d+->\\d+"
+                        + " allocated: \\S+$", Pattern.MULTILINE).matcher(dump);
+        assertTrue(dump, converter.find());
+        assertEquals(insnsBefore, Integer.parseInt(converter.group(1)));
+        for (String pass :
+                new String[] { "SCCP", "FirstFitLocalCombiningAllocator", "SsaToRop" }) {
+            assertTrue(dump, Pattern.compile("^  " + pass + " +runs: 2 ", Pattern.MULTILINE)
+                    .matcher(dump).find());
+        }
+
+        // Only the slowest method is broken down, into each run of its passes
+        int slowest = -1;
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].equals("Slowest 1 optimized methods:")) {
+                slowest = i;
+            }
+        }
+        assertTrue(dump, slowest > 0);
+        String method = lines[slowest + 1];
+        assertTrue(dump, method.matches("  \\S+ \\S+ms"));
+        assertTrue(dump, names.contains(method.substring(2, method.lastIndexOf(' '))));
+        assertTrue(dump, lines.length - slowest - 2 >= slowest - 1);
+        for (int i = slowest + 2; i < lines.length; i++) {
+            assertTrue(dump, lines[i].startsWith("    ")
+                    && lines[i].contains(" runs: 1 "));
+        }
+    }
+}
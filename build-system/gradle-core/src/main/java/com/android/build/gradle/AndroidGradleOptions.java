@@ -47,6 +47,8 @@ public class AndroidGradleOptions {
 
     private static final boolean DEFAULT_ENABLE_BUILD_CACHE = false;
 
+    private static final boolean DEFAULT_ENABLE_DEX_MERGE_TREE = false;
+
     private static final String PROPERTY_TEST_RUNNER_ARGS =
             "android.testInstrumentationRunnerArguments.";
 
@@ -89,6 +91,8 @@ public class AndroidGradleOptions {
 
     private static final String PROPERTY_BUILD_CACHE_DIR = "android.buildCacheDir";
 
+    private static final String PROPERTY_ENABLE_DEX_MERGE_TREE = "android.enableDexMergeTree";
+
     public static final String GRADLE_VERSION_CHECK_OVERRIDE_PROPERTY =
             "android.overrideVersionCheck";
 
@@ -395,6 +399,10 @@ public class AndroidGradleOptions {
         return getString(project, AndroidProject.PROPERTY_RESTRICT_VARIANT_NAME);
     }
 
+    public static boolean isDexMergeTreeEnabled(@NonNull Project project) {
+        return getBoolean(project, PROPERTY_ENABLE_DEX_MERGE_TREE, DEFAULT_ENABLE_DEX_MERGE_TREE);
+    }
+
     public static boolean isBuildCacheEnabled(@NonNull Project project) {
         return getBoolean(project, PROPERTY_ENABLE_BUILD_CACHE, DEFAULT_ENABLE_BUILD_CACHE);
     }
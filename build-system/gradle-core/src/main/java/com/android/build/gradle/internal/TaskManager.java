@@ -1919,7 +1919,9 @@ public abstract class TaskManager {
                 variantScope.getGlobalScope().getAndroidBuilder(),
                 getLogger(),
                 variantScope.getInstantRunBuildContext(),
-                AndroidGradleOptions.getBuildCache(variantScope.getGlobalScope().getProject()));
+                AndroidGradleOptions.getBuildCache(variantScope.getGlobalScope().getProject()),
+                AndroidGradleOptions.isDexMergeTreeEnabled(
+                        variantScope.getGlobalScope().getProject()));
         AndroidTask<TransformTask> dexTask = transformManager.addTransform(
                 tasks, variantScope, dexTransform);
         // need to manually make dex task depend on MultiDexTransform since there's no stream
@@ -201,6 +201,8 @@ class ExternalBuildTaskManager {
                         project.getLogger(),
                         variantScope.getInstantRunBuildContext(),
                         AndroidGradleOptions.getBuildCache(
+                                variantScope.getGlobalScope().getProject()),
+                        AndroidGradleOptions.isDexMergeTreeEnabled(
                                 variantScope.getGlobalScope().getProject()));
 
         transformManager.addTransform(tasks, variantScope, dexTransform);
@@ -21,12 +21,15 @@ import com.android.build.gradle.AndroidGradleOptions;
 import com.android.builder.internal.packaging.zfile.ApkZFileCreatorFactory;
 import com.android.builder.internal.packaging.zip.ZFileOptions;
 import com.android.builder.internal.packaging.zip.compress.BestAndDefaultDeflateExecutorCompressor;
+import com.android.builder.internal.packaging.zip.compress.DeflateCache;
 import com.android.builder.internal.packaging.zip.compress.DeflateExecutionCompressor;
+import com.android.builder.internal.packaging.zip.compress.FileDeflateCache;
 import com.android.builder.packaging.ApkCreatorFactory;
 import com.android.builder.signing.SignedJarApkCreatorFactory;
 
 import org.gradle.api.Project;
 
+import java.io.File;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -47,6 +50,14 @@ public final class ApkCreatorFactories {
      */
     private static final int MAXIMUM_COMPRESSION_THREADS = 2;
 
+    /**
+     * Suffix added to the name of the build cache directory to obtain the directory with the
+     * cached deflated data. The deflated data is not kept in the build cache directory itself,
+     * whose contents are managed, and locked, by
+     * {@link com.android.builder.internal.utils.FileCache}.
+     */
+    private static final String DEFLATE_CACHE_DIR_SUFFIX = "-deflate";
+
     /**
      * Utility class: no constructor.
      */
@@ -78,6 +89,12 @@ public final class ApkCreatorFactories {
             options.setNoTimestamps(!keepTimestamps);
             options.setCoverEmptySpaceUsingExtraField(true);
 
+            /*
+             * Copy the entries of the merged zip files (resources, java resources, native
+             * libraries, dex files) between the files rather than through memory.
+             */
+            options.setUseFileChannels(true);
+
             ThreadPoolExecutor compressionExecutor =
                     new ThreadPoolExecutor(
                             0, /* Number of always alive threads */
@@ -86,18 +103,34 @@ public final class ApkCreatorFactories {
                             TimeUnit.MILLISECONDS,
                             new LinkedBlockingDeque<>());
 
+            /*
+             * Reuse data compressed by other variants and previous builds if the build cache is
+             * enabled.
+             */
+            DeflateCache deflateCache = null;
+            if (AndroidGradleOptions.isBuildCacheEnabled(project)) {
+                File buildCacheDir =
+                        AndroidGradleOptions.getBuildCacheDir(project).getAbsoluteFile();
+                deflateCache = new FileDeflateCache(
+                        new File(
+                                buildCacheDir.getParentFile(),
+                                buildCacheDir.getName() + DEFLATE_CACHE_DIR_SUFFIX));
+            }
+
             if (debuggableBuild) {
                 options.setCompressor(
                         new DeflateExecutionCompressor(
                                 compressionExecutor,
                                 options.getTracker(),
-                                Deflater.BEST_SPEED));
+                                Deflater.BEST_SPEED,
+                                deflateCache));
             } else {
                 options.setCompressor(
                         new BestAndDefaultDeflateExecutorCompressor(
                                 compressionExecutor,
                                 options.getTracker(),
-                                1.0));
+                                1.0,
+                                deflateCache));
                 options.setAutoSortFiles(true);
             }
 
@@ -37,6 +37,7 @@ import com.android.build.gradle.internal.incremental.InstantRunBuildContext.File
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.builder.core.AndroidBuilder;
 import com.android.builder.core.DexOptions;
+import com.android.builder.internal.compiler.TreeDexMerger;
 import com.android.builder.internal.utils.FileCache;
 import com.android.builder.sdk.TargetInfo;
 import com.android.ide.common.blame.Message;
@@ -74,6 +75,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -113,6 +115,12 @@ public class DexTransform extends Transform {
     @NonNull
     private final FileCache buildCache;
 
+    /**
+     * Whether pre-dexed libraries are merged with a {@link TreeDexMerger} instead of dx, when not
+     * in multi-dex mode and without additional dx parameters.
+     */
+    private final boolean useDexMergeTree;
+
     public DexTransform(
             @NonNull DexOptions dexOptions,
             boolean debugMode,
@@ -122,7 +130,8 @@ public class DexTransform extends Transform {
             @NonNull AndroidBuilder androidBuilder,
             @NonNull Logger logger,
             @NonNull InstantRunBuildContext instantRunBuildContext,
-            @NonNull FileCache buildCache) {
+            @NonNull FileCache buildCache,
+            boolean useDexMergeTree) {
         this.dexOptions = dexOptions;
         this.debugMode = debugMode;
         this.multiDex = multiDex;
@@ -132,6 +141,7 @@ public class DexTransform extends Transform {
         this.logger = new LoggerWrapper(logger);
         this.instantRunBuildContext = instantRunBuildContext;
         this.buildCache = buildCache;
+        this.useDexMergeTree = useDexMergeTree;
     }
 
     @NonNull
@@ -195,6 +205,7 @@ public class DexTransform extends Transform {
             params.put("jumbo", dexOptions.getJumboMode());
             params.put("multidex", multiDex);
             params.put("multidex-legacy",  multiDex && mainDexListFile != null);
+            params.put("dex-merge-tree", useDexMergeTree);
             params.put("java-max-heap-size", dexOptions.getJavaMaxHeapSize());
             params.put(
                     "additional-parameters",
@@ -429,14 +440,38 @@ public class DexTransform extends Transform {
                         throw new RuntimeException("No dex files to merge!");
                     }
 
-                    androidBuilder.convertByteCode(
-                            outputs,
-                            outputDir,
-                            multiDex,
-                            mainDexListFile,
-                            dexOptions,
-                            getOptimize(),
-                            outputHandler);
+                    // jumbo mode and optimize only apply to translating classes, which was done
+                    // when pre-dexing the libraries; dx does not use them to merge dex files
+                    // either. Additional dx parameters can only be applied by dx.
+                    boolean mergeWithTree = useDexMergeTree && !multiDex;
+                    if (mergeWithTree && !dexOptions.getAdditionalParameters().isEmpty()) {
+                        logger.warning("android.enableDexMergeTree is ignored with "
+                                + "dexOptions.additionalParameters, merging with dx.");
+                        mergeWithTree = false;
+                    }
+
+                    if (mergeWithTree) {
+                        // merge the pre-dexed jars in parallel, keeping the intermediate merges
+                        // so that only the branches with changed libraries are merged again.
+                        ForkJoinPool pool = new ForkJoinPool(
+                                MoreObjects.firstNonNull(dexOptions.getThreadCount(), 4));
+                        try {
+                            new TreeDexMerger(getMergeTreeFolder(), pool).merge(
+                                    outputs,
+                                    new File(outputDir, SdkConstants.FN_APK_CLASSES_DEX));
+                        } finally {
+                            pool.shutdown();
+                        }
+                    } else {
+                        androidBuilder.convertByteCode(
+                                outputs,
+                                outputDir,
+                                multiDex,
+                                mainDexListFile,
+                                dexOptions,
+                                getOptimize(),
+                                outputHandler);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -625,6 +660,16 @@ public class DexTransform extends Transform {
         return FileUtils.getDirectoryNameForJar(inputFile) + suffix;
     }
 
+    /**
+     * Returns the folder with the intermediate merges of the {@link TreeDexMerger}. It is next to
+     * the pre-dexed libraries, since their folder should only contain them.
+     */
+    @NonNull
+    private File getMergeTreeFolder() {
+        return new File(intermediateFolder.getParentFile(),
+                intermediateFolder.getName() + "-merge-tree");
+    }
+
     /**
      * Decides whether to run dx with optimizations.
      *
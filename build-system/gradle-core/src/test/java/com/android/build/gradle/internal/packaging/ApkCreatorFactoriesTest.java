@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.internal.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.builder.internal.packaging.zfile.ApkZFileCreatorFactory;
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.ZFile;
+import com.android.builder.internal.packaging.zip.ZFileOptions;
+import com.android.builder.packaging.ApkCreator;
+import com.android.builder.packaging.ApkCreatorFactory;
+import com.android.builder.packaging.NativeLibrariesPackagingMode;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ApkCreatorFactoriesTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void mergedZipsAreCopiedThroughFileChannels() throws Exception {
+        Project project =
+                ProjectBuilder.builder().withProjectDir(mTemporaryFolder.newFolder()).build();
+        project.getExtensions().getExtraProperties().set("android.enableBuildCache", false);
+
+        ApkCreatorFactory factory = ApkCreatorFactories.fromProjectProperties(project, true);
+        assertTrue(factory instanceof ApkZFileCreatorFactory);
+        ZFileOptions options = ((ApkZFileCreatorFactory) factory).getOptions();
+        assertTrue(options.getUseFileChannels());
+
+        byte[] storedBytes = new byte[1024 * 1024];
+        new Random(0).nextBytes(storedBytes);
+        byte[] textBytes = Strings.repeat("resources ", 10000).getBytes(Charsets.US_ASCII);
+
+        File resources = mTemporaryFolder.newFile("resources.ap_");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(resources))) {
+            out.putNextEntry(new ZipEntry("res/raw/text.txt"));
+            out.write(textBytes);
+            ZipEntry stored = new ZipEntry("res/raw/data.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(storedBytes.length);
+            stored.setCrc(Hashing.crc32().hashBytes(storedBytes).padToLong());
+            out.putNextEntry(stored);
+            out.write(storedBytes);
+        }
+
+        File apk = new File(mTemporaryFolder.getRoot(), "app.apk");
+        ApkCreator creator = factory.make(
+                new ApkCreatorFactory.CreationData(
+                        apk,
+                        null,
+                        null,
+                        false,
+                        false,
+                        null,
+                        null,
+                        1,
+                        NativeLibrariesPackagingMode.COMPRESSED,
+                        s -> false));
+        try {
+            creator.writeZip(resources, null, null);
+        } finally {
+            creator.close();
+        }
+
+        // The merged entries were never loaded into memory, only the generated manifest
+        assertTrue(options.getTracker().getMaxBytesUsed() < storedBytes.length);
+
+        try (ZFile zf = new ZFile(apk)) {
+            StoredEntry text = zf.get("res/raw/text.txt");
+            assertNotNull(text);
+            assertArrayEquals(textBytes, text.read());
+
+            StoredEntry data = zf.get("res/raw/data.bin");
+            assertNotNull(data);
+            assertArrayEquals(storedBytes, data.read());
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.EcjParser.EcjResult;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the results of parsing Java sources with ECJ, shared by the {@link EcjParser}s of
+ * a lint run. Library projects are checked again for each project depending on them, and
+ * the legacy Lombok based detectors need the sources of a project parsed again after the PSI
+ * based ones; with this cache, the same sources with the same class path are only parsed
+ * once.
+ * <p>
+ * The cache is bounded by the total size of the cached sources, the memory used by the
+ * parsed trees and their bindings being roughly proportional to it, and evicts the least
+ * recently used results first. A result is only disposed once the parsers using it are done.
+ */
+class EcjParseCache {
+    /** Estimate of the heap used by the parse results, per character of source */
+    private static final long BYTES_PER_SOURCE_CHAR = 100;
+
+    /** Maximum total length of the cached sources */
+    private final long mMaxWeight;
+
+    /** Total length of the cached sources */
+    private long mWeight;
+
+    /** The cached results, the least recently used first */
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    /** Creates a cache using up to about a quarter of the maximum heap size */
+    EcjParseCache() {
+        this(Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_SOURCE_CHAR);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxWeight the maximum total length of the cached sources
+     */
+    EcjParseCache(long maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    /**
+     * Looks up the result of parsing the given sources with the given class path. The result
+     * must be released with {@link #release(Entry)} when no longer used.
+     *
+     * @param sources the sources to parse
+     * @param classPath the class path to parse them with
+     * @return the cached result, or null if the sources need to be parsed
+     */
+    @Nullable
+    synchronized Entry acquire(@NonNull List<EcjSourceFile> sources,
+            @NonNull List<String> classPath) {
+        Entry entry = mEntries.get(new Key(sources, classPath));
+        if (entry == null) {
+            return null;
+        }
+
+        for (EcjSourceFile source : sources) {
+            EcjSourceFile cached = entry.mSourceUnits.get(source.getFile());
+            if (cached == null || !cached.getSource().equals(source.getSource())) {
+                // Changed since parsed, for example by a quick fix in a previous lint phase
+                mEntries.remove(entry.mKey);
+                evict(entry);
+                return null;
+            }
+        }
+
+        entry.mUsers++;
+        return entry;
+    }
+
+    /**
+     * Caches the result of parsing the given sources, as used by the caller. The result must
+     * be released with {@link #release(Entry)} when no longer used.
+     *
+     * @param sources the parsed sources
+     * @param classPath the class path used to parse them
+     * @param result the result
+     * @return the entry of the result, which is only kept in the cache if it fits
+     */
+    @NonNull
+    synchronized Entry put(@NonNull List<EcjSourceFile> sources,
+            @NonNull List<String> classPath, @NonNull EcjResult result) {
+        long weight = 0;
+        Map<File, EcjSourceFile> sourceUnits = Maps.newHashMapWithExpectedSize(sources.size());
+        for (EcjSourceFile source : sources) {
+            sourceUnits.put(source.getFile(), source);
+            weight += source.getSource().length();
+        }
+
+        Key key = new Key(sources, classPath);
+        Entry entry = new Entry(key, result, sourceUnits, weight);
+        entry.mUsers++;
+
+        // A failed parse (e.g. out of memory) has no lookup environment: don't keep it
+        if (weight > mMaxWeight || result.getLookupEnvironment() == null) {
+            entry.mEvicted = true;
+            return entry;
+        }
+
+        Entry previous = mEntries.remove(key);
+        if (previous != null) {
+            evict(previous);
+        }
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mWeight + weight > mMaxWeight && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            evict(eldest);
+        }
+
+        mEntries.put(key, entry);
+        mWeight += weight;
+        return entry;
+    }
+
+    /**
+     * Releases a result obtained from {@link #acquire} or {@link #put}, disposing it if it
+     * is no longer cached nor used.
+     *
+     * @param entry the entry of the result
+     */
+    synchronized void release(@NonNull Entry entry) {
+        assert entry.mUsers > 0;
+        entry.mUsers--;
+        if (entry.mUsers == 0 && entry.mEvicted) {
+            entry.mResult.dispose();
+        }
+    }
+
+    /** Evicts all the results, disposing them once their parsers are done */
+    synchronized void dispose() {
+        for (Entry entry : mEntries.values()) {
+            evict(entry);
+        }
+        mEntries.clear();
+    }
+
+    /** Marks an entry removed from {@link #mEntries} as evicted */
+    private void evict(@NonNull Entry entry) {
+        entry.mEvicted = true;
+        mWeight -= entry.mWeight;
+        if (entry.mUsers == 0) {
+            entry.mResult.dispose();
+        }
+    }
+
+    /** A result of the cache */
+    static class Entry {
+        @NonNull private final Key mKey;
+        @NonNull private final EcjResult mResult;
+        @NonNull private final Map<File, EcjSourceFile> mSourceUnits;
+        private final long mWeight;
+        /** Number of parsers using the result */
+        private int mUsers;
+        /** Whether the result was removed from the cache, or never added to it */
+        private boolean mEvicted;
+
+        private Entry(@NonNull Key key, @NonNull EcjResult result,
+                @NonNull Map<File, EcjSourceFile> sourceUnits, long weight) {
+            mKey = key;
+            mResult = result;
+            mSourceUnits = sourceUnits;
+            mWeight = weight;
+        }
+
+        /** Returns the result of the parse */
+        @NonNull
+        EcjResult getResult() {
+            return mResult;
+        }
+
+        /** Returns the parsed source units, by source file */
+        @NonNull
+        Map<File, EcjSourceFile> getSourceUnits() {
+            return Collections.unmodifiableMap(mSourceUnits);
+        }
+    }
+
+    /** Identifies the parse of a list of source files with a class path */
+    private static class Key {
+        @NonNull private final List<File> mFiles;
+        @NonNull private final List<String> mClassPath;
+
+        private Key(@NonNull List<EcjSourceFile> sources, @NonNull List<String> classPath) {
+            List<File> files = Lists.newArrayListWithExpectedSize(sources.size());
+            for (EcjSourceFile source : sources) {
+                files.add(source.getFile());
+            }
+            mFiles = ImmutableList.copyOf(files);
+            mClassPath = ImmutableList.copyOf(classPath);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mFiles.equals(key.mFiles) && mClassPath.equals(key.mClassPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mFiles.hashCode() + mClassPath.hashCode();
+        }
+    }
+}
@@ -169,10 +169,26 @@ public class EcjParser extends JavaParser {
     private Parser mParser;
     protected EcjResult mEcjResult;
     private EcjPsiJavaEvaluator mResolver;
+    @Nullable private final EcjParseCache mParseCache;
+    /** The entry of {@link #mEcjResult} in {@link #mParseCache}, if shared through it */
+    @Nullable private EcjParseCache.Entry mCacheEntry;
 
     public EcjParser(@NonNull LintCliClient client, @Nullable Project project) {
+        this(client, project, null);
+    }
+
+    /**
+     * Creates a parser sharing its parse results with the other parsers of the given cache.
+     *
+     * @param client the lint client
+     * @param project the project whose sources are parsed
+     * @param parseCache the cache of parse results, if any
+     */
+    EcjParser(@NonNull LintCliClient client, @Nullable Project project,
+            @Nullable EcjParseCache parseCache) {
         mClient = client;
         mProject = project;
+        mParseCache = parseCache;
         mParser = getParser();
     }
 
@@ -265,8 +281,20 @@ public class EcjParser extends JavaParser {
             mSourceUnits.put(file, unit);
         }
         List<String> classPath = computeClassPath(contexts);
+        if (mParseCache != null) {
+            mCacheEntry = mParseCache.acquire(sources, classPath);
+            if (mCacheEntry != null) {
+                mEcjResult = mCacheEntry.getResult();
+                mSourceUnits = Maps.newHashMap(mCacheEntry.getSourceUnits());
+                mResolver = new EcjPsiJavaEvaluator(mEcjResult.mPsiManager);
+                return;
+            }
+        }
         try {
             mEcjResult = parse(createCompilerOptions(), sources, classPath, mClient);
+            if (mParseCache != null) {
+                mCacheEntry = mParseCache.put(sources, classPath, mEcjResult);
+            }
             mResolver = new EcjPsiJavaEvaluator(mEcjResult.mPsiManager);
 
             if (DEBUG_DUMP_PARSE_ERRORS) {
@@ -782,7 +810,8 @@ public class EcjParser extends JavaParser {
             EcjSourceFile sourceUnit = mSourceUnits.get(context.file);
             if (sourceUnit != null) {
                 mSourceUnits.remove(context.file);
-                if (mEcjResult != null) {
+                // Results shared through the parse cache keep all their units
+                if (mEcjResult != null && mCacheEntry == null) {
                     CompilationUnitDeclaration unit = mEcjResult.getCompilationUnit(sourceUnit);
                     if (unit != null) {
                         // See if this compilation unit defines any enum types; if so,
@@ -817,7 +846,12 @@ public class EcjParser extends JavaParser {
 
     @Override
     public void dispose() {
-        if (mEcjResult != null) {
+        if (mCacheEntry != null) {
+            assert mParseCache != null;
+            mParseCache.release(mCacheEntry);
+            mCacheEntry = null;
+            mEcjResult = null;
+        } else if (mEcjResult != null) {
             mEcjResult.dispose();
             mEcjResult = null;
         }
@@ -25,6 +25,7 @@ import static com.android.tools.lint.detector.api.TextFormat.RAW;
 
 import com.android.tools.lint.checks.BuiltinIssueRegistry;
 import com.android.tools.lint.client.api.Configuration;
+import com.android.tools.lint.client.api.LintProfiler;
 import com.android.tools.lint.detector.api.Category;
 import com.android.tools.lint.detector.api.Issue;
 import com.android.tools.lint.detector.api.Location;
@@ -336,6 +337,11 @@ public class HtmlReporter extends Reporter {
         } else {
             mWriter.write("Congratulations!");
         }
+
+        List<LintProfiler.Profile> profiles = mClient.getProfiles();
+        if (profiles != null) {
+            writeProfiles(profiles);
+        }
         mWriter.write("\n</body>\n</html>");                             //$NON-NLS-1$
         mWriter.close();
 
@@ -521,6 +527,39 @@ public class HtmlReporter extends Reporter {
         }
     }
 
+    private void writeProfiles(List<LintProfiler.Profile> profiles) throws IOException {
+        mWriter.write("\n<a name=\"Profile\"></a>\n");              //$NON-NLS-1$
+        mWriter.write("<div class=\"category\">");                  //$NON-NLS-1$
+        mWriter.write("Profile");
+        mWriter.write("<div class=\"categorySeparator\"></div>\n"); //$NON-NLS-1$
+        mWriter.write("</div>\n");                                  //$NON-NLS-1$
+
+        mWriter.write(
+                "The time spent, the number of calls and the memory allocated by each " +
+                "detector, for each kind of file it checked, the most expensive first. " +
+                "The project rows are the calls made before and after checking each project.");
+        mWriter.write("\n<br/><br/>\n"); //$NON-NLS-1$
+
+        mWriter.write("<table class=\"overview\">\n");               //$NON-NLS-1$
+        mWriter.write("<tr><th>Detector</th><th>Scope</th><th>Time (ms)</th>" +
+                "<th>Calls</th><th>Allocated (KB)</th></tr>\n");
+        for (LintProfiler.Profile profile : profiles) {
+            mWriter.write("<tr><td>");                               //$NON-NLS-1$
+            mWriter.write(profile.getDetectorClass().getSimpleName());
+            mWriter.write("</td><td>");                              //$NON-NLS-1$
+            mWriter.write(profile.getScope() != null ? profile.getScope().name() : "Project");
+            mWriter.write("</td><td class=\"countColumn\">");        //$NON-NLS-1$
+            mWriter.write(String.format("%1$.1f", profile.getTime() / 1e6)); //$NON-NLS-1$
+            mWriter.write("</td><td class=\"countColumn\">");        //$NON-NLS-1$
+            mWriter.write(Long.toString(profile.getInvocationCount()));
+            mWriter.write("</td><td class=\"countColumn\">");        //$NON-NLS-1$
+            long allocated = profile.getAllocatedBytes();
+            mWriter.write(allocated != -1 ? Long.toString(allocated / 1024) : "?");
+            mWriter.write("</td></tr>\n");                          //$NON-NLS-1$
+        }
+        mWriter.write("</table>\n");                                //$NON-NLS-1$
+    }
+
     protected void writeStyleSheet() throws IOException {
         if (USE_HOLO_STYLE) {
             mWriter.write(
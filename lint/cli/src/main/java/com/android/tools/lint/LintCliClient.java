@@ -32,6 +32,7 @@ import com.android.tools.lint.client.api.JavaParser;
 import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.client.api.LintDriver;
 import com.android.tools.lint.client.api.LintListener;
+import com.android.tools.lint.client.api.LintProfiler;
 import com.android.tools.lint.client.api.LintRequest;
 import com.android.tools.lint.client.api.XmlParser;
 import com.android.tools.lint.detector.api.Context;
@@ -89,6 +90,8 @@ public class LintCliClient extends LintClient {
     protected final LintCliFlags mFlags;
     private Configuration mConfiguration;
     private boolean mValidatedIds;
+    /** Parse results shared by the Java parsers of the current run */
+    private EcjParseCache mEcjParseCache;
 
     /** Creates a CLI driver */
     public LintCliClient() {
@@ -115,6 +118,9 @@ public class LintCliClient extends LintClient {
         mDriver = new LintDriver(registry, this);
 
         mDriver.setAbbreviating(!mFlags.isShowEverything());
+        mDriver.setThreadCount(mFlags.getThreadCount());
+        mDriver.setCachingResults(mFlags.isCachingResults());
+        mDriver.setProfiling(mFlags.isProfiling());
         addProgressPrinter();
         mDriver.addLintListener(new LintListener() {
             @Override
@@ -128,7 +134,13 @@ public class LintCliClient extends LintClient {
             }
         });
 
-        mDriver.analyze(createLintRequest(files));
+        mEcjParseCache = new EcjParseCache();
+        try {
+            mDriver.analyze(createLintRequest(files));
+        } finally {
+            mEcjParseCache.dispose();
+            mEcjParseCache = null;
+        }
 
         Collections.sort(mWarnings);
 
@@ -207,7 +219,7 @@ public class LintCliClient extends LintClient {
 
     @Override
     public JavaParser getJavaParser(@Nullable Project project) {
-        return new EcjParser(this, project);
+        return new EcjParser(this, project, mEcjParseCache);
     }
 
     @Override
@@ -357,6 +369,16 @@ public class LintCliClient extends LintClient {
         return mFlags.getExactCheckedIds() != null;
     }
 
+    /**
+     * Returns the profiles of the checks in the last run, the most expensive first, if
+     * {@link LintCliFlags#isProfiling() profiling} was enabled
+     */
+    @Nullable
+    List<LintProfiler.Profile> getProfiles() {
+        LintProfiler profiler = mDriver != null ? mDriver.getProfiler() : null;
+        return profiler != null ? profiler.getProfiles() : null;
+    }
+
     private Map<Project, ClassPathInfo> mProjectInfo;
 
     @Override
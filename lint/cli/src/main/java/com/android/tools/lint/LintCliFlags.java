@@ -60,6 +60,9 @@ public class LintCliFlags {
 
     private File mDefaultConfiguration;
     private boolean mShowAll;
+    private int mThreadCount = 1;
+    private boolean mCachingResults;
+    private boolean mProfiling;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -226,6 +229,54 @@ public class LintCliFlags {
         mShowAll = showAll;
     }
 
+    /**
+     * Returns the number of threads lint may use to check files, see
+     * {@link com.android.tools.lint.client.api.LintDriver#setThreadCount(int)}
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Sets the number of threads lint may use to check files, see
+     * {@link com.android.tools.lint.client.api.LintDriver#setThreadCount(int)}
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Returns whether lint should cache the results of file-local checks between runs, see
+     * {@link com.android.tools.lint.client.api.LintDriver#setCachingResults(boolean)}
+     */
+    public boolean isCachingResults() {
+        return mCachingResults;
+    }
+
+    /**
+     * Sets whether lint should cache the results of file-local checks between runs, see
+     * {@link com.android.tools.lint.client.api.LintDriver#setCachingResults(boolean)}
+     */
+    public void setCachingResults(boolean cachingResults) {
+        mCachingResults = cachingResults;
+    }
+
+    /**
+     * Returns whether lint should profile the checks and include the profiles in the reports,
+     * see {@link com.android.tools.lint.client.api.LintDriver#setProfiling(boolean)}
+     */
+    public boolean isProfiling() {
+        return mProfiling;
+    }
+
+    /**
+     * Sets whether lint should profile the checks and include the profiles in the reports,
+     * see {@link com.android.tools.lint.client.api.LintDriver#setProfiling(boolean)}
+     */
+    public void setProfiling(boolean profiling) {
+        mProfiling = profiling;
+    }
+
     /**
      * Returns the default configuration file to use as a fallback
      */
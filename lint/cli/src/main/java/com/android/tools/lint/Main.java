@@ -95,6 +95,9 @@ public class Main {
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
     private static final String ARG_LIBRARIES  = "--libraries";    //$NON-NLS-1$
+    private static final String ARG_THREADS    = "--threads";      //$NON-NLS-1$
+    private static final String ARG_CACHE      = "--cache-results"; //$NON-NLS-1$
+    private static final String ARG_PROFILE    = "--profile";      //$NON-NLS-1$
 
     private static final String ARG_NO_WARN_2  = "--nowarn";       //$NON-NLS-1$
     // GCC style flag names for options
@@ -309,6 +312,27 @@ public class Main {
             } else if (arg.equals(ARG_VERSION)) {
                 printVersion(client);
                 System.exit(ERRNO_SUCCESS);
+            } else if (arg.equals(ARG_CACHE)) {
+                mFlags.setCachingResults(true);
+            } else if (arg.equals(ARG_PROFILE)) {
+                mFlags.setProfiling(true);
+            } else if (arg.equals(ARG_THREADS)) {
+                if (index == args.length - 1) {
+                    System.err.println("Missing thread count");
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                String count = args[++index];
+                int threadCount = 0;
+                try {
+                    threadCount = Integer.parseInt(count);
+                } catch (NumberFormatException ignore) {
+                    // reported below
+                }
+                if (threadCount < 1) {
+                    System.err.println("Invalid thread count " + count);
+                    System.exit(ERRNO_INVALID_ARGS);
+                }
+                mFlags.setThreadCount(threadCount);
             } else if (arg.equals(ARG_URL)) {
                 if (index == args.length - 1) {
                     System.err.println("Missing URL mapping string");
@@ -986,6 +1010,12 @@ public class Main {
             ARG_LIST_IDS, "List the available issue id's and exit.",
             ARG_VERSION, "Output version information and exit.",
             ARG_EXIT_CODE, "Set the exit code to " + ERRNO_ERRORS + " if errors are found.",
+            ARG_THREADS + " <count>", "Check resource and class files with up to the given " +
+                "number of threads, for the checks which support it. The default is 1.",
+            ARG_CACHE, "Cache the issues found in each file by the checks which only " +
+                "look at that file, and reuse them in later runs while the file is unchanged.",
+            ARG_PROFILE, "Measure the time spent, the number of calls and the memory " +
+                "allocated by each check, and include them in the HTML and XML reports.",
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
 
@@ -19,6 +19,7 @@ package com.android.tools.lint;
 import static com.android.tools.lint.detector.api.TextFormat.RAW;
 
 import com.android.tools.lint.checks.BuiltinIssueRegistry;
+import com.android.tools.lint.client.api.LintProfiler;
 import com.android.tools.lint.detector.api.Issue;
 import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Position;
@@ -162,6 +163,11 @@ public class XmlReporter extends Reporter {
             }
         }
 
+        List<LintProfiler.Profile> profiles = mClient.getProfiles();
+        if (profiles != null) {
+            writeProfiles(profiles);
+        }
+
         mWriter.write("\n</issues>\n");       //$NON-NLS-1$
         mWriter.close();
 
@@ -172,6 +178,32 @@ public class XmlReporter extends Reporter {
         }
     }
 
+    private void writeProfiles(List<LintProfiler.Profile> profiles) throws IOException {
+        mWriter.write('\n');
+        indent(mWriter, 1);
+        mWriter.write("<profile>\n");                                     //$NON-NLS-1$
+        for (LintProfiler.Profile profile : profiles) {
+            indent(mWriter, 2);
+            mWriter.write("<detector");                                    //$NON-NLS-1$
+            writeAttribute(mWriter, 3, "class",                           //$NON-NLS-1$
+                    profile.getDetectorClass().getName());
+            if (profile.getScope() != null) {
+                writeAttribute(mWriter, 3, "scope", profile.getScope().name()); //$NON-NLS-1$
+            }
+            writeAttribute(mWriter, 3, "calls",                           //$NON-NLS-1$
+                    Long.toString(profile.getInvocationCount()));
+            writeAttribute(mWriter, 3, "nanos",                           //$NON-NLS-1$
+                    Long.toString(profile.getTime()));
+            if (profile.getAllocatedBytes() != -1) {
+                writeAttribute(mWriter, 3, "allocatedBytes",              //$NON-NLS-1$
+                        Long.toString(profile.getAllocatedBytes()));
+            }
+            mWriter.write("/>\n");                                        //$NON-NLS-1$
+        }
+        indent(mWriter, 1);
+        mWriter.write("</profile>\n");                                    //$NON-NLS-1$
+    }
+
     private static void writeAttribute(Writer writer, int indent, String name, String value)
             throws IOException {
         writer.write('\n');
@@ -17,9 +17,11 @@
 package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.detector.api.ClassContext;
 import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.ClassScanner;
+import com.android.tools.lint.detector.api.Scope;
 import com.google.common.annotations.Beta;
 import org.objectweb.asm.tree.*;
 
@@ -62,13 +64,16 @@ class AsmVisitor {
 
     private final List<? extends Detector> mAllDetectors;
     private List<ClassScanner>[] mNodeTypeDetectors;
+    @Nullable private final LintProfiler mProfiler;
 
     // Really want this:
     //<T extends List<Detector> & Detector.ClassScanner> ClassVisitor(T xmlDetectors) {
     // but it makes client code tricky and ugly.
     @SuppressWarnings("unchecked")
-    AsmVisitor(@NonNull LintClient client, @NonNull List<? extends Detector> classDetectors) {
+    AsmVisitor(@NonNull LintClient client, @NonNull List<? extends Detector> classDetectors,
+            @Nullable LintProfiler profiler) {
         mAllDetectors = classDetectors;
+        mProfiler = profiler;
 
         // TODO: Check appliesTo() for files, and find a quick way to enable/disable
         // rules when running through a full project!
@@ -136,14 +141,17 @@ class AsmVisitor {
         ClassNode classNode = context.getClassNode();
 
         for (Detector detector : mAllDetectors) {
+            enter(detector);
             detector.beforeCheckFile(context);
         }
 
         for (Detector detector : mFullClassChecks) {
             Detector.ClassScanner scanner = (Detector.ClassScanner) detector;
+            enter(detector);
             scanner.checkClass(context, classNode);
             detector.afterCheckFile(context);
         }
+        exit();
 
         if (!mMethodNameToChecks.isEmpty() || !mMethodOwnerToChecks.isEmpty() ||
                 mNodeTypeDetectors != null && mNodeTypeDetectors.length > 0) {
@@ -161,6 +169,7 @@ class AsmVisitor {
                         List<ClassScanner> scanners = mMethodOwnerToChecks.get(owner);
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                enter(scanner);
                                 scanner.checkCall(context, classNode, method, call);
                             }
                         }
@@ -169,6 +178,7 @@ class AsmVisitor {
                         scanners = mMethodNameToChecks.get(name);
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                enter(scanner);
                                 scanner.checkCall(context, classNode, method, call);
                             }
                         }
@@ -178,16 +188,34 @@ class AsmVisitor {
                         List<ClassScanner> scanners = mNodeTypeDetectors[type];
                         if (scanners != null) {
                             for (ClassScanner scanner : scanners) {
+                                enter(scanner);
                                 scanner.checkInstruction(context, classNode, method, instruction);
                             }
                         }
                     }
+                    exit();
                 }
             }
         }
 
         for (Detector detector : mAllDetectors) {
+            enter(detector);
             detector.afterCheckFile(context);
         }
+        exit();
+    }
+
+    /** Charges the work done from now on to the given detector, when profiling */
+    private void enter(@NonNull Object detector) {
+        if (mProfiler != null) {
+            mProfiler.enter((Detector) detector, Scope.CLASS_FILE);
+        }
+    }
+
+    /** Stops charging the work done to the detector last entered, when profiling */
+    private void exit() {
+        if (mProfiler != null) {
+            mProfiler.exit();
+        }
     }
 }
@@ -27,6 +27,7 @@ import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.JavaPsiScanner;
 import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.JavaContext;
+import com.android.tools.lint.detector.api.Scope;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.intellij.openapi.progress.ProcessCanceledException;
@@ -166,6 +167,7 @@ public class JavaPsiVisitor {
     private final JavaParser mParser;
     private final Map<String, List<VisitingDetector>> mSuperClassDetectors =
             new HashMap<String, List<VisitingDetector>>();
+    @Nullable private final LintProfiler mProfiler;
 
     /**
      * Number of fatal exceptions (internal errors, usually from ECJ) we've
@@ -176,14 +178,16 @@ public class JavaPsiVisitor {
     /** Max number of logs to include */
     private static final int MAX_REPORTED_CRASHES = 20;
 
-    JavaPsiVisitor(@NonNull JavaParser parser, @NonNull List<Detector> detectors) {
+    JavaPsiVisitor(@NonNull JavaParser parser, @NonNull List<Detector> detectors,
+            @Nullable LintProfiler profiler) {
         mParser = parser;
+        mProfiler = profiler;
         mAllDetectors = new ArrayList<VisitingDetector>(detectors.size());
         mFullTreeDetectors = new ArrayList<VisitingDetector>(detectors.size());
 
         for (Detector detector : detectors) {
             JavaPsiScanner javaPsiScanner = (JavaPsiScanner) detector;
-            VisitingDetector v = new VisitingDetector(detector, javaPsiScanner);
+            VisitingDetector v = new VisitingDetector(detector, javaPsiScanner, profiler);
             mAllDetectors.add(v);
 
             List<String> applicableSuperClasses = detector.applicableSuperClasses();
@@ -289,8 +293,10 @@ public class JavaPsiVisitor {
                     public void run() {
                         for (VisitingDetector v : mAllDetectors) {
                             v.setContext(context);
+                            v.enter();
                             v.getDetector().beforeCheckFile(context);
                         }
+                        exit();
                     }
                 });
 
@@ -310,6 +316,7 @@ public class JavaPsiVisitor {
                         public void run() {
                             JavaElementVisitor visitor = v.getVisitor();
                             javaFile.accept(visitor);
+                            exit();
                         }
                     });
                 }
@@ -345,8 +352,10 @@ public class JavaPsiVisitor {
                     @Override
                     public void run() {
                         for (VisitingDetector v : mAllDetectors) {
+                            v.enter();
                             v.getDetector().afterCheckFile(context);
                         }
+                        exit();
                     }
                 });
             } finally {
@@ -429,6 +438,13 @@ public class JavaPsiVisitor {
         mParser.dispose();
     }
 
+    /** Stops charging the work done to the detector last entered, when profiling */
+    private void exit() {
+        if (mProfiler != null) {
+            mProfiler.exit();
+        }
+    }
+
     @Nullable
     private static Set<String> getInterfaceNames(
             @Nullable Set<String> addTo,
@@ -456,10 +472,20 @@ public class JavaPsiVisitor {
         private JavaContext mContext;
         public final Detector mDetector;
         public final JavaPsiScanner mJavaScanner;
+        @Nullable private final LintProfiler mProfiler;
 
-        public VisitingDetector(@NonNull Detector detector, @NonNull JavaPsiScanner javaScanner) {
+        public VisitingDetector(@NonNull Detector detector, @NonNull JavaPsiScanner javaScanner,
+                @Nullable LintProfiler profiler) {
             mDetector = detector;
             mJavaScanner = javaScanner;
+            mProfiler = profiler;
+        }
+
+        /** Charges the work done from now on to this detector, when profiling */
+        public void enter() {
+            if (mProfiler != null) {
+                mProfiler.enter(mDetector, Scope.JAVA_FILE);
+            }
         }
 
         @NonNull
@@ -480,8 +506,13 @@ public class JavaPsiVisitor {
             mVisitor = null;
         }
 
+        /**
+         * Returns the visitor of the detector, which is about to be called: when profiling,
+         * the work done from now on is charged to the detector
+         */
         @NonNull
         JavaElementVisitor getVisitor() {
+            enter();
             if (mVisitor == null) {
                 mVisitor = mDetector.createPsiVisitor(mContext);
                 assert !(mVisitor instanceof JavaRecursiveElementVisitor) :
@@ -532,9 +563,11 @@ public class JavaPsiVisitor {
                     for (VisitingDetector v : list) {
                         JavaPsiScanner javaPsiScanner = v.getJavaScanner();
                         if (javaPsiScanner != null) {
+                            v.enter();
                             javaPsiScanner.checkClass(mContext, node);
                         }
                     }
+                    exit();
                 }
 
                 // Check interfaces too
@@ -546,9 +579,11 @@ public class JavaPsiVisitor {
                             for (VisitingDetector v : list) {
                                 JavaPsiScanner javaPsiScanner = v.getJavaScanner();
                                 if (javaPsiScanner != null) {
+                                    v.enter();
                                     javaPsiScanner.checkClass(mContext, node);
                                 }
                             }
+                            exit();
                         }
                     }
                 }
@@ -567,6 +602,14 @@ public class JavaPsiVisitor {
 
     private class DispatchPsiVisitor extends JavaRecursiveElementVisitor {
 
+        @Override
+        public void visitElement(PsiElement element) {
+            // All the visit methods end up here before visiting the children: charge the
+            // traversal to lint rather than to the detector last called
+            exit();
+            super.visitElement(element);
+        }
+
         @Override
         public void visitAnonymousClass(PsiAnonymousClass node) {
             List<VisitingDetector> list = mNodePsiTypeDetectors.get(PsiAnonymousClass.class);
@@ -1581,6 +1624,7 @@ public class JavaPsiVisitor {
                                             element, referenced);
                                 }
                             }
+                            exit();
                         }
                     }
                 }
@@ -1616,6 +1660,7 @@ public class JavaPsiVisitor {
                                                 node, type, name, isFramework);
                                     }
                                 }
+                                exit();
                             }
 
                             return;
@@ -1650,6 +1695,7 @@ public class JavaPsiVisitor {
                                                     node, type, name, isFramework);
                                         }
                                     }
+                                    exit();
                                 }
 
                                 return;
@@ -1680,6 +1726,7 @@ public class JavaPsiVisitor {
                                             method);
                                 }
                             }
+                            exit();
                         }
                     }
                 }
@@ -1706,6 +1753,7 @@ public class JavaPsiVisitor {
                                                 v.getVisitor(), node, method);
                                     }
                                 }
+                                exit();
                             }
                         }
                     }
@@ -29,6 +29,7 @@ import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.JavaScanner;
 import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.JavaContext;
+import com.android.tools.lint.detector.api.Scope;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -152,6 +153,7 @@ public class JavaVisitor {
     private final JavaParser mParser;
     private final Map<String, List<VisitingDetector>> mSuperClassDetectors =
             new HashMap<String, List<VisitingDetector>>();
+    @Nullable private final LintProfiler mProfiler;
 
     /**
      * Number of fatal exceptions (internal errors, usually from ECJ) we've
@@ -162,13 +164,16 @@ public class JavaVisitor {
     /** Max number of logs to include */
     private static final int MAX_REPORTED_CRASHES = 20;
 
-    JavaVisitor(@NonNull JavaParser parser, @NonNull List<Detector> detectors) {
+    JavaVisitor(@NonNull JavaParser parser, @NonNull List<Detector> detectors,
+            @Nullable LintProfiler profiler) {
         mParser = parser;
+        mProfiler = profiler;
         mAllDetectors = new ArrayList<VisitingDetector>(detectors.size());
         mFullTreeDetectors = new ArrayList<VisitingDetector>(detectors.size());
 
         for (Detector detector : detectors) {
-            VisitingDetector v = new VisitingDetector(detector, (JavaScanner) detector);
+            VisitingDetector v = new VisitingDetector(detector, (JavaScanner) detector,
+                    profiler);
             mAllDetectors.add(v);
 
             List<String> applicableSuperClasses = detector.applicableSuperClasses();
@@ -255,8 +260,10 @@ public class JavaVisitor {
 
             for (VisitingDetector v : mAllDetectors) {
                 v.setContext(context);
+                v.enter();
                 v.getDetector().beforeCheckFile(context);
             }
+            exit();
 
             if (!mSuperClassDetectors.isEmpty()) {
                 SuperclassVisitor visitor = new SuperclassVisitor(context);
@@ -267,6 +274,7 @@ public class JavaVisitor {
                 AstVisitor visitor = v.getVisitor();
                 compilationUnit.accept(visitor);
             }
+            exit();
 
             if (!mMethodDetectors.isEmpty() || !mResourceFieldDetectors.isEmpty() ||
                     !mConstructorDetectors.isEmpty()) {
@@ -278,8 +286,10 @@ public class JavaVisitor {
             }
 
             for (VisitingDetector v : mAllDetectors) {
+                v.enter();
                 v.getDetector().afterCheckFile(context);
             }
+            exit();
         } catch (RuntimeException e) {
             if (sExceptionCount++ > MAX_REPORTED_CRASHES) {
                 // No need to keep spamming the user that a lot of the files
@@ -385,15 +395,33 @@ public class JavaVisitor {
         return addTo;
     }
 
+    /** Stops charging the work done to the detector last entered, when profiling */
+    private void exit() {
+        if (mProfiler != null) {
+            mProfiler.exit();
+        }
+    }
+
     private static class VisitingDetector {
         private AstVisitor mVisitor; // construct lazily, and clear out on context switch!
         private JavaContext mContext;
         public final Detector mDetector;
         public final JavaScanner mJavaScanner;
 
-        public VisitingDetector(@NonNull Detector detector, @NonNull JavaScanner javaScanner) {
+        @Nullable private final LintProfiler mProfiler;
+
+        public VisitingDetector(@NonNull Detector detector, @NonNull JavaScanner javaScanner,
+                @Nullable LintProfiler profiler) {
             mDetector = detector;
             mJavaScanner = javaScanner;
+            mProfiler = profiler;
+        }
+
+        /** Charges the work done from now on to this detector, when profiling */
+        public void enter() {
+            if (mProfiler != null) {
+                mProfiler.enter(mDetector, Scope.JAVA_FILE);
+            }
         }
 
         @NonNull
@@ -414,8 +442,13 @@ public class JavaVisitor {
             mVisitor = null;
         }
 
+        /**
+         * Returns the visitor of the detector, which is about to be called: when profiling,
+         * the work done from now on is charged to the detector
+         */
         @NonNull
         AstVisitor getVisitor() {
+            enter();
             if (mVisitor == null) {
                 mVisitor = mDetector.createJavaVisitor(mContext);
                 if (mVisitor == null) {
@@ -448,8 +481,10 @@ public class JavaVisitor {
                 List<VisitingDetector> list = mSuperClassDetectors.get(cls.getName());
                 if (list != null) {
                     for (VisitingDetector v : list) {
+                        v.enter();
                         v.getJavaScanner().checkClass(mContext, node, node, resolvedClass);
                     }
+                    exit();
                 }
 
                 // Check interfaces too
@@ -459,9 +494,11 @@ public class JavaVisitor {
                         list = mSuperClassDetectors.get(name);
                         if (list != null) {
                             for (VisitingDetector v : list) {
+                                v.enter();
                                 v.getJavaScanner().checkClass(mContext, node, node,
                                         resolvedClass);
                             }
+                            exit();
                         }
                     }
                 }
@@ -494,9 +531,11 @@ public class JavaVisitor {
                     List<VisitingDetector> list = mSuperClassDetectors.get(cls.getName());
                     if (list != null) {
                         for (VisitingDetector v : list) {
+                            v.enter();
                             v.getJavaScanner().checkClass(mContext, null, anonymous,
                                     resolvedClass);
                         }
+                        exit();
                     }
 
                     // Check interfaces too
@@ -506,9 +545,11 @@ public class JavaVisitor {
                             list = mSuperClassDetectors.get(name);
                             if (list != null) {
                                 for (VisitingDetector v : list) {
+                                    v.enter();
                                     v.getJavaScanner().checkClass(mContext, null, anonymous,
                                             resolvedClass);
                                 }
+                                exit();
                             }
                         }
                     }
@@ -539,6 +580,7 @@ public class JavaVisitor {
             for (VisitingDetector v : mAllDetectors) {
                 v.getVisitor().endVisit(node);
             }
+            exit();
         }
 
         @Override
@@ -1398,6 +1440,7 @@ public class JavaVisitor {
                                 detector.visitResourceReference(mContext, v.getVisitor(),
                                         node, type, name, isFramework);
                             }
+                            exit();
 
                             return super.visitSelect(node);
                         }
@@ -1423,6 +1466,7 @@ public class JavaVisitor {
                                     detector.visitResourceReference(mContext, v.getVisitor(),
                                             node, type, name, isFramework);
                                 }
+                                exit();
                             }
                         }
                     }
@@ -1441,6 +1485,7 @@ public class JavaVisitor {
                     for (VisitingDetector v : list) {
                         v.getJavaScanner().visitMethod(mContext, v.getVisitor(), node);
                     }
+                    exit();
                 }
             }
 
@@ -1466,6 +1511,7 @@ public class JavaVisitor {
                                         v.getJavaScanner().visitConstructor(mContext,
                                                 v.getVisitor(), node, method);
                                     }
+                                    exit();
                                 }
 
                             }
@@ -45,6 +45,10 @@ import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -84,6 +88,17 @@ public class LintDriver {
     private Project[] mCurrentProjects;
     private Project mCurrentProject;
     private boolean mAbbreviating = true;
+    private int mThreadCount = 1;
+    /** Runs the checks of thread-safe detectors when more than one thread is used */
+    private ExecutorService mExecutor;
+    /** Checks submitted to {@link #mExecutor} which have not been waited for yet */
+    private List<Future<?>> mPendingChecks;
+    private boolean mCachingResults;
+    /** Results of the file-local detectors, when {@link #mCachingResults} is set */
+    private LintResultCache mResultCache;
+    private boolean mProfiling;
+    /** Profiles of the detectors in the last run, when {@link #mProfiling} is set */
+    private LintProfiler mProfiler;
     private boolean mParserErrors;
     private Map<Object,Object> mProperties;
     /** Whether we need to look for legacy (old Lombok-based Java API) detectors */
@@ -247,6 +262,86 @@ public class LintDriver {
         return mAbbreviating;
     }
 
+    /**
+     * Sets the number of threads lint may use to check files. With more than one
+     * thread, the resource and class files are also checked on a pool of worker
+     * threads by the detectors which declare themselves thread-safe with
+     * {@link Detector#isThreadSafe()}; the other detectors are still run on the
+     * calling thread, in the usual order. The lint client must then be able to
+     * parse files and have issues reported from several threads.
+     *
+     * @param threadCount the number of threads, 1 to check all files serially
+     */
+    public void setThreadCount(int threadCount) {
+        assert threadCount >= 1 : threadCount;
+        mThreadCount = Math.max(threadCount, 1);
+    }
+
+    /**
+     * Returns the number of threads lint may use to check files.
+     *
+     * @return the number of threads, 1 if all files are checked serially
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Sets whether lint should cache the issues found in each XML resource and Java
+     * source file by the detectors which declare themselves file-local with
+     * {@link Detector#isFileLocal()}. The cache is kept in the
+     * {@link LintClient#getCacheDir(boolean) cache directory} of the client, such that
+     * later runs only call these detectors for the files which changed; the other
+     * detectors still check all files.
+     *
+     * @param cachingResults true to cache the results of file-local detectors
+     */
+    public void setCachingResults(boolean cachingResults) {
+        mCachingResults = cachingResults;
+    }
+
+    /**
+     * Returns whether lint caches the issues found by file-local detectors.
+     *
+     * @return true if the results of file-local detectors are cached
+     */
+    public boolean isCachingResults() {
+        return mCachingResults;
+    }
+
+    /**
+     * Sets whether lint should record the time spent, the number of calls and the
+     * memory allocated by each detector, for each scope it checks. The results of
+     * the last run are available from {@link #getProfiler()}, for example when
+     * {@link LintListener listeners} are notified that lint
+     * {@link LintListener.EventType#COMPLETED completed}.
+     *
+     * @param profiling true to profile the detectors
+     */
+    public void setProfiling(boolean profiling) {
+        mProfiling = profiling;
+    }
+
+    /**
+     * Returns whether lint profiles the detectors.
+     *
+     * @return true if the detectors are profiled
+     */
+    public boolean isProfiling() {
+        return mProfiling;
+    }
+
+    /**
+     * Returns the profiles of the detectors in the current or last run, if
+     * {@link #setProfiling(boolean) profiling} was enabled.
+     *
+     * @return the profiler, or null if the detectors were not profiled
+     */
+    @Nullable
+    public LintProfiler getProfiler() {
+        return mProfiler;
+    }
+
     /**
      * Returns whether lint has encountered any files with fatal parser errors
      * (e.g. broken source code, or even broken parsers)
@@ -321,6 +416,7 @@ public class LintDriver {
     /** Runs the driver to analyze the requested files */
     private void analyze() {
         mCanceled = false;
+        mProfiler = mProfiling ? new LintProfiler() : null;
         mScope = mRequest.getScope();
         assert mScope == null || !mScope.contains(Scope.ALL_RESOURCE_FILES) ||
                 mScope.contains(Scope.RESOURCE_FILE);
@@ -358,25 +454,40 @@ public class LintDriver {
 
         fireEvent(EventType.STARTING, null);
 
-        for (Project project : projects) {
-            mPhase = 1;
+        if (mThreadCount > 1) {
+            mExecutor = Executors.newFixedThreadPool(mThreadCount - 1);
+        }
+        if (mCachingResults) {
+            mResultCache = LintResultCache.open(this);
+        }
+        try {
+            for (Project project : projects) {
+                mPhase = 1;
 
-            Project main = mRequest.getMainProject(project);
+                Project main = mRequest.getMainProject(project);
 
-            // The set of available detectors varies between projects
-            computeDetectors(project);
+                // The set of available detectors varies between projects
+                computeDetectors(project);
 
-            if (mApplicableDetectors.isEmpty()) {
-                // No detectors enabled in this project: skip it
-                continue;
-            }
+                if (mApplicableDetectors.isEmpty()) {
+                    // No detectors enabled in this project: skip it
+                    continue;
+                }
 
-            checkProject(project, main);
-            if (mCanceled) {
-                break;
-            }
+                checkProject(project, main);
+                if (mCanceled) {
+                    break;
+                }
 
-            runExtraPhases(project, main);
+                runExtraPhases(project, main);
+            }
+        } finally {
+            if (mExecutor != null) {
+                waitForConcurrentChecks();
+                mExecutor.shutdown();
+                mExecutor = null;
+            }
+            mResultCache = null;
         }
 
         fireEvent(mCanceled ? EventType.CANCELED : EventType.COMPLETED, null);
@@ -488,6 +599,8 @@ public class LintDriver {
         // Ensure that the current visitor is recomputed
         mCurrentFolderType = null;
         mCurrentVisitor = null;
+        mCurrentConcurrentVisitor = null;
+        mFileLocalResourceDetectors.clear();
         mCurrentXmlDetectors = null;
         mCurrentBinaryDetectors = null;
 
@@ -567,6 +680,8 @@ public class LintDriver {
         // Ensure that the current visitor is recomputed
         mCurrentFolderType = null;
         mCurrentVisitor = null;
+        mCurrentConcurrentVisitor = null;
+        mFileLocalResourceDetectors.clear();
 
         Configuration configuration = project.getConfiguration(this);
         mScopeDetectors = new EnumMap<Scope, List<Detector>>(Scope.class);
@@ -845,11 +960,14 @@ public class LintDriver {
         mCurrentProject = project;
 
         for (Detector check : mApplicableDetectors) {
+            enterDetector(check, null);
             check.beforeCheckProject(projectContext);
             if (mCanceled) {
+                exitDetector();
                 return;
             }
         }
+        exitDetector();
 
         assert mCurrentProject == project;
         runFileDetectors(project, main);
@@ -862,11 +980,14 @@ public class LintDriver {
                 mCurrentProject = library;
 
                 for (Detector check : mApplicableDetectors) {
+                    enterDetector(check, null);
                     check.beforeCheckLibraryProject(libraryContext);
                     if (mCanceled) {
+                        exitDetector();
                         return;
                     }
                 }
+                exitDetector();
                 assert mCurrentProject == library;
 
                 runFileDetectors(library, main);
@@ -877,22 +998,28 @@ public class LintDriver {
                 assert mCurrentProject == library;
 
                 for (Detector check : mApplicableDetectors) {
+                    enterDetector(check, null);
                     check.afterCheckLibraryProject(libraryContext);
                     if (mCanceled) {
+                        exitDetector();
                         return;
                     }
                 }
+                exitDetector();
             }
         }
 
         mCurrentProject = project;
 
         for (Detector check : mApplicableDetectors) {
+            enterDetector(check, null);
             check.afterCheckProject(projectContext);
             if (mCanceled) {
+                exitDetector();
                 return;
             }
         }
+        exitDetector();
 
         if (mCanceled) {
             mClient.report(
@@ -926,7 +1053,7 @@ public class LintDriver {
                                 List<Detector> detectors = mScopeDetectors.get(Scope.MANIFEST);
                                 if (detectors != null) {
                                     ResourceVisitor v = new ResourceVisitor(parser, detectors,
-                                            null);
+                                            null, mProfiler);
                                     fireEvent(EventType.SCANNING_FILE, context);
                                     v.visitFile(context, manifestFile);
                                 }
@@ -979,6 +1106,10 @@ public class LintDriver {
                             }
                         }
                     }
+
+                    // The Java and class file detectors may rely on all the resources
+                    // having been seen
+                    waitForConcurrentChecks();
                 }
             }
 
@@ -1069,11 +1200,13 @@ public class LintDriver {
                 fireEvent(EventType.SCANNING_FILE, context);
                 for (Detector detector : detectors) {
                     if (detector.appliesTo(context, file)) {
+                        enterDetector(detector, Scope.GRADLE_FILE);
                         detector.beforeCheckFile(context);
                         detector.visitBuildScript(context, Maps.<String, Object>newHashMap());
                         detector.afterCheckFile(context);
                     }
                 }
+                exitDetector();
             }
         }
     }
@@ -1087,11 +1220,13 @@ public class LintDriver {
                 fireEvent(EventType.SCANNING_FILE, context);
                 for (Detector detector : detectors) {
                     if (detector.appliesTo(context, file)) {
+                        enterDetector(detector, Scope.PROGUARD_FILE);
                         detector.beforeCheckFile(context);
                         detector.run(context);
                         detector.afterCheckFile(context);
                     }
                 }
+                exitDetector();
             }
         }
     }
@@ -1113,11 +1248,32 @@ public class LintDriver {
             fireEvent(EventType.SCANNING_FILE, context);
             for (Detector detector : detectors) {
                 if (detector.appliesTo(context, file)) {
+                    enterDetector(detector, Scope.PROPERTY_FILE);
                     detector.beforeCheckFile(context);
                     detector.run(context);
                     detector.afterCheckFile(context);
                 }
             }
+            exitDetector();
+        }
+    }
+
+    /**
+     * Charges the work done from now on to the given detector, when profiling
+     *
+     * @param detector the detector about to be called
+     * @param scope the scope being checked, or null for the project callbacks
+     */
+    private void enterDetector(@NonNull Detector detector, @Nullable Scope scope) {
+        if (mProfiler != null) {
+            mProfiler.enter(detector, scope);
+        }
+    }
+
+    /** Stops charging the work done to the detector last entered, when profiling */
+    private void exitDetector() {
+        if (mProfiler != null) {
+            mProfiler.exit();
         }
     }
 
@@ -1267,12 +1423,28 @@ public class LintDriver {
      */
     private Deque<ClassNode> mOuterClasses;
 
+    /**
+     * Copy of {@link #mOuterClasses} for the class checked by the current thread, when
+     * checking classes concurrently
+     */
+    private final ThreadLocal<Deque<ClassNode>> mConcurrentOuterClasses =
+            new ThreadLocal<Deque<ClassNode>>();
+
     private void runClassDetectors(Scope scope, List<ClassEntry> entries,
             Project project, Project main) {
         if (mScope.contains(scope)) {
             List<Detector> classDetectors = mScopeDetectors.get(scope);
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
+                AsmVisitor concurrentVisitor = null;
+                if (mExecutor != null) {
+                    List<Detector> concurrentDetectors = filterThreadSafe(classDetectors, true);
+                    if (!concurrentDetectors.isEmpty()) {
+                        concurrentVisitor = new AsmVisitor(mClient, concurrentDetectors, mProfiler);
+                        classDetectors = filterThreadSafe(classDetectors, false);
+                    }
+                }
+                AsmVisitor visitor = !classDetectors.isEmpty()
+                        ? new AsmVisitor(mClient, classDetectors, mProfiler) : null;
 
                 String sourceContents = null;
                 String sourceName = "";
@@ -1332,37 +1504,75 @@ public class LintDriver {
                         }
                     }
 
-                    ClassContext context = new ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
-                            classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
-                            sourceContents);
+                    if (concurrentVisitor != null) {
+                        ClassContext context = new ClassContext(this, project, main,
+                                entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                                classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                                sourceContents);
+                        checkClassConcurrently(concurrentVisitor, context);
+                    }
+
+                    if (visitor != null) {
+                        ClassContext context = new ClassContext(this, project, main,
+                                entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                                classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                                sourceContents);
 
-                    try {
-                        visitor.runClassDetectors(context);
-                    } catch (Exception e) {
-                        mClient.log(e, null);
+                        try {
+                            visitor.runClassDetectors(context);
+                        } catch (Exception e) {
+                            mClient.log(e, null);
+                        }
+
+                        sourceContents = context.getSourceContents(false/*read*/);
                     }
 
                     if (mCanceled) {
                         return;
                     }
 
-                    sourceContents = context.getSourceContents(false/*read*/);
                     sourceName = classNode.name;
                 }
 
                 mOuterClasses = null;
+                waitForConcurrentChecks();
             }
         }
     }
 
+    /**
+     * Checks a class on {@link #mExecutor}, with the outer classes it has at this point
+     * of {@link #runClassDetectors(Scope, List, Project, Project)}
+     */
+    private void checkClassConcurrently(@NonNull final AsmVisitor visitor,
+            @NonNull final ClassContext context) {
+        final Deque<ClassNode> outerClasses = new ArrayDeque<ClassNode>(mOuterClasses);
+        submitCheck(new Runnable() {
+            @Override
+            public void run() {
+                mConcurrentOuterClasses.set(outerClasses);
+                try {
+                    visitor.runClassDetectors(context);
+                } catch (Exception e) {
+                    mClient.log(e, null);
+                } finally {
+                    mConcurrentOuterClasses.remove();
+                }
+            }
+        });
+    }
+
     /** Returns the outer class node of the given class node
      * @param classNode the inner class node
      * @return the outer class node */
     public ClassNode getOuterClassNode(@NonNull ClassNode classNode) {
         String outerName = classNode.outerClass;
 
-        Iterator<ClassNode> iterator = mOuterClasses.iterator();
+        Deque<ClassNode> outerClasses = mConcurrentOuterClasses.get();
+        if (outerClasses == null) {
+            outerClasses = mOuterClasses;
+        }
+        Iterator<ClassNode> iterator = outerClasses.iterator();
         while (iterator.hasNext()) {
             ClassNode node = iterator.next();
             if (outerName != null) {
@@ -1484,11 +1694,32 @@ public class LintDriver {
             }
         }
 
-        JavaPsiVisitor visitor = new JavaPsiVisitor(javaParser, scanners);
+        JavaPsiVisitor visitor = new JavaPsiVisitor(javaParser, scanners, mProfiler);
+        FileLocalDetectors<JavaPsiVisitor> fileLocal = null;
+        if (mResultCache != null) {
+            List<Detector> fileLocalScanners = Lists.newArrayList();
+            List<Detector> otherScanners = Lists.newArrayList();
+            for (Detector detector : scanners) {
+                // Legacy scanners are also run below, on all files
+                if (detector.isFileLocal() && !(detector instanceof Detector.JavaScanner)) {
+                    fileLocalScanners.add(detector);
+                } else {
+                    otherScanners.add(detector);
+                }
+            }
+            if (!fileLocalScanners.isEmpty()) {
+                // Shares the files parsed by the main visitor
+                JavaPsiVisitor otherVisitor = !otherScanners.isEmpty()
+                        ? new JavaPsiVisitor(javaParser, otherScanners, mProfiler) : null;
+                fileLocal = new FileLocalDetectors<JavaPsiVisitor>(fileLocalScanners,
+                        otherVisitor);
+            }
+        }
+
         visitor.prepare(contexts);
         for (JavaContext context : contexts) {
             fireEvent(EventType.SCANNING_FILE, context);
-            visitor.visitFile(context);
+            visitJavaFile(visitor, context, fileLocal, getFileLocalChecks(fileLocal, context));
             if (mCanceled) {
                 return;
             }
@@ -1532,7 +1763,7 @@ public class LintDriver {
                 */
 
 
-                JavaVisitor oldVisitor = new JavaVisitor(javaParser, filtered);
+                JavaVisitor oldVisitor = new JavaVisitor(javaParser, filtered, mProfiler);
 
                 oldVisitor.prepare(contexts);
                 for (JavaContext context : contexts) {
@@ -1547,6 +1778,40 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Visits a Java source file, reusing the issues cached for the file-local detectors
+     * of the visitor when the file did not change since they were found
+     */
+    private void visitJavaFile(
+            @NonNull JavaPsiVisitor visitor,
+            @NonNull JavaContext context,
+            @Nullable FileLocalDetectors<JavaPsiVisitor> fileLocal,
+            @Nullable LintResultCache.Checks checks) {
+        String key = checks != null ? mResultCache.getKey(context, checks) : null;
+        if (key == null) {
+            visitor.visitFile(context);
+            return;
+        }
+
+        assert fileLocal != null;
+        JavaPsiVisitor otherVisitor = fileLocal.mOtherVisitor;
+        if (mResultCache.replay(context, key, otherVisitor != null)) {
+            if (otherVisitor != null) {
+                otherVisitor.visitFile(context);
+            }
+            return;
+        }
+
+        mResultCache.startRecording(context, checks);
+        boolean completed = false;
+        try {
+            visitor.visitFile(context);
+            completed = true;
+        } finally {
+            mResultCache.stopRecording(context, completed ? key : null);
+        }
+    }
+
     private void checkIndividualJavaFiles(
             @NonNull Project project,
             @Nullable Project main,
@@ -1590,6 +1855,33 @@ public class LintDriver {
     private List<ResourceXmlDetector> mCurrentXmlDetectors;
     private List<Detector> mCurrentBinaryDetectors;
     private ResourceVisitor mCurrentVisitor;
+    /**
+     * Visitor for the thread-safe detectors of the current folder type, run on
+     * {@link #mExecutor} if any; computed by {@link #getVisitor} along with the
+     * visitor for the other detectors
+     */
+    private ResourceVisitor mCurrentConcurrentVisitor;
+    /** The file-local detectors of the resource visitors, when caching results */
+    private final Map<ResourceVisitor, FileLocalDetectors<ResourceVisitor>>
+            mFileLocalResourceDetectors = Maps.newIdentityHashMap();
+
+    /**
+     * The detectors of a visitor whose results are cached, see {@link #setCachingResults},
+     * along with a visitor for its other detectors
+     */
+    private static class FileLocalDetectors<V> {
+        @NonNull private final List<Detector> mDetectors;
+        /** Visitor for the detectors which are not file-local, or null if there are none */
+        @Nullable private final V mOtherVisitor;
+        /** The checks of the detectors for each configuration they were used with */
+        @NonNull private final Map<Configuration, LintResultCache.Checks> mChecks =
+                Maps.newHashMap();
+
+        private FileLocalDetectors(@NonNull List<Detector> detectors, @Nullable V otherVisitor) {
+            mDetectors = detectors;
+            mOtherVisitor = otherVisitor;
+        }
+    }
 
     @Nullable
     private ResourceVisitor getVisitor(
@@ -1626,22 +1918,112 @@ public class LintDriver {
             mCurrentXmlDetectors = applicableXmlChecks;
             mCurrentBinaryDetectors = applicableBinaryChecks;
 
-            if (applicableXmlChecks.isEmpty()
-                    && (applicableBinaryChecks == null || applicableBinaryChecks.isEmpty())) {
-                mCurrentVisitor = null;
-                return null;
+            mCurrentConcurrentVisitor = null;
+            if (mExecutor != null) {
+                // When both visitors have XML detectors, the concurrent visitor parses
+                // each file and hands the document over to the other one, see
+                // checkResourceFile
+                List<ResourceXmlDetector> concurrentXmlChecks =
+                        filterThreadSafe(applicableXmlChecks, true);
+                List<Detector> concurrentBinaryChecks = applicableBinaryChecks != null
+                        ? filterThreadSafe(applicableBinaryChecks, true) : null;
+                mCurrentConcurrentVisitor = createResourceVisitor(concurrentXmlChecks,
+                        concurrentBinaryChecks);
+                applicableXmlChecks = filterThreadSafe(applicableXmlChecks, false);
+                if (applicableBinaryChecks != null) {
+                    applicableBinaryChecks = filterThreadSafe(applicableBinaryChecks, false);
+                }
             }
+            mCurrentVisitor = createResourceVisitor(applicableXmlChecks, applicableBinaryChecks);
+            addFileLocalDetectors(mCurrentVisitor);
+            addFileLocalDetectors(mCurrentConcurrentVisitor);
+        }
+
+        return mCurrentVisitor;
+    }
+
+    /**
+     * Records the file-local detectors of the given visitor in
+     * {@link #mFileLocalResourceDetectors}, if caching results
+     */
+    private void addFileLocalDetectors(@Nullable ResourceVisitor visitor) {
+        if (visitor == null || mResultCache == null
+                || mFileLocalResourceDetectors.containsKey(visitor)) {
+            return;
+        }
 
-            XmlParser parser = mClient.getXmlParser();
-            if (parser != null) {
-                mCurrentVisitor = new ResourceVisitor(parser, applicableXmlChecks,
-                        applicableBinaryChecks);
+        List<Detector> fileLocal = Lists.newArrayList();
+        List<Detector> others = Lists.newArrayList();
+        for (Detector detector : visitor.getXmlDetectors()) {
+            if (detector.isFileLocal()) {
+                fileLocal.add(detector);
             } else {
-                mCurrentVisitor = null;
+                others.add(detector);
             }
         }
+        if (!fileLocal.isEmpty()) {
+            ResourceVisitor otherVisitor = !others.isEmpty()
+                    ? new ResourceVisitor(visitor.getParser(), others, null, mProfiler) : null;
+            mFileLocalResourceDetectors.put(visitor,
+                    new FileLocalDetectors<ResourceVisitor>(fileLocal, otherVisitor));
+        }
+    }
 
-        return mCurrentVisitor;
+    /**
+     * Returns the checks of the given file-local detectors for the configuration of the
+     * given context, or null if their results are not cached
+     */
+    @Nullable
+    private LintResultCache.Checks getFileLocalChecks(
+            @Nullable FileLocalDetectors<?> fileLocal,
+            @NonNull Context context) {
+        if (fileLocal == null || mResultCache == null || mPhase > 1) {
+            // Only the first phase is cached: later ones only run some detectors again
+            return null;
+        }
+
+        Configuration configuration = context.getConfiguration();
+        LintResultCache.Checks checks = fileLocal.mChecks.get(configuration);
+        if (checks == null) {
+            checks = mResultCache.getChecks(fileLocal.mDetectors, configuration);
+            fileLocal.mChecks.put(configuration, checks);
+        }
+        return checks;
+    }
+
+    @Nullable
+    private ResourceVisitor createResourceVisitor(
+            @NonNull List<ResourceXmlDetector> xmlChecks,
+            @Nullable List<Detector> binaryChecks) {
+        if (xmlChecks.isEmpty() && (binaryChecks == null || binaryChecks.isEmpty())) {
+            return null;
+        }
+
+        XmlParser parser = mClient.getXmlParser();
+        if (parser != null) {
+            return new ResourceVisitor(parser, xmlChecks, binaryChecks, mProfiler);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the detectors of the given list which are, or are not, thread-safe
+     *
+     * @param detectors the detectors to filter
+     * @param threadSafe whether to return the thread-safe detectors or the others
+     * @return the matching detectors, in their original order
+     */
+    @NonNull
+    private static <T extends Detector> List<T> filterThreadSafe(
+            @NonNull List<T> detectors, boolean threadSafe) {
+        List<T> filtered = new ArrayList<T>(detectors.size());
+        for (T detector : detectors) {
+            if (detector.isThreadSafe() == threadSafe) {
+                filtered.add(detector);
+            }
+        }
+        return filtered;
     }
 
     private void checkResFolder(
@@ -1691,11 +2073,13 @@ public class LintDriver {
             fireEvent(EventType.SCANNING_FILE, context);
             for (Detector check : dirChecks) {
                 if (check.appliesTo(type)) {
+                    enterDetector(check, Scope.RESOURCE_FOLDER);
                     check.beforeCheckFile(context);
                     check.checkFolder(context, folderName);
                     check.afterCheckFile(context);
                 }
             }
+            exitDetector();
             if (binaryChecks == null && xmlChecks.isEmpty()) {
                 return;
             }
@@ -1707,26 +2091,262 @@ public class LintDriver {
         }
 
         ResourceVisitor visitor = getVisitor(type, xmlChecks, binaryChecks);
-        if (visitor != null) { // if not, there are no applicable rules in this folder
+        ResourceVisitor concurrentVisitor = mCurrentConcurrentVisitor;
+        // if neither, there are no applicable rules in this folder
+        if (visitor != null || concurrentVisitor != null) {
             // Process files in alphabetical order, to ensure stable output
             // (for example for the duplicate resource detector)
             Arrays.sort(files);
             for (File file : files) {
                 if (LintUtils.isXmlFile(file)) {
-                    XmlContext context = new XmlContext(this, project, main, file, type,
-                            visitor.getParser());
-                    fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitFile(context, file);
+                    checkResourceFile(project, main, file, type, visitor, concurrentVisitor);
                 } else if (binaryChecks != null && (LintUtils.isBitmapFile(file) ||
                             type == ResourceFolderType.RAW)) {
-                    ResourceContext context = new ResourceContext(this, project, main, file, type);
-                    fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitBinaryResource(context);
+                    checkBinaryResource(project, main, file, type, visitor, concurrentVisitor);
                 }
                 if (mCanceled) {
-                    return;
+                    break;
                 }
             }
+            runDeferredXmlChecks(0);
+        }
+    }
+
+    /**
+     * Checks an XML resource file with the XML detectors of the given visitors. The file is
+     * only parsed once: the concurrent visitor parses and checks it on {@link #mExecutor},
+     * then the other visitor checks the same document on this thread once the file is
+     * taken off {@link #mDeferredXmlChecks}, in the order the files were submitted.
+     */
+    private void checkResourceFile(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull File file,
+            @NonNull ResourceFolderType type,
+            @Nullable ResourceVisitor visitor,
+            @Nullable final ResourceVisitor concurrentVisitor) {
+        boolean serial = visitor != null && !visitor.getXmlDetectors().isEmpty();
+        if (concurrentVisitor != null && !concurrentVisitor.getXmlDetectors().isEmpty()) {
+            final XmlContext context = new XmlContext(this, project, main, file, type,
+                    concurrentVisitor.getParser());
+            fireEvent(EventType.SCANNING_FILE, context);
+            final FileLocalDetectors<ResourceVisitor> fileLocal =
+                    mFileLocalResourceDetectors.get(concurrentVisitor);
+            final LintResultCache.Checks checks = getFileLocalChecks(fileLocal, context);
+            if (!serial) {
+                submitCheck(new Runnable() {
+                    @Override
+                    public void run() {
+                        visitResourceFile(concurrentVisitor, context, fileLocal, checks, false);
+                    }
+                });
+                return;
+            }
+
+            assert mExecutor != null;
+            Future<?> check = mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (concurrentVisitor.parse(context)) {
+                        visitResourceFile(concurrentVisitor, context, fileLocal, checks, true);
+                    }
+                }
+            });
+            mDeferredXmlChecks.add(new DeferredXmlCheck(visitor, context, check));
+            // Bound the number of documents kept in memory for the other visitor
+            runDeferredXmlChecks(2 * mThreadCount);
+        } else if (serial) {
+            XmlContext context = new XmlContext(this, project, main, file, type,
+                    visitor.getParser());
+            fireEvent(EventType.SCANNING_FILE, context);
+            FileLocalDetectors<ResourceVisitor> fileLocal =
+                    mFileLocalResourceDetectors.get(visitor);
+            visitResourceFile(visitor, context, fileLocal, getFileLocalChecks(fileLocal, context),
+                    false);
+        }
+    }
+
+    /**
+     * An XML resource file checked by a concurrent visitor, to be checked by the other
+     * visitor on this thread once done
+     */
+    private static class DeferredXmlCheck {
+        @NonNull private final ResourceVisitor mVisitor;
+        @NonNull private final XmlContext mContext;
+        /** The check of the concurrent visitor, which leaves the parsed document in the context */
+        @NonNull private final Future<?> mConcurrentCheck;
+
+        private DeferredXmlCheck(
+                @NonNull ResourceVisitor visitor,
+                @NonNull XmlContext context,
+                @NonNull Future<?> concurrentCheck) {
+            mVisitor = visitor;
+            mContext = context;
+            mConcurrentCheck = concurrentCheck;
+        }
+    }
+
+    /** XML resource files waiting for their concurrent check to be done, in submission order */
+    private final Deque<DeferredXmlCheck> mDeferredXmlChecks = new ArrayDeque<DeferredXmlCheck>();
+
+    /**
+     * Runs the deferred XML checks in order, waiting for their concurrent checks as needed,
+     * until no more than the given number of checks are left, and the first one left has
+     * not been done concurrently yet
+     */
+    private void runDeferredXmlChecks(int maxPending) {
+        while (!mDeferredXmlChecks.isEmpty()
+                && (mDeferredXmlChecks.size() > maxPending
+                        || mDeferredXmlChecks.peekFirst().mConcurrentCheck.isDone())) {
+            runDeferredXmlCheck(mDeferredXmlChecks.removeFirst());
+        }
+    }
+
+    private void runDeferredXmlCheck(@NonNull DeferredXmlCheck deferred) {
+        Future<?> check = deferred.mConcurrentCheck;
+        if (mCanceled) {
+            // A check which already started keeps its document until it is garbage collected
+            if (!check.cancel(false) && check.isDone()) {
+                deferred.mVisitor.dispose(deferred.mContext);
+            }
+            return;
+        }
+        try {
+            check.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCanceled = true;
+            return;
+        } catch (ExecutionException e) {
+            mClient.log(e.getCause(), null);
+        }
+
+        XmlContext context = deferred.mContext;
+        if (context.document == null) {
+            // The file could not be parsed, which the parser already reported
+            return;
+        }
+        ResourceVisitor visitor = deferred.mVisitor;
+        try {
+            FileLocalDetectors<ResourceVisitor> fileLocal =
+                    mFileLocalResourceDetectors.get(visitor);
+            visitResourceFile(visitor, context, fileLocal, getFileLocalChecks(fileLocal, context),
+                    false);
+        } finally {
+            // The document is not visited when all the results are replayed from the cache
+            visitor.dispose(context);
+        }
+    }
+
+    /**
+     * Visits an XML resource file, reusing the issues cached for the file-local detectors
+     * of the visitor when the file did not change since they were found
+     *
+     * @param keepDocument whether to keep the document in the context for another visitor
+     */
+    private void visitResourceFile(
+            @NonNull ResourceVisitor visitor,
+            @NonNull XmlContext context,
+            @Nullable FileLocalDetectors<ResourceVisitor> fileLocal,
+            @Nullable LintResultCache.Checks checks,
+            boolean keepDocument) {
+        String key = checks != null ? mResultCache.getKey(context, checks) : null;
+        if (key == null) {
+            visitor.visitFile(context, context.file, keepDocument);
+            return;
+        }
+
+        assert fileLocal != null;
+        ResourceVisitor otherVisitor = fileLocal.mOtherVisitor;
+        // Parser errors found when the file was parsed for another visitor are reported already
+        boolean parsed = otherVisitor != null || context.document != null;
+        if (mResultCache.replay(context, key, parsed)) {
+            if (otherVisitor != null) {
+                otherVisitor.visitFile(context, context.file, keepDocument);
+            }
+            return;
+        }
+
+        mResultCache.startRecording(context, checks);
+        boolean completed = false;
+        try {
+            visitor.visitFile(context, context.file, keepDocument);
+            completed = true;
+        } finally {
+            mResultCache.stopRecording(context, completed ? key : null);
+        }
+    }
+
+    /**
+     * Checks a binary resource file with the given visitors, like
+     * {@link #checkResourceFile} does for XML files
+     */
+    private void checkBinaryResource(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull File file,
+            @NonNull ResourceFolderType type,
+            @Nullable ResourceVisitor visitor,
+            @Nullable final ResourceVisitor concurrentVisitor) {
+        if (concurrentVisitor != null) {
+            final ResourceContext context = new ResourceContext(this, project, main, file, type);
+            if (visitor == null) {
+                fireEvent(EventType.SCANNING_FILE, context);
+            }
+            submitCheck(new Runnable() {
+                @Override
+                public void run() {
+                    concurrentVisitor.visitBinaryResource(context);
+                }
+            });
+        }
+        if (visitor != null) {
+            // Keep the files seen by the detectors on this thread in order
+            runDeferredXmlChecks(0);
+            ResourceContext context = new ResourceContext(this, project, main, file, type);
+            fireEvent(EventType.SCANNING_FILE, context);
+            visitor.visitBinaryResource(context);
+        }
+    }
+
+    /**
+     * Runs a check on {@link #mExecutor}. Errors are logged once the check is waited
+     * for by {@link #waitForConcurrentChecks()}.
+     */
+    private void submitCheck(@NonNull Runnable check) {
+        assert mExecutor != null;
+        if (mPendingChecks == null) {
+            mPendingChecks = new ArrayList<Future<?>>();
+        }
+        mPendingChecks.add(mExecutor.submit(check));
+    }
+
+    /**
+     * Waits for the checks submitted by {@link #submitCheck(Runnable)} to be done, and runs
+     * the deferred XML checks, such that detectors see all files checked before any later
+     * callbacks. Checks which have not started yet are dropped if lint was canceled.
+     */
+    private void waitForConcurrentChecks() {
+        runDeferredXmlChecks(0);
+        List<Future<?>> checks = mPendingChecks;
+        if (checks == null) {
+            return;
+        }
+        mPendingChecks = null;
+
+        for (Future<?> check : checks) {
+            if (mCanceled) {
+                check.cancel(false);
+                continue;
+            }
+            try {
+                check.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mCanceled = true;
+            } catch (ExecutionException e) {
+                mClient.log(e.getCause(), null);
+            }
         }
     }
 
@@ -1759,11 +2379,10 @@ public class LintDriver {
                 ResourceFolderType type = ResourceFolderType.getFolderType(folderName);
                 if (type != null) {
                     ResourceVisitor visitor = getVisitor(type, xmlDetectors, binaryChecks);
-                    if (visitor != null) {
-                        XmlContext context = new XmlContext(this, project, main, file, type,
-                                visitor.getParser());
-                        fireEvent(EventType.SCANNING_FILE, context);
-                        visitor.visitFile(context, file);
+                    ResourceVisitor concurrentVisitor = mCurrentConcurrentVisitor;
+                    if (visitor != null || concurrentVisitor != null) {
+                        checkResourceFile(project, main, file, type, visitor,
+                                concurrentVisitor);
                     }
                 }
             } else if (binaryChecks != null && file.isFile() && LintUtils.isBitmapFile(file)) {
@@ -1772,18 +2391,18 @@ public class LintDriver {
                 ResourceFolderType type = ResourceFolderType.getFolderType(folderName);
                 if (type != null) {
                     ResourceVisitor visitor = getVisitor(type, xmlDetectors, binaryChecks);
-                    if (visitor != null) {
-                        ResourceContext context = new ResourceContext(this, project, main, file,
-                                type);
-                        fireEvent(EventType.SCANNING_FILE, context);
-                        visitor.visitBinaryResource(context);
+                    ResourceVisitor concurrentVisitor = mCurrentConcurrentVisitor;
+                    if (visitor != null || concurrentVisitor != null) {
+                        checkBinaryResource(project, main, file, type, visitor,
+                                concurrentVisitor);
                         if (mCanceled) {
-                            return;
+                            break;
                         }
                     }
                 }
             }
         }
+        runDeferredXmlChecks(0);
     }
 
     /**
@@ -1835,8 +2454,10 @@ public class LintDriver {
             mDelegate = delegate;
         }
 
+        // Synchronized since thread-safe detectors may report issues from several
+        // threads at once; see LintDriver#setThreadCount
         @Override
-        public void report(
+        public synchronized void report(
                 @NonNull Context context,
                 @NonNull Issue issue,
                 @NonNull Severity severity,
@@ -1850,6 +2471,11 @@ public class LintDriver {
                 return;
             }
 
+            if (mResultCache != null) {
+                // Recorded before filtering, which is done again when replaying the issues
+                mResultCache.record(context, issue, severity, location, message, format);
+            }
+
             assert mCurrentProject != null;
             if (!mCurrentProject.getReportIssues()) {
                 return;
@@ -1885,7 +2511,7 @@ public class LintDriver {
         }
 
         @Override
-        public void log(@NonNull Severity severity, @Nullable Throwable exception,
+        public synchronized void log(@NonNull Severity severity, @Nullable Throwable exception,
                 @Nullable String format, @Nullable Object... args) {
             mDelegate.log(exception, format, args);
         }
@@ -49,7 +49,10 @@ public interface LintListener {
         /** The lint check was canceled */
         CANCELED,
 
-        /** The lint check is done */
+        /**
+         * The lint check is done. When profiling, the profiles of the detectors are
+         * available from {@link LintDriver#getProfiler()}
+         */
         COMPLETED,
     }
 
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Scope;
+import com.google.common.annotations.Beta;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the time spent and the memory allocated by each {@link Detector}, for each
+ * {@link Scope} it checks, while {@link LintDriver#setProfiling(boolean) profiling} is
+ * enabled.
+ * <p>
+ * The dispatchers call {@link #enter(Detector, Scope)} right before calling into a
+ * detector and {@link #exit()} when going back to traversing the files; each thread has
+ * a clock which charges everything between two such calls to the detector last entered.
+ * Detector calls must not be nested. A few callbacks are followed by some traversal work
+ * before the next switch of the clock, which is then also charged to the detector, so
+ * the numbers are best compared between detectors rather than read as exact costs.
+ * <p>
+ * The allocated bytes are only recorded on VMs which can measure the memory allocated
+ * by each thread; they are -1 otherwise.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+@Beta
+public class LintProfiler {
+    /** Number of profiles per detector: one per scope, and one for the project callbacks */
+    private static final int PROFILE_COUNT = Scope.values().length + 1;
+
+    /** The state of each thread which entered a detector */
+    private final List<ThreadState> mThreadStates = Lists.newArrayList();
+
+    private final ThreadLocal<ThreadState> mThreadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            ThreadState state = new ThreadState();
+            synchronized (mThreadStates) {
+                mThreadStates.add(state);
+            }
+            return state;
+        }
+    };
+
+    /**
+     * Charges the time spent and memory allocated by the current thread from now on to
+     * the given detector checking the given scope, until the next call to
+     * {@link #enter(Detector, Scope)} or {@link #exit()} from the same thread.
+     *
+     * @param detector the detector about to be called
+     * @param scope the scope of the file being checked, or null for the callbacks before
+     *            and after checking a whole project
+     */
+    public void enter(@NonNull Detector detector, @Nullable Scope scope) {
+        ThreadState state = mThreadState.get();
+        state.stop();
+
+        Profile[] profiles = state.mProfiles.get(detector);
+        if (profiles == null) {
+            profiles = new Profile[PROFILE_COUNT];
+            state.mProfiles.put(detector, profiles);
+        }
+        int index = getIndex(scope);
+        Profile profile = profiles[index];
+        if (profile == null) {
+            profile = new Profile(detector.getClass(), scope);
+            profiles[index] = profile;
+        }
+        profile.mInvocationCount++;
+
+        state.mCurrent = profile;
+        state.mStartTime = System.nanoTime();
+        state.mStartAllocated = getAllocatedBytes();
+    }
+
+    /**
+     * Stops charging the current thread to the detector last entered, if any, when
+     * lint goes back to its own work.
+     */
+    public void exit() {
+        mThreadState.get().stop();
+    }
+
+    /**
+     * Returns the profile of each detector and scope, the most expensive first. Profiles
+     * of different instances of the same detector class are merged. Should only be called
+     * once the checks are done.
+     *
+     * @return the profiles
+     */
+    @NonNull
+    public List<Profile> getProfiles() {
+        Map<Class<? extends Detector>, Profile[]> merged = Maps.newHashMap();
+        synchronized (mThreadStates) {
+            for (ThreadState state : mThreadStates) {
+                for (Profile[] profiles : state.mProfiles.values()) {
+                    for (Profile profile : profiles) {
+                        if (profile == null) {
+                            continue;
+                        }
+                        Profile[] sum = merged.get(profile.mDetectorClass);
+                        if (sum == null) {
+                            sum = new Profile[PROFILE_COUNT];
+                            merged.put(profile.mDetectorClass, sum);
+                        }
+                        int index = getIndex(profile.mScope);
+                        if (sum[index] == null) {
+                            sum[index] = new Profile(profile.mDetectorClass, profile.mScope);
+                        }
+                        sum[index].add(profile);
+                    }
+                }
+            }
+        }
+
+        List<Profile> result = Lists.newArrayList();
+        for (Profile[] profiles : merged.values()) {
+            for (Profile profile : profiles) {
+                if (profile != null) {
+                    result.add(profile);
+                }
+            }
+        }
+        Collections.sort(result, new Comparator<Profile>() {
+            @Override
+            public int compare(Profile profile1, Profile profile2) {
+                if (profile1.mTime != profile2.mTime) {
+                    return profile1.mTime > profile2.mTime ? -1 : 1;
+                }
+                int delta = profile1.mDetectorClass.getName().compareTo(
+                        profile2.mDetectorClass.getName());
+                if (delta != 0) {
+                    return delta;
+                }
+                return getIndex(profile1.mScope) - getIndex(profile2.mScope);
+            }
+        });
+        return result;
+    }
+
+    private static int getIndex(@Nullable Scope scope) {
+        return scope != null ? scope.ordinal() : PROFILE_COUNT - 1;
+    }
+
+    /** The time and memory spent by a detector checking a given scope */
+    public static class Profile {
+        @NonNull private final Class<? extends Detector> mDetectorClass;
+        @Nullable private final Scope mScope;
+        private long mInvocationCount;
+        private long mTime;
+        private long mAllocatedBytes;
+
+        private Profile(@NonNull Class<? extends Detector> detectorClass,
+                @Nullable Scope scope) {
+            mDetectorClass = detectorClass;
+            mScope = scope;
+        }
+
+        private void add(@NonNull Profile profile) {
+            mInvocationCount += profile.mInvocationCount;
+            mTime += profile.mTime;
+            if (mAllocatedBytes != -1) {
+                mAllocatedBytes = profile.mAllocatedBytes == -1
+                        ? -1 : mAllocatedBytes + profile.mAllocatedBytes;
+            }
+        }
+
+        /** Returns the class of the profiled detector */
+        @NonNull
+        public Class<? extends Detector> getDetectorClass() {
+            return mDetectorClass;
+        }
+
+        /**
+         * Returns the scope checked by the detector, or null for the callbacks before and
+         * after checking a whole project
+         */
+        @Nullable
+        public Scope getScope() {
+            return mScope;
+        }
+
+        /** Returns the number of times lint called into the detector for this scope */
+        public long getInvocationCount() {
+            return mInvocationCount;
+        }
+
+        /** Returns the wall time spent in the detector, in nanoseconds */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** Returns the number of bytes allocated by the detector, or -1 if unknown */
+        public long getAllocatedBytes() {
+            return mAllocatedBytes;
+        }
+    }
+
+    /** The clock of a thread */
+    private static class ThreadState {
+        /** The profiles of the detectors entered by this thread */
+        private final Map<Detector, Profile[]> mProfiles =
+                new IdentityHashMap<Detector, Profile[]>();
+        /** The profile charged for the time spent since {@link #mStartTime}, if any */
+        @Nullable private Profile mCurrent;
+        private long mStartTime;
+        private long mStartAllocated;
+
+        /** Charges the time and memory spent since the last switch to the current profile */
+        private void stop() {
+            Profile current = mCurrent;
+            if (current == null) {
+                return;
+            }
+            current.mTime += System.nanoTime() - mStartTime;
+            if (current.mAllocatedBytes != -1) {
+                long allocated = getAllocatedBytes();
+                current.mAllocatedBytes = allocated == -1 || mStartAllocated == -1
+                        ? -1 : current.mAllocatedBytes + allocated - mStartAllocated;
+            }
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * Whether the memory allocated by each thread can be measured; cleared the first time
+     * it turns out the VM cannot
+     */
+    private static volatile boolean sMeasureAllocations = true;
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread, or -1 if the VM
+     * cannot tell. Only HotSpot based VMs can, through {@code com.sun.management}, which
+     * other VMs may not even have; its classes are only loaded by this method.
+     */
+    private static long getAllocatedBytes() {
+        if (!sMeasureAllocations) {
+            return -1;
+        }
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                long allocated = ((com.sun.management.ThreadMXBean) bean)
+                        .getThreadAllocatedBytes(Thread.currentThread().getId());
+                if (allocated != -1) {
+                    return allocated;
+                }
+            }
+        } catch (LinkageError e) {
+            // No com.sun.management in this VM
+        } catch (UnsupportedOperationException e) {
+            // Not supported by this VM
+        }
+        sMeasureAllocations = false;
+        return -1;
+    }
+}
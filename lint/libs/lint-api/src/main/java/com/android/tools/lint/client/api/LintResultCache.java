@@ -0,0 +1,495 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.Context;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of the issues reported in individual files by the detectors which declare
+ * themselves file-local with {@link Detector#isFileLocal()}. {@link LintDriver} uses it to skip
+ * those detectors on the files which did not change since a previous lint run, replaying the
+ * issues they reported then.
+ * <p>
+ * Each entry holds the issues found in one file by a given set of detectors. It is keyed by the
+ * path and contents of the file, the detectors and the implementations they are loaded from,
+ * the severities the configuration gives to their issues, the scope of the lint run, and the
+ * state of the project which detectors may look at, see {@link #getProjectState(Project)}.
+ * Anything else a file-local detector depends on is not part of the key, so such detectors
+ * must not look at it. The issues are stored before they are filtered by the configuration,
+ * which is applied again when they are replayed.
+ */
+class LintResultCache {
+    /** Version of the format of the entries; changing it invalidates all of them */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Name of the folder of the cache, in {@link LintClient#getCacheDir(boolean)} */
+    private static final String FOLDER_NAME = "lint-results"; //$NON-NLS-1$
+
+    /** Entries which have not been used for that many days are deleted */
+    private static final long MAX_AGE_DAYS = 30;
+
+    private final LintDriver mDriver;
+    private final File mDir;
+
+    /** The reports recorded for the files being checked, by the context of the file */
+    private final Map<Context, Recording> mRecordings =
+            new ConcurrentHashMap<Context, Recording>();
+
+    private LintResultCache(@NonNull LintDriver driver, @NonNull File dir) {
+        mDriver = driver;
+        mDir = dir;
+    }
+
+    /**
+     * Opens the cache of the client of the given driver, deleting the entries which have not
+     * been used in a while.
+     *
+     * @param driver the lint driver
+     * @return the cache, or null if the client has no cache directory
+     */
+    @Nullable
+    static LintResultCache open(@NonNull LintDriver driver) {
+        File cacheDir = driver.getClient().getCacheDir(true);
+        if (cacheDir == null) {
+            return null;
+        }
+        File dir = new File(cacheDir, FOLDER_NAME);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+
+        File[] entries = dir.listFiles();
+        if (entries != null) {
+            long oldest = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(MAX_AGE_DAYS);
+            for (File entry : entries) {
+                if (entry.lastModified() < oldest) {
+                    //noinspection ResultOfMethodCallIgnored
+                    entry.delete();
+                }
+            }
+        }
+
+        return new LintResultCache(driver, dir);
+    }
+
+    /**
+     * Returns the checks made by a set of file-local detectors, used to look up and record
+     * their results.
+     *
+     * @param detectors the file-local detectors
+     * @param configuration the configuration of the project checked by the detectors
+     * @return the checks of the detectors
+     */
+    @NonNull
+    Checks getChecks(@NonNull List<? extends Detector> detectors,
+            @NonNull Configuration configuration) {
+        LintClient client = mDriver.getClient();
+        Set<Class<? extends Detector>> detectorClasses = Sets.newHashSet();
+        for (Detector detector : detectors) {
+            detectorClasses.add(detector.getClass());
+        }
+
+        List<Issue> issues = Lists.newArrayList();
+        for (Issue issue : mDriver.getRegistry().getIssues()) {
+            Class<? extends Detector> detectorClass =
+                    client.replaceDetector(issue.getImplementation().getDetectorClass());
+            if (detectorClasses.contains(detectorClass)) {
+                issues.add(issue);
+            }
+        }
+        Collections.sort(issues, new Comparator<Issue>() {
+            @Override
+            public int compare(Issue issue1, Issue issue2) {
+                return issue1.getId().compareTo(issue2.getId());
+            }
+        });
+
+        List<Class<? extends Detector>> sortedClasses = Lists.newArrayList(detectorClasses);
+        Collections.sort(sortedClasses, new Comparator<Class<? extends Detector>>() {
+            @Override
+            public int compare(Class<? extends Detector> class1,
+                    Class<? extends Detector> class2) {
+                return class1.getName().compareTo(class2.getName());
+            }
+        });
+
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(FORMAT_VERSION).append('\n');
+        for (Class<? extends Detector> detectorClass : sortedClasses) {
+            fingerprint.append(detectorClass.getName());
+            // Results found by other versions of the detectors cannot be reused
+            CodeSource source = detectorClass.getProtectionDomain().getCodeSource();
+            URL location = source != null ? source.getLocation() : null;
+            if (location != null) {
+                fingerprint.append(':');
+                try {
+                    File file = new File(location.toURI());
+                    fingerprint.append(file.getPath()).append(':').append(file.lastModified());
+                } catch (URISyntaxException ignore) {
+                    fingerprint.append(location);
+                } catch (IllegalArgumentException ignore) {
+                    // Not a file URL
+                    fingerprint.append(location);
+                }
+            }
+            fingerprint.append('\n');
+        }
+        for (Issue issue : issues) {
+            fingerprint.append(issue.getId()).append('=')
+                    .append(configuration.getSeverity(issue).name()).append('\n');
+        }
+
+        return new Checks(fingerprint.toString(), Sets.newHashSet(issues));
+    }
+
+    /**
+     * Computes the key of the results of the given checks for the file of the given context.
+     *
+     * @param context the context of the file to be checked
+     * @param checks the checks of the file
+     * @return the key of the entry, or null if the file cannot be read
+     */
+    @Nullable
+    String getKey(@NonNull Context context, @NonNull Checks checks) {
+        String contents = context.getContents();
+        if (contents == null) {
+            return null;
+        }
+
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(checks.mFingerprint, Charsets.UTF_8);
+        hasher.putString(mDriver.getScope().toString(), Charsets.UTF_8);
+        hasher.putBoolean(mDriver.isAbbreviating());
+        hasher.putString(getProjectState(context.getProject()), Charsets.UTF_8);
+        hasher.putString(getProjectState(context.getMainProject()), Charsets.UTF_8);
+        hasher.putString(context.file.getAbsolutePath(), Charsets.UTF_8);
+        hasher.putChar('\n');
+        hasher.putString(contents, Charsets.UTF_8);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Describes the state of the given project which file-local detectors may depend on:
+     * its SDK versions and its kind. Results found for another state cannot be reused.
+     *
+     * @param project the project, or the main project, of a file being checked
+     * @return the state of the project
+     */
+    @NonNull
+    private static String getProjectState(@NonNull Project project) {
+        StringBuilder state = new StringBuilder();
+        state.append(project.getMinSdkVersion().getApiString()).append(':');
+        state.append(project.getTargetSdkVersion().getApiString()).append(':');
+        state.append(project.getBuildSdk()).append(':');
+        state.append(project.isLibrary()).append(':');
+        state.append(project.isGradleProject()).append('\n');
+        return state.toString();
+    }
+
+    /**
+     * Reports the issues cached under the given key again, if any.
+     *
+     * @param context the context of the file which was checked
+     * @param key the key of the entry, from {@link #getKey(Context, Checks)}
+     * @param parsed whether the file is also parsed to be checked by other detectors, in which
+     *     case the parser errors are not reported again
+     * @return true if the issues were found in the cache, false if the file must be checked
+     */
+    boolean replay(@NonNull Context context, @NonNull String key, boolean parsed) {
+        File file = new File(mDir, key);
+        if (!file.isFile()) {
+            return false;
+        }
+
+        List<Report> reports;
+        try {
+            reports = read(file);
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            // Corrupted entry, or an issue that no longer exists
+            return false;
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+
+        LintClient client = mDriver.getClient();
+        for (Report report : reports) {
+            if (report.mIssue == IssueRegistry.PARSER_ERROR) {
+                if (parsed) {
+                    continue;
+                }
+                mDriver.setHasParserErrors(true);
+            }
+            client.report(context, report.mIssue, report.mSeverity, report.mLocation,
+                    report.mMessage, report.mFormat);
+        }
+        return true;
+    }
+
+    /**
+     * Starts recording the issues reported in the given context by the given checks.
+     *
+     * @param context the context of the file to be checked
+     * @param checks the checks of the file
+     */
+    void startRecording(@NonNull Context context, @NonNull Checks checks) {
+        mRecordings.put(context, new Recording(checks));
+    }
+
+    /**
+     * Records an issue reported to the lint client, if it was reported in a context being
+     * recorded by one of its checks.
+     */
+    void record(
+            @NonNull Context context,
+            @NonNull Issue issue,
+            @NonNull Severity severity,
+            @NonNull Location location,
+            @NonNull String message,
+            @NonNull TextFormat format) {
+        Recording recording = mRecordings.get(context);
+        if (recording != null && (recording.mChecks.mIssues.contains(issue)
+                || issue == IssueRegistry.PARSER_ERROR)) {
+            synchronized (recording) {
+                recording.mReports.add(new Report(issue, severity, location, message, format));
+                if (!context.file.equals(location.getFile())) {
+                    // Not file-local after all: replaying this issue when only the other
+                    // file changed would be wrong
+                    recording.mFileLocal = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops recording the issues reported in the given context, and stores them under the
+     * given key.
+     *
+     * @param context the context of the file which was checked
+     * @param key the key of the entry, or null to discard the issues, for example if the
+     *     file could not be checked completely. The issues are also discarded if some of
+     *     them were reported in other files.
+     */
+    void stopRecording(@NonNull Context context, @Nullable String key) {
+        Recording recording = mRecordings.remove(context);
+        if (recording == null || key == null || !recording.mFileLocal) {
+            return;
+        }
+
+        File file = new File(mDir, key);
+        File temp = new File(mDir, key + ".tmp"); //$NON-NLS-1$
+        try {
+            write(temp, recording.mReports);
+            if (!temp.renameTo(file)) {
+                // Another lint run may have stored the same entry
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            mDriver.getClient().log(e, "Could not cache the lint results of %1$s",
+                    context.file.getPath());
+        }
+    }
+
+    @NonNull
+    private List<Report> read(@NonNull File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unsupported format");
+            }
+            IssueRegistry registry = mDriver.getRegistry();
+            int count = in.readInt();
+            if (count < 0 || count > file.length()) {
+                throw new IOException("Corrupt entry");
+            }
+            List<Report> reports = new ArrayList<Report>(count);
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                Issue issue = registry.getIssue(id);
+                if (issue == null) {
+                    throw new IOException("Unknown issue " + id);
+                }
+                Severity severity = Severity.valueOf(in.readUTF());
+                TextFormat format = TextFormat.valueOf(in.readUTF());
+                String message = in.readUTF();
+                Location location = readLocation(in);
+                reports.add(new Report(issue, severity, location, message, format));
+            }
+            return reports;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void write(@NonNull File file, @NonNull List<Report> reports)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(reports.size());
+            for (Report report : reports) {
+                out.writeUTF(report.mIssue.getId());
+                out.writeUTF(report.mSeverity.name());
+                out.writeUTF(report.mFormat.name());
+                out.writeUTF(report.mMessage);
+                writeLocation(out, report.mLocation);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @NonNull
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        File file = new File(in.readUTF());
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null
+                ? Location.create(file, start, end) : Location.create(file);
+        if (in.readBoolean()) {
+            location.setMessage(in.readUTF());
+        }
+        if (in.readBoolean()) {
+            location.setSecondary(readLocation(in));
+        }
+        return location;
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out, @NonNull Location location)
+            throws IOException {
+        out.writeUTF(location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        String message = location.getMessage();
+        out.writeBoolean(message != null);
+        if (message != null) {
+            out.writeUTF(message);
+        }
+        Location secondary = location.getSecondary();
+        out.writeBoolean(secondary != null);
+        if (secondary != null) {
+            writeLocation(out, secondary);
+        }
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int line = in.readInt();
+        int column = in.readInt();
+        int offset = in.readInt();
+        return new DefaultPosition(line, column, offset);
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out, @Nullable Position position)
+            throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    /** The checks made by a set of file-local detectors, see {@link #getChecks} */
+    static class Checks {
+        /** Identifies the detectors, their implementation and the severity of their issues */
+        private final String mFingerprint;
+        /** The issues which may be reported by the detectors */
+        private final Set<Issue> mIssues;
+
+        private Checks(@NonNull String fingerprint, @NonNull Set<Issue> issues) {
+            mFingerprint = fingerprint;
+            mIssues = issues;
+        }
+    }
+
+    /** The issues reported so far in a file being checked */
+    private static class Recording {
+        private final Checks mChecks;
+        private final List<Report> mReports = new ArrayList<Report>();
+        /** Whether all the issues were reported in the file being checked */
+        private boolean mFileLocal = true;
+
+        private Recording(@NonNull Checks checks) {
+            mChecks = checks;
+        }
+    }
+
+    /** An issue reported to the lint client */
+    private static class Report {
+        private final Issue mIssue;
+        private final Severity mSeverity;
+        private final Location mLocation;
+        private final String mMessage;
+        private final TextFormat mFormat;
+
+        private Report(@NonNull Issue issue, @NonNull Severity severity,
+                @NonNull Location location, @NonNull String message,
+                @NonNull TextFormat format) {
+            mIssue = issue;
+            mSeverity = severity;
+            mLocation = location;
+            mMessage = message;
+            mFormat = format;
+        }
+    }
+}
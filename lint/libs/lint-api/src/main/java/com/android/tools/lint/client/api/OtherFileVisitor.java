@@ -177,13 +177,20 @@ class OtherFileVisitor {
                 }
             }
             if (!applicable.isEmpty()) {
+                LintProfiler profiler = driver.getProfiler();
                 for (File file : files) {
                     Context context = new Context(driver, project, main, file);
                     for (Detector detector : applicable) {
+                        if (profiler != null) {
+                            profiler.enter(detector, scope);
+                        }
                         detector.beforeCheckFile(context);
                         detector.run(context);
                         detector.afterCheckFile(context);
                     }
+                    if (profiler != null) {
+                        profiler.exit();
+                    }
                     if (driver.isCanceled()) {
                         return;
                     }
@@ -22,6 +22,7 @@ import com.android.tools.lint.detector.api.Detector;
 import com.android.tools.lint.detector.api.Detector.XmlScanner;
 import com.android.tools.lint.detector.api.LintUtils;
 import com.android.tools.lint.detector.api.ResourceContext;
+import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.XmlContext;
 import com.google.common.annotations.Beta;
 
@@ -74,6 +75,7 @@ class ResourceVisitor {
     private final List<? extends Detector> mAllDetectors;
     private final List<? extends Detector> mBinaryDetectors;
     private final XmlParser mParser;
+    @Nullable private final LintProfiler mProfiler;
 
     // Really want this:
     //<T extends List<Detector> & Detector.XmlScanner> XmlVisitor(IDomParser parser,
@@ -82,8 +84,10 @@ class ResourceVisitor {
     ResourceVisitor(
             @NonNull XmlParser parser,
             @NonNull List<? extends Detector> xmlDetectors,
-            @Nullable List<Detector> binaryDetectors) {
+            @Nullable List<Detector> binaryDetectors,
+            @Nullable LintProfiler profiler) {
         mParser = parser;
+        mProfiler = profiler;
         mAllDetectors = xmlDetectors;
         mBinaryDetectors = binaryDetectors;
 
@@ -128,30 +132,36 @@ class ResourceVisitor {
     }
 
     void visitFile(@NonNull XmlContext context, @NonNull File file) {
+        visitFile(context, file, false);
+    }
+
+    /**
+     * Visits the given XML file, parsing it first unless the context already has a document
+     *
+     * @param context the context of the file
+     * @param file the file to visit
+     * @param keepDocument whether to keep the document in the context once visited, for
+     *     another visitor to check it without parsing it again; it must then be released
+     *     with {@link #dispose(XmlContext)}
+     */
+    void visitFile(@NonNull XmlContext context, @NonNull File file, boolean keepDocument) {
         assert LintUtils.isXmlFile(file);
 
         try {
-            if (context.document == null) {
-                context.document = mParser.parseXml(context);
-                if (context.document == null) {
-                    // No need to log this; the parser should be reporting
-                    // a full warning (such as IssueRegistry#PARSER_ERROR)
-                    // with details, location, etc.
-                    return;
-                }
-                if (context.document.getDocumentElement() == null) {
-                    // Ignore empty documents
-                    return;
-                }
+            if (!parse(context)) {
+                return;
             }
 
             for (Detector check : mAllDetectors) {
+                enter(context, check);
                 check.beforeCheckFile(context);
             }
 
             for (Detector.XmlScanner check : mDocumentDetectors) {
+                enter(context, check);
                 check.visitDocument(context, context.document);
             }
+            exit();
 
             if (!mElementToCheck.isEmpty() || !mAttributeToCheck.isEmpty()
                     || !mAllAttributeDetectors.isEmpty() || !mAllElementDetectors.isEmpty()) {
@@ -159,14 +169,44 @@ class ResourceVisitor {
             }
 
             for (Detector check : mAllDetectors) {
+                enter(context, check);
                 check.afterCheckFile(context);
             }
         } finally {
-            if (context.document != null) {
-                mParser.dispose(context, context.document);
-                context.document = null;
+            exit();
+            if (!keepDocument) {
+                dispose(context);
+            }
+        }
+    }
+
+    /**
+     * Parses the file of the given context into its document, unless it already has one
+     *
+     * @return true if the document can be visited, false if the file could not be parsed
+     *     or is empty
+     */
+    boolean parse(@NonNull XmlContext context) {
+        if (context.document == null) {
+            context.document = mParser.parseXml(context);
+            if (context.document == null) {
+                // No need to log this; the parser should be reporting
+                // a full warning (such as IssueRegistry#PARSER_ERROR)
+                // with details, location, etc.
+                return false;
             }
         }
+
+        // Ignore empty documents
+        return context.document.getDocumentElement() != null;
+    }
+
+    /** Releases the document of the given context, if any */
+    void dispose(@NonNull XmlContext context) {
+        if (context.document != null) {
+            mParser.dispose(context, context.document);
+            context.document = null;
+        }
     }
 
     private void visitElement(@NonNull XmlContext context, @NonNull Element element) {
@@ -174,11 +214,13 @@ class ResourceVisitor {
         if (elementChecks != null) {
             assert elementChecks instanceof RandomAccess;
             for (XmlScanner check : elementChecks) {
+                enter(context, check);
                 check.visitElement(context, element);
             }
         }
         if (!mAllElementDetectors.isEmpty()) {
             for (XmlScanner check : mAllElementDetectors) {
+                enter(context, check);
                 check.visitElement(context, element);
             }
         }
@@ -194,16 +236,19 @@ class ResourceVisitor {
                 List<Detector.XmlScanner> list = mAttributeToCheck.get(name);
                 if (list != null) {
                     for (XmlScanner check : list) {
+                        enter(context, check);
                         check.visitAttribute(context, attribute);
                     }
                 }
                 if (!mAllAttributeDetectors.isEmpty()) {
                     for (XmlScanner check : mAllAttributeDetectors) {
+                        enter(context, check);
                         check.visitAttribute(context, attribute);
                     }
                 }
             }
         }
+        exit();
 
         // Visit children
         NodeList childNodes = element.getChildNodes();
@@ -217,14 +262,33 @@ class ResourceVisitor {
         // Post hooks
         if (elementChecks != null) {
             for (XmlScanner check : elementChecks) {
+                enter(context, check);
                 check.visitElementAfter(context, element);
             }
         }
         if (!mAllElementDetectors.isEmpty()) {
             for (XmlScanner check : mAllElementDetectors) {
+                enter(context, check);
                 check.visitElementAfter(context, element);
             }
         }
+        exit();
+    }
+
+    /** Charges the work done from now on to the given detector, when profiling */
+    private void enter(@NonNull XmlContext context, @NonNull Object check) {
+        if (mProfiler != null) {
+            Scope scope = context.getResourceFolderType() != null
+                    ? Scope.RESOURCE_FILE : Scope.MANIFEST;
+            mProfiler.enter((Detector) check, scope);
+        }
+    }
+
+    /** Stops charging the work done to the detector last entered, when profiling */
+    private void exit() {
+        if (mProfiler != null) {
+            mProfiler.exit();
+        }
     }
 
     @NonNull
@@ -232,14 +296,24 @@ class ResourceVisitor {
         return mParser;
     }
 
+    /** Returns the detectors checking the XML files visited by this visitor */
+    @NonNull
+    List<? extends Detector> getXmlDetectors() {
+        return mAllDetectors;
+    }
+
     public void visitBinaryResource(@NonNull ResourceContext context) {
         if (mBinaryDetectors == null) {
             return;
         }
         for (Detector check : mBinaryDetectors) {
+            if (mProfiler != null) {
+                mProfiler.enter(check, Scope.BINARY_RESOURCE_FILE);
+            }
             check.beforeCheckFile(context);
             check.checkBinaryResource(context);
             check.afterCheckFile(context);
         }
+        exit();
     }
 }
@@ -971,6 +971,40 @@ public abstract class Detector {
     public void afterCheckFile(@NonNull Context context) {
     }
 
+    /**
+     * Returns whether this detector can check several resource or class files at
+     * the same time. When the driver runs with more than one thread (see
+     * {@link com.android.tools.lint.client.api.LintDriver#setThreadCount(int)}),
+     * the per-file callbacks of such detectors, from {@link #beforeCheckFile(Context)}
+     * to {@link #afterCheckFile(Context)}, may be called from several threads at once,
+     * each with its own context, so the detector must not keep per-file state in fields
+     * and must synchronize any state shared between files. The project callbacks are
+     * still called from a single thread, after all the files have been checked.
+     *
+     * @return true if the files can be checked concurrently by this detector
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns whether the issues this detector reports in an XML resource or Java source
+     * file only depend on the path and contents of that file, on the severities the
+     * configuration gives to its issues, and on the SDK versions of the project and of the
+     * main project. When lint caches its results (see
+     * {@link com.android.tools.lint.client.api.LintDriver#setCachingResults(boolean)}),
+     * such detectors are not called at all for the files which did not change since a
+     * previous run; the issues they reported then are reported again instead. They must
+     * therefore not look at other files, the project dependencies, the resource repository
+     * or other project state, nor gather information across files, and must only report
+     * issues while checking the file they are found in.
+     *
+     * @return true if the results of this detector for a file can be cached
+     */
+    public boolean isFileLocal() {
+        return false;
+    }
+
     /**
      * Returns the expected speed of this detector
      *
@@ -80,6 +80,16 @@ public class AccessibilityDetector extends LayoutDetector {
     public AccessibilityDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
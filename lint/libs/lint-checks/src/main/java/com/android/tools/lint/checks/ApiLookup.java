@@ -31,7 +31,6 @@ import com.android.tools.lint.detector.api.LintUtils;
 import com.android.utils.Pair;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
-import com.google.common.io.ByteSink;
 import com.google.common.io.Files;
 import com.google.common.primitives.UnsignedBytes;
 
@@ -40,6 +39,8 @@ import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -59,8 +60,9 @@ import java.util.Set;
  * information, initialized from an XML file. This lookup class adds a binary cache around
  * the API to make initialization faster and to require fewer objects. It creates
  * a binary cache data structure, which fits in a single byte array, which means that
- * to open the database you can just read in the byte array and go. On one particular
- * machine, this takes about 30-50 ms versus 600-800ms for the full parse. It also
+ * to open the database you can just map the file into memory and go: the lookups read
+ * only the pages of the file they touch, and lint processes share the mapped pages
+ * rather than each reading its own copy. The full parse takes 600-800ms. It also
  * helps memory by placing everything in a compact byte array instead of needing separate
  * strings (2 bytes per character in a char[] for the 25k method entries, 11k field entries
  * and 6k class entries) - and it also avoids the same number of Map.Entry objects.
@@ -93,8 +95,10 @@ public class ApiLookup {
     static final boolean DEBUG_FORCE_REGENERATE_BINARY = false;
 
     private final Api mInfo;
-    private byte[] mData;
-    private int[] mIndices;
+    /** The binary database, mapped from the cache file */
+    private ByteBuffer mData;
+    /** Offset of the index table in {@link #mData} */
+    private int mIndexOffset;
 
     private static WeakReference<ApiLookup> sInstance = new WeakReference<ApiLookup>(null);
 
@@ -276,9 +280,9 @@ public class ApiLookup {
      * 2. A file version number. If the binary file does not match the reader's expected
      *     version, it can ignore it (and regenerate the cache from XML).
      *
-     * 3. The index table. When the data file is read, this is used to initialize the
-     *    {@link #mIndices} array. The index table is built up like this:
-     *    a. The number of index entries (e.g. number of elements in the {@link #mIndices} array)
+     * 3. The index table. When looking up entries, {@link #getIndex(int)} reads their
+     *    offsets from this table. The index table is built up like this:
+     *    a. The number of index entries
      *        [1 4-byte int]
      *    b. The number of java/javax packages [1 4 byte int]
      *    c. Offsets to the package entries, one for each package, and each offset is 4 bytes.
@@ -334,13 +338,13 @@ public class ApiLookup {
         }
         long start = System.currentTimeMillis();
         try {
-            byte[] b = Files.toByteArray(binaryFile);
-
-            // First skip the header
-            int offset = 0;
+            // First skip the header. It is read rather than mapped, such that this
+            // lookup does not map a file it regenerates below
             byte[] expectedHeader = FILE_HEADER.getBytes(Charsets.US_ASCII);
+            byte[] b = Files.asByteSource(binaryFile).slice(0, expectedHeader.length + 1).read();
+            int offset = 0;
             for (byte anExpectedHeader : expectedHeader) {
-                if (anExpectedHeader != b[offset++]) {
+                if (offset == b.length || anExpectedHeader != b[offset++]) {
                     client.log(null, "Incorrect file header: not an API database cache " +
                             "file, or a corrupt cache file");
                     return;
@@ -348,7 +352,7 @@ public class ApiLookup {
             }
 
             // Read in the format number
-            if (b[offset++] != BINARY_FORMAT_VERSION) {
+            if (offset == b.length || b[offset++] != BINARY_FORMAT_VERSION) {
                 // Force regeneration of new binary data with up to date format
                 if (createCache(client, xmlFile, binaryFile)) {
                     readData(client, xmlFile, binaryFile); // Recurse
@@ -357,25 +361,23 @@ public class ApiLookup {
                 return;
             }
 
-            int indexCount = get4ByteInt(b, offset);
+            // Map the rest of the file rather than reading it: the lookups only touch the
+            // pages they need, which are shared with other lint processes by the page cache
+            MappedByteBuffer buffer = Files.map(binaryFile, MapMode.READ_ONLY);
+            assert buffer.order() == ByteOrder.BIG_ENDIAN;
+
+            int indexCount = buffer.getInt(offset);
             offset += 4;
-            mPackageCount = get4ByteInt(b, offset);
+            mPackageCount = buffer.getInt(offset);
             offset += 4;
 
-            mIndices = new int[indexCount];
-            for (int i = 0; i < indexCount; i++) {
-                // TODO: Pack the offsets: They increase by a small amount for each entry, so
-                // no need to spend 4 bytes on each. These will need to be processed when read
-                // back in anyway, so consider storing the offset -deltas- as single bytes and
-                // adding them up cumulatively in readData().
-                mIndices[i] = get4ByteInt(b, offset);
-                offset += 4;
+            // The index table is read from the buffer on demand, by getIndex(); just make
+            // sure it is all there
+            if (indexCount < 0 || offset + 4L * indexCount > buffer.limit()) {
+                throw new IOException("Truncated index table");
             }
-            mData = b;
-            // TODO: We only need to keep the data portion here since we've initialized
-            // the offset array separately.
-            // TODO: Investigate (profile) accessing the byte buffer directly instead of
-            // accessing a byte array.
+            mIndexOffset = offset;
+            mData = buffer;
         } catch (Throwable e) {
             client.log(null, "Failure reading binary cache file %1$s", binaryFile.getPath());
             client.log(null, "Please delete the file and restart the IDE/lint: %1$s",
@@ -384,13 +386,21 @@ public class ApiLookup {
         }
         if (WRITE_STATS) {
             long end = System.currentTimeMillis();
-            System.out.println("\nRead API database in " + (end - start)
+            System.out.println("\nMapped API database in " + (end - start)
                     + " milliseconds.");
-            System.out.println("Size of data table: " + mData.length + " bytes ("
-                    + Integer.toString(mData.length / 1024) + "k)\n");
+            System.out.println("Size of data table: " + mData.limit() + " bytes ("
+                    + Integer.toString(mData.limit() / 1024) + "k)\n");
         }
     }
 
+    /**
+     * Returns the offset in {@link #mData} of the entry with the given number in the index
+     * table
+     */
+    private int getIndex(int index) {
+        return mData.getInt(mIndexOffset + 4 * index);
+    }
+
     /** See the {@link #readData(LintClient,File,File)} for documentation on the data format. */
     private static void writeDatabase(File file, Api info) throws IOException {
         Map<String, ApiClass> classMap = info.getClasses();
@@ -699,23 +709,45 @@ public class ApiLookup {
         byte[] b = new byte[size];
         buffer.rewind();
         buffer.get(b);
-        if (file.exists()) {
-            boolean deleted = file.delete();
-            assert deleted : file;
+        writeCacheFile(file, b);
+    }
+
+    /**
+     * Replaces the given database cache file, here and in {@link TypoLookup}. Other lint
+     * processes sharing the cache directory may have the existing file mapped, so it is
+     * never written to: the data is written to a new file which is renamed over it.
+     *
+     * @param file the cache file to write
+     * @param data the contents of the file
+     * @throws IOException if the file could not be written, or could not be replaced
+     *     because it is still in use (renaming over a mapped file fails on Windows)
+     */
+    static void writeCacheFile(@NonNull File file, @NonNull byte[] data) throws IOException {
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile()); //$NON-NLS-1$
+        try {
+            Files.write(data, temp);
+            // Renaming over an existing file fails on Windows, in which case it is
+            // deleted first, unless it is in use
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                throw new IOException("Could not replace " + file);
+            }
+        } finally {
+            if (temp.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
         }
-        ByteSink sink = Files.asByteSink(file);
-        sink.write(b);
     }
 
     // For debugging only
     private String dumpEntry(int offset) {
         if (DEBUG_SEARCH) {
             StringBuilder sb = new StringBuilder(200);
-            for (int i = offset; i < mData.length; i++) {
-                if (mData[i] == 0) {
+            for (int i = offset; i < mData.limit(); i++) {
+                if (mData.get(i) == 0) {
                     break;
                 }
-                char c = (char) UnsignedBytes.toInt(mData[i]);
+                char c = (char) UnsignedBytes.toInt(mData.get(i));
                 sb.append(c);
             }
 
@@ -725,12 +757,12 @@ public class ApiLookup {
         }
     }
 
-    private static int compare(byte[] data, int offset, byte terminator, String s, int sOffset,
-            int max) {
+    private static int compare(ByteBuffer data, int offset, byte terminator, String s,
+            int sOffset, int max) {
         int i = offset;
         int j = sOffset;
         for (; j < max; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             char c = s.charAt(j);
             // TODO: Check somewhere that the strings are purely in the ASCII range; if not
             // they're not a match in the database
@@ -741,7 +773,7 @@ public class ApiLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /**
@@ -789,7 +821,7 @@ public class ApiLookup {
     private int getClassVersion(int classNumber) {
         if (classNumber != -1) {
             int offset = seekClassData(classNumber, CLASS_HEADER_API);
-            int api = UnsignedBytes.toInt(mData[offset]) & API_MASK;
+            int api = UnsignedBytes.toInt(mData.get(offset)) & API_MASK;
             return api > 1 ? api : -1;
         }
         return -1;
@@ -816,11 +848,11 @@ public class ApiLookup {
                 int interfaceNumber = findClass(destinationClass);
                 if (interfaceNumber != -1) {
                     int offset = seekClassData(classNumber, CLASS_HEADER_INTERFACES);
-                    int interfaceCount = mData[offset++];
+                    int interfaceCount = mData.get(offset++);
                     for (int i = 0; i < interfaceCount; i++) {
                         int clsNumber = get3ByteInt(mData, offset);
                         offset += 3;
-                        int api = mData[offset++];
+                        int api = mData.get(offset++);
                         if (clsNumber == interfaceNumber) {
                            return api;
                         }
@@ -862,7 +894,7 @@ public class ApiLookup {
                     // Not deprecated
                     return -1;
                 }
-                int deprecatedIn = UnsignedBytes.toInt(mData[offset]);
+                int deprecatedIn = UnsignedBytes.toInt(mData.get(offset));
                 return deprecatedIn != 0 ? deprecatedIn : -1;
             }
         }  else if (mInfo != null) {
@@ -1086,14 +1118,14 @@ public class ApiLookup {
         assert owner.indexOf('.') == -1 : "Should use / instead of . in owner: " + owner;
 
         // The index array contains class indexes from 0 to classCount and
-        //   member indices from classCount to mIndices.length.
+        //   member indices from classCount to the number of index entries.
         int low = 0;
         int high = mPackageCount - 1;
         // Compare the api info at the given index.
         int classNameLength = owner.lastIndexOf('/');
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + owner.substring(0, classNameLength)
@@ -1121,15 +1153,6 @@ public class ApiLookup {
         return -1;
     }
 
-    private static int get4ByteInt(@NonNull byte[] data, int offset) {
-        byte b1 = data[offset++];
-        byte b2 = data[offset++];
-        byte b3 = data[offset++];
-        byte b4 = data[offset];
-        // The byte data is always big endian.
-        return (b1 & 0xFF) << 24 | (b2 & 0xFF) << 16 | (b3 & 0xFF) << 8 | (b4 & 0xFF);
-    }
-
     private static void put3ByteInt(@NonNull ByteBuffer buffer, int value) {
         // Big endian
         byte b3 = (byte) (value & 0xFF);
@@ -1151,17 +1174,17 @@ public class ApiLookup {
         buffer.put(b2);
     }
 
-    private static int get3ByteInt(@NonNull byte[] mData, int offset) {
-        byte b1 = mData[offset++];
-        byte b2 = mData[offset++];
-        byte b3 = mData[offset];
+    private static int get3ByteInt(@NonNull ByteBuffer data, int offset) {
+        byte b1 = data.get(offset++);
+        byte b2 = data.get(offset++);
+        byte b3 = data.get(offset);
         // The byte data is always big endian.
         return (b1 & 0xFF) << 16 | (b2 & 0xFF) << 8 | (b3 & 0xFF);
     }
 
-    private static int get2ByteInt(@NonNull byte[] data, int offset) {
-        byte b1 = data[offset++];
-        byte b2 = data[offset];
+    private static int get2ByteInt(@NonNull ByteBuffer data, int offset) {
+        byte b1 = data.get(offset++);
+        byte b2 = data.get(offset);
         // The byte data is always big endian.
         return (b1 & 0xFF) << 8 | (b2 & 0xFF);
     }
@@ -1174,8 +1197,8 @@ public class ApiLookup {
         if (packageNumber == -1) {
             return -1;
         }
-        int curr = mIndices[packageNumber];
-        while (mData[curr] != 0) {
+        int curr = getIndex(packageNumber);
+        while (mData.get(curr) != 0) {
             curr++;
         }
         curr++;
@@ -1193,7 +1216,7 @@ public class ApiLookup {
         int classNameLength = owner.length();
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
             offset++; // skip the byte which points to the metadata after the name
 
             if (DEBUG_SEARCH) {
@@ -1232,8 +1255,8 @@ public class ApiLookup {
     }
 
     private int seekClassData(int classNumber, int field) {
-        int offset = mIndices[classNumber];
-        offset += mData[offset] & 0xFF;
+        int offset = getIndex(classNumber);
+        offset += mData.get(offset) & 0xFF;
         if (field == CLASS_HEADER_MEMBER_OFFSETS) {
             return offset;
         }
@@ -1241,7 +1264,7 @@ public class ApiLookup {
         if (field == CLASS_HEADER_API) {
             return offset;
         }
-        boolean hasDeprecation = (mData[offset] & HAS_DEPRECATION_BYTE_FLAG) != 0;
+        boolean hasDeprecation = (mData.get(offset) & HAS_DEPRECATION_BYTE_FLAG) != 0;
         offset++;
         if (field == CLASS_HEADER_DEPRECATED) {
             return hasDeprecation ? offset : -1;
@@ -1268,7 +1291,7 @@ public class ApiLookup {
 
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + (name + ';' + desc) +
@@ -1293,12 +1316,12 @@ public class ApiLookup {
 
                         offset += argsEnd + 1;
 
-                        if (mData[offset++] == 0) {
+                        if (mData.get(offset++) == 0) {
                             // Yes, terminated argument list: get the API level
-                            int api = UnsignedBytes.toInt(mData[offset]);
+                            int api = UnsignedBytes.toInt(mData.get(offset));
                             if (deprecation) {
                                 if ((api & HAS_DEPRECATION_BYTE_FLAG) != 0) {
-                                    return UnsignedBytes.toInt(mData[offset + 1]);
+                                    return UnsignedBytes.toInt(mData.get(offset + 1));
                                 } else {
                                     return -1;
                                 }
@@ -1314,12 +1337,12 @@ public class ApiLookup {
                 compare = compare(mData, offset, (byte) 0, name, 0, nameLength);
                 if (compare == 0) {
                     offset += nameLength;
-                    if (mData[offset++] == 0) {
+                    if (mData.get(offset++) == 0) {
                         // Yes, terminated argument list: get the API level
-                        int api = UnsignedBytes.toInt(mData[offset]);
+                        int api = UnsignedBytes.toInt(mData.get(offset));
                         if (deprecation) {
                             if ((api & HAS_DEPRECATION_BYTE_FLAG) != 0) {
-                                return UnsignedBytes.toInt(mData[offset + 1]);
+                                return UnsignedBytes.toInt(mData.get(offset + 1));
                             } else {
                                 return -1;
                             }
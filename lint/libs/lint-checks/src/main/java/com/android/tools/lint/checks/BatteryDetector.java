@@ -83,6 +83,11 @@ public class BatteryDetector extends ResourceXmlDetector implements
     public BatteryDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Collections.singletonList(TAG_ACTION);
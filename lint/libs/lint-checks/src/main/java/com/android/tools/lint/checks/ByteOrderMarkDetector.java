@@ -62,6 +62,16 @@ public class ByteOrderMarkDetector extends ResourceXmlDetector {
     public ByteOrderMarkDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -78,6 +78,16 @@ public class ChildCountDetector extends LayoutDetector {
     public ChildCountDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -72,6 +72,16 @@ public class DeprecationDetector extends LayoutDetector {
     public DeprecationDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
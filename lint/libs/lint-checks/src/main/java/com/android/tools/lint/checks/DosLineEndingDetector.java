@@ -59,6 +59,16 @@ public class DosLineEndingDetector extends LayoutDetector {
     public DosLineEndingDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -81,6 +81,16 @@ public class FullBackupContentDetector extends ResourceXmlDetector {
     public FullBackupContentDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.XML;
@@ -76,6 +76,16 @@ public class GridLayoutDetector extends LayoutDetector {
     public GridLayoutDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
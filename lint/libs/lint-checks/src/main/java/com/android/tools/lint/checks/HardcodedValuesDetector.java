@@ -79,6 +79,16 @@ public class HardcodedValuesDetector extends LayoutDetector {
     public HardcodedValuesDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableAttributes() {
         return Arrays.asList(
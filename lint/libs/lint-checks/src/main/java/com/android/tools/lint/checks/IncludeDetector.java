@@ -60,6 +60,16 @@ public class IncludeDetector extends LayoutDetector {
                     Scope.RESOURCE_FILE_SCOPE)).addMoreInfo(
     "http://stackoverflow.com/questions/2631614/does-android-xml-layouts-include-tag-really-work");
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Nullable
     @Override
     public Collection<String> getApplicableElements() {
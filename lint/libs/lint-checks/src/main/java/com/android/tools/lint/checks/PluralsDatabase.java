@@ -40,7 +40,8 @@ public class PluralsDatabase {
     private static final EnumSet<Quantity> NONE = EnumSet.noneOf(Quantity.class);
 
     private static final PluralsDatabase sInstance = new PluralsDatabase();
-    private final Map<String, EnumSet<Quantity>> mPlurals = Maps.newHashMap();
+    /** Shared by the detectors checking files concurrently, see {@link PluralsDetector} */
+    private final Map<String, EnumSet<Quantity>> mPlurals = Maps.newConcurrentMap();
 
     /** Bit set if this language uses quantity zero */
     @SuppressWarnings("PointlessBitwiseExpression")
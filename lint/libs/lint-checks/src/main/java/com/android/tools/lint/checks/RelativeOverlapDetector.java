@@ -356,6 +356,16 @@ public class RelativeOverlapDetector extends LayoutDetector {
     public RelativeOverlapDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Arrays.asList(RELATIVE_LAYOUT, PERCENT_RELATIVE_LAYOUT);
@@ -66,6 +66,16 @@ public class ScrollViewChildDetector extends LayoutDetector {
     public ScrollViewChildDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -69,6 +69,11 @@ public class TrustAllX509TrustManagerDetector extends Detector implements JavaPs
     public TrustAllX509TrustManagerDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements JavaScanner ----
 
     @Nullable
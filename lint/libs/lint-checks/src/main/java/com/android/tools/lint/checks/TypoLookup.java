@@ -26,7 +26,6 @@ import com.android.tools.lint.client.api.LintClient;
 import com.android.tools.lint.detector.api.LintUtils;
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
-import com.google.common.io.ByteSink;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -60,8 +59,10 @@ public class TypoLookup {
     /** Default size to reserve for each API entry when creating byte buffer to build up data */
     private static final int BYTES_PER_ENTRY = 28;
 
-    private byte[] mData;
-    private int[] mIndices;
+    /** The binary database, mapped from the cache file */
+    private ByteBuffer mData;
+    /** Offset of the word table in {@link #mData} */
+    private int mIndexOffset;
     private int mWordCount;
 
     private static final WeakHashMap<String, TypoLookup> sInstanceMap =
@@ -237,14 +238,13 @@ public class TypoLookup {
         }
         long start = System.currentTimeMillis();
         try {
-            MappedByteBuffer buffer = Files.map(binaryFile, MapMode.READ_ONLY);
-            assert buffer.order() == ByteOrder.BIG_ENDIAN;
-
-            // First skip the header
+            // First skip the header. It is read rather than mapped, such that this
+            // lookup does not map a file it regenerates below
             byte[] expectedHeader = FILE_HEADER.getBytes(Charsets.US_ASCII);
-            buffer.rewind();
+            byte[] b = Files.asByteSource(binaryFile).slice(0, expectedHeader.length + 1).read();
+            int offset = 0;
             for (byte anExpectedHeader : expectedHeader) {
-                if (anExpectedHeader != buffer.get()) {
+                if (offset == b.length || anExpectedHeader != b[offset++]) {
                     client.log(null, "Incorrect file header: not an typo database cache " +
                                      "file, or a corrupt cache file");
                     return;
@@ -252,7 +252,7 @@ public class TypoLookup {
             }
 
             // Read in the format number
-            if (buffer.get() != BINARY_FORMAT_VERSION) {
+            if (offset == b.length || b[offset++] != BINARY_FORMAT_VERSION) {
                 // Force regeneration of new binary data with up to date format
                 if (createCache(client, xmlFile, binaryFile)) {
                     readData(client, xmlFile, binaryFile); // Recurse
@@ -261,41 +261,30 @@ public class TypoLookup {
                 return;
             }
 
+            MappedByteBuffer buffer = Files.map(binaryFile, MapMode.READ_ONLY);
+            assert buffer.order() == ByteOrder.BIG_ENDIAN;
+            buffer.position(offset);
             mWordCount = buffer.getInt();
 
-            // Read in the word table indices;
-            int count = mWordCount;
-            int[] offsets = new int[count];
-
-            // Another idea: I can just store the DELTAS in the file (and add them up
-            // when reading back in) such that it takes just ONE byte instead of four!
-
-            for (int i = 0; i < count; i++) {
-                offsets[i] = buffer.getInt();
+            // The word table indices are read from the buffer on demand, by getIndex();
+            // just make sure they are all there. The rest of the file is not read in
+            // either: the lookups only touch the pages they need, which are shared with
+            // other lint processes by the page cache.
+            int indexOffset = buffer.position();
+            if (mWordCount < 0 || indexOffset + 4L * mWordCount > buffer.limit()) {
+                throw new IOException("Truncated word table in " + binaryFile);
             }
-
-            // No need to read in the rest -- we'll just keep the whole byte array in memory
-            // TODO: Make this code smarter/more efficient.
-            int size = buffer.limit();
-            byte[] b = new byte[size];
-            buffer.rewind();
-            buffer.get(b);
-            mData = b;
-            mIndices = offsets;
-
-            // TODO: We only need to keep the data portion here since we've initialized
-            // the offset array separately.
-            // TODO: Investigate (profile) accessing the byte buffer directly instead of
-            // accessing a byte array.
+            mIndexOffset = indexOffset;
+            mData = buffer;
         } catch (IOException e) {
             client.log(e, null);
         }
         if (WRITE_STATS) {
             long end = System.currentTimeMillis();
-            System.out.println("\nRead typo database in " + (end - start)
+            System.out.println("\nMapped typo database in " + (end - start)
                     + " milliseconds.");
-            System.out.println("Size of data table: " + mData.length + " bytes ("
-                    + Integer.toString(mData.length/1024) + "k)\n");
+            System.out.println("Size of data table: " + mData.limit() + " bytes ("
+                    + Integer.toString(mData.limit()/1024) + "k)\n");
         }
     }
 
@@ -339,7 +328,7 @@ public class TypoLookup {
         Comparator<byte[]> comparator = new Comparator<byte[]>() {
             @Override
             public int compare(byte[] o1, byte[] o2) {
-                return TypoLookup.compare(o1, 0, (byte) 0, o2, 0, o2.length);
+                return TypoLookup.compare(ByteBuffer.wrap(o1), 0, (byte) 0, o2, 0, o2.length);
             }
         };
         Arrays.sort(wordArrays, comparator);
@@ -408,18 +397,32 @@ public class TypoLookup {
         byte[] b = new byte[size];
         buffer.rewind();
         buffer.get(b);
-        ByteSink sink = Files.asByteSink(file);
-        sink.write(b);
+        ApiLookup.writeCacheFile(file, b);
+    }
+
+    /** Returns the offset in {@link #mData} of the word with the given number */
+    private int getIndex(int index) {
+        return mData.getInt(mIndexOffset + 4 * index);
+    }
+
+    /** Decodes the UTF-8 string between the given offsets in {@link #mData} */
+    @NonNull
+    private String getString(int begin, int end) {
+        byte[] bytes = new byte[end - begin];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mData.get(begin + i);
+        }
+        return new String(bytes, Charsets.UTF_8);
     }
 
     // For debugging only
     private String dumpEntry(int offset) {
         if (DEBUG_SEARCH) {
             int end = offset;
-            while (mData[end] != 0) {
+            while (mData.get(end) != 0) {
                 end++;
             }
-            return new String(mData, offset, end - offset, Charsets.UTF_8);
+            return getString(offset, end);
         } else {
             return "<disabled>"; //$NON-NLS-1$
         }
@@ -427,12 +430,12 @@ public class TypoLookup {
 
     /** Comparison function: *only* used for ASCII strings */
     @VisibleForTesting
-    static int compare(byte[] data, int offset, byte terminator, CharSequence s,
+    static int compare(ByteBuffer data, int offset, byte terminator, CharSequence s,
             int begin, int end) {
         int i = offset;
         int j = begin;
         for (; ; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             if (b == ' ') {
                 // We've matched up to the space in a split-word typo, such as
                 // in German all zu⇒allzu; here we've matched just past "all".
@@ -478,17 +481,17 @@ public class TypoLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /** Comparison function used for general UTF-8 encoded strings */
     @VisibleForTesting
-    static int compare(byte[] data, int offset, byte terminator, byte[] s,
+    static int compare(ByteBuffer data, int offset, byte terminator, byte[] s,
             int begin, int end) {
         int i = offset;
         int j = begin;
         for (; ; i++, j++) {
-            byte b = data[i];
+            byte b = data.get(i);
             if (b == ' ') {
                 // We've matched up to the space in a split-word typo, such as
                 // in German all zu⇒allzu; here we've matched just past "all".
@@ -536,7 +539,7 @@ public class TypoLookup {
             }
         }
 
-        return data[i] - terminator;
+        return data.get(i) - terminator;
     }
 
     /**
@@ -569,7 +572,7 @@ public class TypoLookup {
         int high = mWordCount - 1;
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 System.out.println("Comparing string " + text +" with entry at " + offset
@@ -580,11 +583,11 @@ public class TypoLookup {
             int compare = compare(mData, offset, (byte) 0, text, begin, end);
 
             if (compare == 0) {
-                offset = mIndices[middle];
+                offset = getIndex(middle);
 
                 // Don't allow matching uncapitalized words, such as "enlish", when
                 // the dictionary word is capitalized, "Enlish".
-                if (mData[offset] != text.charAt(begin)
+                if (mData.get(offset) != text.charAt(begin)
                         && Character.isLowerCase(text.charAt(begin))) {
                     return null;
                 }
@@ -595,7 +598,7 @@ public class TypoLookup {
                 // typos (e.g. "enlish" to "Enlish").
                 String glob = null;
                 for (int i = begin; ; i++) {
-                    byte b = mData[offset++];
+                    byte b = mData.get(offset++);
                     if (b == 0) {
                         offset--;
                         break;
@@ -615,7 +618,7 @@ public class TypoLookup {
                     }
                 }
 
-                return computeSuggestions(mIndices[middle], offset, glob);
+                return computeSuggestions(getIndex(middle), offset, glob);
             }
 
             if (compare < 0) {
@@ -651,7 +654,7 @@ public class TypoLookup {
         int high = mWordCount - 1;
         while (low <= high) {
             int middle = (low + high) >>> 1;
-            int offset = mIndices[middle];
+            int offset = getIndex(middle);
 
             if (DEBUG_SEARCH) {
                 String s = new String(Arrays.copyOfRange(utf8Text, begin, end), Charsets.UTF_8);
@@ -668,11 +671,11 @@ public class TypoLookup {
             }
 
             if (compare == 0) {
-                offset = mIndices[middle];
+                offset = getIndex(middle);
 
                 // Don't allow matching uncapitalized words, such as "enlish", when
                 // the dictionary word is capitalized, "Enlish".
-                if (mData[offset] != utf8Text[begin] && isUpperCase(mData[offset])) {
+                if (mData.get(offset) != utf8Text[begin] && isUpperCase(mData.get(offset))) {
                     return null;
                 }
 
@@ -682,7 +685,7 @@ public class TypoLookup {
                 // typos (e.g. "enlish" to "Enlish").
                 String glob = null;
                 for (int i = begin; ; i++) {
-                    byte b = mData[offset++];
+                    byte b = mData.get(offset++);
                     if (b == 0) {
                         offset--;
                         break;
@@ -700,7 +703,7 @@ public class TypoLookup {
                     }
                 }
 
-                return computeSuggestions(mIndices[middle], offset, glob);
+                return computeSuggestions(getIndex(middle), offset, glob);
             }
 
             if (compare < 0) {
@@ -717,19 +720,19 @@ public class TypoLookup {
     }
 
     private List<String> computeSuggestions(int begin, int offset, String glob) {
-        String typo = new String(mData, begin, offset - begin, Charsets.UTF_8);
+        String typo = getString(begin, offset);
 
         if (glob != null) {
             typo = typo.replaceAll("\\*", glob); //$NON-NLS-1$
         }
 
-        assert mData[offset] == 0;
+        assert mData.get(offset) == 0;
         offset++;
         int replacementEnd = offset;
-        while (mData[replacementEnd] != 0) {
+        while (mData.get(replacementEnd) != 0) {
             replacementEnd++;
         }
-        String replacements = new String(mData, offset, replacementEnd - offset, Charsets.UTF_8);
+        String replacements = getString(offset, replacementEnd);
         List<String> words = new ArrayList<String>();
         words.add(typo);
 
@@ -71,6 +71,16 @@ public class UseCompoundDrawableDetector extends LayoutDetector {
     public UseCompoundDrawableDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -96,6 +96,16 @@ public class UselessViewDetector extends LayoutDetector {
     public UselessViewDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -61,6 +61,16 @@ public class WrongCaseDetector extends LayoutDetector {
     public WrongCaseDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -53,6 +53,16 @@ public class WrongLocationDetector extends LayoutDetector {
     public WrongLocationDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isFileLocal() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import com.android.tools.lint.EcjParser.EcjResult;
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class EcjParseCacheTest extends TestCase {
+    private static final List<String> CLASS_PATH = Collections.emptyList();
+
+    public void testSharesResults() {
+        EcjParseCache cache = new EcjParseCache();
+        List<EcjSourceFile> sources = createSources("class A {}");
+        EcjResult result = parse(sources);
+        EcjParseCache.Entry entry = cache.put(sources, CLASS_PATH, result);
+        assertSame(result, entry.getResult());
+        cache.release(entry);
+
+        EcjParseCache.Entry cached = cache.acquire(createSources("class A {}"), CLASS_PATH);
+        assertNotNull(cached);
+        assertSame(result, cached.getResult());
+        assertSame(sources.get(0), cached.getSourceUnits().get(sources.get(0).getFile()));
+        cache.release(cached);
+
+        cache.dispose();
+        assertTrue(result.getCompilationUnits().isEmpty());
+    }
+
+    public void testChangedSources() {
+        EcjParseCache cache = new EcjParseCache();
+        List<EcjSourceFile> sources = createSources("class A {}");
+        EcjResult result = parse(sources);
+        cache.release(cache.put(sources, CLASS_PATH, result));
+
+        assertNull(cache.acquire(createSources("class A { int a; }"), CLASS_PATH));
+        assertNull(cache.acquire(sources, Collections.singletonList("android.jar")));
+        assertTrue(result.getCompilationUnits().isEmpty());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        String source = "class A {}";
+        EcjParseCache cache = new EcjParseCache(2 * source.length());
+        List<EcjSourceFile> sources1 = createSources(source);
+        List<EcjSourceFile> sources2 = Lists.newArrayList(
+                new EcjSourceFile(source, new File("src/B.java")));
+        List<EcjSourceFile> sources3 = Lists.newArrayList(
+                new EcjSourceFile(source, new File("src/C.java")));
+        EcjResult result1 = parse(sources1);
+        EcjResult result2 = parse(sources2);
+        EcjResult result3 = parse(sources3);
+
+        cache.release(cache.put(sources1, CLASS_PATH, result1));
+        EcjParseCache.Entry entry2 = cache.put(sources2, CLASS_PATH, result2);
+        EcjParseCache.Entry entry1 = cache.acquire(sources1, CLASS_PATH);
+        assertNotNull(entry1);
+        cache.release(entry1);
+
+        // Evicts the second result, which is disposed once released
+        cache.release(cache.put(sources3, CLASS_PATH, result3));
+        assertNull(cache.acquire(sources2, CLASS_PATH));
+        assertFalse(result2.getCompilationUnits().isEmpty());
+        cache.release(entry2);
+        assertTrue(result2.getCompilationUnits().isEmpty());
+        assertFalse(result1.getCompilationUnits().isEmpty());
+        assertFalse(result3.getCompilationUnits().isEmpty());
+    }
+
+    public void testTooLargeNotCached() {
+        EcjParseCache cache = new EcjParseCache(1);
+        List<EcjSourceFile> sources = createSources("class A {}");
+        EcjResult result = parse(sources);
+        EcjParseCache.Entry entry = cache.put(sources, CLASS_PATH, result);
+        assertNull(cache.acquire(sources, CLASS_PATH));
+        assertFalse(result.getCompilationUnits().isEmpty());
+        cache.release(entry);
+        assertTrue(result.getCompilationUnits().isEmpty());
+    }
+
+    private static List<EcjSourceFile> createSources(String source) {
+        return Lists.newArrayList(new EcjSourceFile(source, new File("src/A.java")));
+    }
+
+    private static EcjResult parse(List<EcjSourceFile> sources) {
+        return EcjParser.parse(EcjParser.createCompilerOptions(), sources, CLASS_PATH, null);
+    }
+}
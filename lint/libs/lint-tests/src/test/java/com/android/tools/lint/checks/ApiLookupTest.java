@@ -29,6 +29,7 @@ import static com.android.tools.lint.detector.api.LintUtils.getChildren;
 import static com.google.common.base.Charsets.UTF_8;
 import static java.io.File.separatorChar;
 
+import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.ide.common.repository.GradleCoordinate;
@@ -60,6 +61,9 @@ import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -203,6 +207,29 @@ public class ApiLookupTest extends AbstractCheckTest {
     @SuppressWarnings("StringBufferField")
     private StringBuilder mLogBuffer = new StringBuilder();
 
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void testReplaceMappedCacheFile() throws Exception {
+        if (SdkConstants.CURRENT_PLATFORM == SdkConstants.PLATFORM_WINDOWS) {
+            // A mapped file cannot be replaced on Windows
+            return;
+        }
+
+        File dir = new File(getTempDir(), "mapped-cache");
+        dir.mkdirs();
+        File cacheFile = new File(dir, "cache.bin");
+        ApiLookup.writeCacheFile(cacheFile, new byte[] { 1, 2, 3, 4 });
+        MappedByteBuffer mapped = Files.map(cacheFile, MapMode.READ_ONLY);
+
+        // Regenerating the file, as another lint process would, must not change the
+        // contents seen through the existing mapping
+        ApiLookup.writeCacheFile(cacheFile, new byte[] { 5, 6 });
+        assertEquals(4, mapped.limit());
+        assertEquals(1, mapped.get(0));
+        assertEquals(4, mapped.get(3));
+        assertTrue(Arrays.equals(new byte[] { 5, 6 }, Files.toByteArray(cacheFile)));
+        assertEquals(Collections.singletonList("cache.bin"), Arrays.asList(dir.list()));
+    }
+
     @SuppressWarnings({"ConstantConditions", "IOResourceOpenedButNotSafelyClosed",
             "ResultOfMethodCallIgnored"})
     public void testCorruptedCacheHandling() throws Exception {
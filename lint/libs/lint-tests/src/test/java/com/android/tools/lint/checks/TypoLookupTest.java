@@ -26,6 +26,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -219,7 +220,7 @@ public class TypoLookupTest extends AbstractCheckTest {
             // by their hash codes)
 
             String prevText = words.get(0) + '\000';
-            byte[] prevBytes = prevText.getBytes(Charsets.UTF_8);
+            ByteBuffer prevBytes = ByteBuffer.wrap(prevText.getBytes(Charsets.UTF_8));
 
             for (int i = 1; i < words.size(); i++) {
                 String text = words.get(i) + '\000';
@@ -237,7 +238,7 @@ public class TypoLookupTest extends AbstractCheckTest {
 
     public void testComparison1() throws Exception {
         String prevText = "heraus gebracht\u0000";
-        byte[] prevBytes = prevText.getBytes(Charsets.UTF_8);
+        ByteBuffer prevBytes = ByteBuffer.wrap(prevText.getBytes(Charsets.UTF_8));
 
         String text = "Päsident\u0000";
         byte[] bytes = text.getBytes(Charsets.UTF_8);
@@ -255,7 +256,7 @@ public class TypoLookupTest extends AbstractCheckTest {
 
     public void testComparison2() throws Exception {
         String prevText = "intepretation\u0000";
-        byte[] prevBytes = prevText.getBytes(Charsets.UTF_8);
+        ByteBuffer prevBytes = ByteBuffer.wrap(prevText.getBytes(Charsets.UTF_8));
 
         String text = "Woudl\u0000";
         byte[] bytes = text.getBytes(Charsets.UTF_8);
@@ -269,7 +270,7 @@ public class TypoLookupTest extends AbstractCheckTest {
 
         // Reverse capitalization and ensure that it's still the same
         prevText = "Intepretation\u0000";
-        prevBytes = prevText.getBytes(Charsets.UTF_8);
+        prevBytes = ByteBuffer.wrap(prevText.getBytes(Charsets.UTF_8));
 
         text = "woudl\u0000";
         bytes = text.getBytes(Charsets.UTF_8);
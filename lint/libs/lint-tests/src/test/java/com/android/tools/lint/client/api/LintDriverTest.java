@@ -19,18 +19,38 @@ package com.android.tools.lint.client.api;
 import com.android.annotations.NonNull;
 import com.android.tools.lint.checks.AbstractCheckTest;
 import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.checks.BuiltinIssueRegistry;
+import com.android.tools.lint.checks.DuplicateIdDetector;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.UselessViewDetector;
+import com.android.tools.lint.detector.api.Category;
 import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.LayoutDetector;
 import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.XmlContext;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.w3c.dom.Element;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 @SuppressWarnings("javadoc")
 public class LintDriverTest extends AbstractCheckTest {
+    private int mThreadCount = 1;
+    /** The detectors to run, besides the {@link #getDetector()} one */
+    private List<Class<? extends Detector>> mDetectors = Collections.emptyList();
+
     @SuppressWarnings({"ResultOfMethodCallIgnored", "ConstantConditions"})
     public void testClassEntryCompare() throws Exception {
         ClassEntry c0 = new ClassEntry(new File("/a1/Foo.class"), null, null, null);
@@ -66,6 +86,121 @@ public class LintDriverTest extends AbstractCheckTest {
         assertEquals("No warnings.", lintProject("res/layout/layout1.xml"));
     }
 
+    public void testConcurrentResourceChecks() throws Exception {
+        String[] files = {
+                "res/layout/accessibility.xml",
+                "res/layout/accessibility2.xml",
+                "res/layout/accessibility.xml=>res/layout/accessibility3.xml",
+                "res/layout/accessibility2.xml=>res/layout/accessibility4.xml",
+                "res/layout/accessibility.xml=>res/layout-land/accessibility.xml",
+                "res/layout/compound.xml",
+                "res/layout/layout1.xml"
+        };
+        assertTrue(new AccessibilityDetector().isThreadSafe());
+        String expected = lintProject(files);
+        assertFalse(expected.equals("No warnings."));
+
+        mThreadCount = 4;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(expected, lintProject(files));
+        }
+    }
+
+    public void testConcurrentAndSerialResourceChecks() throws Exception {
+        String[] files = {
+                "res/layout/accessibility.xml",
+                "res/layout/accessibility2.xml",
+                "res/layout/duplicate.xml",
+                "res/layout/layout1.xml",
+                "res/layout/layout2.xml",
+                "res/layout/layout3.xml",
+                "res/layout/layout4.xml",
+                "res/layout/duplicate.xml=>res/layout-land/duplicate.xml",
+                "res/layout/layout1.xml=>res/layout-land/layout1.xml",
+                "res/layout/compound.xml",
+                "res/values/strings.xml"
+        };
+        mDetectors = Arrays.asList(
+                HardcodedValuesDetector.class,
+                UselessViewDetector.class,
+                DuplicateIdDetector.class,
+                ThreadRecordingDetector.class);
+        assertTrue(new HardcodedValuesDetector().isThreadSafe());
+        assertTrue(new UselessViewDetector().isThreadSafe());
+        assertFalse(new DuplicateIdDetector().isThreadSafe());
+        ThreadRecordingDetector.getThreads().clear();
+        String expected = lintProject(files);
+        assertTrue(expected, expected.contains("[DuplicateIds]"));
+        assertTrue(expected, expected.contains("[HardcodedText]"));
+        assertEquals(Collections.singleton(Thread.currentThread()),
+                ThreadRecordingDetector.getThreads());
+
+        mThreadCount = 4;
+        for (int i = 0; i < 5; i++) {
+            ThreadRecordingDetector.getThreads().clear();
+            assertEquals(expected, lintProject(files));
+            // The thread-safe detectors are not held back by the DuplicateIdDetector
+            Set<Thread> threads = ThreadRecordingDetector.getThreads();
+            assertFalse(threads.isEmpty());
+            assertFalse(threads.contains(Thread.currentThread()));
+        }
+    }
+
+    /** A thread-safe detector recording the threads the layouts are visited from */
+    public static class ThreadRecordingDetector extends LayoutDetector {
+        private static final Set<Thread> sThreads =
+                Collections.synchronizedSet(Sets.<Thread>newHashSet());
+
+        static final Issue ISSUE = Issue.create(
+                "ThreadRecording",
+                "Records threads",
+                "Records the threads the layouts are visited from.",
+                Category.CORRECTNESS,
+                1,
+                Severity.WARNING,
+                new Implementation(ThreadRecordingDetector.class, Scope.RESOURCE_FILE_SCOPE));
+
+        @NonNull
+        static Set<Thread> getThreads() {
+            return sThreads;
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public Collection<String> getApplicableElements() {
+            return ALL;
+        }
+
+        @Override
+        public void visitElement(@NonNull XmlContext context, @NonNull Element element) {
+            sThreads.add(Thread.currentThread());
+        }
+    }
+
+    @Override
+    protected List<Issue> getIssues() {
+        List<Issue> issues = super.getIssues();
+        for (Issue issue : new BuiltinIssueRegistry().getIssues()) {
+            if (mDetectors.contains(issue.getImplementation().getDetectorClass())) {
+                issues.add(issue);
+            }
+        }
+        if (mDetectors.contains(ThreadRecordingDetector.class)) {
+            issues.add(ThreadRecordingDetector.ISSUE);
+        }
+        return issues;
+    }
+
+    @Override
+    protected boolean isEnabled(Issue issue) {
+        return super.isEnabled(issue)
+                || mDetectors.contains(issue.getImplementation().getDetectorClass());
+    }
+
     @Override
     protected TestLintClient createClient() {
         return new TestLintClient() {
@@ -83,6 +218,11 @@ public class LintDriverTest extends AbstractCheckTest {
         };
     }
 
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setThreadCount(mThreadCount);
+    }
+
     @Override
     protected Detector getDetector() {
         return new AccessibilityDetector();
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.tools.lint.checks.AlarmDetector;
+import com.android.tools.lint.checks.AlwaysShowActionDetector;
+import com.android.tools.lint.detector.api.Scope;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+@SuppressWarnings("javadoc")
+public class LintProfilerTest extends TestCase {
+    public void testProfiles() throws Exception {
+        LintProfiler profiler = new LintProfiler();
+        AlarmDetector alarm1 = new AlarmDetector();
+        AlarmDetector alarm2 = new AlarmDetector();
+        AlwaysShowActionDetector action = new AlwaysShowActionDetector();
+
+        profiler.enter(alarm1, Scope.JAVA_FILE);
+        profiler.enter(alarm2, Scope.JAVA_FILE);
+        profiler.enter(action, Scope.RESOURCE_FILE);
+        Thread.sleep(20);
+        profiler.exit();
+        // Not charged to any detector
+        Thread.sleep(20);
+        profiler.enter(action, null);
+        profiler.exit();
+
+        List<LintProfiler.Profile> profiles = profiler.getProfiles();
+        assertEquals(3, profiles.size());
+
+        // Most expensive first
+        LintProfiler.Profile first = profiles.get(0);
+        assertSame(AlwaysShowActionDetector.class, first.getDetectorClass());
+        assertSame(Scope.RESOURCE_FILE, first.getScope());
+        assertEquals(1, first.getInvocationCount());
+        assertTrue(first.getTime() >= 20000000L);
+
+        // Instances of the same detector class are merged
+        LintProfiler.Profile alarm = null;
+        LintProfiler.Profile project = null;
+        for (LintProfiler.Profile profile : profiles) {
+            if (profile.getDetectorClass() == AlarmDetector.class) {
+                alarm = profile;
+            } else if (profile.getScope() == null) {
+                project = profile;
+            }
+        }
+        assertNotNull(alarm);
+        assertSame(Scope.JAVA_FILE, alarm.getScope());
+        assertEquals(2, alarm.getInvocationCount());
+        assertNotNull(project);
+        assertSame(AlwaysShowActionDetector.class, project.getDetectorClass());
+        assertEquals(1, project.getInvocationCount());
+    }
+
+    public void testThreads() throws Exception {
+        final LintProfiler profiler = new LintProfiler();
+        final AlarmDetector alarm = new AlarmDetector();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                profiler.enter(alarm, Scope.CLASS_FILE);
+                profiler.exit();
+            }
+        };
+        thread.start();
+        thread.join();
+        profiler.enter(alarm, Scope.CLASS_FILE);
+        profiler.exit();
+
+        List<LintProfiler.Profile> profiles = profiler.getProfiles();
+        assertEquals(1, profiles.size());
+        assertEquals(2, profiles.get(0).getInvocationCount());
+    }
+}
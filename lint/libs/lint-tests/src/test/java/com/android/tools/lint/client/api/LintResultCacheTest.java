@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.tools.lint.checks.AbstractCheckTest;
+import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Severity;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+@SuppressWarnings("javadoc")
+public class LintResultCacheTest extends AbstractCheckTest {
+    private static final String LAYOUT = "res/layout/accessibility.xml";
+
+    private File mCacheDir;
+    private Severity mSeverity;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (mCacheDir != null) {
+            deleteFile(mCacheDir);
+            mCacheDir = null;
+        }
+    }
+
+    public void testReplay() throws Exception {
+        assertTrue(new AccessibilityDetector().isFileLocal());
+        String expected = lintProject(LAYOUT);
+        assertFalse(expected.equals("No warnings."));
+
+        File[] entries = getEntries();
+        assertEquals(1, entries.length);
+        File entry = entries[0];
+        // Edit the cached messages such that replayed issues can be told apart
+        String contents = new String(Files.toByteArray(entry), Charsets.ISO_8859_1);
+        assertTrue(contents.contains("Missing"));
+        Files.write(contents.replace("Missing", "MISSING").getBytes(Charsets.ISO_8859_1),
+                entry);
+
+        assertEquals(expected.replace("Missing", "MISSING"), lintProject(LAYOUT));
+        assertEquals(Arrays.asList(entries), Arrays.asList(getEntries()));
+    }
+
+    public void testKeyDependsOnContents() throws Exception {
+        String expected = lintProject(LAYOUT);
+        assertEquals(1, getEntries().length);
+
+        String changed = lintProject(xml(LAYOUT, ""
+                        + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                        + "    <Button android:text=\"Button\" android:layout_width=\"wrap_content\" android:layout_height=\"wrap_content\" />\n"
+                        + "    <ImageView android:layout_width=\"wrap_content\" android:layout_height=\"wrap_content\" android:src=\"@drawable/android_button\" />\n"
+                        + "</LinearLayout>\n"));
+        assertTrue(changed, changed.contains("accessibility.xml:3: Warning"));
+        assertTrue(changed, changed.endsWith("0 errors, 1 warnings\n"));
+        assertEquals(2, getEntries().length);
+
+        // The entry of the original contents is still used
+        assertEquals(expected, lintProject(LAYOUT));
+        assertEquals(2, getEntries().length);
+    }
+
+    public void testKeyDependsOnSeverity() throws Exception {
+        String expected = lintProject(LAYOUT);
+        assertEquals(1, getEntries().length);
+
+        mSeverity = Severity.ERROR;
+        String errors = lintProject(LAYOUT);
+        assertFalse(errors, errors.contains("Warning:"));
+        assertEquals(getIssueLines(expected).replace("Warning:", "Error:"),
+                getIssueLines(errors));
+        assertEquals(2, getEntries().length);
+    }
+
+    public void testCorruptEntryIsIgnored() throws Exception {
+        String expected = lintProject(LAYOUT);
+        File entry = getEntries()[0];
+        long length = entry.length();
+        Files.write(new byte[] { 0, 0, 0, 2, 0x7f, 0x7f, 0x7f, 0x7f }, entry);
+
+        assertEquals(expected, lintProject(LAYOUT));
+        // The entry is stored again
+        assertEquals(length, entry.length());
+    }
+
+    public void testTruncatedEntryIsIgnored() throws Exception {
+        String expected = lintProject(LAYOUT);
+        File entry = getEntries()[0];
+        long length = entry.length();
+        RandomAccessFile file = new RandomAccessFile(entry, "rw");
+        try {
+            file.setLength(length / 2);
+        } finally {
+            file.close();
+        }
+
+        assertEquals(expected, lintProject(LAYOUT));
+        assertEquals(length, entry.length());
+    }
+
+    /** Returns the given lint output without its summary line */
+    @NonNull
+    private static String getIssueLines(@NonNull String output) {
+        return output.substring(0, output.lastIndexOf('\n', output.length() - 2) + 1);
+    }
+
+    @NonNull
+    private File[] getEntries() {
+        File[] entries = new File(mCacheDir, "lint-results").listFiles();
+        assertNotNull(entries);
+        return entries;
+    }
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setCachingResults(true);
+    }
+
+    @Override
+    protected TestLintClient createClient() {
+        return new TestLintClient() {
+            @Override
+            public File getCacheDir(boolean create) {
+                return mCacheDir;
+            }
+        };
+    }
+
+    @Override
+    protected TestConfiguration getConfiguration(LintClient client, Project project) {
+        return new TestConfiguration(client, project, null) {
+            @NonNull
+            @Override
+            public Severity getSeverity(@NonNull Issue issue) {
+                if (mSeverity != null && issue == AccessibilityDetector.ISSUE) {
+                    return mSeverity;
+                }
+                return super.getSeverity(issue);
+            }
+        };
+    }
+
+    @Override
+    protected Detector getDetector() {
+        return new AccessibilityDetector();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.benchmark;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ProguardMap;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of each phase of loading and analyzing a heap dump, on synthetic dumps of several
+ * sizes. A phase is measured on a snapshot that went through all the previous phases in the
+ * setup of the invocation, so every invocation starts from the same state.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class HeapDumpBenchmark {
+    private static final long SEED = 42;
+
+    @State(Scope.Benchmark)
+    public static class DumpFile {
+        @Param({"10000", "100000", "1000000"})
+        public int instanceCount;
+
+        public File file;
+
+        public ForkJoinPool pool;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = File.createTempFile("perflib-benchmark", ".hprof");
+            SyntheticHeapDump.write(file, instanceCount, SEED);
+            pool = new ForkJoinPool();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            pool.shutdown();
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        public Snapshot parse() throws IOException {
+            return Snapshot.createSnapshot(new MemoryMappedFileBuffer(file), new ProguardMap());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ParsedSnapshot {
+        public Snapshot snapshot;
+
+        @Setup(Level.Invocation)
+        public void setUp(DumpFile dump) throws IOException {
+            snapshot = dump.parse();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            snapshot.dispose();
+            snapshot = null;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PreparedSnapshot {
+        public Snapshot snapshot;
+
+        @Setup(Level.Invocation)
+        public void setUp(DumpFile dump) throws IOException {
+            snapshot = dump.parse();
+            snapshot.prepareDominatorComputation();
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            snapshot.dispose();
+            snapshot = null;
+        }
+    }
+
+    @Benchmark
+    public Snapshot parse(DumpFile dump) throws IOException {
+        Snapshot snapshot = dump.parse();
+        snapshot.dispose();
+        return snapshot;
+    }
+
+    @Benchmark
+    public Snapshot parseInParallel(DumpFile dump) throws IOException {
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(dump.file),
+                new ProguardMap(), dump.pool);
+        snapshot.dispose();
+        return snapshot;
+    }
+
+    @Benchmark
+    public Snapshot parseIndexed(DumpFile dump) throws IOException {
+        Snapshot snapshot = Snapshot.createIndexedSnapshot(new MemoryMappedFileBuffer(dump.file),
+                new ProguardMap());
+        snapshot.dispose();
+        return snapshot;
+    }
+
+    @Benchmark
+    public Snapshot resolveReferences(ParsedSnapshot parsed) {
+        parsed.snapshot.resolveReferences();
+        return parsed.snapshot;
+    }
+
+    /** Resolves references, then computes the shortest distances and the topological sort. */
+    @Benchmark
+    public Snapshot prepareDominatorComputation(ParsedSnapshot parsed) {
+        parsed.snapshot.prepareDominatorComputation();
+        return parsed.snapshot;
+    }
+
+    @Benchmark
+    public Snapshot computeDominators(PreparedSnapshot prepared) {
+        prepared.snapshot.doComputeDominators(new LinkEvalDominators(prepared.snapshot));
+        return prepared.snapshot;
+    }
+
+    @Benchmark
+    public Snapshot computeDominatorsInParallel(PreparedSnapshot prepared, DumpFile dump) {
+        prepared.snapshot.computeDominators(dump.pool);
+        return prepared.snapshot;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.benchmark;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.hprof.Hprof;
+import com.android.tools.perflib.heap.hprof.HprofClassDump;
+import com.android.tools.perflib.heap.hprof.HprofConstant;
+import com.android.tools.perflib.heap.hprof.HprofDumpRecord;
+import com.android.tools.perflib.heap.hprof.HprofHeapDumpEnd;
+import com.android.tools.perflib.heap.hprof.HprofHeapDumpInfo;
+import com.android.tools.perflib.heap.hprof.HprofHeapDumpSegment;
+import com.android.tools.perflib.heap.hprof.HprofInstanceDump;
+import com.android.tools.perflib.heap.hprof.HprofInstanceField;
+import com.android.tools.perflib.heap.hprof.HprofLoadClass;
+import com.android.tools.perflib.heap.hprof.HprofPrimitiveArrayDump;
+import com.android.tools.perflib.heap.hprof.HprofRecord;
+import com.android.tools.perflib.heap.hprof.HprofRootUnknown;
+import com.android.tools.perflib.heap.hprof.HprofStaticField;
+import com.android.tools.perflib.heap.hprof.HprofStringBuilder;
+import com.android.tools.perflib.heap.hprof.HprofType;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes hprof heap dumps of synthetic object graphs, for the benchmarks to parse and analyze.
+ *
+ * The app heap holds {@code instanceCount} instances of {@link #CLASS_COUNT} classes. Each
+ * instance references its parent in a binary tree, making for deep dominator trees, and a random
+ * other instance, so that not every instance is dominated by its parent. One instance in
+ * {@link #CHARS_INTERVAL} also owns a char array, and one in {@link #ROOT_INTERVAL} is a GC root.
+ * The same count and seed always give the same dump.
+ */
+public final class SyntheticHeapDump {
+    public static final int CLASS_COUNT = 100;
+
+    public static final int CHARS_INTERVAL = 10;
+
+    public static final int ROOT_INTERVAL = 1000;
+
+    private static final int ID_SIZE = 4;
+
+    /** Heap dump records written in each segment, so that segments can be parsed in parallel. */
+    private static final int RECORDS_PER_SEGMENT = 10000;
+
+    private static final int CHARS_LENGTH = 16;
+
+    private static final long CHAR_ARRAY_CLASS_ID = CLASS_COUNT + 1;
+
+    private static final long INSTANCE_ID_BASE = 0x100000;
+
+    private SyntheticHeapDump() {
+    }
+
+    private static long getInstanceId(int index) {
+        return INSTANCE_ID_BASE + 8L * index;
+    }
+
+    private static long getCharsId(int index) {
+        return getInstanceId(index) + 4;
+    }
+
+    public static void write(@NonNull File file, int instanceCount, long seed)
+            throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            createHprof(instanceCount, seed).write(os);
+        } finally {
+            os.close();
+        }
+    }
+
+    @NonNull
+    private static Hprof createHprof(int instanceCount, long seed) throws IOException {
+        Random random = new Random(seed);
+        HprofStringBuilder strings = new HprofStringBuilder(0);
+        List<HprofRecord> records = new ArrayList<HprofRecord>();
+        List<HprofDumpRecord> roots = new ArrayList<HprofDumpRecord>();
+        List<HprofDumpRecord> dump = new ArrayList<HprofDumpRecord>();
+
+        byte objType = HprofType.TYPE_OBJECT;
+        HprofInstanceField[] fields = {
+                new HprofInstanceField(strings.get("parent"), objType),
+                new HprofInstanceField(strings.get("link"), objType),
+                new HprofInstanceField(strings.get("chars"), objType),
+                new HprofInstanceField(strings.get("value"), HprofType.TYPE_INT)};
+        int instanceSize = 3 * ID_SIZE + 4;
+
+        for (int i = 1; i <= CLASS_COUNT; i++) {
+            records.add(new HprofLoadClass(0, i, i, 0,
+                    strings.get("com.example.synthetic.Class" + i)));
+            dump.add(new HprofClassDump(i, 0, 0, 0, 0, 0, 0, 0, instanceSize,
+                    new HprofConstant[0], new HprofStaticField[0], fields));
+        }
+        records.add(new HprofLoadClass(0, CLASS_COUNT + 1, CHAR_ARRAY_CLASS_ID, 0,
+                strings.get("char[]")));
+        dump.add(new HprofClassDump(CHAR_ARRAY_CLASS_ID, 0, 0, 0, 0, 0, 0, 0, 0,
+                new HprofConstant[0], new HprofStaticField[0], new HprofInstanceField[0]));
+
+        long[] chars = new long[CHARS_LENGTH];
+        for (int i = 0; i < instanceCount; i++) {
+            if (i % ROOT_INTERVAL == 0) {
+                roots.add(new HprofRootUnknown(getInstanceId(i)));
+            }
+
+            boolean hasChars = i % CHARS_INTERVAL == 0;
+            ByteArrayDataOutput values = ByteStreams.newDataOutput(instanceSize);
+            values.writeInt(i == 0 ? 0 : (int) getInstanceId((i - 1) / 2));
+            values.writeInt((int) getInstanceId(random.nextInt(instanceCount)));
+            values.writeInt(hasChars ? (int) getCharsId(i) : 0);
+            values.writeInt(i);
+            dump.add(new HprofInstanceDump(getInstanceId(i), 0, 1 + i % CLASS_COUNT,
+                    values.toByteArray()));
+
+            if (hasChars) {
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = 'a' + random.nextInt(26);
+                }
+                dump.add(new HprofPrimitiveArrayDump(getCharsId(i), 0, HprofType.TYPE_CHAR,
+                        chars.clone()));
+            }
+        }
+
+        // Roots are in the default heap. The parser goes back to it after each segment, so the
+        // other segments start by switching to the app heap.
+        records.add(new HprofHeapDumpSegment(0,
+                roots.toArray(new HprofDumpRecord[roots.size()])));
+        HprofDumpRecord appHeap =
+                new HprofHeapDumpInfo(HprofHeapDumpInfo.HEAP_APP, strings.get("app"));
+        for (int start = 0; start < dump.size(); start += RECORDS_PER_SEGMENT) {
+            List<HprofDumpRecord> segment = new ArrayList<HprofDumpRecord>();
+            segment.add(appHeap);
+            segment.addAll(dump.subList(start,
+                    Math.min(dump.size(), start + RECORDS_PER_SEGMENT)));
+            records.add(new HprofHeapDumpSegment(0,
+                    segment.toArray(new HprofDumpRecord[segment.size()])));
+        }
+        records.add(new HprofHeapDumpEnd(0));
+
+        List<HprofRecord> allRecords = new ArrayList<HprofRecord>();
+        allRecords.addAll(strings.getStringRecords());
+        allRecords.addAll(records);
+        return new Hprof("JAVA PROFILE 1.0.3", ID_SIZE, new Date(0), allRecords);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.benchmark;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Writes method traces of synthetic call hierarchies, in the version 3 format with dual clocks
+ * read by {@link com.android.tools.perflib.vmtrace.VmTraceParser}.
+ *
+ * Each of the {@link #THREAD_COUNT} threads makes {@code callsPerThread} calls of random methods
+ * at random depths up to {@link #MAX_DEPTH}. The events of the threads are interleaved, as they
+ * are in traces of real applications. The same count and seed always give the same trace.
+ */
+public final class SyntheticMethodTrace {
+    public static final int THREAD_COUNT = 8;
+
+    public static final int METHOD_COUNT = 1000;
+
+    public static final int MAX_DEPTH = 64;
+
+    private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
+
+    private static final int DATA_HEADER_SIZE = 32;
+
+    private static final int RECORD_SIZE = 14;
+
+    /** Events written for a thread before switching to the next one. */
+    private static final int EVENTS_PER_SLICE = 100;
+
+    private SyntheticMethodTrace() {
+    }
+
+    private static int getMethodId(int index) {
+        return 0x1000 + (index << 2);
+    }
+
+    public static void write(@NonNull File file, int callsPerThread, long seed)
+            throws IOException {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeHeader(os);
+            writeData(os, callsPerThread, new Random(seed));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static void writeHeader(@NonNull OutputStream os) throws IOException {
+        StringBuilder header = new StringBuilder();
+        header.append("*version\n3\ndata-file-overflow=false\nclock=dual\nvm=art\n");
+        header.append("*threads\n");
+        for (int i = 1; i <= THREAD_COUNT; i++) {
+            header.append(i).append("\tThread-").append(i).append('\n');
+        }
+        header.append("*methods\n");
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            header.append(String.format("0x%x\tcom/example/synthetic/Class%d\tmethod%d\t()V\t"
+                    + "Class%d.java\t%d\n", getMethodId(i), i / 10, i, i / 10, i));
+        }
+        header.append("*end\n");
+        os.write(header.toString().getBytes(Charsets.US_ASCII));
+
+        ByteBuffer data = ByteBuffer.allocate(DATA_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(TRACE_MAGIC);
+        data.putShort((short) 3);
+        data.putShort((short) DATA_HEADER_SIZE);
+        data.putLong(0);
+        data.putShort((short) RECORD_SIZE);
+        os.write(data.array());
+    }
+
+    private static void writeData(@NonNull OutputStream os, int callsPerThread,
+            @NonNull Random random) throws IOException {
+        int[][] stacks = new int[THREAD_COUNT][MAX_DEPTH];
+        int[] depths = new int[THREAD_COUNT];
+        int[] calls = new int[THREAD_COUNT];
+        int[] threadTimes = new int[THREAD_COUNT];
+        int globalTime = 0;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        boolean done = false;
+        while (!done) {
+            done = true;
+            for (int thread = 0; thread < THREAD_COUNT; thread++) {
+                int[] stack = stacks[thread];
+                for (int i = 0; i < EVENTS_PER_SLICE; i++) {
+                    int action;
+                    int methodId;
+                    boolean canEnter = calls[thread] < callsPerThread
+                            && depths[thread] < MAX_DEPTH;
+                    if (canEnter && (depths[thread] == 0 || random.nextInt(3) != 0)) {
+                        methodId = getMethodId(random.nextInt(METHOD_COUNT));
+                        stack[depths[thread]++] = methodId;
+                        calls[thread]++;
+                        action = 0;
+                    } else if (depths[thread] > 0) {
+                        methodId = stack[--depths[thread]];
+                        action = 1;
+                    } else {
+                        break;
+                    }
+
+                    int elapsed = 1 + random.nextInt(10);
+                    threadTimes[thread] += elapsed;
+                    globalTime += elapsed;
+
+                    record.clear();
+                    record.putShort((short) (thread + 1));
+                    record.putInt(methodId | action);
+                    record.putInt(threadTimes[thread]);
+                    record.putInt(globalTime);
+                    os.write(record.array());
+                }
+                if (calls[thread] < callsPerThread || depths[thread] > 0) {
+                    done = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.benchmark;
+
+import com.android.tools.perflib.vmtrace.VmTraceData;
+import com.android.tools.perflib.vmtrace.VmTraceParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of parsing method traces and computing their method statistics, on synthetic traces
+ * of several sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MINUTES)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class VmTraceBenchmark {
+    private static final long SEED = 42;
+
+    @Param({"10000", "100000", "1000000"})
+    public int callsPerThread;
+
+    private File mFile;
+
+    private ForkJoinPool mPool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("perflib-benchmark", ".trace");
+        SyntheticMethodTrace.write(mFile, callsPerThread, SEED);
+        mPool = new ForkJoinPool();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mPool.shutdown();
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public VmTraceData parse() throws IOException {
+        VmTraceParser parser = new VmTraceParser(mFile);
+        parser.parse();
+        return parser.getTraceData();
+    }
+
+    @Benchmark
+    public VmTraceData parseCompact() throws IOException {
+        VmTraceParser parser = new VmTraceParser(mFile, true);
+        parser.parse();
+        return parser.getTraceData();
+    }
+
+    @Benchmark
+    public VmTraceData parseCompactInParallel() throws IOException {
+        VmTraceParser parser = new VmTraceParser(mFile, true);
+        parser.parse(mPool);
+        return parser.getTraceData();
+    }
+}
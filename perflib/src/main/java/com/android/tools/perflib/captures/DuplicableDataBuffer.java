@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.captures;
+
+import com.android.annotations.NonNull;
+
+/**
+ * A {@link DataBuffer} that can hand out additional read cursors over the same data, so that
+ * different parts of it can be read from several threads at once.
+ */
+public interface DuplicableDataBuffer extends DataBuffer {
+
+    /**
+     * Returns a buffer sharing this buffer's content but with its own, independent position.
+     * Disposing the duplicate does not release the shared content.
+     */
+    @NonNull
+    DataBuffer duplicate();
+}
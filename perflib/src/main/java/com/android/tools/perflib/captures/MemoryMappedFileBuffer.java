@@ -28,7 +28,7 @@ import java.nio.channels.FileChannel;
 
 import sun.nio.ch.DirectBuffer;
 
-public class MemoryMappedFileBuffer implements DataBuffer {
+public class MemoryMappedFileBuffer implements DuplicableDataBuffer {
 
     // Default chunk size is 1 << 30, or 1,073,741,824 bytes.
     private static final int DEFAULT_SIZE = 1 << 30;
@@ -47,6 +47,9 @@ public class MemoryMappedFileBuffer implements DataBuffer {
 
     private long mCurrentPosition;
 
+    //  Duplicates share the mapped shards of their source and must not unmap them.
+    private final boolean mOwnsBuffers;
+
     @VisibleForTesting
     public MemoryMappedFileBuffer(@NonNull File f, int bufferSize,
             int padding) throws IOException {
@@ -55,6 +58,7 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         mLength = f.length();
         int shards = (int) (mLength / mBufferSize) + 1;
         mByteBuffers = new ByteBuffer[shards];
+        mOwnsBuffers = true;
 
         FileInputStream inputStream = new FileInputStream(f);
         try {
@@ -85,12 +89,34 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer source) {
+        mBufferSize = source.mBufferSize;
+        mPadding = source.mPadding;
+        mLength = source.mLength;
+        mByteBuffers = new ByteBuffer[source.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = source.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = 0;
+        mOwnsBuffers = false;
+    }
+
+    @NonNull
+    @Override
+    public DataBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
      */
     @Override
     public void dispose() {
+        if (!mOwnsBuffers) {
+            return;
+        }
         try {
             for (int i = 0; i < mByteBuffers.length; i++) {
                 ((DirectBuffer) mByteBuffers[i]).cleaner().clean();
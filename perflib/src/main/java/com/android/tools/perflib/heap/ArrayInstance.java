@@ -91,7 +91,7 @@ public class ArrayInstance extends Instance {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitArrayInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -78,7 +78,7 @@ public class ClassInstance extends Instance {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassInstance(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
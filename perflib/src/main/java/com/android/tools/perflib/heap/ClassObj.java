@@ -47,6 +47,9 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     private boolean mIsSoftReference = false;
 
+    //  Set for classes of indexed snapshots, whose instances are added on first request.
+    private boolean mInstancesDeferred = false;
+
     @NonNull
     TIntObjectHashMap<HeapData> mHeapData = new TIntObjectHashMap<HeapData>();
 
@@ -94,6 +97,21 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         heapData.mShallowSize += instance.getSize();
     }
 
+    final void setInstancesDeferred() {
+        mInstancesDeferred = true;
+    }
+
+    private void resolveInstances() {
+        if (mInstancesDeferred) {
+            mInstancesDeferred = false;
+            mHeap.mSnapshot.resolveInstancesOf(this);
+        }
+    }
+
+    long getStaticFieldsOffset() {
+        return mStaticFieldsOffset;
+    }
+
     public final void setSuperClassId(long superClass) {
         mSuperClassId = superClass;
     }
@@ -133,6 +151,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public int getShallowSize(int heapId) {
+        resolveInstances();
         HeapData heapData = mHeapData.get(heapId);
         return heapData == null ? 0 : mHeapData.get(heapId).mShallowSize;
     }
@@ -202,7 +221,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassObj(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -249,6 +268,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public List<Instance> getInstancesList() {
+        resolveInstances();
         int count = getInstanceCount();
         ArrayList<Instance> resultList = new ArrayList<Instance>(count);
         for (int heapId : mHeapData.keys()) {
@@ -259,16 +279,19 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
 
     @NonNull
     public List<Instance> getHeapInstances(int heapId) {
+        resolveInstances();
         HeapData result = mHeapData.get(heapId);
         return result == null ? new ArrayList<Instance>(0) : result.mInstances;
     }
 
     public int getHeapInstancesCount(int heapId) {
+      resolveInstances();
       HeapData result = mHeapData.get(heapId);
       return result == null ? 0 : result.mInstances.size();
     }
 
     public int getInstanceCount() {
+        resolveInstances();
         int count = 0;
         for (Object heapStat : mHeapData.getValues()) {
             count += ((HeapData)heapStat).mInstances.size();
@@ -277,6 +300,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     }
 
     public int getShallowSize() {
+        resolveInstances();
         int size = 0;
         for (Object heapStat : mHeapData.getValues()) {
             size += ((HeapData)heapStat).mShallowSize;
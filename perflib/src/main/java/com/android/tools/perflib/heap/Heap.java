@@ -17,10 +17,13 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Collection;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.*;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
@@ -50,6 +53,11 @@ public class Heap {
     //  List of instances of above class definitions
     private final TLongObjectHashMap<Instance> mInstances = new TLongObjectHashMap<Instance>();
 
+    //  Instances created from the InstanceIndex of an indexed snapshot, by id. Values are softly
+    //  held, so that the object graph is not rebuilt in memory by a traversal of the heap.
+    private final Cache<Long, Instance> mMaterializedInstances =
+            CacheBuilder.newBuilder().softValues().build();
+
     //  The snapshot that this heap is part of
     Snapshot mSnapshot;
 
@@ -85,7 +93,44 @@ public class Heap {
     }
 
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        Instance instance = mInstances.get(id);
+        if (instance == null && mSnapshot != null && mSnapshot.isIndexed()) {
+            instance = mMaterializedInstances.getIfPresent(id);
+            if (instance == null) {
+                instance = materializeInstance(id);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the instance with the given id from the snapshot's {@link InstanceIndex}, if it
+     * belongs to this heap. Materialized instances are softly cached, so that later lookups return
+     * the same object for as long as it is in use.
+     */
+    private Instance materializeInstance(long id) {
+        InstanceIndex index = mSnapshot.getInstanceIndex();
+        assert index != null;
+        if (!index.isSealed()) {
+            return null;
+        }
+        int row = index.indexOf(id);
+        if (row < 0 || index.getKind(row) == InstanceIndex.KIND_CLASS_OBJ
+                || index.getHeapIndex(row) != mSnapshot.getHeapIndex(this)) {
+            return null;
+        }
+        Instance instance = index.materialize(this, row);
+        mMaterializedInstances.put(id, instance);
+        return instance;
+    }
+
+    /**
+     * Returns the number of instances held by this heap, which for indexed snapshots are the
+     * instances created from the index that are still cached.
+     */
+    @VisibleForTesting
+    int getCachedInstanceCount() {
+        return mInstances.size() + (int) mMaterializedInstances.size();
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
@@ -154,11 +199,38 @@ public class Heap {
         return mClassesByName.values();
     }
 
+    /**
+     * Runs the procedure on every instance of this heap. For indexed snapshots, instances that are
+     * not cached yet are created from the index for the call only and are not added to the cache.
+     */
     public void forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
+        if (mSnapshot != null && mSnapshot.isIndexed()) {
+            InstanceIndex index = mSnapshot.getInstanceIndex();
+            assert index != null;
+            int heapIndex = mSnapshot.getHeapIndex(this);
+            for (int row = 0; row < index.getCount(); row++) {
+                if (index.getHeapIndex(row) == heapIndex
+                        && index.getKind(row) != InstanceIndex.KIND_CLASS_OBJ) {
+                    Instance instance = mMaterializedInstances.getIfPresent(index.getId(row));
+                    if (instance == null) {
+                        instance = index.materialize(this, row);
+                    }
+                    if (!procedure.execute(instance)) {
+                        return;
+                    }
+                }
+            }
+            return;
+        }
         mInstances.forEachValue(procedure);
     }
 
     public int getInstancesCount() {
+        if (mSnapshot != null && mSnapshot.isIndexed()) {
+            InstanceIndex index = mSnapshot.getInstanceIndex();
+            assert index != null;
+            return index.getCount(mSnapshot.getHeapIndex(this));
+        }
         return mInstances.size();
     }
 }
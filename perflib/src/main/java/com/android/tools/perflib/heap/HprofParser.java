@@ -17,14 +17,21 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DuplicableDataBuffer;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
 
 class HprofParser {
@@ -120,6 +127,9 @@ class HprofParser {
 
     private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    //  Heap dump records are split into parallel tasks of at least this many bytes.
+    private static final long MIN_PARALLEL_TASK_BYTES = 1 << 20;
+
     @NonNull
     private final DataBuffer mInput;
 
@@ -143,8 +153,80 @@ class HprofParser {
     @NonNull
     TIntObjectHashMap<String> mClassNamesBySerial = new TIntObjectHashMap<String>();
 
+    //  When parsing in parallel, the heap dump records decoded by a worker are collected here, in
+    //  order, and only added to mSnapshot once all workers are done.
+    @Nullable
+    private List<Object> mPendingRecords;
+
+    //  Notified of heap dump records as they are read. Only set when parsing sequentially.
+    @Nullable
+    private HprofRecordListener mListener;
+
+    //  When set, the position of every heap dump record that is not an object dump is added here.
+    //  Only set when parsing sequentially.
+    @Nullable
+    private TLongArrayList mRecordOffsets;
+
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
-        new HprofParser(snapshot, buffer, map).parse();
+        new HprofParser(snapshot, buffer, map).parse(null);
+    }
+
+    /**
+     * Parses the buffer, passing every heap dump record to {@code listener} as it is read.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull HprofRecordListener listener) {
+        HprofParser parser = new HprofParser(snapshot, buffer, map);
+        parser.mListener = listener;
+        parser.parse(null);
+    }
+
+    /**
+     * Parses the buffer, adding the position of every heap dump record that is not an instance or
+     * array dump to {@code recordOffsets}, for {@link #parseSkeleton}.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull TLongArrayList recordOffsets) {
+        HprofParser parser = new HprofParser(snapshot, buffer, map);
+        parser.mRecordOffsets = recordOffsets;
+        parser.parse(null);
+    }
+
+    /**
+     * Parses the buffer without decoding instance and array dumps, whose rows are expected to be
+     * in the snapshot's {@link InstanceIndex} already. The other heap dump records are read at
+     * {@code recordOffsets}, as recorded by a previous parse of the same buffer.
+     *
+     * Unlike the other parsing methods, this fails on any error in the buffer, leaving the
+     * snapshot incomplete.
+     */
+    static void parseSkeleton(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull long[] recordOffsets) throws IOException {
+        HprofParser parser = new HprofParser(snapshot, buffer, map);
+        parser.readHeader();
+        List<HeapDumpRange> heapDumps = new ArrayList<HeapDumpRange>();
+        parser.readRecords(heapDumps);
+        parser.loadHeapDumpRecords(heapDumps, recordOffsets);
+        snapshot.resolveClasses();
+        snapshot.identifySoftReferences();
+
+        parser.mClassNamesById.clear();
+        parser.mClassNamesBySerial.clear();
+        parser.mStrings.clear();
+    }
+
+    /**
+     * Parses the buffer, decoding the heap dump records on {@code pool}.
+     *
+     * Strings, classes, stack frames and stack traces are read in a first sequential pass, which
+     * also records where each HEAP_DUMP and HEAP_DUMP_SEGMENT record lies. The heap dump records
+     * are then decoded concurrently, each worker reading through its own duplicate of the buffer,
+     * and the decoded objects are added to the snapshot in file order. A dump made of a single
+     * HEAP_DUMP record can't be split and is decoded by one worker.
+     */
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DuplicableDataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull ForkJoinPool pool) {
+        new HprofParser(snapshot, buffer, map).parse(pool);
     }
 
     private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer, @NonNull ProguardMap map) {
@@ -153,53 +235,40 @@ class HprofParser {
         mProguardMap = map;
     }
 
-    private void parse() {
+    /**
+     * Creates a parser for decoding heap dump records in parallel with {@code parent}, sharing its
+     * (by then read-only) string and class name tables.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull DataBuffer buffer) {
+        mInput = buffer;
+        mSnapshot = parent.mSnapshot;
+        mProguardMap = parent.mProguardMap;
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNamesById = parent.mClassNamesById;
+        mClassNamesBySerial = parent.mClassNamesBySerial;
+        mPendingRecords = new ArrayList<Object>();
+    }
+
+    private void parse(@Nullable ForkJoinPool pool) {
         try {
             try {
-                readNullTerminatedString();  // Version, ignored for now.
-
-                mIdSize = mInput.readInt();
-                mSnapshot.setIdSize(mIdSize);
-
-                mInput.readLong();  // Timestamp, ignored for now.
-
-                while (mInput.hasRemaining()) {
-                    int tag = readUnsignedByte();
-                    mInput.readInt(); // Ignored: timestamp
-                    long length = readUnsignedInt();
-
-                    switch (tag) {
-                        case STRING_IN_UTF8:
-                            // String length is limited by Int.MAX_VALUE anyway.
-                            loadString((int) length - mIdSize);
-                            break;
-
-                        case LOAD_CLASS:
-                            loadClass();
-                            break;
-
-                        case STACK_FRAME:
-                            loadStackFrame();
-                            break;
-
-                        case STACK_TRACE:
-                            loadStackTrace();
-                            break;
-
-                        case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
-                        case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
+                readHeader();
+                if (mListener != null) {
+                    mListener.onHeaderRead(mSnapshot);
+                }
 
-                        default:
-                            skipFully(length);
+                if (pool == null) {
+                    readRecords(null);
+                } else {
+                    List<HeapDumpRange> heapDumps = new ArrayList<HeapDumpRange>();
+                    try {
+                        readRecords(heapDumps);
+                    } finally {
+                        // As when parsing sequentially, the heap dumps before a premature end of
+                        // the file are still loaded.
+                        loadHeapDumpsInParallel(heapDumps, pool);
                     }
-
                 }
             } catch (EOFException eof) {
                 //  this is fine
@@ -217,6 +286,219 @@ class HprofParser {
         mStrings.clear();
     }
 
+    private void readHeader() throws IOException {
+        readNullTerminatedString();  // Version, ignored for now.
+
+        mIdSize = mInput.readInt();
+        mSnapshot.setIdSize(mIdSize);
+
+        mInput.readLong();  // Timestamp, ignored for now.
+    }
+
+    /**
+     * Reads the top-level records. If {@code heapDumps} is non-null, heap dump records are not
+     * decoded but skipped, and their location is added to {@code heapDumps} instead.
+     */
+    private void readRecords(@Nullable List<HeapDumpRange> heapDumps) throws IOException {
+        while (mInput.hasRemaining()) {
+            int tag = readUnsignedByte();
+            mInput.readInt(); // Ignored: timestamp
+            long length = readUnsignedInt();
+
+            switch (tag) {
+                case STRING_IN_UTF8:
+                    // String length is limited by Int.MAX_VALUE anyway.
+                    loadString((int) length - mIdSize);
+                    break;
+
+                case LOAD_CLASS:
+                    loadClass();
+                    break;
+
+                case STACK_FRAME:
+                    loadStackFrame();
+                    break;
+
+                case STACK_TRACE:
+                    loadStackTrace();
+                    break;
+
+                case HEAP_DUMP:
+                case HEAP_DUMP_SEGMENT:
+                    if (heapDumps != null) {
+                        heapDumps.add(new HeapDumpRange(mInput.position(), length,
+                                length > mInput.remaining()));
+                        skipFully(length);
+                    } else {
+                        loadHeapDump(length);
+                        mSnapshot.setToDefaultHeap();
+                    }
+                    break;
+
+                default:
+                    skipFully(length);
+            }
+
+        }
+    }
+
+    /**
+     * Reads the heap dump records at {@code recordOffsets}, which must be sorted and lie within
+     * {@code heapDumps}, and must not be instance or array dumps.
+     */
+    private void loadHeapDumpRecords(@NonNull List<HeapDumpRange> heapDumps,
+            @NonNull long[] recordOffsets) throws IOException {
+        int range = 0;
+        long previousOffset = -1;
+        for (long offset : recordOffsets) {
+            if (offset <= previousOffset) {
+                throw new IOException("Heap dump record offsets are not sorted");
+            }
+            previousOffset = offset;
+            while (range < heapDumps.size() && offset >= heapDumps.get(range).mStart
+                    + heapDumps.get(range).mLength) {
+                // As when reading the heap dumps in full, each starts in the default heap.
+                range++;
+                mSnapshot.setToDefaultHeap();
+            }
+            if (range == heapDumps.size() || offset < heapDumps.get(range).mStart) {
+                throw new IOException("No heap dump record at " + offset);
+            }
+
+            mInput.setPosition(offset);
+            int tag = readUnsignedByte();
+            if (isObjectDump(tag)) {
+                throw new IOException("Unexpected object dump at " + offset);
+            }
+            loadHeapDumpRecord(tag);
+        }
+        mSnapshot.setToDefaultHeap();
+    }
+
+    private void loadHeapDumpsInParallel(@NonNull List<HeapDumpRange> heapDumps,
+            @NonNull ForkJoinPool pool) {
+        @SuppressWarnings("unchecked")
+        List<Object>[] results = (List<Object>[]) new List[heapDumps.size()];
+        boolean[] stopped = new boolean[heapDumps.size()];
+        pool.invoke(new HeapDumpTask(this, heapDumps, results, stopped, 0, heapDumps.size()));
+
+        for (int i = 0; i < results.length && results[i] != null; i++) {
+            for (Object record : results[i]) {
+                addRecord(record);
+            }
+            results[i] = null;
+            mSnapshot.setToDefaultHeap();
+            if (stopped[i]) {
+                // Like the sequential parser, stop at the first heap dump that couldn't be read.
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds a record decoded by a parallel worker to the snapshot.
+     */
+    private void addRecord(@NonNull Object record) {
+        if (record instanceof RootObj) {
+            mSnapshot.addRoot((RootObj) record);
+        } else if (record instanceof ClassObj) {
+            ClassObj classObj = (ClassObj) record;
+            mSnapshot.addClass(classObj.getId(), classObj);
+        } else if (record instanceof Instance) {
+            Instance instance = (Instance) record;
+            mSnapshot.addInstance(instance.getId(), instance);
+        } else if (record instanceof InstanceRecord) {
+            InstanceRecord instance = (InstanceRecord) record;
+            addInstanceRecord(instance.mId, instance.mStackSerial, instance.mClassId,
+                    instance.mArrayType, instance.mLength, instance.mOffset);
+        } else if (record instanceof ThreadRootRecord) {
+            ThreadRootRecord root = (ThreadRootRecord) record;
+            addThreadRoot(root.mType, root.mId, root.mThreadSerialNumber, root.mDepth);
+        } else if (record instanceof ThreadRecord) {
+            ThreadRecord thread = (ThreadRecord) record;
+            mSnapshot.addThread(thread.mThread, thread.mSerialNumber);
+        } else if (record instanceof HeapInfoRecord) {
+            HeapInfoRecord heapInfo = (HeapInfoRecord) record;
+            mSnapshot.setHeapTo(heapInfo.mHeapId, heapInfo.mHeapName);
+        } else {
+            throw new IllegalArgumentException("Unknown record " + record);
+        }
+    }
+
+    private void addRoot(@NonNull RootObj root) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(root);
+        } else {
+            mSnapshot.addRoot(root);
+        }
+    }
+
+    /**
+     * Adds a root whose stack trace is taken from the thread with the given serial number, at the
+     * given depth, or the whole trace if {@code depth} is negative.
+     */
+    private void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+            int depth) {
+        if (mPendingRecords != null) {
+            // The thread may be defined by a record that is still being decoded by another worker.
+            mPendingRecords.add(new ThreadRootRecord(type, id, threadSerialNumber, depth));
+            return;
+        }
+        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+        StackTrace trace = depth < 0
+                ? mSnapshot.getStackTrace(thread.mStackTrace)
+                : mSnapshot.getStackTraceAtDepth(thread.mStackTrace, depth);
+        mSnapshot.addRoot(new RootObj(type, id, threadSerialNumber, trace));
+    }
+
+    private void addThread(@NonNull ThreadObj thread, int serialNumber) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(new ThreadRecord(thread, serialNumber));
+        } else {
+            mSnapshot.addThread(thread, serialNumber);
+        }
+    }
+
+    private void addClass(@NonNull ClassObj theClass) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(theClass);
+        } else {
+            mSnapshot.addClass(theClass.getId(), theClass);
+        }
+    }
+
+    private void addInstance(@NonNull Instance instance) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(instance);
+        } else {
+            mSnapshot.addInstance(instance.getId(), instance);
+        }
+    }
+
+    /**
+     * Adds a row to the snapshot's {@link InstanceIndex}, for a class instance if
+     * {@code arrayType} is null, and for an array otherwise.
+     */
+    private void addInstanceRecord(long id, int stackSerial, long classId,
+            @Nullable Type arrayType, int length, long offset) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(
+                    new InstanceRecord(id, stackSerial, classId, arrayType, length, offset));
+        } else if (arrayType == null) {
+            mSnapshot.addClassInstanceRecord(id, stackSerial, classId, offset);
+        } else {
+            mSnapshot.addArrayRecord(id, stackSerial, classId, arrayType, length, offset);
+        }
+    }
+
+    private void setHeapTo(int heapId, @NonNull String heapName) {
+        if (mPendingRecords != null) {
+            mPendingRecords.add(new HeapInfoRecord(heapId, heapName));
+        } else {
+            mSnapshot.setHeapTo(heapId, heapName);
+        }
+    }
+
     @NonNull
     private String readNullTerminatedString() throws IOException {
         StringBuilder s = new StringBuilder();
@@ -279,6 +561,9 @@ class HprofParser {
         String className = mProguardMap.getClassName(name);
         mClassNamesById.put(id, className);
         mClassNamesBySerial.put(serial, className);
+        if (mListener != null && className != null) {
+            mListener.onLoadClass(id, className);
+        }
     }
 
     private void loadStackFrame() throws IOException {
@@ -314,126 +599,120 @@ class HprofParser {
 
     private void loadHeapDump(long length) throws IOException {
         while (length > 0) {
+            long position = mInput.position();
             int tag = readUnsignedByte();
             length--;
 
-            switch (tag) {
-                case ROOT_UNKNOWN:
-                    length -= loadBasicObj(RootType.UNKNOWN);
-                    break;
+            if (mRecordOffsets != null && !isObjectDump(tag)) {
+                mRecordOffsets.add(position);
+            }
+            length -= loadHeapDumpRecord(tag);
+        }
+    }
 
-                case ROOT_JNI_GLOBAL:
-                    length -= loadBasicObj(RootType.NATIVE_STATIC);
-                    readId();   //  ignored
-                    length -= mIdSize;
-                    break;
+    /**
+     * Reads the heap dump record with the given tag, which has just been read.
+     *
+     * @return the number of bytes read after the tag.
+     */
+    private int loadHeapDumpRecord(int tag) throws IOException {
+        switch (tag) {
+            case ROOT_UNKNOWN:
+                return loadBasicObj(RootType.UNKNOWN);
 
-                case ROOT_JNI_LOCAL:
-                    length -= loadJniLocal();
-                    break;
+            case ROOT_JNI_GLOBAL:
+                int bytesRead = loadBasicObj(RootType.NATIVE_STATIC);
+                readId();   //  ignored
+                return bytesRead + mIdSize;
 
-                case ROOT_JAVA_FRAME:
-                    length -= loadJavaFrame();
-                    break;
+            case ROOT_JNI_LOCAL:
+                return loadJniLocal();
 
-                case ROOT_NATIVE_STACK:
-                    length -= loadNativeStack();
-                    break;
+            case ROOT_JAVA_FRAME:
+                return loadJavaFrame();
 
-                case ROOT_STICKY_CLASS:
-                    length -= loadBasicObj(RootType.SYSTEM_CLASS);
-                    break;
+            case ROOT_NATIVE_STACK:
+                return loadNativeStack();
 
-                case ROOT_THREAD_BLOCK:
-                    length -= loadThreadBlock();
-                    break;
+            case ROOT_STICKY_CLASS:
+                return loadBasicObj(RootType.SYSTEM_CLASS);
 
-                case ROOT_MONITOR_USED:
-                    length -= loadBasicObj(RootType.BUSY_MONITOR);
-                    break;
+            case ROOT_THREAD_BLOCK:
+                return loadThreadBlock();
 
-                case ROOT_THREAD_OBJECT:
-                    length -= loadThreadObject();
-                    break;
+            case ROOT_MONITOR_USED:
+                return loadBasicObj(RootType.BUSY_MONITOR);
 
-                case ROOT_CLASS_DUMP:
-                    length -= loadClassDump();
-                    break;
+            case ROOT_THREAD_OBJECT:
+                return loadThreadObject();
 
-                case ROOT_INSTANCE_DUMP:
-                    length -= loadInstanceDump();
-                    break;
+            case ROOT_CLASS_DUMP:
+                return loadClassDump();
 
-                case ROOT_OBJECT_ARRAY_DUMP:
-                    length -= loadObjectArrayDump();
-                    break;
+            case ROOT_INSTANCE_DUMP:
+                return loadInstanceDump();
 
-                case ROOT_PRIMITIVE_ARRAY_DUMP:
-                    length -= loadPrimitiveArrayDump();
-                    break;
+            case ROOT_OBJECT_ARRAY_DUMP:
+                return loadObjectArrayDump();
 
-                case ROOT_PRIMITIVE_ARRAY_NODATA:
-                    System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
-                    length -= loadPrimitiveArrayDump();
+            case ROOT_PRIMITIVE_ARRAY_DUMP:
+                return loadPrimitiveArrayDump();
 
-                    throw new IllegalArgumentException(
-                            "Don't know how to load a nodata array");
+            case ROOT_PRIMITIVE_ARRAY_NODATA:
+                System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
+                loadPrimitiveArrayDump();
 
-                case ROOT_HEAP_DUMP_INFO:
-                    int heapId = mInput.readInt();
-                    long heapNameId = readId();
-                    String heapName = mStrings.get(heapNameId);
+                throw new IllegalArgumentException(
+                        "Don't know how to load a nodata array");
 
-                    mSnapshot.setHeapTo(heapId, heapName);
-                    length -= 4 + mIdSize;
-                    break;
+            case ROOT_HEAP_DUMP_INFO:
+                int heapId = mInput.readInt();
+                long heapNameId = readId();
+                String heapName = mStrings.get(heapNameId);
 
-                case ROOT_INTERNED_STRING:
-                    length -= loadBasicObj(RootType.INTERNED_STRING);
-                    break;
+                setHeapTo(heapId, heapName);
+                return 4 + mIdSize;
 
-                case ROOT_FINALIZING:
-                    length -= loadBasicObj(RootType.FINALIZING);
-                    break;
+            case ROOT_INTERNED_STRING:
+                return loadBasicObj(RootType.INTERNED_STRING);
 
-                case ROOT_DEBUGGER:
-                    length -= loadBasicObj(RootType.DEBUGGER);
-                    break;
+            case ROOT_FINALIZING:
+                return loadBasicObj(RootType.FINALIZING);
 
-                case ROOT_REFERENCE_CLEANUP:
-                    length -= loadBasicObj(RootType.REFERENCE_CLEANUP);
-                    break;
+            case ROOT_DEBUGGER:
+                return loadBasicObj(RootType.DEBUGGER);
 
-                case ROOT_VM_INTERNAL:
-                    length -= loadBasicObj(RootType.VM_INTERNAL);
-                    break;
+            case ROOT_REFERENCE_CLEANUP:
+                return loadBasicObj(RootType.REFERENCE_CLEANUP);
 
-                case ROOT_JNI_MONITOR:
-                    length -= loadJniMonitor();
-                    break;
+            case ROOT_VM_INTERNAL:
+                return loadBasicObj(RootType.VM_INTERNAL);
 
-                case ROOT_UNREACHABLE:
-                    length -= loadBasicObj(RootType.UNREACHABLE);
-                    break;
+            case ROOT_JNI_MONITOR:
+                return loadJniMonitor();
 
-                default:
-                    throw new IllegalArgumentException(
-                            "loadHeapDump loop with unknown tag " + tag
-                                    + " with " + mInput.remaining()
-                                    + " bytes possibly remaining");
-            }
+            case ROOT_UNREACHABLE:
+                return loadBasicObj(RootType.UNREACHABLE);
+
+            default:
+                throw new IllegalArgumentException(
+                        "loadHeapDump loop with unknown tag " + tag
+                                + " with " + mInput.remaining()
+                                + " bytes possibly remaining");
         }
     }
 
+    private static boolean isObjectDump(int tag) {
+        return tag == ROOT_INSTANCE_DUMP || tag == ROOT_OBJECT_ARRAY_DUMP
+                || tag == ROOT_PRIMITIVE_ARRAY_DUMP;
+    }
+
     private int loadJniLocal() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -442,11 +721,8 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.JAVA_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -454,11 +730,8 @@ class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_STACK, id, threadSerialNumber, -1);
 
         return mIdSize + 4;
     }
@@ -467,7 +740,7 @@ class HprofParser {
         long id = readId();
         RootObj root = new RootObj(type, id);
 
-        mSnapshot.addRoot(root);
+        addRoot(root);
 
         return mIdSize;
     }
@@ -475,11 +748,8 @@ class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
 
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.THREAD_BLOCK, id, threadSerialNumber, -1);
 
         return mIdSize + 4;
     }
@@ -490,7 +760,7 @@ class HprofParser {
         int stackSerialNumber = mInput.readInt();
         ThreadObj thread = new ThreadObj(id, stackSerialNumber);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
+        addThread(thread, threadSerialNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -559,7 +829,10 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        addClass(theClass);
+        if (mListener != null) {
+            mListener.onClassDump(theClass);
+        }
 
         return bytesRead;
     }
@@ -567,14 +840,22 @@ class HprofParser {
     private int loadInstanceDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         long classId = readId();
         int remaining = mInput.readInt();
 
         long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        if (mSnapshot.isIndexed()) {
+            addInstanceRecord(id, stackId, classId, null, 0, position);
+        } else {
+            ClassInstance instance =
+                    new ClassInstance(id, mSnapshot.getStackTrace(stackId), position);
+            instance.setClassId(classId);
+            addInstance(instance);
+        }
+        if (mListener != null) {
+            mListener.onInstanceDump(mSnapshot.mCurrentHeap, id, classId, remaining, mInput);
+            mInput.setPosition(position);
+        }
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -583,13 +864,19 @@ class HprofParser {
     private int loadObjectArrayDump() throws IOException {
         final long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        if (mSnapshot.isIndexed()) {
+            addInstanceRecord(id, stackId, classId, Type.OBJECT, numElements, mInput.position());
+        } else {
+            ArrayInstance array = new ArrayInstance(id, mSnapshot.getStackTrace(stackId),
+                    Type.OBJECT, numElements, mInput.position());
+            array.setClassId(classId);
+            addInstance(array);
+        }
+        if (mListener != null) {
+            mListener.onObjectArrayDump(mSnapshot.mCurrentHeap, id, classId, numElements);
+        }
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -599,12 +886,21 @@ class HprofParser {
     private int loadPrimitiveArrayDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        long position = mInput.position();
+        if (mSnapshot.isIndexed()) {
+            addInstanceRecord(id, stackId, 0, type, numElements, position);
+        } else {
+            ArrayInstance array = new ArrayInstance(id, mSnapshot.getStackTrace(stackId), type,
+                    numElements, position);
+            addInstance(array);
+        }
+        if (mListener != null) {
+            mListener.onPrimitiveArrayDump(mSnapshot.mCurrentHeap, id, type, numElements, mInput);
+            mInput.setPosition(position);
+        }
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -615,11 +911,8 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        addThreadRoot(RootType.NATIVE_MONITOR, id, threadSerialNumber, stackDepth);
 
         return mIdSize + 4 + 4;
     }
@@ -636,4 +929,166 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    private static final class HeapDumpRange {
+        final long mStart;
+
+        final long mLength;
+
+        //  Whether the record extends past the end of the file.
+        final boolean mTruncated;
+
+        HeapDumpRange(long start, long length, boolean truncated) {
+            mStart = start;
+            mLength = length;
+            mTruncated = truncated;
+        }
+    }
+
+    /**
+     * Decodes the heap dump records in {@code mHeapDumps[mFrom..mTo)} into {@code mResults},
+     * forking until each task covers roughly {@link #MIN_PARALLEL_TASK_BYTES}.
+     *
+     * A record that can't be read to its end, such as the last one of a truncated file, keeps the
+     * objects decoded before the error and is flagged in {@code mStopped}. The records after it in
+     * the same task are not decoded.
+     */
+    private static final class HeapDumpTask extends RecursiveAction {
+        @NonNull
+        private final HprofParser mParent;
+
+        @NonNull
+        private final List<HeapDumpRange> mHeapDumps;
+
+        @NonNull
+        private final List<Object>[] mResults;
+
+        @NonNull
+        private final boolean[] mStopped;
+
+        private final int mFrom;
+
+        private final int mTo;
+
+        HeapDumpTask(@NonNull HprofParser parent, @NonNull List<HeapDumpRange> heapDumps,
+                @NonNull List<Object>[] results, @NonNull boolean[] stopped, int from, int to) {
+            mParent = parent;
+            mHeapDumps = heapDumps;
+            mResults = results;
+            mStopped = stopped;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            long bytes = 0;
+            for (int i = mFrom; i < mTo; i++) {
+                bytes += mHeapDumps.get(i).mLength;
+            }
+
+            if (mTo - mFrom > 1 && bytes > MIN_PARALLEL_TASK_BYTES) {
+                int mid = (mFrom + mTo) >>> 1;
+                invokeAll(new HeapDumpTask(mParent, mHeapDumps, mResults, mStopped, mFrom, mid),
+                        new HeapDumpTask(mParent, mHeapDumps, mResults, mStopped, mid, mTo));
+                return;
+            }
+
+            DataBuffer buffer = ((DuplicableDataBuffer) mParent.mInput).duplicate();
+            try {
+                for (int i = mFrom; i < mTo; i++) {
+                    HeapDumpRange range = mHeapDumps.get(i);
+                    HprofParser worker = new HprofParser(mParent, buffer);
+                    buffer.setPosition(range.mStart);
+                    try {
+                        worker.loadHeapDump(range.mLength);
+                    } catch (EOFException eof) {
+                        mStopped[i] = true;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        mStopped[i] = true;
+                    } catch (IndexOutOfBoundsException e) {
+                        // Reading past the end of a mapped file is how a truncated record ends.
+                        if (!range.mTruncated) {
+                            throw e;
+                        }
+                        mStopped[i] = true;
+                    }
+                    mResults[i] = worker.mPendingRecords;
+                    if (mStopped[i]) {
+                        break;
+                    }
+                }
+            } finally {
+                buffer.dispose();
+            }
+        }
+    }
+
+    private static final class InstanceRecord {
+        final long mId;
+
+        final int mStackSerial;
+
+        final long mClassId;
+
+        @Nullable
+        final Type mArrayType;
+
+        final int mLength;
+
+        final long mOffset;
+
+        InstanceRecord(long id, int stackSerial, long classId, @Nullable Type arrayType,
+                int length, long offset) {
+            mId = id;
+            mStackSerial = stackSerial;
+            mClassId = classId;
+            mArrayType = arrayType;
+            mLength = length;
+            mOffset = offset;
+        }
+    }
+
+    private static final class ThreadRootRecord {
+        @NonNull
+        final RootType mType;
+
+        final long mId;
+
+        final int mThreadSerialNumber;
+
+        final int mDepth;
+
+        ThreadRootRecord(@NonNull RootType type, long id, int threadSerialNumber, int depth) {
+            mType = type;
+            mId = id;
+            mThreadSerialNumber = threadSerialNumber;
+            mDepth = depth;
+        }
+    }
+
+    private static final class ThreadRecord {
+        @NonNull
+        final ThreadObj mThread;
+
+        final int mSerialNumber;
+
+        ThreadRecord(@NonNull ThreadObj thread, int serialNumber) {
+            mThread = thread;
+            mSerialNumber = serialNumber;
+        }
+    }
+
+    private static final class HeapInfoRecord {
+        final int mHeapId;
+
+        @NonNull
+        final String mHeapName;
+
+        HeapInfoRecord(int heapId, @NonNull String heapName) {
+            mHeapId = heapId;
+            mHeapName = heapName;
+        }
+    }
 }
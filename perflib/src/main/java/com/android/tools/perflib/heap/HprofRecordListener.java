@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.captures.DataBuffer;
+
+/**
+ * Receives the heap dump records of an hprof file as they are read by the parser, before classes
+ * and references are resolved. Callbacks are made on the parsing thread, in file order.
+ *
+ * Buffers passed to the callbacks are positioned at the record's data, and may be read from
+ * freely; the parser restores the position afterwards.
+ */
+public interface HprofRecordListener {
+
+    /**
+     * Called once the hprof header has been read. {@code snapshot} is still being built, but its
+     * type sizes are known.
+     */
+    void onHeaderRead(@NonNull Snapshot snapshot);
+
+    /**
+     * Called for each LOAD_CLASS record, with the class name already deobfuscated. Hprof writers
+     * emit these before the heap dump, so the id of a class is known before its instances are.
+     */
+    void onLoadClass(long classId, @NonNull String className);
+
+    /**
+     * Called for each class dump. The super class of {@code classObj} may not have been dumped yet.
+     */
+    void onClassDump(@NonNull ClassObj classObj);
+
+    /**
+     * Called for each instance dump, with {@code buffer} positioned at its
+     * {@code valuesLength} bytes of field values.
+     */
+    void onInstanceDump(@NonNull Heap heap, long id, long classId, int valuesLength,
+            @NonNull DataBuffer buffer);
+
+    /**
+     * Called for each object array dump.
+     */
+    void onObjectArrayDump(@NonNull Heap heap, long id, long classId, int length);
+
+    /**
+     * Called for each primitive array dump, with {@code buffer} positioned at its elements.
+     */
+    void onPrimitiveArrayDump(@NonNull Heap heap, long id, @NonNull Type type, int length,
+            @NonNull DataBuffer buffer);
+}
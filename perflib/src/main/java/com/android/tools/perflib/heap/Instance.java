@@ -47,6 +47,12 @@ public abstract class Instance {
     //  Another identifier for this Instance, that we computed during the analysis phase.
     int mTopologicalOrder;
 
+    //  Row of this instance in the InstanceIndex of its snapshot, or -1 if it has none.
+    int mIndexRow = -1;
+
+    //  Whether the references of this instance still have to be read from its index row.
+    private boolean mIndexedReferencesPending;
+
     int mDistanceToGcRoot = Integer.MAX_VALUE;
 
     Instance mNextInstanceToGcRoot = null;
@@ -135,6 +141,10 @@ public abstract class Instance {
     }
 
     public int getTopologicalOrder() {
+        InstanceIndex index = getIndex();
+        if (index != null && index.getTopologicalRows() != null) {
+            return index.getTopologicalOrder(mIndexRow);
+        }
         return mTopologicalOrder;
     }
 
@@ -144,6 +154,10 @@ public abstract class Instance {
 
     @Nullable
     public Instance getImmediateDominator() {
+        InstanceIndex index = getIndex();
+        if (index != null && index.hasDominators()) {
+            return index.getImmediateDominator(mHeap.mSnapshot, mIndexRow);
+        }
         return mImmediateDominator;
     }
 
@@ -152,10 +166,19 @@ public abstract class Instance {
     }
 
     public int getDistanceToGcRoot() {
+        InstanceIndex index = getIndex();
+        if (index != null && index.hasDistances()) {
+            return index.getDistanceToGcRoot(mIndexRow);
+        }
         return mDistanceToGcRoot;
     }
 
     public Instance getNextInstanceToGcRoot() {
+        InstanceIndex index = getIndex();
+        if (index != null && index.hasDistances()) {
+            int row = index.getNextRowToGcRoot(mIndexRow);
+            return row < 0 ? null : index.getInstance(mHeap.mSnapshot, row);
+        }
         return mNextInstanceToGcRoot;
     }
 
@@ -173,7 +196,7 @@ public abstract class Instance {
      * The results are only valid after ShortestDistanceVisitor has been run.
      */
     public boolean isReachable() {
-        return mDistanceToGcRoot != Integer.MAX_VALUE;
+        return getDistanceToGcRoot() != Integer.MAX_VALUE;
     }
 
     public void resetRetainedSize() {
@@ -191,10 +214,23 @@ public abstract class Instance {
     }
 
     public long getRetainedSize(int heapIndex) {
+        InstanceIndex index = getIndex();
+        if (index != null && index.hasRetainedSizes()) {
+            return index.getRetainedSize(mIndexRow, heapIndex);
+        }
         return mRetainedSizes[heapIndex];
     }
 
     public long getTotalRetainedSize() {
+        InstanceIndex index = getIndex();
+        if (index != null && index.hasRetainedSizes()) {
+            long totalSize = 0;
+            for (int i = 0; i < mHeap.mSnapshot.mHeaps.size(); i++) {
+                totalSize += index.getRetainedSize(mIndexRow, i);
+            }
+            return totalSize;
+        }
+
         if (mRetainedSizes == null) {
             return 0;
         }
@@ -228,24 +264,42 @@ public abstract class Instance {
 
     @NonNull
     public ArrayList<Instance> getHardForwardReferences() {
+        resolveIndexedReferences();
         return mHardForwardReferences;
     }
 
     @NonNull
     public Instance getSoftForwardReference() {
+        resolveIndexedReferences();
         return mSoftForwardReference;
     }
 
     @NonNull
     public ArrayList<Instance> getHardReverseReferences() {
+        resolveIndexedReferences();
         return mHardReverseReferences;
     }
 
     @Nullable
     public ArrayList<Instance> getSoftReverseReferences() {
+        resolveIndexedReferences();
         return mSoftReverseReferences;
     }
 
+    /**
+     * Reads the references of an instance created from an {@link InstanceIndex} from its row, the
+     * first time they are asked for. The snapshot does not resolve the references of such
+     * instances, see {@link Snapshot#resolveReferences()}.
+     */
+    private void resolveIndexedReferences() {
+        if (mIndexedReferencesPending) {
+            mIndexedReferencesPending = false;
+            InstanceIndex index = getIndex();
+            assert index != null;
+            index.readReferences(mHeap.mSnapshot, mIndexRow, this);
+        }
+    }
+
     /**
      * Removes all duplicate references AND references to itself.
      */
@@ -329,6 +383,23 @@ public abstract class Instance {
         return mHeap.mSnapshot.getBuffer();
     }
 
+    /**
+     * Records the row of the {@link InstanceIndex} this instance was created from.
+     */
+    void setIndexRow(int row) {
+        mIndexRow = row;
+        mIndexedReferencesPending = true;
+    }
+
+    /**
+     * Returns the index this instance was created from, which then holds the results of analyses
+     * run on its rows, or null if the instance has no row.
+     */
+    @Nullable
+    InstanceIndex getIndex() {
+        return mIndexRow < 0 ? null : mHeap.mSnapshot.getInstanceIndex();
+    }
+
 
     public static class CompositeSizeVisitor extends NonRecursiveVisitor {
         int mSize = 0;
@@ -0,0 +1,1201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Columnar, primitive-array backed table of all the objects in a {@link Snapshot}.
+ *
+ * Instead of creating a {@link ClassInstance} or {@link ArrayInstance} per object in the dump,
+ * the parser appends one row per object to this table. A row only holds the id, class id, heap,
+ * stack trace serial number, and the offset of the object's values into the {@link DataBuffer}.
+ * {@link ClassObj}s get a row as well, so that the reference graph covers the whole heap.
+ *
+ * Rows are sorted by id once parsing is done ({@link #seal(Snapshot)}), which makes id lookups a
+ * binary search. Outgoing hard references are decoded from the buffer on first use and kept in
+ * compressed sparse row form: the targets of row {@code i} are
+ * {@code getReferenceTargets()[getReferencesStart(i) .. getReferencesStart(i + 1))}.
+ *
+ * {@link Instance} objects are only created when a caller asks for them through
+ * {@link #materialize(Heap, int)}. Analyses such as dominator computation run on the rows and keep
+ * their results here, where the instances of the rows read them from.
+ */
+public final class InstanceIndex {
+
+    public static final byte KIND_CLASS_INSTANCE = 0;
+
+    public static final byte KIND_CLASS_OBJ = 1;
+
+    public static final byte KIND_ARRAY = 2;
+
+    /**
+     * Immediate dominator row of the rows directly dominated by {@link Snapshot#SENTINEL_ROOT}.
+     */
+    public static final int SENTINEL_ROW = -2;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int mCount;
+
+    @NonNull
+    private long[] mIds = new long[INITIAL_CAPACITY];
+
+    @NonNull
+    private long[] mClassIds = new long[INITIAL_CAPACITY];
+
+    @NonNull
+    private long[] mOffsets = new long[INITIAL_CAPACITY];
+
+    //  Number of elements for arrays, unused otherwise.
+    @NonNull
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mStackSerials = new int[INITIAL_CAPACITY];
+
+    @NonNull
+    private byte[] mKinds = new byte[INITIAL_CAPACITY];
+
+    //  Type id of the array elements, unused for non-array rows.
+    @NonNull
+    private byte[] mArrayTypes = new byte[INITIAL_CAPACITY];
+
+    //  Position of the owning heap in Snapshot.mHeaps.
+    @NonNull
+    private byte[] mHeapIndices = new byte[INITIAL_CAPACITY];
+
+    private boolean mSealed;
+
+    //  Whether the rows were read, sorted and complete, by readFrom(), in which case class dumps
+    //  don't add rows.
+    private boolean mRestored;
+
+    //  Number of non-class rows per heap, filled in when sealing.
+    @NonNull
+    private int[] mHeapCounts = new int[0];
+
+    //  Row indices ordered by class id, built lazily for per-class queries.
+    @Nullable
+    private int[] mRowsByClass;
+
+    @Nullable
+    private int[] mReferenceStarts;
+
+    @Nullable
+    private int[] mReferenceTargets;
+
+    //  Soft references (referents of java.lang.ref.Reference subclasses) as pairs of rows, sorted
+    //  by source row. Each source has at most one referent.
+    @Nullable
+    private int[] mSoftReferenceSources;
+
+    @Nullable
+    private int[] mSoftReferenceTargets;
+
+    //  Soft references as (target row << 32 | source row), sorted, built on first use.
+    @Nullable
+    private long[] mSoftReferencesByTarget;
+
+    //  Hard references grouped by target row, in the same form as mReferenceStarts and
+    //  mReferenceTargets. Built on first use.
+    @Nullable
+    private int[] mReferrerStarts;
+
+    @Nullable
+    private int[] mReferrers;
+
+    //  Distance of each row to the closest GC root, Integer.MAX_VALUE if unreachable, and the row
+    //  it is reached from on that path, -1 if none.
+    @Nullable
+    private int[] mDistances;
+
+    @Nullable
+    private int[] mNextRowsToGcRoot;
+
+    //  Reachable rows in topological order, and the 1-based position of each row in that order
+    //  (0 for unreachable rows).
+    @Nullable
+    private int[] mTopologicalRows;
+
+    @Nullable
+    private int[] mTopologicalOrders;
+
+    //  Row of the immediate dominator of each row, -1 if unreachable, or SENTINEL_ROW. Null until
+    //  dominators are computed.
+    @Nullable
+    private int[] mDominatorRows;
+
+    //  Retained size of each row, by heap position then row. Null for heaps without any row.
+    @Nullable
+    private long[][] mRetainedSizes;
+
+    InstanceIndex() {
+    }
+
+    void addClassInstance(int heapIndex, long id, int stackSerial, long classId, long offset) {
+        addRow(heapIndex, id, stackSerial, classId, offset, KIND_CLASS_INSTANCE, 0, null);
+    }
+
+    void addArray(int heapIndex, long id, int stackSerial, long classId, @NonNull Type type,
+            int length, long offset) {
+        addRow(heapIndex, id, stackSerial, classId, offset, KIND_ARRAY, length, type);
+    }
+
+    void addClassObj(int heapIndex, @NonNull ClassObj classObj) {
+        addRow(heapIndex, classObj.getId(), 0, classObj.getId(),
+                classObj.getStaticFieldsOffset(), KIND_CLASS_OBJ, 0, null);
+    }
+
+    private void addRow(int heapIndex, long id, int stackSerial, long classId, long offset,
+            byte kind, int length, @Nullable Type type) {
+        assert !mSealed;
+        if (mCount == mIds.length) {
+            grow();
+        }
+        mIds[mCount] = id;
+        mClassIds[mCount] = classId;
+        mOffsets[mCount] = offset;
+        mLengths[mCount] = length;
+        mStackSerials[mCount] = stackSerial;
+        mKinds[mCount] = kind;
+        mArrayTypes[mCount] = type == null ? 0 : (byte) type.getTypeId();
+        mHeapIndices[mCount] = (byte) heapIndex;
+        mCount++;
+    }
+
+    private void grow() {
+        int capacity = mIds.length + (mIds.length >> 1);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mClassIds = Arrays.copyOf(mClassIds, capacity);
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+        mStackSerials = Arrays.copyOf(mStackSerials, capacity);
+        mKinds = Arrays.copyOf(mKinds, capacity);
+        mArrayTypes = Arrays.copyOf(mArrayTypes, capacity);
+        mHeapIndices = Arrays.copyOf(mHeapIndices, capacity);
+    }
+
+    /**
+     * Trims the columns, sorts the rows by id, fills in the class ids of primitive arrays and
+     * counts the rows of each heap.
+     * No more rows can be added afterwards.
+     */
+    void seal(@NonNull Snapshot snapshot) {
+        if (mSealed) {
+            return;
+        }
+        mSealed = true;
+
+        if (!mRestored) {
+            int[] permutation = identityPermutation(mCount);
+            sortByKey(permutation, mIds, 0, mCount - 1);
+
+            mIds = permute(mIds, permutation);
+            mClassIds = permute(mClassIds, permutation);
+            mOffsets = permute(mOffsets, permutation);
+            mLengths = permute(mLengths, permutation);
+            mStackSerials = permute(mStackSerials, permutation);
+            mKinds = permute(mKinds, permutation);
+            mArrayTypes = permute(mArrayTypes, permutation);
+            mHeapIndices = permute(mHeapIndices, permutation);
+
+            // Primitive arrays don't carry a class id in the dump, look it up by name once.
+            long[] primitiveArrayClassIds = new long[Type.LONG.getTypeId() + 1];
+            for (Type type : Type.values()) {
+                if (type != Type.OBJECT) {
+                    ClassObj classObj =
+                            snapshot.findClass(Type.getClassNameOfPrimitiveArray(type));
+                    primitiveArrayClassIds[type.getTypeId()] =
+                            classObj == null ? 0 : classObj.getId();
+                }
+            }
+            for (int row = 0; row < mCount; row++) {
+                if (mKinds[row] == KIND_ARRAY && mArrayTypes[row] != Type.OBJECT.getTypeId()) {
+                    mClassIds[row] = primitiveArrayClassIds[mArrayTypes[row]];
+                }
+            }
+        }
+
+        mHeapCounts = new int[snapshot.getHeaps().size()];
+        for (int row = 0; row < mCount; row++) {
+            if (mKinds[row] != KIND_CLASS_OBJ) {
+                mHeapCounts[mHeapIndices[row]]++;
+            } else {
+                ClassObj classObj = snapshot.findClass(mIds[row]);
+                if (classObj != null) {
+                    classObj.setIndexRow(row);
+                }
+            }
+        }
+    }
+
+    public boolean isSealed() {
+        return mSealed;
+    }
+
+    /**
+     * Returns whether the rows were read by {@link #readFrom(DataBuffer, int, long)}.
+     */
+    public boolean isRestored() {
+        return mRestored;
+    }
+
+    /**
+     * Returns the number of rows, including the rows of class objects.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the row of the object with the given id, or -1 if there is no such object.
+     */
+    public int indexOf(long id) {
+        assert mSealed;
+        int row = Arrays.binarySearch(mIds, 0, mCount, id);
+        return row < 0 ? -1 : row;
+    }
+
+    public long getId(int row) {
+        return mIds[row];
+    }
+
+    public long getClassId(int row) {
+        return mClassIds[row];
+    }
+
+    public long getOffset(int row) {
+        return mOffsets[row];
+    }
+
+    public byte getKind(int row) {
+        return mKinds[row];
+    }
+
+    public int getHeapIndex(int row) {
+        return mHeapIndices[row];
+    }
+
+    public int getLength(int row) {
+        return mLengths[row];
+    }
+
+    @Nullable
+    public Type getArrayType(int row) {
+        return mKinds[row] == KIND_ARRAY ? Type.getType(mArrayTypes[row]) : null;
+    }
+
+    /**
+     * Returns the shallow size of the object in the given row, computed the same way as
+     * {@link Instance#getSize()} would for the materialized instance.
+     */
+    public int getSize(@NonNull Snapshot snapshot, int row) {
+        switch (mKinds[row]) {
+            case KIND_CLASS_INSTANCE:
+                ClassObj classObj = snapshot.findClass(mClassIds[row]);
+                return classObj == null ? 0 : classObj.getInstanceSize();
+            case KIND_ARRAY:
+                return mLengths[row] * snapshot.getTypeSize(Type.getType(mArrayTypes[row]));
+            default:
+                ClassObj self = snapshot.findClass(mIds[row]);
+                return self == null ? 0 : self.getSize();
+        }
+    }
+
+    /**
+     * Returns the number of non-class rows belonging to the heap at the given position in the
+     * snapshot.
+     */
+    public int getCount(int heapIndex) {
+        assert mSealed;
+        return heapIndex < mHeapCounts.length ? mHeapCounts[heapIndex] : 0;
+    }
+
+    /**
+     * Creates the {@link Instance} for the given row. Class objects are not materialized by the
+     * index, the already existing {@link ClassObj} is returned for them.
+     */
+    @NonNull
+    Instance materialize(@NonNull Heap heap, int row) {
+        Snapshot snapshot = heap.mSnapshot;
+        long id = mIds[row];
+        StackTrace stack = snapshot.getStackTrace(mStackSerials[row]);
+
+        Instance instance;
+        switch (mKinds[row]) {
+            case KIND_CLASS_INSTANCE:
+                instance = new ClassInstance(id, stack, mOffsets[row]);
+                instance.setClassId(mClassIds[row]);
+                ClassObj classObj = snapshot.findClass(mClassIds[row]);
+                if (classObj != null) {
+                    instance.setSize(classObj.getInstanceSize());
+                }
+                break;
+            case KIND_ARRAY:
+                Type type = Type.getType(mArrayTypes[row]);
+                instance = new ArrayInstance(id, stack, type, mLengths[row], mOffsets[row]);
+                if (type == Type.OBJECT) {
+                    instance.setClassId(mClassIds[row]);
+                }
+                break;
+            default:
+                ClassObj self = snapshot.findClass(id);
+                assert self != null;
+                return self;
+        }
+        instance.setHeap(heap);
+        instance.setIndexRow(row);
+        return instance;
+    }
+
+    /**
+     * Returns the {@link Instance} of the given row, creating it if it has not been looked up
+     * before.
+     */
+    @Nullable
+    public Instance getInstance(@NonNull Snapshot snapshot, int row) {
+        if (mKinds[row] == KIND_CLASS_OBJ) {
+            return snapshot.findClass(mIds[row]);
+        }
+        return snapshot.mHeaps.get(mHeapIndices[row]).getInstance(mIds[row]);
+    }
+
+    /**
+     * Returns the rows whose class id is {@code classId}, in id order.
+     */
+    @NonNull
+    public int[] getRowsOfClass(long classId) {
+        assert mSealed;
+        if (mRowsByClass == null) {
+            int[] rows = identityPermutation(mCount);
+            sortByKey(rows, mClassIds, 0, mCount - 1);
+            mRowsByClass = rows;
+        }
+
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mClassIds[mRowsByClass[mid]] < classId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        while (end < mCount && mClassIds[mRowsByClass[end]] == classId) {
+            end++;
+        }
+
+        int[] result = Arrays.copyOfRange(mRowsByClass, low, end);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the first position in {@link #getReferenceTargets(Snapshot)} holding a hard
+     * reference of the given row. The references of the row end at the start of the next row.
+     */
+    public int getReferencesStart(@NonNull Snapshot snapshot, int row) {
+        resolveReferences(snapshot);
+        assert mReferenceStarts != null;
+        return mReferenceStarts[row];
+    }
+
+    /**
+     * Returns the rows referenced by hard references, grouped by referring row. Soft referents
+     * (the "referent" field of {@link java.lang.ref.Reference} subclasses) are not included.
+     */
+    @NonNull
+    public int[] getReferenceTargets(@NonNull Snapshot snapshot) {
+        resolveReferences(snapshot);
+        assert mReferenceTargets != null;
+        return mReferenceTargets;
+    }
+
+    /**
+     * Returns a view of the instances of the given rows, which are only looked up when read.
+     */
+    @NonNull
+    List<Instance> getInstances(@NonNull final Snapshot snapshot, @NonNull final int[] rows) {
+        return new AbstractList<Instance>() {
+            @Override
+            public Instance get(int i) {
+                return getInstance(snapshot, rows[i]);
+            }
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+        };
+    }
+
+    /**
+     * Returns the rows of the objects referred to by {@code roots}, in order and without
+     * duplicates.
+     */
+    @NonNull
+    public int[] getRootRows(@NonNull Iterable<RootObj> roots) {
+        boolean[] isRoot = new boolean[mCount];
+        int[] rows = new int[16];
+        int count = 0;
+        for (RootObj root : roots) {
+            int row = indexOf(root.getId());
+            if (row >= 0 && !isRoot[row]) {
+                isRoot[row] = true;
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Fills in the references of {@code instance}, created from the given row, as
+     * {@link Instance#resolveReferences()} followed by {@link Instance#dedupeReferences()} would.
+     */
+    void readReferences(@NonNull Snapshot snapshot, int row, @NonNull Instance instance) {
+        resolveReferences(snapshot);
+        resolveReferrers();
+        assert mReferenceStarts != null && mReferenceTargets != null;
+        assert mReferrerStarts != null && mReferrers != null;
+
+        for (int i = mReferenceStarts[row]; i < mReferenceStarts[row + 1]; i++) {
+            instance.mHardForwardReferences.add(getInstance(snapshot, mReferenceTargets[i]));
+        }
+        instance.mHardForwardReferences.trimToSize();
+        int softTarget = getSoftReferenceTarget(row);
+        if (softTarget >= 0) {
+            instance.mSoftForwardReference = getInstance(snapshot, softTarget);
+        }
+
+        // Referrers are grouped by row in increasing order, so duplicates are adjacent.
+        for (int i = mReferrerStarts[row]; i < mReferrerStarts[row + 1]; i++) {
+            int referrer = mReferrers[i];
+            if (referrer != row && (i == mReferrerStarts[row] || mReferrers[i - 1] != referrer)) {
+                instance.mHardReverseReferences.add(getInstance(snapshot, referrer));
+            }
+        }
+        instance.mHardReverseReferences.trimToSize();
+
+        assert mSoftReferencesByTarget != null;
+        int i = findSoftReferrers(row);
+        if (i < mSoftReferencesByTarget.length && (int) (mSoftReferencesByTarget[i] >>> 32) == row) {
+            instance.mSoftReverseReferences = new ArrayList<Instance>();
+            for (; i < mSoftReferencesByTarget.length
+                    && (int) (mSoftReferencesByTarget[i] >>> 32) == row; i++) {
+                int referrer = (int) mSoftReferencesByTarget[i];
+                Instance reference = getInstance(snapshot, referrer);
+                if (!instance.mSoftReverseReferences.contains(reference)) {
+                    instance.mSoftReverseReferences.add(reference);
+                }
+            }
+            instance.mSoftReverseReferences.trimToSize();
+        }
+    }
+
+    /**
+     * Returns the row referred to by the referent of the given row if it is a
+     * {@link java.lang.ref.Reference}, or -1.
+     */
+    private int getSoftReferenceTarget(int row) {
+        assert mSoftReferenceSources != null && mSoftReferenceTargets != null;
+        int i = Arrays.binarySearch(mSoftReferenceSources, row);
+        return i < 0 ? -1 : mSoftReferenceTargets[i];
+    }
+
+    /**
+     * Returns the position of the first soft reference to the given row in
+     * {@link #mSoftReferencesByTarget}, or the position where it would be.
+     */
+    private int findSoftReferrers(int row) {
+        assert mSoftReferencesByTarget != null;
+        int i = Arrays.binarySearch(mSoftReferencesByTarget, (long) row << 32);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * Groups the hard and soft references by target row.
+     */
+    private void resolveReferrers() {
+        if (mReferrerStarts != null) {
+            return;
+        }
+        assert mReferenceStarts != null && mReferenceTargets != null;
+        assert mSoftReferenceSources != null && mSoftReferenceTargets != null;
+
+        int[] starts = new int[mCount + 1];
+        for (int target : mReferenceTargets) {
+            starts[target + 1]++;
+        }
+        for (int row = 0; row < mCount; row++) {
+            starts[row + 1] += starts[row];
+        }
+        int[] referrers = new int[mReferenceTargets.length];
+        int[] fill = Arrays.copyOf(starts, mCount);
+        for (int row = 0; row < mCount; row++) {
+            for (int i = mReferenceStarts[row]; i < mReferenceStarts[row + 1]; i++) {
+                referrers[fill[mReferenceTargets[i]]++] = row;
+            }
+        }
+
+        long[] softReferences = new long[mSoftReferenceSources.length];
+        for (int i = 0; i < softReferences.length; i++) {
+            softReferences[i] = (long) mSoftReferenceTargets[i] << 32 | mSoftReferenceSources[i];
+        }
+        Arrays.sort(softReferences);
+
+        mSoftReferencesByTarget = softReferences;
+        mReferrers = referrers;
+        mReferrerStarts = starts;
+    }
+
+    /**
+     * Computes the distance of every row to the closest GC root with a breadth-first search from
+     * the given root rows, as {@link com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor}
+     * does on instances.
+     */
+    void computeDistancesToGcRoots(@NonNull Snapshot snapshot, @NonNull int[] rootRows) {
+        resolveReferences(snapshot);
+        assert mReferenceStarts != null && mReferenceTargets != null;
+
+        int[] distances = new int[mCount];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        int[] nextRows = new int[mCount];
+        Arrays.fill(nextRows, -1);
+        int[] queue = new int[mCount];
+        int head = 0;
+        int tail = 0;
+        for (int row : rootRows) {
+            distances[row] = 0;
+            queue[tail++] = row;
+        }
+
+        while (head < tail) {
+            int row = queue[head++];
+            int softTarget = getSoftReferenceTarget(row);
+            for (int i = mReferenceStarts[row]; i < mReferenceStarts[row + 1]; i++) {
+                int target = mReferenceTargets[i];
+                if (distances[target] != Integer.MAX_VALUE) {
+                    continue;
+                }
+                // Like the visitor, don't go through objects that are also softly referenced by
+                // their referrer, unless they are references themselves.
+                if (target == softTarget && !isSoftReference(snapshot, target)) {
+                    continue;
+                }
+                distances[target] = distances[row] + 1;
+                nextRows[target] = row;
+                queue[tail++] = target;
+            }
+        }
+
+        mDistances = distances;
+        mNextRowsToGcRoot = nextRows;
+    }
+
+    private boolean isSoftReference(@NonNull Snapshot snapshot, int row) {
+        if (mKinds[row] != KIND_CLASS_INSTANCE) {
+            return false;
+        }
+        ClassObj classObj = snapshot.findClass(mClassIds[row]);
+        return classObj != null && classObj.getIsSoftReference();
+    }
+
+    public boolean hasDistances() {
+        return mDistances != null;
+    }
+
+    /**
+     * Returns the distance of the given row to the closest GC root, or
+     * {@link Integer#MAX_VALUE} if it is not reachable.
+     */
+    public int getDistanceToGcRoot(int row) {
+        assert mDistances != null;
+        return mDistances[row];
+    }
+
+    /**
+     * Returns the row the given row is reached from on its shortest path to a GC root, or -1.
+     */
+    public int getNextRowToGcRoot(int row) {
+        assert mNextRowsToGcRoot != null;
+        return mNextRowsToGcRoot[row];
+    }
+
+    /**
+     * Sorts the rows reachable from the given root rows so that every row comes before the rows
+     * it refers to, with the same depth-first search as
+     * {@link com.android.tools.perflib.heap.analysis.TopologicalSort}.
+     */
+    void computeTopologicalOrder(@NonNull Snapshot snapshot, @NonNull int[] rootRows) {
+        resolveReferences(snapshot);
+        assert mReferenceStarts != null && mReferenceTargets != null;
+
+        boolean[] seen = new boolean[mCount];
+        boolean[] visited = new boolean[mCount];
+        int[] postorder = new int[mCount];
+        int count = 0;
+
+        // Like the visitor, children are pushed as long as they have not been entered, so a row
+        // may be on the stack several times.
+        int[] stack = new int[Math.max(rootRows.length, 16)];
+        int size = 0;
+        for (int row : rootRows) {
+            stack[size++] = row;
+        }
+        while (size > 0) {
+            int row = stack[size - 1];
+            if (!seen[row]) {
+                seen[row] = true;
+                for (int i = mReferenceStarts[row]; i < mReferenceStarts[row + 1]; i++) {
+                    int target = mReferenceTargets[i];
+                    if (!seen[target]) {
+                        if (size == stack.length) {
+                            stack = Arrays.copyOf(stack, size * 2);
+                        }
+                        stack[size++] = target;
+                    }
+                }
+            } else {
+                size--;
+                if (!visited[row]) {
+                    visited[row] = true;
+                    postorder[count++] = row;
+                }
+            }
+        }
+
+        int[] rows = new int[count];
+        int[] orders = new int[mCount];
+        for (int i = 0; i < count; i++) {
+            rows[i] = postorder[count - 1 - i];
+            orders[rows[i]] = i + 1;
+        }
+        mTopologicalRows = rows;
+        mTopologicalOrders = orders;
+    }
+
+    /**
+     * Returns the rows reachable from the GC roots in topological order, or null if it has not
+     * been computed.
+     */
+    @Nullable
+    public int[] getTopologicalRows() {
+        return mTopologicalRows;
+    }
+
+    /**
+     * Returns the 1-based position of the given row in {@link #getTopologicalRows()}, or 0 if
+     * the row is not reachable.
+     */
+    public int getTopologicalOrder(int row) {
+        assert mTopologicalOrders != null;
+        return mTopologicalOrders[row];
+    }
+
+    /**
+     * Returns the rows of {@link #getTopologicalRows()} that have an immediate dominator.
+     */
+    @NonNull
+    int[] getReachableRows() {
+        assert mTopologicalRows != null && mDominatorRows != null;
+        int[] rows = new int[mTopologicalRows.length];
+        int count = 0;
+        for (int row : mTopologicalRows) {
+            if (mDominatorRows[row] != -1) {
+                rows[count++] = row;
+            }
+        }
+        return count == rows.length ? rows : Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Returns whether immediate dominators have been computed on the rows, see
+     * {@link #setImmediateDominators(int[])}.
+     */
+    public boolean hasDominators() {
+        return mDominatorRows != null;
+    }
+
+    /**
+     * Returns the row of the immediate dominator of the given row, -1 if the row is not reachable
+     * from a GC root, or {@link #SENTINEL_ROW} if it is only dominated by the sentinel root.
+     */
+    public int getImmediateDominatorRow(int row) {
+        assert mDominatorRows != null;
+        return mDominatorRows[row];
+    }
+
+    /**
+     * Returns the immediate dominator of the given row, as
+     * {@link Instance#getImmediateDominator()} would for the materialized instance.
+     */
+    @Nullable
+    Instance getImmediateDominator(@NonNull Snapshot snapshot, int row) {
+        int dominatorRow = getImmediateDominatorRow(row);
+        if (dominatorRow == SENTINEL_ROW) {
+            return Snapshot.SENTINEL_ROOT;
+        }
+        return dominatorRow < 0 ? null : getInstance(snapshot, dominatorRow);
+    }
+
+    /**
+     * Stores the immediate dominator of each row, as described in
+     * {@link #getImmediateDominatorRow(int)}. Used by dominator computations running on the rows
+     * instead of on {@link Instance}s.
+     */
+    public void setImmediateDominators(@NonNull int[] dominatorRows) {
+        assert mSealed && dominatorRows.length == mCount;
+        mDominatorRows = dominatorRows;
+    }
+
+    public boolean hasRetainedSizes() {
+        return mRetainedSizes != null;
+    }
+
+    /**
+     * Returns the size retained by the given row in the heap at the given position in the
+     * snapshot, including the size of the row itself if it belongs to that heap.
+     */
+    public long getRetainedSize(int row, int heapIndex) {
+        assert mRetainedSizes != null;
+        long[] sizes = mRetainedSizes[heapIndex];
+        return sizes == null ? 0 : sizes[row];
+    }
+
+    /**
+     * Stores the retained sizes of the rows, indexed by heap position then by row. Heaps without
+     * any row may have a null entry.
+     */
+    public void setRetainedSizes(@NonNull long[][] retainedSizes) {
+        assert mSealed;
+        mRetainedSizes = retainedSizes;
+    }
+
+    /**
+     * Decodes the outgoing object references of every row from the buffer. This only needs to
+     * read the values of object fields and object arrays, so no {@link Instance} is created.
+     */
+    private void resolveReferences(@NonNull Snapshot snapshot) {
+        if (mReferenceStarts != null) {
+            return;
+        }
+        assert mSealed;
+
+        DataBuffer buffer = snapshot.getBuffer();
+        int idSize = snapshot.getTypeSize(Type.OBJECT);
+        int[] starts = new int[mCount + 1];
+        int[] targets = new int[Math.max(mCount, 16)];
+        int edgeCount = 0;
+        int[] softSources = new int[16];
+        int[] softTargets = new int[16];
+        int softCount = 0;
+
+        for (int row = 0; row < mCount; row++) {
+            starts[row] = edgeCount;
+            switch (mKinds[row]) {
+                case KIND_CLASS_INSTANCE: {
+                    ClassObj classObj = snapshot.findClass(mClassIds[row]);
+                    boolean isSoftReference = classObj != null && classObj.getIsSoftReference();
+                    buffer.setPosition(mOffsets[row]);
+                    for (ClassObj clazz = classObj; clazz != null;
+                            clazz = clazz.getSuperClassObj()) {
+                        for (Field field : clazz.getFields()) {
+                            if (field.getType() != Type.OBJECT) {
+                                buffer.setPosition(
+                                        buffer.position() + snapshot.getTypeSize(field.getType()));
+                                continue;
+                            }
+                            int target = indexOf(readId(buffer, idSize));
+                            if (target < 0) {
+                                continue;
+                            }
+                            if (isSoftReference && "referent".equals(field.getName())) {
+                                if (softCount == softSources.length) {
+                                    softSources = Arrays.copyOf(softSources, softCount * 2);
+                                    softTargets = Arrays.copyOf(softTargets, softCount * 2);
+                                }
+                                softSources[softCount] = row;
+                                softTargets[softCount++] = target;
+                            } else {
+                                if (edgeCount == targets.length) {
+                                    targets = Arrays.copyOf(targets, edgeCount + (edgeCount >> 1));
+                                }
+                                targets[edgeCount++] = target;
+                            }
+                        }
+                    }
+                    break;
+                }
+                case KIND_ARRAY: {
+                    if (mArrayTypes[row] != Type.OBJECT.getTypeId()) {
+                        break;
+                    }
+                    buffer.setPosition(mOffsets[row]);
+                    for (int i = 0; i < mLengths[row]; i++) {
+                        int target = indexOf(readId(buffer, idSize));
+                        if (target >= 0) {
+                            if (edgeCount == targets.length) {
+                                targets = Arrays.copyOf(targets, edgeCount + (edgeCount >> 1));
+                            }
+                            targets[edgeCount++] = target;
+                        }
+                    }
+                    break;
+                }
+                default: {
+                    // Static field values, laid out as in ClassObj#getStaticFieldValues().
+                    buffer.setPosition(mOffsets[row]);
+                    int numEntries = buffer.readShort() & 0xffff;
+                    for (int i = 0; i < numEntries; i++) {
+                        readId(buffer, idSize);
+                        Type type = Type.getType(buffer.readByte() & 0xff);
+                        if (type != Type.OBJECT) {
+                            buffer.setPosition(buffer.position() + snapshot.getTypeSize(type));
+                            continue;
+                        }
+                        int target = indexOf(readId(buffer, idSize));
+                        if (target >= 0) {
+                            if (edgeCount == targets.length) {
+                                targets = Arrays.copyOf(targets, edgeCount + (edgeCount >> 1));
+                            }
+                            targets[edgeCount++] = target;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        starts[mCount] = edgeCount;
+
+        mSoftReferenceSources = Arrays.copyOf(softSources, softCount);
+        mSoftReferenceTargets = Arrays.copyOf(softTargets, softCount);
+        mReferenceTargets = Arrays.copyOf(targets, edgeCount);
+        mReferenceStarts = starts;
+    }
+
+    /**
+     * Writes the rows, the references and the results of dominator computation, which must have
+     * been computed, for {@link #readFrom(DataBuffer, int, long)}.
+     */
+    void writeTo(@NonNull DataOutputStream out) throws IOException {
+        assert mSealed && mReferenceStarts != null && mReferenceTargets != null;
+        assert mSoftReferenceSources != null && mSoftReferenceTargets != null;
+        assert mDistances != null && mNextRowsToGcRoot != null;
+        assert mTopologicalRows != null && mDominatorRows != null && mRetainedSizes != null;
+
+        out.writeInt(mCount);
+        writeLongs(out, mIds, mCount);
+        writeLongs(out, mClassIds, mCount);
+        writeLongs(out, mOffsets, mCount);
+        writeInts(out, mLengths, mCount);
+        writeInts(out, mStackSerials, mCount);
+        out.write(mKinds, 0, mCount);
+        out.write(mArrayTypes, 0, mCount);
+        out.write(mHeapIndices, 0, mCount);
+
+        out.writeInt(mReferenceTargets.length);
+        writeInts(out, mReferenceStarts, mCount + 1);
+        writeInts(out, mReferenceTargets, mReferenceTargets.length);
+        out.writeInt(mSoftReferenceSources.length);
+        writeInts(out, mSoftReferenceSources, mSoftReferenceSources.length);
+        writeInts(out, mSoftReferenceTargets, mSoftReferenceTargets.length);
+
+        writeInts(out, mDistances, mCount);
+        writeInts(out, mNextRowsToGcRoot, mCount);
+        out.writeInt(mTopologicalRows.length);
+        writeInts(out, mTopologicalRows, mTopologicalRows.length);
+        writeInts(out, mDominatorRows, mCount);
+        out.writeInt(mRetainedSizes.length);
+        for (long[] sizes : mRetainedSizes) {
+            out.writeBoolean(sizes != null);
+            if (sizes != null) {
+                writeLongs(out, sizes, mCount);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #writeTo(DataOutputStream)}. Every count, row and value
+     * is checked before the index is returned, so that a corrupt or truncated input fails here
+     * rather than when the index is used.
+     *
+     * @param heapCount the number of heaps of the snapshot the index was written for
+     * @param bufferLength the length of the hprof buffer the rows point into
+     * @throws IOException if the input is not a valid index
+     */
+    @NonNull
+    static InstanceIndex readFrom(@NonNull DataBuffer in, int heapCount, long bufferLength)
+            throws IOException {
+        InstanceIndex index = new InstanceIndex();
+        int count = readCount(in, 8 + 8 + 8 + 4 + 4 + 1 + 1 + 1);
+        index.mCount = count;
+        index.mIds = readLongs(in, count);
+        index.mClassIds = readLongs(in, count);
+        index.mOffsets = readLongs(in, count);
+        index.mLengths = readInts(in, count, 0, Integer.MAX_VALUE);
+        index.mStackSerials = readInts(in, count, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        index.mKinds = readBytes(in, count);
+        index.mArrayTypes = readBytes(in, count);
+        index.mHeapIndices = readBytes(in, count);
+        for (int row = 0; row < count; row++) {
+            if (row > 0 && index.mIds[row] <= index.mIds[row - 1]) {
+                throw new IOException("Rows are not sorted by id");
+            }
+            if (index.mOffsets[row] < 0 || index.mOffsets[row] >= bufferLength
+                    || index.mKinds[row] < KIND_CLASS_INSTANCE || index.mKinds[row] > KIND_ARRAY
+                    || index.mHeapIndices[row] < 0 || index.mHeapIndices[row] >= heapCount
+                    || (index.mKinds[row] == KIND_ARRAY
+                            && Type.getType(index.mArrayTypes[row]) == null)) {
+                throw new IOException("Invalid row " + row);
+            }
+        }
+
+        int edgeCount = readCount(in, 4);
+        index.mReferenceStarts = readInts(in, count + 1, 0, edgeCount);
+        for (int row = 0; row < count; row++) {
+            if (index.mReferenceStarts[row] > index.mReferenceStarts[row + 1]) {
+                throw new IOException("Invalid references of row " + row);
+            }
+        }
+        if (index.mReferenceStarts[0] != 0 || index.mReferenceStarts[count] != edgeCount) {
+            throw new IOException("Invalid reference count");
+        }
+        index.mReferenceTargets = readInts(in, edgeCount, 0, count - 1);
+        int softCount = readCount(in, 4 + 4);
+        index.mSoftReferenceSources = readInts(in, softCount, 0, count - 1);
+        index.mSoftReferenceTargets = readInts(in, softCount, 0, count - 1);
+        for (int i = 1; i < softCount; i++) {
+            if (index.mSoftReferenceSources[i] <= index.mSoftReferenceSources[i - 1]) {
+                throw new IOException("Soft references are not sorted");
+            }
+        }
+
+        index.mDistances = readInts(in, count, 0, Integer.MAX_VALUE);
+        index.mNextRowsToGcRoot = readInts(in, count, -1, count - 1);
+        int topologicalCount = readCount(in, 4);
+        index.mTopologicalRows = readInts(in, topologicalCount, 0, count - 1);
+        index.mTopologicalOrders = new int[count];
+        for (int i = 0; i < topologicalCount; i++) {
+            int row = index.mTopologicalRows[i];
+            if (index.mTopologicalOrders[row] != 0) {
+                throw new IOException("Row " + row + " is sorted twice");
+            }
+            index.mTopologicalOrders[row] = i + 1;
+        }
+        index.mDominatorRows = readInts(in, count, SENTINEL_ROW, count - 1);
+        if (in.remaining() < 4 || in.readInt() != heapCount) {
+            throw new IOException("Invalid retained sizes");
+        }
+        index.mRetainedSizes = new long[heapCount][];
+        for (int heap = 0; heap < heapCount; heap++) {
+            if (in.remaining() < 1) {
+                throw new IOException("Invalid retained sizes");
+            }
+            if (in.readByte() != 0) {
+                index.mRetainedSizes[heap] = readLongs(in, count);
+            }
+        }
+
+        index.mRestored = true;
+        return index;
+    }
+
+    private static void writeInts(@NonNull DataOutputStream out, @NonNull int[] values,
+            int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    private static void writeLongs(@NonNull DataOutputStream out, @NonNull long[] values,
+            int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            out.writeLong(values[i]);
+        }
+    }
+
+    /**
+     * Reads a count of items that take at least {@code itemSize} bytes each, checking that they
+     * can fit in the rest of the input.
+     */
+    private static int readCount(@NonNull DataBuffer in, int itemSize) throws IOException {
+        if (in.remaining() < 4) {
+            throw new IOException("Index is truncated");
+        }
+        int count = in.readInt();
+        if (count < 0 || (long) count * itemSize > in.remaining()) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull DataBuffer in, int count, int min, int max)
+            throws IOException {
+        if ((long) count * 4 > in.remaining()) {
+            throw new IOException("Index is truncated");
+        }
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readInt();
+            if (values[i] < min || values[i] > max) {
+                throw new IOException("Invalid value " + values[i]);
+            }
+        }
+        return values;
+    }
+
+    @NonNull
+    private static long[] readLongs(@NonNull DataBuffer in, int count) throws IOException {
+        if ((long) count * 8 > in.remaining()) {
+            throw new IOException("Index is truncated");
+        }
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    @NonNull
+    private static byte[] readBytes(@NonNull DataBuffer in, int count) throws IOException {
+        if (count > in.remaining()) {
+            throw new IOException("Index is truncated");
+        }
+        byte[] values = new byte[count];
+        if (count > 0) {
+            in.read(values);
+        }
+        return values;
+    }
+
+    private static long readId(@NonNull DataBuffer buffer, int idSize) {
+        // As long as we don't interpret IDs, reading signed values here is fine.
+        switch (idSize) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            case 8:
+                return buffer.readLong();
+        }
+        return 0;
+    }
+
+    @NonNull
+    private static int[] identityPermutation(int size) {
+        int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[i] = i;
+        }
+        return permutation;
+    }
+
+    /**
+     * Sorts {@code rows[low..high]} by {@code keys[row]}, without boxing.
+     */
+    private static void sortByKey(@NonNull int[] rows, @NonNull long[] keys, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            long pivot = medianOfThree(keys[rows[low]], keys[rows[mid]], keys[rows[high]]);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (keys[rows[i]] < pivot) {
+                    i++;
+                }
+                while (keys[rows[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = rows[i];
+                    rows[i] = rows[j];
+                    rows[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half to bound the stack depth.
+            if (j - low < high - i) {
+                sortByKey(rows, keys, low, j);
+                low = i;
+            } else {
+                sortByKey(rows, keys, i, high);
+                high = j;
+            }
+        }
+
+        for (int i = low + 1; i <= high; i++) {
+            int row = rows[i];
+            long key = keys[row];
+            int j = i - 1;
+            while (j >= low && keys[rows[j]] > key) {
+                rows[j + 1] = rows[j];
+                j--;
+            }
+            rows[j + 1] = row;
+        }
+    }
+
+    private static long medianOfThree(long a, long b, long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    @NonNull
+    private long[] permute(@NonNull long[] column, @NonNull int[] permutation) {
+        long[] result = new long[mCount];
+        for (int i = 0; i < mCount; i++) {
+            result[i] = column[permutation[i]];
+        }
+        return result;
+    }
+
+    @NonNull
+    private int[] permute(@NonNull int[] column, @NonNull int[] permutation) {
+        int[] result = new int[mCount];
+        for (int i = 0; i < mCount; i++) {
+            result[i] = column[permutation[i]];
+        }
+        return result;
+    }
+
+    @NonNull
+    private byte[] permute(@NonNull byte[] column, @NonNull int[] permutation) {
+        byte[] result = new byte[mCount];
+        for (int i = 0; i < mCount; i++) {
+            result[i] = column[permutation[i]];
+        }
+        return result;
+    }
+}
@@ -21,19 +21,24 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DuplicableDataBuffer;
+import com.android.tools.perflib.heap.analysis.ArrayDominators;
 import com.android.tools.perflib.heap.analysis.ComputationProgress;
 import com.android.tools.perflib.heap.analysis.DominatorsBase;
 import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import gnu.trove.THashSet;
 import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
 import gnu.trove.TObjectProcedure;
 
@@ -119,6 +124,11 @@ public class Snapshot extends Capture {
 
     private long mIdSizeMask = 0x00000000ffffffffL;
 
+    //  Columnar storage for the objects of this snapshot, or null if every object is parsed into
+    //  its own Instance.
+    @Nullable
+    private InstanceIndex mInstanceIndex;
+
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer) {
         return createSnapshot(buffer, new ProguardMap());
@@ -126,9 +136,120 @@ public class Snapshot extends Capture {
 
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer, @NonNull ProguardMap map) {
+        return createSnapshot(buffer, map, false, null, null);
+    }
+
+    /**
+     * Creates a snapshot, passing every heap dump record to {@code listener} as it is parsed.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull HprofRecordListener listener) {
+        return createSnapshot(buffer, map, false, null, listener);
+    }
+
+    /**
+     * Creates a snapshot, decoding the heap dump records of the buffer concurrently on
+     * {@code pool}. The resulting snapshot is the same as the one built by
+     * {@link #createSnapshot(DataBuffer, ProguardMap)}.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull DuplicableDataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull ForkJoinPool pool) {
+        return createSnapshot(buffer, map, false, pool, null);
+    }
+
+    /**
+     * Creates a snapshot backed by an {@link InstanceIndex}. Objects are kept as rows of primitive
+     * arrays, and {@link Instance}s are only created when first looked up through the
+     * {@link Heap}, {@link ClassObj} or {@link Snapshot} APIs.
+     */
+    @NonNull
+    public static Snapshot createIndexedSnapshot(@NonNull DataBuffer buffer,
+            @NonNull ProguardMap map) {
+        return createSnapshot(buffer, map, true, null, null);
+    }
+
+    /**
+     * Creates a snapshot backed by an {@link InstanceIndex}, passing every heap dump record to
+     * {@code listener} as it is parsed.
+     */
+    @NonNull
+    public static Snapshot createIndexedSnapshot(@NonNull DataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull HprofRecordListener listener) {
+        return createSnapshot(buffer, map, true, null, listener);
+    }
+
+    /**
+     * Creates a snapshot backed by an {@link InstanceIndex}, decoding the heap dump records of
+     * the buffer concurrently on {@code pool}.
+     */
+    @NonNull
+    public static Snapshot createIndexedSnapshot(@NonNull DuplicableDataBuffer buffer,
+            @NonNull ProguardMap map, @NonNull ForkJoinPool pool) {
+        return createSnapshot(buffer, map, true, pool, null);
+    }
+
+    /**
+     * Creates a snapshot backed by an {@link InstanceIndex}, adding the position of every heap
+     * dump record that is not an instance or array dump to {@code recordOffsets}. See
+     * {@link SnapshotIndexCache}.
+     */
+    @NonNull
+    static Snapshot createIndexedSnapshot(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull TLongArrayList recordOffsets) {
         try {
             Snapshot snapshot = new Snapshot(buffer);
-            HprofParser.parseBuffer(snapshot, buffer, map);
+            snapshot.mInstanceIndex = new InstanceIndex();
+            HprofParser.parseBuffer(snapshot, buffer, map, recordOffsets);
+            return snapshot;
+        } catch (RuntimeException e) {
+            buffer.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a snapshot whose objects are the rows of {@code index}, restored by a
+     * {@link SnapshotIndexCache}. Only the heap dump records at {@code recordOffsets} are parsed,
+     * see {@link #createIndexedSnapshot(DataBuffer, ProguardMap, TLongArrayList)}.
+     *
+     * @throws IOException if the buffer doesn't match the recorded offsets, in which case the
+     * buffer is disposed of.
+     */
+    @NonNull
+    static Snapshot openIndexedSnapshot(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            @NonNull InstanceIndex index, @NonNull long[] recordOffsets) throws IOException {
+        try {
+            Snapshot snapshot = new Snapshot(buffer);
+            snapshot.mInstanceIndex = index;
+            HprofParser.parseSkeleton(snapshot, buffer, map, recordOffsets);
+            return snapshot;
+        } catch (IOException e) {
+            buffer.dispose();
+            throw e;
+        } catch (RuntimeException e) {
+            buffer.dispose();
+            throw e;
+        }
+    }
+
+    @NonNull
+    private static Snapshot createSnapshot(@NonNull DataBuffer buffer, @NonNull ProguardMap map,
+            boolean indexed, @Nullable ForkJoinPool pool,
+            @Nullable HprofRecordListener listener) {
+        try {
+            Snapshot snapshot = new Snapshot(buffer);
+            if (indexed) {
+                snapshot.mInstanceIndex = new InstanceIndex();
+            }
+            if (pool != null) {
+                HprofParser.parseBuffer(snapshot, (DuplicableDataBuffer) buffer, map, pool);
+            } else if (listener != null) {
+                HprofParser.parseBuffer(snapshot, buffer, map, listener);
+            } else {
+                HprofParser.parseBuffer(snapshot, buffer, map);
+            }
             return snapshot;
         } catch (RuntimeException e) {
             buffer.dispose();
@@ -280,6 +401,49 @@ public class Snapshot extends Capture {
     public final void addClass(long id, @NonNull ClassObj theClass) {
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
+        if (mInstanceIndex != null && !mInstanceIndex.isRestored()) {
+            mInstanceIndex.addClassObj(getHeapIndex(mCurrentHeap), theClass);
+        }
+    }
+
+    final void addClassInstanceRecord(long id, int stackSerial, long classId, long offset) {
+        assert mInstanceIndex != null;
+        mInstanceIndex.addClassInstance(getHeapIndex(mCurrentHeap), id, stackSerial, classId,
+                offset);
+    }
+
+    final void addArrayRecord(long id, int stackSerial, long classId, @NonNull Type type,
+            int length, long offset) {
+        assert mInstanceIndex != null;
+        mInstanceIndex.addArray(getHeapIndex(mCurrentHeap), id, stackSerial, classId, type,
+                length, offset);
+    }
+
+    public boolean isIndexed() {
+        return mInstanceIndex != null;
+    }
+
+    @Nullable
+    public InstanceIndex getInstanceIndex() {
+        return mInstanceIndex;
+    }
+
+    /**
+     * Adds all instances of {@code classObj} to its per-heap instance lists. Only used by indexed
+     * snapshots, where this is deferred until the instances of the class are asked for.
+     */
+    void resolveInstancesOf(@NonNull ClassObj classObj) {
+        assert mInstanceIndex != null;
+        for (int row : mInstanceIndex.getRowsOfClass(classObj.getId())) {
+            if (mInstanceIndex.getKind(row) == InstanceIndex.KIND_CLASS_OBJ) {
+                continue;
+            }
+            Heap heap = mHeaps.get(mInstanceIndex.getHeapIndex(row));
+            Instance instance = heap.getInstance(mInstanceIndex.getId(row));
+            if (instance != null) {
+                classObj.addInstance(heap.getId(), instance);
+            }
+        }
     }
 
     @Nullable
@@ -350,6 +514,10 @@ public class Snapshot extends Capture {
     }
 
     public void resolveClasses() {
+        if (mInstanceIndex != null) {
+            mInstanceIndex.seal(this);
+        }
+
         ClassObj clazz = findClass(JAVA_LANG_CLASS);
         int javaLangClassSize = clazz != null ? clazz.getInstanceSize() : 0;
 
@@ -367,6 +535,14 @@ public class Snapshot extends Capture {
                     classSize += getTypeSize(f.getType());
                 }
                 classObj.setSize(classSize);
+                if (mInstanceIndex != null) {
+                    classObj.setInstancesDeferred();
+                }
+            }
+
+            if (mInstanceIndex != null) {
+                // Instances are added to their class lazily, see ClassObj#resolveInstances().
+                continue;
             }
 
             final int heapId = heap.getId();
@@ -393,6 +569,12 @@ public class Snapshot extends Capture {
     }
 
     public void resolveReferences() {
+        if (mInstanceIndex != null) {
+            // Instances created from the index read their references from it when asked for.
+            mInstanceIndex.getReferenceTargets(this);
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             for (ClassObj clazz : heap.getClasses()) {
                 clazz.resolveReferences();
@@ -408,6 +590,10 @@ public class Snapshot extends Capture {
     }
 
     public void compactMemory() {
+        if (mInstanceIndex != null) {
+            return;
+        }
+
         for (Heap heap : getHeaps()) {
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
@@ -430,16 +616,38 @@ public class Snapshot extends Capture {
     }
 
     public void computeDominators() {
+        if (mInstanceIndex != null) {
+            // Run on the rows of the index, so that no instance has to be created.
+            computeDominators(ForkJoinPool.commonPool());
+            return;
+        }
+
         prepareDominatorComputation();
         doComputeDominators(new LinkEvalDominators(this));
     }
 
+    /**
+     * Computes dominators with {@link ArrayDominators}, which keeps its working state in int
+     * arrays and accumulates retained sizes on {@code pool}.
+     */
+    public void computeDominators(@NonNull ForkJoinPool pool) {
+        prepareDominatorComputation();
+        if (mDominators == null) {
+            doComputeDominators(new ArrayDominators(this, pool));
+        }
+    }
+
     @VisibleForTesting
     public void prepareDominatorComputation() {
         if (mDominators != null) {
             return;
         }
 
+        if (mInstanceIndex != null) {
+            prepareIndexedDominatorComputation();
+            return;
+        }
+
         mDominatorComputationStage = DominatorComputationStage.RESOLVING_REFERENCES;
         resolveReferences();
         compactMemory();
@@ -455,6 +663,28 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Computes the distances to GC roots and the topological ordering on the rows of the
+     * {@link InstanceIndex}. The topological ordering only looks up the instances that are read
+     * from it.
+     */
+    private void prepareIndexedDominatorComputation() {
+        assert mInstanceIndex != null;
+        mDominatorComputationStage = DominatorComputationStage.RESOLVING_REFERENCES;
+        resolveReferences();
+        int[] rootRows = mInstanceIndex.getRootRows(getGCRoots());
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_SHORTEST_DISTANCE;
+        mInstanceIndex.computeDistancesToGcRoots(this, rootRows);
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_TOPOLOGICAL_SORT;
+        mInstanceIndex.computeTopologicalOrder(this, rootRows);
+        int[] topologicalRows = mInstanceIndex.getTopologicalRows();
+        assert topologicalRows != null;
+        SENTINEL_ROOT.setTopologicalOrder(0);
+        mTopSort = mInstanceIndex.getInstances(this, topologicalRows);
+    }
+
     @VisibleForTesting
     public void doComputeDominators(@NonNull DominatorsBase computable) {
         if (mDominators != null) {
@@ -484,6 +714,10 @@ public class Snapshot extends Capture {
 
     @NonNull
     public List<Instance> getReachableInstances() {
+        if (mInstanceIndex != null && mInstanceIndex.hasDominators()) {
+            return mInstanceIndex.getInstances(this, mInstanceIndex.getReachableRows());
+        }
+
         List<Instance> result = new ArrayList<Instance>(mTopSort.size());
         for (Instance node : mTopSort) {
             if (node.getImmediateDominator() != null) {
@@ -497,6 +731,14 @@ public class Snapshot extends Capture {
         return mTopSort;
     }
 
+    /**
+     * Sets the topological ordering restored from a {@link SnapshotIndexCache}, in place of
+     * {@link #prepareDominatorComputation()}.
+     */
+    void setTopologicalOrdering(@NonNull List<Instance> topSort) {
+        mTopSort = topSort;
+    }
+
     public final void dumpInstanceCounts() {
         for (Heap heap : mHeaps) {
             System.out.println("+------------------ instance counts for heap: " + heap.getName());
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.ComputationProgress;
+import com.android.tools.perflib.heap.analysis.DominatorsBase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import gnu.trove.TLongArrayList;
+
+/**
+ * Sidecar file that lets an hprof file be reopened without parsing its objects or computing its
+ * dominators again.
+ *
+ * The index file holds the rows of the snapshot's {@link InstanceIndex}, its reference graph, the
+ * results of dominator computation, and the positions of the heap dump records that are not
+ * object dumps. Reopening only parses those records, and the strings, classes and stack traces
+ * that precede the heap dump.
+ *
+ * The index records a fingerprint of the hprof it was computed from: its length, modification
+ * time, and a CRC32 of its first and last blocks and of blocks sampled in between. An index file
+ * that doesn't match its hprof, or that can't be read in full and checked before the snapshot is
+ * built, is deleted and rebuilt by {@link #open(File, ProguardMap)}.
+ */
+public final class SnapshotIndexCache {
+
+    private static final int MAGIC = 0x50494458; // "PIDX"
+
+    @VisibleForTesting
+    static final int VERSION = 2;
+
+    private static final String INDEX_FILE_SUFFIX = ".index";
+
+    //  Magic, version, hprof length, modification time and sampled checksum.
+    @VisibleForTesting
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+
+    //  Size of the blocks at the start and end of the hprof covered by its fingerprint.
+    private static final int EDGE_BLOCK_SIZE = 1 << 16;
+
+    //  Number and size of the blocks sampled in between.
+    private static final int SAMPLED_BLOCK_COUNT = 64;
+
+    private static final int SAMPLED_BLOCK_SIZE = 1 << 12;
+
+    private SnapshotIndexCache() {
+    }
+
+    /**
+     * Returns the index file kept next to {@code hprofFile}.
+     */
+    @NonNull
+    public static File getIndexFile(@NonNull File hprofFile) {
+        return new File(hprofFile.getPath() + INDEX_FILE_SUFFIX);
+    }
+
+    /**
+     * Opens {@code hprofFile} as an indexed snapshot with dominators computed, from its index file
+     * if it is up to date. Otherwise the hprof is parsed in full, dominators are computed and a
+     * new index file is written.
+     */
+    @NonNull
+    public static Snapshot open(@NonNull File hprofFile, @NonNull ProguardMap map)
+            throws IOException {
+        Snapshot snapshot = load(hprofFile, map);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        Fingerprint fingerprint = new Fingerprint(hprofFile);
+        TLongArrayList recordOffsets = new TLongArrayList();
+        snapshot = Snapshot.createIndexedSnapshot(new MemoryMappedFileBuffer(hprofFile), map,
+                recordOffsets);
+        snapshot.computeDominators();
+        try {
+            save(snapshot, recordOffsets, fingerprint, getIndexFile(hprofFile));
+        } catch (IOException e) {
+            // The index only saves time on the next open, the snapshot is complete without it.
+        }
+        return snapshot;
+    }
+
+    /**
+     * Opens {@code hprofFile} from its index file.
+     *
+     * @return null if there is no index file, or if it is stale or invalid, in which case it is
+     * deleted.
+     */
+    @VisibleForTesting
+    @Nullable
+    static Snapshot load(@NonNull File hprofFile, @NonNull ProguardMap map) throws IOException {
+        File indexFile = getIndexFile(hprofFile);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+
+        Snapshot snapshot = null;
+        try {
+            IndexFile index = read(indexFile, hprofFile);
+            if (index != null) {
+                snapshot = Snapshot.openIndexedSnapshot(new MemoryMappedFileBuffer(hprofFile), map,
+                        index.mInstanceIndex, index.mRecordOffsets);
+                if (restoreDominators(snapshot, index.mHeapIds)) {
+                    return snapshot;
+                }
+            }
+        } catch (IOException e) {
+            // Handled as a stale index.
+        } catch (RuntimeException e) {
+            // Handled as a stale index.
+        }
+
+        if (snapshot != null) {
+            snapshot.dispose();
+        }
+        indexFile.delete();
+        return null;
+    }
+
+    /**
+     * Reads and checks the whole index file, without building a snapshot.
+     *
+     * @return null if the index was written for another version or another hprof.
+     * @throws IOException if the index file can't be read or is invalid.
+     */
+    @Nullable
+    private static IndexFile read(@NonNull File indexFile, @NonNull File hprofFile)
+            throws IOException {
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(indexFile);
+        try {
+            long length = buffer.remaining();
+            if (length < HEADER_SIZE + 8
+                    || buffer.readInt() != MAGIC
+                    || buffer.readInt() != VERSION
+                    || !new Fingerprint(buffer).equals(new Fingerprint(hprofFile))) {
+                return null;
+            }
+
+            // The last 8 bytes are the CRC32 of the rest of the file.
+            buffer.setPosition(length - 8);
+            long checksum = buffer.readLong();
+            buffer.setPosition(0);
+            if (checksum(buffer, length - 8) != checksum) {
+                throw new IOException("Checksum mismatch");
+            }
+
+            buffer.setPosition(HEADER_SIZE);
+            int heapCount = buffer.readInt();
+            if (heapCount <= 0 || heapCount > Byte.MAX_VALUE) {
+                throw new IOException("Invalid heap count " + heapCount);
+            }
+            int[] heapIds = new int[heapCount];
+            for (int i = 0; i < heapCount; i++) {
+                heapIds[i] = buffer.readInt();
+            }
+            int offsetCount = buffer.readInt();
+            if (offsetCount < 0 || (long) offsetCount * 8 > buffer.remaining()) {
+                throw new IOException("Invalid record count " + offsetCount);
+            }
+            long[] recordOffsets = new long[offsetCount];
+            for (int i = 0; i < offsetCount; i++) {
+                recordOffsets[i] = buffer.readLong();
+            }
+            InstanceIndex instanceIndex =
+                    InstanceIndex.readFrom(buffer, heapCount, hprofFile.length());
+            if (buffer.position() != length - 8) {
+                throw new IOException("Unexpected data at " + buffer.position());
+            }
+            return new IndexFile(heapIds, recordOffsets, instanceIndex);
+        } finally {
+            buffer.dispose();
+        }
+    }
+
+    private static long checksum(@NonNull DataBuffer buffer, long length) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[1 << 16];
+        for (long remaining = length; remaining > 0; remaining -= bytes.length) {
+            if (remaining < bytes.length) {
+                bytes = new byte[(int) remaining];
+            }
+            buffer.read(bytes);
+            crc.update(bytes, 0, bytes.length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Checks that the records parsed from the hprof describe the heaps and classes the rows of its
+     * index were written for, and sets the results of dominator computation on the snapshot.
+     */
+    private static boolean restoreDominators(@NonNull Snapshot snapshot, @NonNull int[] heapIds) {
+        InstanceIndex index = snapshot.getInstanceIndex();
+        assert index != null;
+        if (snapshot.mHeaps.size() != heapIds.length) {
+            return false;
+        }
+        int classCount = 0;
+        for (int i = 0; i < heapIds.length; i++) {
+            Heap heap = snapshot.mHeaps.get(i);
+            if (heap.getId() != heapIds[i]) {
+                return false;
+            }
+            classCount += heap.getClasses().size();
+        }
+        for (int row = 0; row < index.getCount(); row++) {
+            if (index.getKind(row) != InstanceIndex.KIND_CLASS_OBJ) {
+                continue;
+            }
+            ClassObj classObj = snapshot.findClass(index.getId(row));
+            if (classObj == null
+                    || snapshot.getHeapIndex(classObj.getHeap()) != index.getHeapIndex(row)) {
+                return false;
+            }
+            classCount--;
+        }
+        if (classCount != 0) {
+            return false;
+        }
+
+        int[] topologicalRows = index.getTopologicalRows();
+        assert topologicalRows != null;
+        Snapshot.SENTINEL_ROOT.setTopologicalOrder(0);
+        snapshot.setTopologicalOrdering(index.getInstances(snapshot, topologicalRows));
+        snapshot.doComputeDominators(new CachedDominators(snapshot));
+        return true;
+    }
+
+    private static void save(@NonNull Snapshot snapshot, @NonNull TLongArrayList recordOffsets,
+            @NonNull Fingerprint fingerprint, @NonNull File indexFile) throws IOException {
+        InstanceIndex index = snapshot.getInstanceIndex();
+        if (index == null || !index.hasRetainedSizes()) {
+            throw new IllegalStateException("Dominators have not been computed on the index");
+        }
+
+        // Write to a temporary file first, so that a partially written index is never loaded.
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        CheckedOutputStream checked =
+                new CheckedOutputStream(new FileOutputStream(tempFile), new CRC32());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(checked, 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            fingerprint.writeTo(out);
+
+            out.writeInt(snapshot.mHeaps.size());
+            for (Heap heap : snapshot.mHeaps) {
+                out.writeInt(heap.getId());
+            }
+            out.writeInt(recordOffsets.size());
+            for (int i = 0; i < recordOffsets.size(); i++) {
+                out.writeLong(recordOffsets.get(i));
+            }
+            index.writeTo(out);
+
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            // renameTo does not replace existing files on every platform.
+            if (!indexFile.delete() || !tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to write " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * Length, modification time and sampled checksum of an hprof file, cheap enough to compute
+     * on every open.
+     */
+    private static final class Fingerprint {
+
+        private final long mLength;
+
+        private final long mLastModified;
+
+        private final long mChecksum;
+
+        Fingerprint(@NonNull File file) throws IOException {
+            CRC32 crc = new CRC32();
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                mLength = in.length();
+                byte[] block = new byte[EDGE_BLOCK_SIZE];
+                update(crc, in, 0, EDGE_BLOCK_SIZE, block);
+                long step = mLength / (SAMPLED_BLOCK_COUNT + 1);
+                for (int i = 1; i <= SAMPLED_BLOCK_COUNT; i++) {
+                    update(crc, in, i * step, SAMPLED_BLOCK_SIZE, block);
+                }
+                update(crc, in, mLength - EDGE_BLOCK_SIZE, EDGE_BLOCK_SIZE, block);
+            } finally {
+                in.close();
+            }
+            mLastModified = file.lastModified();
+            mChecksum = crc.getValue();
+        }
+
+        Fingerprint(@NonNull DataBuffer buffer) {
+            mLength = buffer.readLong();
+            mLastModified = buffer.readLong();
+            mChecksum = buffer.readLong();
+        }
+
+        private static void update(@NonNull CRC32 crc, @NonNull RandomAccessFile in,
+                long position, int size, @NonNull byte[] block) throws IOException {
+            position = Math.max(0, position);
+            int length = (int) Math.min(size, in.length() - position);
+            if (length > 0) {
+                in.seek(position);
+                in.readFully(block, 0, length);
+                crc.update(block, 0, length);
+            }
+        }
+
+        void writeTo(@NonNull DataOutputStream out) throws IOException {
+            out.writeLong(mLength);
+            out.writeLong(mLastModified);
+            out.writeLong(mChecksum);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return mLength == other.mLength && mLastModified == other.mLastModified
+                    && mChecksum == other.mChecksum;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mChecksum ^ mLength ^ mLastModified);
+        }
+    }
+
+    /**
+     * The contents of an index file, read in full before any snapshot is built from them.
+     */
+    private static final class IndexFile {
+
+        @NonNull
+        final int[] mHeapIds;
+
+        @NonNull
+        final long[] mRecordOffsets;
+
+        @NonNull
+        final InstanceIndex mInstanceIndex;
+
+        IndexFile(@NonNull int[] heapIds, @NonNull long[] recordOffsets,
+                @NonNull InstanceIndex instanceIndex) {
+            mHeapIds = heapIds;
+            mRecordOffsets = recordOffsets;
+            mInstanceIndex = instanceIndex;
+        }
+    }
+
+    /**
+     * Stands in for the dominator computation of a snapshot restored from an index, whose
+     * immediate dominators and retained sizes are already in its {@link InstanceIndex}.
+     */
+    private static final class CachedDominators extends DominatorsBase {
+
+        private CachedDominators(@NonNull Snapshot snapshot) {
+            super(snapshot);
+        }
+
+        @NonNull
+        @Override
+        public ComputationProgress getComputationProgress() {
+            return mCurrentProgress;
+        }
+
+        @Override
+        public void computeDominators() {
+        }
+
+        @Override
+        public void computeRetainedSizes() {
+        }
+    }
+}
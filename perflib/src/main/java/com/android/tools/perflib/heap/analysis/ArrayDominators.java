@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceIndex;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Computes dominators with the same link-eval algorithm as {@link LinkEvalDominators}, but keeps
+ * all of its state (graph, semi-dominators, ancestors, labels and buckets) in int arrays indexed
+ * by depth-first number instead of one node object per instance.
+ *
+ * Retained sizes are accumulated bottom-up over the dominator tree, one tree level at a time.
+ * The nodes of large levels are processed concurrently on a {@link ForkJoinPool}.
+ *
+ * For snapshots backed by an {@link InstanceIndex}, the graph is built from the reference rows of
+ * the index and the results are stored back into it, so no {@link Instance} is looked up.
+ */
+public final class ArrayDominators extends DominatorsBase {
+
+    //  Levels of the dominator tree, or ranges of nodes, smaller than this are processed inline.
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+
+    @NonNull
+    private final ForkJoinPool mPool;
+
+    //  Index of the snapshot, whose rows are then the nodes: row i is node i + 1.
+    @Nullable
+    private final InstanceIndex mIndex;
+
+    //  Instances by node index when there is no index: the sentinel root is node 0, followed by
+    //  mTopSort in order.
+    private Instance[] mInstances;
+
+    //  Number of nodes, including the sentinel root.
+    private final int mNodeCount;
+
+    private int[] mSuccessorStarts;
+
+    private int[] mSuccessors;
+
+    private int[] mPredecessorStarts;
+
+    private int[] mPredecessors;
+
+    //  Depth-first number of each node, -1 if unreached.
+    private int[] mDfNumbers;
+
+    //  Node of each depth-first number.
+    private int[] mVertices;
+
+    //  The following are all indexed by depth-first number.
+    private int[] mParents;
+
+    private int[] mSemiDominators;
+
+    private int[] mImmediateDominators;
+
+    private int[] mAncestors;
+
+    private int[] mLabels;
+
+    private int mReachedCount;
+
+    private volatile int mSemiDominatorProgress = 0;
+
+    private volatile int mDominatorProgress = 0;
+
+    public ArrayDominators(@NonNull Snapshot snapshot, @NonNull ForkJoinPool pool) {
+        super(snapshot);
+        mPool = pool;
+        mIndex = snapshot.getInstanceIndex();
+
+        if (mIndex != null) {
+            mNodeCount = mIndex.getCount() + 1;
+            buildSuccessors(mIndex, snapshot.getGCRoots());
+        } else {
+            mNodeCount = mTopSort.size() + 1;
+            mInstances = new Instance[mNodeCount];
+            mInstances[0] = Snapshot.SENTINEL_ROOT;
+            for (int i = 1; i < mNodeCount; i++) {
+                mInstances[i] = mTopSort.get(i - 1);
+            }
+            buildSuccessors(snapshot.getGCRoots());
+        }
+        buildPredecessors();
+        depthFirstSearch();
+    }
+
+    /**
+     * Returns the node index of {@code instance}, or -1 if it is not part of the topological
+     * ordering. Node indices are the topological order assigned by {@link TopologicalSort}.
+     */
+    private int nodeOf(@NonNull Instance instance) {
+        int order = instance.getTopologicalOrder();
+        return order > 0 && order < mInstances.length && mInstances[order] == instance
+                ? order : -1;
+    }
+
+    private void buildSuccessors(@NonNull Iterable<RootObj> roots) {
+        int nodeCount = mNodeCount;
+        mSuccessorStarts = new int[nodeCount + 1];
+        int[] successors = new int[Math.max(nodeCount * 2, 16)];
+        int edgeCount = 0;
+
+        // The sentinel root points to every instance referred to by a GC root, once.
+        boolean[] isRoot = new boolean[nodeCount];
+        for (RootObj root : roots) {
+            Instance referredInstance = root.getReferredInstance();
+            int node = referredInstance == null ? -1 : nodeOf(referredInstance);
+            if (node > 0 && !isRoot[node]) {
+                isRoot[node] = true;
+                if (edgeCount == successors.length) {
+                    successors = Arrays.copyOf(successors, edgeCount * 2);
+                }
+                successors[edgeCount++] = node;
+            }
+        }
+
+        for (int i = 1; i < nodeCount; i++) {
+            mSuccessorStarts[i] = edgeCount;
+            for (Instance reference : mInstances[i].getHardForwardReferences()) {
+                int node = nodeOf(reference);
+                if (node > 0) {
+                    if (edgeCount == successors.length) {
+                        successors = Arrays.copyOf(successors, edgeCount * 2);
+                    }
+                    successors[edgeCount++] = node;
+                }
+            }
+        }
+        mSuccessorStarts[nodeCount] = edgeCount;
+        mSuccessors = Arrays.copyOf(successors, edgeCount);
+    }
+
+    /**
+     * Builds the successors of each node from the hard references of the rows of {@code index},
+     * which are already grouped by row.
+     */
+    private void buildSuccessors(@NonNull InstanceIndex index, @NonNull Iterable<RootObj> roots) {
+        // The sentinel root points to the row of every object referred to by a GC root, once.
+        int[] rootRows = index.getRootRows(roots);
+        int rootCount = rootRows.length;
+
+        int[] targets = index.getReferenceTargets(mSnapshot);
+        mSuccessors = new int[rootCount + targets.length];
+        for (int i = 0; i < rootCount; i++) {
+            mSuccessors[i] = rootRows[i] + 1;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            mSuccessors[rootCount + i] = targets[i] + 1;
+        }
+
+        mSuccessorStarts = new int[mNodeCount + 1];
+        for (int row = 0; row < mNodeCount; row++) {
+            mSuccessorStarts[row + 1] = rootCount + index.getReferencesStart(mSnapshot, row);
+        }
+    }
+
+    private void buildPredecessors() {
+        int nodeCount = mNodeCount;
+        mPredecessorStarts = new int[nodeCount + 1];
+        for (int successor : mSuccessors) {
+            mPredecessorStarts[successor + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            mPredecessorStarts[i + 1] += mPredecessorStarts[i];
+        }
+
+        mPredecessors = new int[mSuccessors.length];
+        int[] fill = Arrays.copyOf(mPredecessorStarts, nodeCount);
+        for (int node = 0; node < nodeCount; node++) {
+            for (int i = mSuccessorStarts[node]; i < mSuccessorStarts[node + 1]; i++) {
+                mPredecessors[fill[mSuccessors[i]]++] = node;
+            }
+        }
+    }
+
+    /**
+     * Numbers the nodes reachable from the sentinel root in depth-first order, using an explicit
+     * stack since the recursive version blows the stack.
+     */
+    private void depthFirstSearch() {
+        int nodeCount = mNodeCount;
+        mDfNumbers = new int[nodeCount];
+        Arrays.fill(mDfNumbers, -1);
+        mVertices = new int[nodeCount];
+        mParents = new int[nodeCount];
+
+        int[] nodeStack = new int[nodeCount];
+        int[] edgeStack = new int[nodeCount];
+        int stackSize = 0;
+        int count = 0;
+
+        mDfNumbers[0] = count;
+        mVertices[count++] = 0;
+        nodeStack[stackSize] = 0;
+        edgeStack[stackSize++] = mSuccessorStarts[0];
+
+        while (stackSize > 0) {
+            int node = nodeStack[stackSize - 1];
+            int edge = edgeStack[stackSize - 1];
+            if (edge == mSuccessorStarts[node + 1]) {
+                stackSize--;
+                continue;
+            }
+            edgeStack[stackSize - 1] = edge + 1;
+
+            int successor = mSuccessors[edge];
+            if (mDfNumbers[successor] < 0) {
+                mDfNumbers[successor] = count;
+                mParents[count] = mDfNumbers[node];
+                mVertices[count++] = successor;
+                nodeStack[stackSize] = successor;
+                edgeStack[stackSize++] = mSuccessorStarts[successor];
+            }
+        }
+        mReachedCount = count;
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        String progressMessage;
+        double progress;
+        if (mSemiDominatorProgress < mReachedCount - 1) {
+            progressMessage = String
+                    .format("Calculating semi-dominators %d/%d", mSemiDominatorProgress,
+                            mReachedCount);
+            progress = 0.5 * (double) mSemiDominatorProgress / (double) mReachedCount;
+        } else {
+            progressMessage = String
+                    .format("Calculating immediate dominators %d/%d", mDominatorProgress,
+                            mReachedCount);
+            progress = 0.5 + 0.5 * (double) mDominatorProgress / (double) mReachedCount;
+        }
+        mCurrentProgress.setMessage(progressMessage);
+        mCurrentProgress.setProgress(progress);
+        return mCurrentProgress;
+    }
+
+    @Override
+    public void computeDominators() {
+        int count = mReachedCount;
+        mSemiDominators = new int[count];
+        mImmediateDominators = new int[count];
+        mAncestors = new int[count];
+        mLabels = new int[count];
+        int[] bucketHeads = new int[count];
+        int[] bucketNext = new int[count];
+        int[] compressStack = new int[count];
+        for (int i = 0; i < count; i++) {
+            mSemiDominators[i] = i;
+            mLabels[i] = i;
+        }
+        Arrays.fill(mAncestors, -1);
+        Arrays.fill(bucketHeads, -1);
+
+        for (int w = count - 1; w > 0; --w, mSemiDominatorProgress = count - 1 - w) {
+            // Step 2 of paper.
+            int node = mVertices[w];
+            for (int i = mPredecessorStarts[node]; i < mPredecessorStarts[node + 1]; i++) {
+                int v = mDfNumbers[mPredecessors[i]];
+                if (v < 0) {
+                    continue;
+                }
+                int u = eval(v, compressStack);
+                if (mSemiDominators[u] < mSemiDominators[w]) {
+                    mSemiDominators[w] = mSemiDominators[u];
+                }
+            }
+
+            int semi = mSemiDominators[w];
+            bucketNext[w] = bucketHeads[semi];
+            bucketHeads[semi] = w;
+            int parent = mParents[w];
+            mAncestors[w] = parent;
+
+            // Step 3 of paper.
+            for (int v = bucketHeads[parent]; v >= 0; v = bucketNext[v]) {
+                int u = eval(v, compressStack);
+                mImmediateDominators[v] =
+                        mSemiDominators[u] < mSemiDominators[v] ? u : parent;
+            }
+            bucketHeads[parent] = -1;
+        }
+
+        // Step 4 of paper.
+        int[] dominatorRows = null;
+        if (mIndex != null) {
+            dominatorRows = new int[mNodeCount - 1];
+            Arrays.fill(dominatorRows, -1);
+        }
+        for (int w = 1; w < count; w++) {
+            if (mImmediateDominators[w] != mSemiDominators[w]) {
+                mImmediateDominators[w] = mImmediateDominators[mImmediateDominators[w]];
+            }
+            int dominator = mVertices[mImmediateDominators[w]];
+            if (dominatorRows != null) {
+                dominatorRows[mVertices[w] - 1] =
+                        dominator == 0 ? InstanceIndex.SENTINEL_ROW : dominator - 1;
+            } else {
+                mInstances[mVertices[w]].setImmediateDominator(mInstances[dominator]);
+            }
+            mDominatorProgress = w;
+        }
+        if (mIndex != null) {
+            mIndex.setImmediateDominators(dominatorRows);
+        }
+
+        // Only the dominator tree is needed from now on.
+        mSuccessorStarts = null;
+        mSuccessors = null;
+        mPredecessorStarts = null;
+        mPredecessors = null;
+        mDfNumbers = null;
+        mParents = null;
+        mSemiDominators = null;
+        mAncestors = null;
+        mLabels = null;
+    }
+
+    private int eval(int v, @NonNull int[] compressStack) {
+        if (mAncestors[v] < 0) {
+            return v;
+        }
+        compress(v, compressStack);
+        return mLabels[v];
+    }
+
+    private void compress(int v, @NonNull int[] stack) {
+        int size = 0;
+        while (mAncestors[mAncestors[v]] >= 0) {
+            stack[size++] = v;
+            v = mAncestors[v];
+        }
+        while (size > 0) {
+            int toCompress = stack[--size];
+            int ancestor = mAncestors[toCompress];
+            if (mSemiDominators[mLabels[ancestor]] < mSemiDominators[mLabels[toCompress]]) {
+                mLabels[toCompress] = mLabels[ancestor];
+            }
+            mAncestors[toCompress] = mAncestors[ancestor];
+        }
+    }
+
+    /**
+     * Computes retained sizes of instances. Only call this AFTER dominator computation.
+     */
+    @Override
+    public void computeRetainedSizes() {
+        final int count = mReachedCount;
+        final int heapCount = mSnapshot.getHeaps().size();
+
+        // Shallow size and heap of every reached node.
+        final int[] sizes = new int[count];
+        final byte[] heapIndices = new byte[count];
+        for (int w = 1; w < count; w++) {
+            if (mIndex != null) {
+                int row = mVertices[w] - 1;
+                sizes[w] = mIndex.getSize(mSnapshot, row);
+                heapIndices[w] = (byte) mIndex.getHeapIndex(row);
+            } else {
+                Instance instance = mInstances[mVertices[w]];
+                sizes[w] = instance.getSize();
+                heapIndices[w] = (byte) mSnapshot.getHeapIndex(instance.getHeap());
+            }
+        }
+
+        // Sort nodes by depth in the dominator tree. Dominators have smaller depth-first numbers
+        // than the nodes they dominate, so depths can be computed in a single pass.
+        int[] depths = new int[count];
+        int maxDepth = 0;
+        for (int w = 1; w < count; w++) {
+            depths[w] = depths[mImmediateDominators[w]] + 1;
+            maxDepth = Math.max(maxDepth, depths[w]);
+        }
+        final int[] levelStarts = new int[maxDepth + 2];
+        for (int w = 1; w < count; w++) {
+            levelStarts[depths[w] + 1]++;
+        }
+        for (int d = 0; d <= maxDepth; d++) {
+            levelStarts[d + 1] += levelStarts[d];
+        }
+        final int[] byDepth = new int[count];
+        int[] fill = Arrays.copyOf(levelStarts, maxDepth + 1);
+        for (int w = 1; w < count; w++) {
+            byDepth[fill[depths[w]]++] = w;
+        }
+
+        // Sizes retained in each heap by each node, excluding the node itself.
+        final AtomicLongArray[] retained = new AtomicLongArray[heapCount];
+        for (int h = 0; h < heapCount; h++) {
+            retained[h] = new AtomicLongArray(count);
+        }
+
+        for (int d = maxDepth; d > 0; d--) {
+            accumulate(new RangeTask(levelStarts[d], levelStarts[d + 1]) {
+                @Override
+                void computeRange(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        int w = byDepth[i];
+                        int dominator = mImmediateDominators[w];
+                        for (int h = 0; h < heapCount; h++) {
+                            long size = retained[h].get(w) + (heapIndices[w] == h ? sizes[w] : 0);
+                            if (size != 0) {
+                                retained[h].addAndGet(dominator, size);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        if (mIndex != null) {
+            storeRetainedSizes(mIndex, heapCount, retained);
+        } else {
+            accumulate(new RangeTask(1, count) {
+                @Override
+                void computeRange(int from, int to) {
+                    for (int w = from; w < to; w++) {
+                        Instance instance = mInstances[mVertices[w]];
+                        for (int h = 0; h < heapCount; h++) {
+                            long size = retained[h].get(w);
+                            if (size != 0) {
+                                instance.addRetainedSize(h, size);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        mVertices = null;
+        mImmediateDominators = null;
+    }
+
+    /**
+     * Stores the retained sizes of all rows of {@code index}: the size of the row itself, as
+     * {@link Instance#resetRetainedSize()} does for unreachable instances too, plus the sizes
+     * accumulated for the rows it dominates.
+     */
+    private void storeRetainedSizes(@NonNull final InstanceIndex index, int heapCount,
+            @NonNull final AtomicLongArray[] retained) {
+        final int rowCount = index.getCount();
+        final long[][] retainedSizes = new long[heapCount][];
+        for (int row = 0; row < rowCount; row++) {
+            int heapIndex = index.getHeapIndex(row);
+            if (retainedSizes[heapIndex] == null) {
+                retainedSizes[heapIndex] = new long[rowCount];
+            }
+        }
+
+        accumulate(new RangeTask(0, rowCount) {
+            @Override
+            void computeRange(int from, int to) {
+                for (int row = from; row < to; row++) {
+                    retainedSizes[index.getHeapIndex(row)][row] = index.getSize(mSnapshot, row);
+                }
+            }
+        });
+        accumulate(new RangeTask(1, mReachedCount) {
+            @Override
+            void computeRange(int from, int to) {
+                for (int w = from; w < to; w++) {
+                    int row = mVertices[w] - 1;
+                    for (int h = 0; h < retainedSizes.length; h++) {
+                        long size = retained[h].get(w);
+                        if (size != 0) {
+                            retainedSizes[h][row] += size;
+                        }
+                    }
+                }
+            }
+        });
+        index.setRetainedSizes(retainedSizes);
+    }
+
+    private void accumulate(@NonNull RangeTask task) {
+        if (task.mTo - task.mFrom < PARALLEL_THRESHOLD) {
+            task.computeRange(task.mFrom, task.mTo);
+        } else {
+            mPool.invoke(task);
+        }
+    }
+
+    /**
+     * Applies {@link #computeRange(int, int)} to [mFrom, mTo), splitting the range in halves
+     * until it is smaller than {@link #PARALLEL_THRESHOLD}.
+     */
+    private abstract static class RangeTask extends RecursiveAction {
+        final int mFrom;
+
+        final int mTo;
+
+        RangeTask(int from, int to) {
+            mFrom = from;
+            mTo = to;
+        }
+
+        abstract void computeRange(int from, int to);
+
+        @Override
+        protected void compute() {
+            split(mFrom, mTo);
+        }
+
+        private void split(final int from, final int to) {
+            if (to - from < PARALLEL_THRESHOLD) {
+                computeRange(from, to);
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            invokeAll(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    split(from, mid);
+                }
+            }, new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    split(mid, to);
+                }
+            });
+        }
+    }
+}
@@ -40,10 +40,14 @@ public abstract class DominatorsBase {
         mTopSort = mSnapshot.getTopologicalOrdering();
 
         // Initialize retained sizes for all classes and objects, including unreachable ones.
+        // Computations on the rows of an InstanceIndex keep retained sizes in the index instead.
         for (Heap heap : mSnapshot.getHeaps()) {
             for (Instance instance : heap.getClasses()) {
                 instance.resetRetainedSize();
             }
+            if (mSnapshot.isIndexed()) {
+                continue;
+            }
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
                 public boolean execute(Instance instance) {
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceIndex;
+import com.android.tools.perflib.heap.ProguardMap;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectIntHashMap;
+
+/**
+ * Per-class and per-heap differences between two snapshots of the same application.
+ *
+ * Classes are matched by name, after deobfuscation, and heaps by name. Classes sharing a name (as
+ * loaded by different class loaders) are aggregated. The statistics of each snapshot are kept in
+ * flat primitive arrays indexed by class and heap, so only one row of longs per class name is kept
+ * alive for each snapshot.
+ *
+ * Retained sizes are the sum of the retained sizes of the instances of a class that are not
+ * dominated by another instance of that class, so that linked structures are counted once. They
+ * are only available if dominators have been computed on the snapshot.
+ */
+public final class SnapshotDiff {
+
+    public enum Metric {
+        INSTANCE_COUNT,
+        SHALLOW_SIZE,
+        RETAINED_SIZE
+    }
+
+    private static final int METRIC_COUNT = Metric.values().length;
+
+    @NonNull
+    private final List<String> mClassNames = new ArrayList<String>();
+
+    @NonNull
+    private final TObjectIntHashMap<String> mClassIndices = new TObjectIntHashMap<String>();
+
+    @NonNull
+    private final List<String> mHeapNames = new ArrayList<String>();
+
+    //  Statistics of the snapshots, at [(class * heapCount + heap) * METRIC_COUNT + metric].
+    private long[] mBefore;
+
+    private long[] mAfter;
+
+    private SnapshotDiff() {
+    }
+
+    /**
+     * Compares two snapshots, whose class names are already deobfuscated or obfuscated the same.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Snapshot before, @NonNull Snapshot after) {
+        return compute(before, null, after, null);
+    }
+
+    /**
+     * Compares two snapshots, deobfuscating the class names of each with its own map.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Snapshot before, @Nullable ProguardMap beforeMap,
+            @NonNull Snapshot after, @Nullable ProguardMap afterMap) {
+        SnapshotDiff diff = new SnapshotDiff();
+        diff.addNames(before, beforeMap);
+        diff.addNames(after, afterMap);
+
+        int size = diff.mClassNames.size() * diff.mHeapNames.size() * METRIC_COUNT;
+        diff.mBefore = new long[size];
+        diff.mAfter = new long[size];
+        diff.addStatistics(before, beforeMap, diff.mBefore);
+        diff.addStatistics(after, afterMap, diff.mAfter);
+        return diff;
+    }
+
+    @NonNull
+    private static String getClassName(@NonNull ClassObj classObj, @Nullable ProguardMap map) {
+        String name = classObj.getClassName();
+        if (map == null) {
+            return name;
+        }
+        int arrayStart = name.indexOf('[');
+        return arrayStart < 0 ? map.getClassName(name)
+                : map.getClassName(name.substring(0, arrayStart)) + name.substring(arrayStart);
+    }
+
+    private void addNames(@NonNull Snapshot snapshot, @Nullable ProguardMap map) {
+        for (Heap heap : snapshot.getHeaps()) {
+            if (!mHeapNames.contains(heap.getName())) {
+                mHeapNames.add(heap.getName());
+            }
+            for (ClassObj classObj : heap.getClasses()) {
+                String name = getClassName(classObj, map);
+                if (!mClassIndices.containsKey(name)) {
+                    mClassIndices.put(name, mClassNames.size());
+                    mClassNames.add(name);
+                }
+            }
+        }
+    }
+
+    private int getOffset(int classIndex, int heapIndex, @NonNull Metric metric) {
+        return (classIndex * mHeapNames.size() + heapIndex) * METRIC_COUNT + metric.ordinal();
+    }
+
+    private void addStatistics(@NonNull Snapshot snapshot, @Nullable ProguardMap map,
+            @NonNull long[] statistics) {
+        List<Heap> heaps = new ArrayList<Heap>(snapshot.getHeaps());
+        int[] heapIndices = new int[heaps.size()];
+        for (int i = 0; i < heaps.size(); i++) {
+            heapIndices[i] = mHeapNames.indexOf(heaps.get(i).getName());
+        }
+        TLongIntHashMap classIndices = new TLongIntHashMap();
+        for (Heap classHeap : heaps) {
+            for (ClassObj classObj : classHeap.getClasses()) {
+                classIndices.put(classObj.getId(), mClassIndices.get(getClassName(classObj, map)));
+            }
+        }
+
+        InstanceIndex index = snapshot.getInstanceIndex();
+        if (index != null) {
+            addIndexStatistics(snapshot, index, classIndices, heapIndices, statistics);
+            return;
+        }
+
+        boolean hasRetainedSizes = snapshot.getTopologicalOrdering() != null;
+        for (Heap classHeap : heaps) {
+            for (ClassObj classObj : classHeap.getClasses()) {
+                int classIndex = classIndices.get(classObj.getId());
+                for (int i = 0; i < heaps.size(); i++) {
+                    int offset = getOffset(classIndex, heapIndices[i], Metric.INSTANCE_COUNT);
+                    int heapId = heaps.get(i).getId();
+                    statistics[offset + Metric.INSTANCE_COUNT.ordinal()] +=
+                            classObj.getHeapInstancesCount(heapId);
+                    statistics[offset + Metric.SHALLOW_SIZE.ordinal()] +=
+                            classObj.getShallowSize(heapId);
+                    if (hasRetainedSizes) {
+                        long retainedSize = 0;
+                        for (Instance instance : classObj.getHeapInstances(heapId)) {
+                            if (!isDominatedBySameClass(instance, classIndex, classIndices)) {
+                                retainedSize += instance.getTotalRetainedSize();
+                            }
+                        }
+                        statistics[offset + Metric.RETAINED_SIZE.ordinal()] += retainedSize;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the statistics of an indexed snapshot straight from the rows of its index, without
+     * creating the instances.
+     */
+    private void addIndexStatistics(@NonNull Snapshot snapshot, @NonNull InstanceIndex index,
+            @NonNull TLongIntHashMap classIndices, @NonNull int[] heapIndices,
+            @NonNull long[] statistics) {
+        boolean hasRetainedSizes = index.hasDominators() && index.hasRetainedSizes();
+        for (int row = 0; row < index.getCount(); row++) {
+            if (index.getKind(row) == InstanceIndex.KIND_CLASS_OBJ
+                    || !classIndices.containsKey(index.getClassId(row))) {
+                continue;
+            }
+            int classIndex = classIndices.get(index.getClassId(row));
+            int offset = getOffset(classIndex, heapIndices[index.getHeapIndex(row)],
+                    Metric.INSTANCE_COUNT);
+            statistics[offset + Metric.INSTANCE_COUNT.ordinal()]++;
+            statistics[offset + Metric.SHALLOW_SIZE.ordinal()] += index.getSize(snapshot, row);
+            if (hasRetainedSizes && !isDominatedBySameClass(index, row, classIndex, classIndices)) {
+                long retainedSize = 0;
+                for (int heap = 0; heap < heapIndices.length; heap++) {
+                    retainedSize += index.getRetainedSize(row, heap);
+                }
+                statistics[offset + Metric.RETAINED_SIZE.ordinal()] += retainedSize;
+            }
+        }
+    }
+
+    /**
+     * Returns whether an instance of the class is dominated by another instance of the same class,
+     * whose retained size already includes its own. Class objects on the way are skipped.
+     */
+    private static boolean isDominatedBySameClass(@NonNull Instance instance, int classIndex,
+            @NonNull TLongIntHashMap classIndices) {
+        for (Instance dominator = instance.getImmediateDominator();
+                dominator != null && dominator != Snapshot.SENTINEL_ROOT;
+                dominator = dominator.getImmediateDominator()) {
+            ClassObj classObj = dominator.getClassObj();
+            if (dominator instanceof ClassObj || classObj == null) {
+                continue;
+            }
+            long classId = classObj.getId();
+            if (classIndices.containsKey(classId) && classIndices.get(classId) == classIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDominatedBySameClass(@NonNull InstanceIndex index, int row,
+            int classIndex, @NonNull TLongIntHashMap classIndices) {
+        for (int dominator = index.getImmediateDominatorRow(row); dominator >= 0;
+                dominator = index.getImmediateDominatorRow(dominator)) {
+            if (index.getKind(dominator) == InstanceIndex.KIND_CLASS_OBJ) {
+                continue;
+            }
+            long classId = index.getClassId(dominator);
+            if (classIndices.containsKey(classId) && classIndices.get(classId) == classIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getClassCount() {
+        return mClassNames.size();
+    }
+
+    @NonNull
+    public String getClassName(int classIndex) {
+        return mClassNames.get(classIndex);
+    }
+
+    /**
+     * Returns the index of the class named {@code className}, or -1 if neither snapshot has it.
+     */
+    public int getClassIndex(@NonNull String className) {
+        return mClassIndices.containsKey(className) ? mClassIndices.get(className) : -1;
+    }
+
+    @NonNull
+    public List<String> getHeapNames() {
+        return mHeapNames;
+    }
+
+    public long getBefore(@NonNull Metric metric, int classIndex, int heapIndex) {
+        return mBefore[getOffset(classIndex, heapIndex, metric)];
+    }
+
+    public long getAfter(@NonNull Metric metric, int classIndex, int heapIndex) {
+        return mAfter[getOffset(classIndex, heapIndex, metric)];
+    }
+
+    public long getDelta(@NonNull Metric metric, int classIndex, int heapIndex) {
+        int offset = getOffset(classIndex, heapIndex, metric);
+        return mAfter[offset] - mBefore[offset];
+    }
+
+    /**
+     * Returns the difference of {@code metric} for a class, summed over all heaps.
+     */
+    public long getDelta(@NonNull Metric metric, int classIndex) {
+        long delta = 0;
+        for (int heap = 0; heap < mHeapNames.size(); heap++) {
+            delta += getDelta(metric, classIndex, heap);
+        }
+        return delta;
+    }
+
+    /**
+     * Returns the indices of the classes by decreasing growth of {@code metric}, over all heaps.
+     */
+    @NonNull
+    public int[] getClassesByGrowth(@NonNull final Metric metric) {
+        final long[] deltas = new long[mClassNames.size()];
+        Integer[] classes = new Integer[deltas.length];
+        for (int i = 0; i < deltas.length; i++) {
+            deltas[i] = getDelta(metric, i);
+            classes[i] = i;
+        }
+        Arrays.sort(classes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long delta1 = deltas[o1];
+                long delta2 = deltas[o2];
+                return delta1 > delta2 ? -1 : (delta1 < delta2 ? 1 : o1.compareTo(o2));
+            }
+        });
+        int[] result = new int[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            result[i] = classes[i];
+        }
+        return result;
+    }
+
+    /**
+     * Formats the {@code limit} classes that grew the most in {@code metric}, with their deltas in
+     * every metric and heap.
+     */
+    @NonNull
+    public String formatGrowthReport(@NonNull Metric metric, int limit) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-60s %-8s %12s %14s %14s%n", "Class", "Heap", "Count",
+                "Shallow", "Retained"));
+        int[] classes = getClassesByGrowth(metric);
+        for (int i = 0; i < Math.min(limit, classes.length); i++) {
+            int classIndex = classes[i];
+            if (getDelta(metric, classIndex) <= 0) {
+                break;
+            }
+            for (int heap = 0; heap < mHeapNames.size(); heap++) {
+                long countDelta = getDelta(Metric.INSTANCE_COUNT, classIndex, heap);
+                long shallowDelta = getDelta(Metric.SHALLOW_SIZE, classIndex, heap);
+                long retainedDelta = getDelta(Metric.RETAINED_SIZE, classIndex, heap);
+                if (countDelta != 0 || shallowDelta != 0 || retainedDelta != 0) {
+                    report.append(String.format("%-60s %-8s %+12d %+14d %+14d%n",
+                            mClassNames.get(classIndex), mHeapNames.get(heap), countDelta,
+                            shallowDelta, retainedDelta));
+                }
+            }
+        }
+        return report.toString();
+    }
+}
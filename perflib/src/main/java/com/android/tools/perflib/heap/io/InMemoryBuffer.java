@@ -18,10 +18,11 @@ package com.android.tools.perflib.heap.io;
 
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.DuplicableDataBuffer;
 
 import java.nio.ByteBuffer;
 
-public class InMemoryBuffer implements DataBuffer {
+public class InMemoryBuffer implements DuplicableDataBuffer {
 
     private final ByteBuffer mBuffer;
 
@@ -36,6 +37,19 @@ public class InMemoryBuffer implements DataBuffer {
         mBuffer = ByteBuffer.wrap(data);
     }
 
+    private InMemoryBuffer(@NonNull ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @NonNull
+    @Override
+    public DataBuffer duplicate() {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.order(mBuffer.order());
+        buffer.rewind();
+        return new InMemoryBuffer(buffer);
+    }
+
     @Override
     public void dispose() {}
 
@@ -83,7 +83,7 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
 
     public static class DuplicatedStringsEntry extends MemoryAnalysisResultEntry {
 
-        private DuplicatedStringsEntry(@NonNull String offendingString,
+        DuplicatedStringsEntry(@NonNull String offendingString,
                 @NonNull List<Instance> duplicates) {
             super(offendingString, duplicates);
         }
@@ -23,14 +23,20 @@ import com.android.tools.perflib.analyzer.Analyzer;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.analyzer.CaptureGroup;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofRecordListener;
+import com.android.tools.perflib.heap.ProguardMap;
 import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -104,15 +110,8 @@ public class MemoryAnalyzer extends Analyzer {
                     continue;
                 }
 
-                List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
-                for (Heap heap : snapshot.getHeaps()) {
-                    if ("app".equals(heap.getName())) {
-                        heapsToUse.add(heap);
-                        break;
-                    }
-                }
-                final MemoryAnalyzerTask.Configuration configuration
-                        = new MemoryAnalyzerTask.Configuration(heapsToUse);
+                final MemoryAnalyzerTask.Configuration configuration =
+                        getConfiguration(snapshot);
 
                 for (final MemoryAnalyzerTask task : mTasks) {
                     final ListenableFutureTask<List<AnalysisResultEntry>> futureTask =
@@ -166,6 +165,36 @@ public class MemoryAnalyzer extends Analyzer {
         return mOutstandingReport;
     }
 
+    /**
+     * Parses {@code buffer} into an indexed snapshot, running {@code tasks} on its heap dump
+     * records as they are read, and returns the results of the tasks for the app heap. Only the
+     * instances reported on are created, see {@link Snapshot#createIndexedSnapshot}.
+     */
+    @NonNull
+    public static List<AnalysisResultEntry> analyzeWhileParsing(@NonNull DataBuffer buffer,
+            @NonNull ProguardMap map,
+            @NonNull Collection<? extends StreamingMemoryAnalyzerTask> tasks) {
+        Snapshot snapshot = Snapshot.createIndexedSnapshot(buffer, map, new TasksListener(tasks));
+        MemoryAnalyzerTask.Configuration configuration = getConfiguration(snapshot);
+        List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
+        for (StreamingMemoryAnalyzerTask task : tasks) {
+            results.addAll(task.analyze(configuration, snapshot));
+        }
+        return results;
+    }
+
+    @NonNull
+    private static MemoryAnalyzerTask.Configuration getConfiguration(@NonNull Snapshot snapshot) {
+        List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
+        for (Heap heap : snapshot.getHeaps()) {
+            if ("app".equals(heap.getName())) {
+                heapsToUse.add(heap);
+                break;
+            }
+        }
+        return new MemoryAnalyzerTask.Configuration(heapsToUse);
+    }
+
     @Override
     public void cancel() {
         if (mOutstandingReport == null || mAnalysisComplete) {
@@ -180,4 +209,65 @@ public class MemoryAnalyzer extends Analyzer {
     public boolean isRunning() {
         return !mRunningAnalyzers.isDone();
     }
+
+    /**
+     * Passes the records read by the parser on to each of the tasks.
+     */
+    private static final class TasksListener implements HprofRecordListener {
+
+        @NonNull
+        private final Collection<? extends StreamingMemoryAnalyzerTask> mTasks;
+
+        TasksListener(@NonNull Collection<? extends StreamingMemoryAnalyzerTask> tasks) {
+            mTasks = tasks;
+        }
+
+        @Override
+        public void onHeaderRead(@NonNull Snapshot snapshot) {
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                task.onHeaderRead(snapshot);
+            }
+        }
+
+        @Override
+        public void onLoadClass(long classId, @NonNull String className) {
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                task.onLoadClass(classId, className);
+            }
+        }
+
+        @Override
+        public void onClassDump(@NonNull ClassObj classObj) {
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                task.onClassDump(classObj);
+            }
+        }
+
+        @Override
+        public void onInstanceDump(@NonNull Heap heap, long id, long classId, int valuesLength,
+                @NonNull DataBuffer buffer) {
+            long position = buffer.position();
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                buffer.setPosition(position);
+                task.onInstanceDump(heap, id, classId, valuesLength, buffer);
+            }
+        }
+
+        @Override
+        public void onObjectArrayDump(@NonNull Heap heap, long id, long classId, int length) {
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                task.onObjectArrayDump(heap, id, classId, length);
+            }
+        }
+
+        @Override
+        public void onPrimitiveArrayDump(@NonNull Heap heap, long id, @NonNull Type type,
+                int length, @NonNull DataBuffer buffer) {
+            long position = buffer.position();
+            for (StreamingMemoryAnalyzerTask task : mTasks) {
+                buffer.setPosition(position);
+                task.onPrimitiveArrayDump(heap, id, type, length, buffer);
+            }
+        }
+    }
 }
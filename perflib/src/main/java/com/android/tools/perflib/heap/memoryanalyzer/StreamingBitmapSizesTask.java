@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ddmlib.BitmapDecoder;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.ArrayInstance;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Reports the size of the pixel buffer of every {@code android.graphics.Bitmap}, largest first.
+ * Dimensions are read from the bitmap instances and buffer sizes from the byte arrays as the hprof
+ * is parsed, so no references need to be resolved.
+ */
+public class StreamingBitmapSizesTask extends StreamingMemoryAnalyzerTask {
+
+    private static final Set<String> BITMAP_FIELDS = ImmutableSet.of("mBuffer", "mWidth",
+            "mHeight");
+
+    //  The id of android.graphics.Bitmap, from its LOAD_CLASS record, or 0 if not known yet.
+    private long mBitmapClassId;
+
+    @Nullable
+    private ClassObj mBitmapClass;
+
+    //  Bitmaps decoded while parsing, one entry per bitmap in each list.
+    private final TLongArrayList mBitmapIds = new TLongArrayList();
+
+    private final TIntArrayList mBitmapHeapIds = new TIntArrayList();
+
+    private final TLongArrayList mBufferIds = new TLongArrayList();
+
+    private final TIntArrayList mWidths = new TIntArrayList();
+
+    private final TIntArrayList mHeights = new TIntArrayList();
+
+    //  Length of every byte array.
+    private final TLongIntHashMap mByteArrayLengths = new TLongIntHashMap();
+
+    @Override
+    public void onLoadClass(long classId, @NonNull String className) {
+        if (BitmapDecoder.BITMAP_FQCN.equals(className)) {
+            mBitmapClassId = classId;
+        }
+    }
+
+    @Override
+    public void onClassDump(@NonNull ClassObj classObj) {
+        if (BitmapDecoder.BITMAP_FQCN.equals(classObj.getClassName())) {
+            mBitmapClassId = classObj.getId();
+            mBitmapClass = classObj;
+        }
+    }
+
+    @Override
+    public void onInstanceDump(@NonNull Heap heap, long id, long classId, int valuesLength,
+            @NonNull DataBuffer buffer) {
+        if (mBitmapClass == null || classId != mBitmapClassId) {
+            if (mBitmapClass == null && couldBeBitmap(classId, valuesLength)) {
+                defer(id, classId);
+            }
+            return;
+        }
+        Map<String, Object> values = readFields(mBitmapClass, buffer, BITMAP_FIELDS);
+        if (values == null) {
+            defer(id, classId);
+            return;
+        }
+        if (!(values.get("mBuffer") instanceof Long)
+                || !(values.get("mWidth") instanceof Integer)
+                || !(values.get("mHeight") instanceof Integer)) {
+            return;
+        }
+        mBitmapIds.add(id);
+        mBitmapHeapIds.add(heap.getId());
+        mBufferIds.add((Long) values.get("mBuffer"));
+        mWidths.add((Integer) values.get("mWidth"));
+        mHeights.add((Integer) values.get("mHeight"));
+    }
+
+    /**
+     * Returns whether an instance dumped before the android.graphics.Bitmap class may be a bitmap.
+     * Once the id of the class is known from its LOAD_CLASS record, only its instances are,
+     * otherwise only instances of classes not dumped yet, with room for the fields read here.
+     */
+    private boolean couldBeBitmap(long classId, int valuesLength) {
+        if (mBitmapClassId != 0) {
+            return classId == mBitmapClassId;
+        }
+        assert mSnapshot != null;
+        int minValuesLength = mSnapshot.getTypeSize(Type.OBJECT)
+                + 2 * mSnapshot.getTypeSize(Type.INT);
+        return valuesLength >= minValuesLength && mSnapshot.findClass(classId) == null;
+    }
+
+    @Override
+    public void onPrimitiveArrayDump(@NonNull Heap heap, long id, @NonNull Type type, int length,
+            @NonNull DataBuffer buffer) {
+        if (type == Type.BYTE) {
+            mByteArrayLengths.put(id, length);
+        }
+    }
+
+    @NonNull
+    @Override
+    List<AnalysisResultEntry> getResults(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        List<BitmapSizeEntry> entries = new ArrayList<BitmapSizeEntry>();
+        for (int i = 0; i < mBitmapIds.size(); i++) {
+            Heap heap = snapshot.getHeap(mBitmapHeapIds.get(i));
+            if (!configuration.mHeaps.contains(heap) || !mByteArrayLengths
+                    .containsKey(mBufferIds.get(i))) {
+                continue;
+            }
+            Instance bitmap = snapshot.findInstance(mBitmapIds.get(i));
+            if (bitmap != null) {
+                entries.add(new BitmapSizeEntry(bitmap, mWidths.get(i), mHeights.get(i),
+                        mByteArrayLengths.get(mBufferIds.get(i))));
+            }
+        }
+        ClassObj bitmapClass = snapshot.findClass(BitmapDecoder.BITMAP_FQCN);
+        if (bitmapClass != null) {
+            for (Instance bitmap : getDeferredInstances(configuration, snapshot, bitmapClass)) {
+                BitmapSizeEntry entry = createEntry((ClassInstance) bitmap);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        Collections.sort(entries, new Comparator<BitmapSizeEntry>() {
+            @Override
+            public int compare(BitmapSizeEntry o1, BitmapSizeEntry o2) {
+                return o2.mBufferSize - o1.mBufferSize;
+            }
+        });
+        return new ArrayList<AnalysisResultEntry>(entries);
+    }
+
+    @Nullable
+    private static BitmapSizeEntry createEntry(@NonNull ClassInstance bitmap) {
+        ArrayInstance buffer = null;
+        Integer width = null;
+        Integer height = null;
+        for (ClassInstance.FieldValue field : bitmap.getValues()) {
+            Object value = field.getValue();
+            String name = field.getField().getName();
+            if ("mBuffer".equals(name) && value instanceof ArrayInstance) {
+                buffer = (ArrayInstance) value;
+            } else if ("mWidth".equals(name) && value instanceof Integer) {
+                width = (Integer) value;
+            } else if ("mHeight".equals(name) && value instanceof Integer) {
+                height = (Integer) value;
+            }
+        }
+        if (buffer == null || buffer.getArrayType() != Type.BYTE || width == null
+                || height == null) {
+            return null;
+        }
+        return new BitmapSizeEntry(bitmap, width, height, buffer.getLength());
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Measure Bitmaps";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Lists the bitmaps in the application by the size of their pixel buffer.";
+    }
+
+    public static class BitmapSizeEntry extends MemoryAnalysisResultEntry {
+
+        private final int mBufferSize;
+
+        private BitmapSizeEntry(@NonNull Instance bitmap, int width, int height,
+                int bufferSize) {
+            super(String.format("%dx%d", width, height), Collections.singletonList(bitmap));
+            mBufferSize = bufferSize;
+        }
+
+        public int getBufferSize() {
+            return mBufferSize;
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return String.format("%s bitmap: %d bytes", mOffender.getOffendingDescription(),
+                    mBufferSize);
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Bitmap Sizes";
+        }
+    }
+}
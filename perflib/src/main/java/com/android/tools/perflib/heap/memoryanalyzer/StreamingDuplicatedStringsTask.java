@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Streaming version of {@link DuplicatedStringsAnalyzerTask}. While parsing, it hashes the
+ * contents of char arrays and records which array, offset and count each string uses. Only the
+ * strings sharing a hash are looked up and compared once parsing is done.
+ *
+ * Unlike {@link DuplicatedStringsAnalyzerTask}, strings are not filtered by reachability, which
+ * is unknown until references are resolved.
+ */
+public class StreamingDuplicatedStringsTask extends StreamingMemoryAnalyzerTask {
+
+    private static final String JAVA_LANG_STRING = "java.lang.String";
+
+    private static final Set<String> STRING_FIELDS = ImmutableSet.of("value", "offset", "count");
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    //  The field values of a java.lang.String, across VM versions, are at most two ids (value and
+    //  shadow$_klass_) and four ints (count, offset, hash and shadow$_monitor_).
+    private static final int MAX_STRING_ID_FIELDS = 2;
+
+    private static final int MAX_STRING_INT_FIELDS = 4;
+
+    //  The id of java.lang.String, from its LOAD_CLASS record, or 0 if not known yet.
+    private long mStringClassId;
+
+    @Nullable
+    private ClassObj mStringClass;
+
+    //  Hash and length of the contents of every char array.
+    private final TLongLongHashMap mCharArrayHashes = new TLongLongHashMap();
+
+    private final TLongIntHashMap mCharArrayLengths = new TLongIntHashMap();
+
+    //  Strings decoded while parsing, one entry per string in each list.
+    private final TLongArrayList mStringIds = new TLongArrayList();
+
+    private final TIntArrayList mStringHeapIds = new TIntArrayList();
+
+    private final TLongArrayList mStringValueIds = new TLongArrayList();
+
+    private final TIntArrayList mStringOffsets = new TIntArrayList();
+
+    private final TIntArrayList mStringCounts = new TIntArrayList();
+
+    @Override
+    public void onLoadClass(long classId, @NonNull String className) {
+        if (JAVA_LANG_STRING.equals(className)) {
+            mStringClassId = classId;
+        }
+    }
+
+    @Override
+    public void onClassDump(@NonNull ClassObj classObj) {
+        if (JAVA_LANG_STRING.equals(classObj.getClassName())) {
+            mStringClassId = classObj.getId();
+            mStringClass = classObj;
+        }
+    }
+
+    @Override
+    public void onInstanceDump(@NonNull Heap heap, long id, long classId, int valuesLength,
+            @NonNull DataBuffer buffer) {
+        if (mStringClass == null || classId != mStringClassId) {
+            if (mStringClass == null && couldBeString(classId, valuesLength)) {
+                defer(id, classId);
+            }
+            return;
+        }
+
+        Map<String, Object> values = readFields(mStringClass, buffer, STRING_FIELDS);
+        if (values == null) {
+            defer(id, classId);
+            return;
+        }
+        Object value = values.get("value");
+        Object offset = values.get("offset");
+        Object count = values.get("count");
+        if (!(value instanceof Long) || !(count instanceof Integer)) {
+            return;
+        }
+        mStringIds.add(id);
+        mStringHeapIds.add(heap.getId());
+        mStringValueIds.add((Long) value);
+        mStringOffsets.add(offset instanceof Integer ? (Integer) offset : 0);
+        mStringCounts.add((Integer) count);
+    }
+
+    /**
+     * Returns whether an instance dumped before the java.lang.String class may be a string. Once
+     * the id of the class is known from its LOAD_CLASS record, only its instances are, otherwise
+     * only instances of classes not dumped yet, with room for the fields of a string.
+     */
+    private boolean couldBeString(long classId, int valuesLength) {
+        if (mStringClassId != 0) {
+            return classId == mStringClassId;
+        }
+        assert mSnapshot != null;
+        int maxValuesLength = MAX_STRING_ID_FIELDS * mSnapshot.getTypeSize(Type.OBJECT)
+                + MAX_STRING_INT_FIELDS * mSnapshot.getTypeSize(Type.INT);
+        return valuesLength <= maxValuesLength && mSnapshot.findClass(classId) == null;
+    }
+
+    @Override
+    public void onPrimitiveArrayDump(@NonNull Heap heap, long id, @NonNull Type type, int length,
+            @NonNull DataBuffer buffer) {
+        if (type != Type.CHAR) {
+            return;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ buffer.readChar()) * FNV_PRIME;
+        }
+        mCharArrayHashes.put(id, hash);
+        mCharArrayLengths.put(id, length);
+    }
+
+    @NonNull
+    @Override
+    List<AnalysisResultEntry> getResults(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        Set<Integer> heapIds = new HashSet<Integer>();
+        for (Heap heap : configuration.mHeaps) {
+            heapIds.add(heap.getId());
+        }
+
+        // Group strings by the hash of their contents, only looking up strings that can't be
+        // hashed from the recorded char arrays.
+        TLongObjectHashMap<TLongArrayList> stringsByHash =
+                new TLongObjectHashMap<TLongArrayList>();
+        for (int i = 0; i < mStringIds.size(); i++) {
+            if (!heapIds.contains(mStringHeapIds.get(i))) {
+                continue;
+            }
+            long valueId = mStringValueIds.get(i);
+            if (mStringOffsets.get(i) == 0 && mCharArrayHashes.containsKey(valueId)
+                    && mCharArrayLengths.get(valueId) == mStringCounts.get(i)) {
+                addString(stringsByHash, mCharArrayHashes.get(valueId), mStringIds.get(i));
+            } else {
+                addString(stringsByHash, snapshot, mStringIds.get(i), heapIds);
+            }
+        }
+        ClassObj stringClass = snapshot.findClass(JAVA_LANG_STRING);
+        if (stringClass != null) {
+            for (Instance instance : getDeferredInstances(configuration, snapshot, stringClass)) {
+                addString(stringsByHash, snapshot, instance.getId(), heapIds);
+            }
+        }
+
+        // Confirm duplicates by comparing the actual strings.
+        List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
+        for (Object value : stringsByHash.getValues()) {
+            TLongArrayList ids = (TLongArrayList) value;
+            if (ids.size() < 2) {
+                continue;
+            }
+            HashMultimap<String, ClassInstance> stringIndex = HashMultimap.create();
+            for (int i = 0; i < ids.size(); i++) {
+                ClassInstance instance = (ClassInstance) snapshot.findInstance(ids.get(i));
+                char[] characters = instance.getStringChars();
+                if (characters != null) {
+                    stringIndex.put(new String(characters), instance);
+                }
+            }
+            for (String key : stringIndex.keySet()) {
+                Set<ClassInstance> classInstanceSet = stringIndex.get(key);
+                if (classInstanceSet.size() > 1) {
+                    results.add(new DuplicatedStringsAnalyzerTask.DuplicatedStringsEntry(key,
+                            new ArrayList<Instance>(classInstanceSet)));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static void addString(@NonNull TLongObjectHashMap<TLongArrayList> stringsByHash,
+            long hash, long id) {
+        TLongArrayList ids = stringsByHash.get(hash);
+        if (ids == null) {
+            ids = new TLongArrayList(1);
+            stringsByHash.put(hash, ids);
+        }
+        ids.add(id);
+    }
+
+    private static void addString(@NonNull TLongObjectHashMap<TLongArrayList> stringsByHash,
+            @NonNull Snapshot snapshot, long id, @NonNull Set<Integer> heapIds) {
+        Instance instance = snapshot.findInstance(id);
+        if (!(instance instanceof ClassInstance) || !heapIds.contains(instance.getHeap().getId())) {
+            return;
+        }
+        char[] characters = ((ClassInstance) instance).getStringChars();
+        if (characters == null) {
+            return;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (char c : characters) {
+            hash = (hash ^ c) * FNV_PRIME;
+        }
+        addString(stringsByHash, hash, id);
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Find Duplicate Strings While Parsing";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Detects duplicate strings in the application, as the heap dump is parsed.";
+    }
+}
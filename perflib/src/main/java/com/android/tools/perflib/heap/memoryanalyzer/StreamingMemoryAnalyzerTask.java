@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Field;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofRecordListener;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * A {@link MemoryAnalyzerTask} that gathers what it needs from the heap dump records as the hprof
+ * is parsed, rather than from the resolved {@link Snapshot}. Tasks keep compact per-record state,
+ * and only look up the {@link com.android.tools.perflib.heap.Instance}s they report on once
+ * parsing is done.
+ *
+ * A task only has results for the snapshot whose parse it listened to, see
+ * {@link MemoryAnalyzer#analyzeWhileParsing}.
+ */
+public abstract class StreamingMemoryAnalyzerTask extends MemoryAnalyzerTask
+        implements HprofRecordListener {
+
+    private static final String JAVA_LANG_OBJECT = "java.lang.Object";
+
+    @Nullable
+    protected Snapshot mSnapshot;
+
+    //  Ids of instances dumped before their class, or one of its super classes, by class id.
+    private final TLongObjectHashMap<TLongArrayList> mDeferredInstances =
+            new TLongObjectHashMap<TLongArrayList>();
+
+    @Override
+    public void onHeaderRead(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    @Override
+    public void onLoadClass(long classId, @NonNull String className) {
+    }
+
+    @Override
+    public void onClassDump(@NonNull ClassObj classObj) {
+    }
+
+    @Override
+    public void onInstanceDump(@NonNull Heap heap, long id, long classId, int valuesLength,
+            @NonNull DataBuffer buffer) {
+    }
+
+    @Override
+    public void onObjectArrayDump(@NonNull Heap heap, long id, long classId, int length) {
+    }
+
+    @Override
+    public void onPrimitiveArrayDump(@NonNull Heap heap, long id, @NonNull Type type, int length,
+            @NonNull DataBuffer buffer) {
+    }
+
+    @Override
+    final List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        if (snapshot != mSnapshot) {
+            return Collections.emptyList();
+        }
+        return getResults(configuration, snapshot);
+    }
+
+    /**
+     * Returns the results for the heaps of {@code configuration}, once {@code snapshot} has been
+     * parsed.
+     */
+    @NonNull
+    abstract List<AnalysisResultEntry> getResults(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot);
+
+    /**
+     * Remembers an instance that can't be decoded yet, to be looked up once parsing is done.
+     */
+    void defer(long id, long classId) {
+        TLongArrayList instances = mDeferredInstances.get(classId);
+        if (instances == null) {
+            instances = new TLongArrayList();
+            mDeferredInstances.put(classId, instances);
+        }
+        instances.add(id);
+    }
+
+    @VisibleForTesting
+    int getDeferredInstanceCount() {
+        int count = 0;
+        for (Object ids : mDeferredInstances.getValues()) {
+            count += ((TLongArrayList) ids).size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the deferred instances of {@code classObj} in the heaps of {@code configuration}.
+     */
+    @NonNull
+    List<Instance> getDeferredInstances(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot, @NonNull ClassObj classObj) {
+        TLongArrayList ids = mDeferredInstances.get(classObj.getId());
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        List<Instance> instances = new ArrayList<Instance>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            Instance instance = snapshot.findInstance(ids.get(i));
+            if (instance != null && configuration.mHeaps.contains(instance.getHeap())) {
+                instances.add(instance);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Reads the values of the fields named {@code names} of an instance of {@code classObj}, from
+     * {@code buffer} positioned at the instance's field values. References are returned as their
+     * {@code Long} id.
+     *
+     * @return the values by field name, or null if a super class of {@code classObj} has not been
+     * dumped yet.
+     */
+    @Nullable
+    Map<String, Object> readFields(@NonNull ClassObj classObj, @NonNull DataBuffer buffer,
+            @NonNull Collection<String> names) {
+        assert mSnapshot != null;
+        Map<String, Object> values = new HashMap<String, Object>();
+        ClassObj clazz = classObj;
+        while (values.size() < names.size()) {
+            for (Field field : clazz.getFields()) {
+                Type type = field.getType();
+                if (names.contains(field.getName()) && !values.containsKey(field.getName())) {
+                    values.put(field.getName(), readValue(buffer, type));
+                } else {
+                    buffer.setPosition(buffer.position() + mSnapshot.getTypeSize(type));
+                }
+            }
+            if (JAVA_LANG_OBJECT.equals(clazz.getClassName())) {
+                break;
+            }
+            clazz = clazz.getSuperClassObj();
+            if (clazz == null) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    @Nullable
+    private Object readValue(@NonNull DataBuffer buffer, @NonNull Type type) {
+        assert mSnapshot != null;
+        switch (type) {
+            case OBJECT:
+                return readId(buffer);
+            case BOOLEAN:
+                return buffer.readByte() != 0;
+            case CHAR:
+                return buffer.readChar();
+            case FLOAT:
+                return buffer.readFloat();
+            case DOUBLE:
+                return buffer.readDouble();
+            case BYTE:
+                return buffer.readByte();
+            case SHORT:
+                return buffer.readShort();
+            case INT:
+                return buffer.readInt();
+            case LONG:
+                return buffer.readLong();
+        }
+        return null;
+    }
+
+    private long readId(@NonNull DataBuffer buffer) {
+        assert mSnapshot != null;
+        // Ids are kept sign extended, as read by the parser.
+        switch (mSnapshot.getTypeSize(Type.OBJECT)) {
+            case 1:
+                return buffer.readByte();
+            case 2:
+                return buffer.readShort();
+            case 4:
+                return buffer.readInt();
+            case 8:
+                return buffer.readLong();
+        }
+        return 0;
+    }
+}
@@ -22,6 +22,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.UnsignedInts;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -55,7 +56,13 @@ public class Call {
 
     private final List<Call> mCallees;
 
+    /** The {@link CallTable} this call is a view of, if any, and its index in that table. */
+    @Nullable private final CallTable mCallTable;
+    private final int mCallIndex;
+
     private Call(@NonNull Builder builder, @NonNull Stack<Long> backStack) {
+        mCallTable = null;
+        mCallIndex = -1;
         mMethodId = builder.mMethodId;
 
         mEntryThreadTime = builder.mEntryThreadTime;
@@ -83,6 +90,39 @@ public class Call {
         mInclusiveGlobalTimeInCallees = sumInclusiveTimes(mCallees, ClockType.GLOBAL);
     }
 
+    /** Creates a view of the call at the given index of a {@link CallTable}. */
+    Call(@NonNull CallTable callTable, int index) {
+        mCallTable = callTable;
+        mCallIndex = index;
+        mMethodId = callTable.getMethodId(index);
+
+        mEntryThreadTime = callTable.getEntryTime(index, ClockType.THREAD);
+        mEntryGlobalTime = callTable.getEntryTime(index, ClockType.GLOBAL);
+        mExitThreadTime = callTable.getExitTime(index, ClockType.THREAD);
+        mExitGlobalTime = callTable.getExitTime(index, ClockType.GLOBAL);
+
+        mDepth = callTable.getDepth(index);
+        mIsRecursive = callTable.isRecursive(index);
+
+        int calleeCount = 0;
+        long inclusiveThreadTime = 0;
+        long inclusiveGlobalTime = 0;
+        int end = callTable.getSubtreeEnd(index);
+        for (int callee = index + 1; callee < end; callee = callTable.getSubtreeEnd(callee)) {
+            calleeCount++;
+            inclusiveThreadTime += UnsignedInts.toLong(
+                    callTable.getExitTime(callee, ClockType.THREAD)
+                            - callTable.getEntryTime(callee, ClockType.THREAD));
+            inclusiveGlobalTime += UnsignedInts.toLong(
+                    callTable.getExitTime(callee, ClockType.GLOBAL)
+                            - callTable.getEntryTime(callee, ClockType.GLOBAL));
+        }
+        mCallees = calleeCount == 0 ? Collections.<Call>emptyList()
+                : new CalleeList(callTable, index, calleeCount);
+        mInclusiveThreadTimeInCallees = inclusiveThreadTime;
+        mInclusiveGlobalTimeInCallees = inclusiveGlobalTime;
+    }
+
     private long sumInclusiveTimes(@NonNull List<Call> callees, ClockType clockType) {
         long sum = 0;
         for (Call c : callees) {
@@ -91,6 +131,12 @@ public class Call {
         return sum;
     }
 
+    /** Returns the {@link CallTable} this call is a view of, or null if it is not a view. */
+    @Nullable
+    CallTable getCallTable() {
+        return mCallTable;
+    }
+
     public long getMethodId() {
         return mMethodId;
     }
@@ -247,6 +293,54 @@ public class Call {
         }
     }
 
+    /**
+     * Calls backed by a {@link CallTable} are created on demand, so two views of the same call of
+     * the same table are equal. Other calls are only equal to themselves.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (mCallTable == null || !(o instanceof Call)) {
+            return false;
+        }
+        Call other = (Call) o;
+        return mCallTable == other.mCallTable && mCallIndex == other.mCallIndex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mCallTable == null ? super.hashCode()
+                : 31 * System.identityHashCode(mCallTable) + mCallIndex;
+    }
+
+    /** The callees of a call of a {@link CallTable}, whose views are created when accessed. */
+    private static class CalleeList extends AbstractList<Call> {
+        private final CallTable mCallTable;
+        private final int[] mCallees;
+
+        public CalleeList(@NonNull CallTable callTable, int caller, int calleeCount) {
+            mCallTable = callTable;
+            mCallees = new int[calleeCount];
+            int callee = caller + 1;
+            for (int i = 0; i < calleeCount; i++) {
+                mCallees[i] = callee;
+                callee = callTable.getSubtreeEnd(callee);
+            }
+        }
+
+        @Override
+        public Call get(int index) {
+            return mCallTable.getCall(mCallees[index]);
+        }
+
+        @Override
+        public int size() {
+            return mCallees.length;
+        }
+    }
+
     @NonNull
     public Iterator<Call> getCallHierarchyIterator() {
         return new CallHierarchyIterator(this);
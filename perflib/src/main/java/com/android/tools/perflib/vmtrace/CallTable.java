@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * The calls of a single thread, stored in parallel primitive arrays instead of a tree of
+ * {@link Call} objects.
+ *
+ * Calls are stored in pre-order: the call at index 0 is the top level call of the thread, and the
+ * calls nested under the call at index {@code i} are at the indices from {@code i + 1} to
+ * {@link #getSubtreeEnd(int)}, exclusive. {@link Call} instances are only created when asked for,
+ * and are views that do not keep the rest of the call hierarchy alive.
+ */
+public final class CallTable {
+    /** Method id of the top level call, which does not fit in the unsigned 32 bit method ids. */
+    private final long mTopLevelMethodId;
+
+    private final int[] mMethodIds;
+
+    /** Entry and exit times, stored as unsigned integers like in the trace data. */
+    private final int[] mEntryThreadTimes;
+    private final int[] mEntryGlobalTimes;
+    private final int[] mExitThreadTimes;
+    private final int[] mExitGlobalTimes;
+
+    private final int[] mDepths;
+
+    /** The index following the last call nested under each call. */
+    private final int[] mSubtreeEnds;
+
+    private final BitSet mRecursive;
+
+    private final Call mTopLevelCall;
+
+    private CallTable(long topLevelMethodId, int[] methodIds, int[] entryThreadTimes,
+            int[] entryGlobalTimes, int[] exitThreadTimes, int[] exitGlobalTimes,
+            int[] subtreeEnds) {
+        mTopLevelMethodId = topLevelMethodId;
+        mMethodIds = methodIds;
+        mEntryThreadTimes = entryThreadTimes;
+        mEntryGlobalTimes = entryGlobalTimes;
+        mExitThreadTimes = exitThreadTimes;
+        mExitGlobalTimes = exitGlobalTimes;
+        mSubtreeEnds = subtreeEnds;
+        mDepths = new int[methodIds.length];
+        mRecursive = new BitSet(methodIds.length);
+        computeDepths();
+        mTopLevelCall = new Call(this, 0);
+    }
+
+    /**
+     * Computes the depth of each call, and whether the same method is present in its backstack,
+     * with an explicit stack so that deep call hierarchies do not overflow the thread stack.
+     */
+    private void computeDepths() {
+        int[] stack = new int[16];
+        int stackSize = 0;
+        TLongIntHashMap methodsOnStack = new TLongIntHashMap();
+        for (int i = 0; i < mMethodIds.length; i++) {
+            while (stackSize > 0 && mSubtreeEnds[stack[stackSize - 1]] <= i) {
+                long methodId = getMethodId(stack[--stackSize]);
+                int count = methodsOnStack.get(methodId);
+                if (count == 1) {
+                    methodsOnStack.remove(methodId);
+                } else {
+                    methodsOnStack.put(methodId, count - 1);
+                }
+            }
+
+            long methodId = getMethodId(i);
+            mDepths[i] = stackSize;
+            if (methodsOnStack.containsKey(methodId)) {
+                mRecursive.set(i);
+            }
+            methodsOnStack.put(methodId, methodsOnStack.get(methodId) + 1);
+
+            if (stackSize == stack.length) {
+                int[] newStack = new int[stackSize * 2];
+                System.arraycopy(stack, 0, newStack, 0, stackSize);
+                stack = newStack;
+            }
+            stack[stackSize++] = i;
+        }
+    }
+
+    public int getCallCount() {
+        return mMethodIds.length;
+    }
+
+    @NonNull
+    public Call getTopLevelCall() {
+        return mTopLevelCall;
+    }
+
+    /** Returns a view of the call at the given index. */
+    @NonNull
+    public Call getCall(int index) {
+        return index == 0 ? mTopLevelCall : new Call(this, index);
+    }
+
+    public long getMethodId(int index) {
+        return index == 0 ? mTopLevelMethodId : UnsignedInts.toLong(mMethodIds[index]);
+    }
+
+    public int getDepth(int index) {
+        return mDepths[index];
+    }
+
+    /** Returns the index following the last call nested under the call at the given index. */
+    public int getSubtreeEnd(int index) {
+        return mSubtreeEnds[index];
+    }
+
+    public boolean isRecursive(int index) {
+        return mRecursive.get(index);
+    }
+
+    public long getEntryTime(int index, ClockType clockType, TimeUnit units) {
+        long entryTime = UnsignedInts.toLong(getEntryTime(index, clockType));
+        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExitTime(int index, ClockType clockType, TimeUnit units) {
+        long exitTime = UnsignedInts.toLong(getExitTime(index, clockType));
+        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInclusiveTime(int index, ClockType clockType, TimeUnit units) {
+        long inclusiveTime =
+                UnsignedInts.toLong(getExitTime(index, clockType) - getEntryTime(index, clockType));
+        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    int getEntryTime(int index, ClockType clockType) {
+        return clockType == ClockType.THREAD ? mEntryThreadTimes[index] : mEntryGlobalTimes[index];
+    }
+
+    int getExitTime(int index, ClockType clockType) {
+        return clockType == ClockType.THREAD ? mExitThreadTimes[index] : mExitGlobalTimes[index];
+    }
+
+    /**
+     * Reconstructs the call stacks of a thread from its trace events, like
+     * {@link CallStackReconstructor} does, but without creating an object per call.
+     *
+     * Calls entered while tracing are appended in the order they are entered, which is also the
+     * order they have in the final table. The few calls whose exit is traced without their entry,
+     * and the top level call, nest all the calls before them and are kept aside until the table is
+     * built.
+     */
+    public static class Builder {
+        /** Method id corresponding to the top level call under which all calls are nested. */
+        private final long mTopLevelCallId;
+
+        private final TIntArrayList mMethodIds = new TIntArrayList();
+        private final TIntArrayList mEntryThreadTimes = new TIntArrayList();
+        private final TIntArrayList mEntryGlobalTimes = new TIntArrayList();
+        private final TIntArrayList mExitThreadTimes = new TIntArrayList();
+        private final TIntArrayList mExitGlobalTimes = new TIntArrayList();
+        private final TIntArrayList mSubtreeEnds = new TIntArrayList();
+
+        /** Calls exited from without having been entered, in the order they were exited. */
+        private final TLongArrayList mOuterMethodIds = new TLongArrayList();
+        private final TIntArrayList mOuterEntryThreadTimes = new TIntArrayList();
+        private final TIntArrayList mOuterEntryGlobalTimes = new TIntArrayList();
+        private final TIntArrayList mOuterExitThreadTimes = new TIntArrayList();
+        private final TIntArrayList mOuterExitGlobalTimes = new TIntArrayList();
+        /** Number of entered calls each of the outer calls nests. */
+        private final TIntArrayList mOuterCallCounts = new TIntArrayList();
+
+        /** Current call stack, as indices of the entered calls. */
+        private final TIntArrayList mCallStack = new TIntArrayList();
+
+        /**
+         * Last call entered under each call of the call stack, or -1. Entered calls are
+         * represented by their index, and outer calls by the bitwise complement of theirs.
+         */
+        private final TIntArrayList mLastCallees = new TIntArrayList();
+
+        /** Last call at the top level, encoded like {@link #mLastCallees}. */
+        private int mLastTopLevelCall = -1;
+
+        private CallTable mCallTable;
+
+        public Builder(long topLevelCallId) {
+            mTopLevelCallId = topLevelCallId;
+        }
+
+        public void addTraceAction(long methodId, TraceAction action, int threadTime,
+                int globalTime) {
+            if (action == TraceAction.METHOD_ENTER) {
+                enterMethod(methodId, threadTime, globalTime);
+            } else {
+                exitMethod(methodId, threadTime, globalTime);
+            }
+        }
+
+        private void enterMethod(long methodId, int threadTime, int globalTime) {
+            int index = mMethodIds.size();
+            mMethodIds.add((int) methodId);
+            mEntryThreadTimes.add(threadTime);
+            mEntryGlobalTimes.add(globalTime);
+            mExitThreadTimes.add(0);
+            mExitGlobalTimes.add(0);
+            mSubtreeEnds.add(0);
+
+            if (mCallStack.isEmpty()) {
+                mLastTopLevelCall = index;
+            } else {
+                mLastCallees.set(mLastCallees.size() - 1, index);
+            }
+            mCallStack.add(index);
+            mLastCallees.add(-1);
+        }
+
+        private void exitMethod(long methodId, int threadTime, int globalTime) {
+            if (!mCallStack.isEmpty()) {
+                int index = mCallStack.remove(mCallStack.size() - 1);
+                mLastCallees.remove(mLastCallees.size() - 1);
+                long enteredMethodId = UnsignedInts.toLong(mMethodIds.get(index));
+                if (enteredMethodId != methodId) {
+                    String msg = String
+                            .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
+                                    enteredMethodId, methodId);
+                    throw new RuntimeException(msg);
+                }
+
+                mExitThreadTimes.set(index, threadTime);
+                mExitGlobalTimes.set(index, globalTime);
+                mSubtreeEnds.set(index, mMethodIds.size());
+            } else {
+                // We are exiting out of a method that was entered into before tracing was started.
+                // All the previous calls at the top level are assumed to have been called from
+                // this method, and its entry time is guessed from its first callee, if any.
+                int outerIndex = mOuterMethodIds.size();
+                int entryThreadTime = threadTime - 1;
+                int entryGlobalTime = globalTime - 1;
+                if (outerIndex > 0) {
+                    entryThreadTime = Math.max(mOuterEntryThreadTimes.get(outerIndex - 1) - 1, 0);
+                    entryGlobalTime = Math.max(mOuterEntryGlobalTimes.get(outerIndex - 1) - 1, 0);
+                } else if (!mMethodIds.isEmpty()) {
+                    entryThreadTime = Math.max(mEntryThreadTimes.get(0) - 1, 0);
+                    entryGlobalTime = Math.max(mEntryGlobalTimes.get(0) - 1, 0);
+                }
+
+                mOuterMethodIds.add(methodId);
+                mOuterEntryThreadTimes.add(entryThreadTime);
+                mOuterEntryGlobalTimes.add(entryGlobalTime);
+                mOuterExitThreadTimes.add(threadTime);
+                mOuterExitGlobalTimes.add(globalTime);
+                mOuterCallCounts.add(mMethodIds.size());
+                mLastTopLevelCall = ~outerIndex;
+            }
+        }
+
+        /**
+         * Exits from the given call 1 unit of time after its last callee exited, or after it was
+         * entered if it has no callees.
+         */
+        private void exitMethod(long methodId, int entryThreadTime, int entryGlobalTime,
+                int lastCallee) {
+            if (lastCallee == -1) {
+                exitMethod(methodId, entryThreadTime + 1, entryGlobalTime + 1);
+            } else if (lastCallee >= 0) {
+                exitMethod(methodId, mExitThreadTimes.get(lastCallee) + 1,
+                        mExitGlobalTimes.get(lastCallee) + 1);
+            } else {
+                exitMethod(methodId, mOuterExitThreadTimes.get(~lastCallee) + 1,
+                        mOuterExitGlobalTimes.get(~lastCallee) + 1);
+            }
+        }
+
+        @NonNull
+        public CallTable build() {
+            if (mCallTable != null) {
+                return mCallTable;
+            }
+
+            // If there are any methods still on the call stack, then the trace doesn't have
+            // exit trace action for them, so clean those up
+            while (!mCallStack.isEmpty()) {
+                int index = mCallStack.get(mCallStack.size() - 1);
+                exitMethod(UnsignedInts.toLong(mMethodIds.get(index)),
+                        mEntryThreadTimes.get(index), mEntryGlobalTimes.get(index),
+                        mLastCallees.get(mLastCallees.size() - 1));
+            }
+
+            // Move all the calls under a single top level call.
+            exitMethod(mTopLevelCallId, 0, 0, mLastTopLevelCall);
+
+            // The outer calls come first, the last one exited being the top level call, followed
+            // by the entered calls in the order they were entered.
+            int outerCount = mOuterMethodIds.size();
+            int count = outerCount + mMethodIds.size();
+            int[] methodIds = new int[count];
+            int[] entryThreadTimes = new int[count];
+            int[] entryGlobalTimes = new int[count];
+            int[] exitThreadTimes = new int[count];
+            int[] exitGlobalTimes = new int[count];
+            int[] subtreeEnds = new int[count];
+            for (int i = 0; i < outerCount; i++) {
+                int outerIndex = outerCount - 1 - i;
+                methodIds[i] = (int) mOuterMethodIds.get(outerIndex);
+                entryThreadTimes[i] = mOuterEntryThreadTimes.get(outerIndex);
+                entryGlobalTimes[i] = mOuterEntryGlobalTimes.get(outerIndex);
+                exitThreadTimes[i] = mOuterExitThreadTimes.get(outerIndex);
+                exitGlobalTimes[i] = mOuterExitGlobalTimes.get(outerIndex);
+                subtreeEnds[i] = outerCount + mOuterCallCounts.get(outerIndex);
+            }
+            for (int i = 0; i < mMethodIds.size(); i++) {
+                methodIds[outerCount + i] = mMethodIds.get(i);
+                entryThreadTimes[outerCount + i] = mEntryThreadTimes.get(i);
+                entryGlobalTimes[outerCount + i] = mEntryGlobalTimes.get(i);
+                exitThreadTimes[outerCount + i] = mExitThreadTimes.get(i);
+                exitGlobalTimes[outerCount + i] = mExitGlobalTimes.get(i);
+                subtreeEnds[outerCount + i] = outerCount + mSubtreeEnds.get(i);
+            }
+
+            clear();
+
+            mCallTable = new CallTable(mTopLevelCallId, methodIds, entryThreadTimes,
+                    entryGlobalTimes, exitThreadTimes, exitGlobalTimes, subtreeEnds);
+            return mCallTable;
+        }
+
+        private void clear() {
+            mMethodIds.clear();
+            mEntryThreadTimes.clear();
+            mEntryGlobalTimes.clear();
+            mExitThreadTimes.clear();
+            mExitGlobalTimes.clear();
+            mSubtreeEnds.clear();
+            mOuterMethodIds.clear();
+            mOuterEntryThreadTimes.clear();
+            mOuterEntryGlobalTimes.clear();
+            mOuterExitThreadTimes.clear();
+            mOuterExitGlobalTimes.clear();
+            mOuterCallCounts.clear();
+        }
+    }
+}
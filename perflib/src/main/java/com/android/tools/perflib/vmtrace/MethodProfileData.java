@@ -16,6 +16,7 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableMap;
@@ -245,6 +246,17 @@ public class MethodProfileData {
             }
         }
 
+        /**
+         * Adds the statistics gathered by {@code other}, which must be about different threads
+         * than the ones of this builder.
+         */
+        void merge(@NonNull Builder other) {
+            mPerThreadCumulativeStats.putAll(other.mPerThreadCumulativeStats);
+            mPerThreadStatsByCaller.putAll(other.mPerThreadStatsByCaller);
+            mPerThreadStatsByCallee.putAll(other.mPerThreadStatsByCallee);
+            mRecursive |= other.mRecursive;
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
@@ -48,4 +48,10 @@ public class ThreadInfo {
     public Call getTopLevelCall() {
         return mTopLevelCall;
     }
+
+    /** Returns the calls of this thread if they were parsed into a compact {@link CallTable}. */
+    @Nullable
+    public CallTable getCallTable() {
+        return mTopLevelCall != null ? mTopLevelCall.getCallTable() : null;
+    }
 }
@@ -223,9 +223,15 @@ public class VmTraceData {
         private final SparseArray<CallStackReconstructor> mStackReconstructors
                 = new SparseArray<CallStackReconstructor>(10);
 
+        /** Map from thread id to per thread call table builder, when storing compact calls. */
+        private final SparseArray<CallTable.Builder> mCallTableBuilders
+                = new SparseArray<CallTable.Builder>(10);
+
         /** Map from thread id to the top level call for that thread. */
         private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
 
+        private boolean mCompactCalls;
+
         public void setVersion(int version) {
             mVersion = version;
         }
@@ -254,6 +260,15 @@ public class VmTraceData {
             mVm = vm;
         }
 
+        /**
+         * Sets whether calls are stored in per thread {@link CallTable}s, whose {@link Call}s are
+         * only created when they are accessed, instead of as a tree of {@link Call} objects.
+         * Must be set before any method action is added.
+         */
+        public void setCompactCalls(boolean compactCalls) {
+            mCompactCalls = compactCalls;
+        }
+
         public void addThread(int id, String name) {
             mThreads.put(id, name);
         }
@@ -282,6 +297,18 @@ public class VmTraceData {
                         mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
             }
 
+            if (mCompactCalls) {
+                CallTable.Builder callTableBuilder = mCallTableBuilders.get(threadId);
+                if (callTableBuilder == null) {
+                    long topLevelCallId = createUniqueMethodIdForThread(threadId);
+                    callTableBuilder = new CallTable.Builder(topLevelCallId);
+                    mCallTableBuilders.put(threadId, callTableBuilder);
+                }
+
+                callTableBuilder.addTraceAction(methodId, methodAction, threadTime, globalTime);
+                return;
+            }
+
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
             if (reconstructor == null) {
                 long topLevelCallId = createUniqueMethodIdForThread(threadId);
@@ -307,6 +334,11 @@ public class VmTraceData {
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
                 mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
             }
+            for (int i = 0; i < mCallTableBuilders.size(); i++) {
+                int threadId = mCallTableBuilders.keyAt(i);
+                CallTable callTable = mCallTableBuilders.valueAt(i).build();
+                mTopLevelCalls.put(threadId, callTable.getTopLevelCall());
+            }
 
             return new VmTraceData(this);
         }
@@ -17,8 +17,8 @@
 package com.android.tools.perflib.vmtrace;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
-import com.android.ddmlib.ByteBufferUtil;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
@@ -31,8 +31,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class VmTraceParser {
     private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
@@ -46,25 +55,55 @@ public class VmTraceParser {
     private static final String KEY_DATA_OVERFLOW = "data-file-overflow";
     private static final String KEY_VM = "vm";
 
+    /** Largest part of the data section mapped in memory at once. */
+    private static final int MAX_MAPPED_SIZE = 1 << 28;
+
     private final File mTraceFile;
 
     private final VmTraceData.Builder mTraceDataBuilder;
     private VmTraceData mTraceData;
 
+    private int mMaxMappedSize = MAX_MAPPED_SIZE;
+
     public VmTraceParser(File traceFile) {
+        this(traceFile, false);
+    }
+
+    /**
+     * Creates a parser for the given trace file. If {@code compactCalls} is true, the calls of
+     * each thread are stored in a {@link CallTable}, and the {@link Call}s returned by
+     * {@link ThreadInfo#getTopLevelCall()} are views created on demand, which lets traces with
+     * far more calls than fit in the heap as objects be opened.
+     */
+    public VmTraceParser(File traceFile, boolean compactCalls) {
         if (!traceFile.exists()) {
             throw new IllegalArgumentException(
                     "Trace file " + traceFile.getAbsolutePath() + " does not exist.");
         }
         mTraceFile = traceFile;
         mTraceDataBuilder = new VmTraceData.Builder();
+        mTraceDataBuilder.setCompactCalls(compactCalls);
     }
 
     public void parse() throws IOException {
         long headerLength = parseHeader(mTraceFile);
-        ByteBuffer buffer = ByteBufferUtil.mapFile(mTraceFile, headerLength, ByteOrder.LITTLE_ENDIAN);
-        parseData(buffer);
-        computeTimingStatistics();
+        parseData(headerLength);
+        computeTimingStatistics(null);
+    }
+
+    /**
+     * Parses the trace, computing the statistics of the methods called in each thread
+     * concurrently on the given pool.
+     */
+    public void parse(@NonNull ForkJoinPool pool) throws IOException {
+        long headerLength = parseHeader(mTraceFile);
+        parseData(headerLength);
+        computeTimingStatistics(pool);
+    }
+
+    @VisibleForTesting
+    void setMaxMappedSize(int maxMappedSize) {
+        mMaxMappedSize = maxMappedSize;
     }
 
     public VmTraceData getTraceData() {
@@ -233,11 +272,37 @@ public class VmTraceParser {
      * Parses the data section of the trace. The data section comprises of a header followed
      * by a list of records.
      *
-     * All values are stored in little-endian order.
+     * All values are stored in little-endian order. The records are read from successive
+     * memory mapped windows of the file, so that the data section can exceed the 2GB a single
+     * {@link ByteBuffer} can address.
      */
-    private void parseData(ByteBuffer buffer) {
-        int recordSize = readDataFileHeader(buffer);
-        parseMethodTraceData(buffer, recordSize);
+    private void parseData(long offset) throws IOException {
+        FileInputStream dataFile = new FileInputStream(mTraceFile);
+        try {
+            FileChannel channel = dataFile.getChannel();
+            long length = channel.size();
+            ByteBuffer buffer = map(channel, offset, length);
+            int recordSize = readDataFileHeader(buffer);
+            parseMethodTraceData(buffer, recordSize);
+            offset += buffer.position();
+
+            while (length - offset >= recordSize) {
+                buffer = map(channel, offset, length);
+                parseMethodTraceData(buffer, recordSize);
+                offset += buffer.position();
+            }
+        } finally {
+            Closeables.close(dataFile, true /* swallowIOException */);
+        }
+    }
+
+    @NonNull
+    private ByteBuffer map(@NonNull FileChannel channel, long offset, long length)
+            throws IOException {
+        long size = Math.min(length - offset, mMaxMappedSize);
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
     }
 
     /**
@@ -259,13 +324,16 @@ public class VmTraceParser {
      *  u4  wall time since start, in usec (when clock == "dual" only)
      *
      * 32 bits of microseconds is 70 minutes.
+     *
+     * Only whole records are parsed, and the buffer is left at the start of the first record that
+     * does not fit in it.
      */
     private void parseMethodTraceData(ByteBuffer buffer, int recordSize) {
         int methodId;
         int threadId;
         int version = mTraceDataBuilder.getVersion();
         VmTraceData.VmClockType vmClockType = mTraceDataBuilder.getVmClockType();
-        while (buffer.hasRemaining()) {
+        while (buffer.remaining() >= recordSize) {
             int threadTime;
             int globalTime;
 
@@ -384,40 +452,105 @@ public class VmTraceParser {
         return recordSize;
     }
 
-    private void computeTimingStatistics() {
+    private void computeTimingStatistics(@Nullable ForkJoinPool pool) {
         VmTraceData data = getTraceData();
 
-        ProfileDataBuilder builder = new ProfileDataBuilder();
+        ConcurrentMap<Long, Queue<MethodProfileData.Builder>> builders =
+                new ConcurrentHashMap<Long, Queue<MethodProfileData.Builder>>();
+        final List<CallStatsTask> tasks = new ArrayList<CallStatsTask>();
         for (ThreadInfo thread : data.getThreads()) {
-            Call c = thread.getTopLevelCall();
-            if (c == null) {
-                continue;
+            if (thread.getTopLevelCall() != null) {
+                tasks.add(new CallStatsTask(thread, builders));
             }
+        }
 
-            builder.computeCallStats(c, null, thread);
+        if (pool == null) {
+            for (CallStatsTask task : tasks) {
+                task.compute();
+            }
+        } else {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
         }
 
-        for (Long methodId : builder.getMethodsWithProfileData()) {
-            MethodInfo method = data.getMethod(methodId);
-            method.setProfileData(builder.getProfileData(methodId));
+        for (Map.Entry<Long, Queue<MethodProfileData.Builder>> entry : builders.entrySet()) {
+            Iterator<MethodProfileData.Builder> threadBuilders = entry.getValue().iterator();
+            MethodProfileData.Builder builder = threadBuilders.next();
+            while (threadBuilders.hasNext()) {
+                builder.merge(threadBuilders.next());
+            }
+            data.getMethod(entry.getKey()).setProfileData(builder.build());
         }
     }
 
-    private static class ProfileDataBuilder {
-        /** Maps method ids to their corresponding method data builders */
+    /**
+     * Computes the statistics of the methods called in one thread, then publishes them to the
+     * builders shared by all threads. Threads are independent, so the statistics of different
+     * threads are gathered concurrently and only merged once all of them are done.
+     */
+    private static class CallStatsTask extends RecursiveAction {
+        private final ThreadInfo mThread;
+
+        /** Maps method ids to the builders of the threads that called them. */
+        private final ConcurrentMap<Long, Queue<MethodProfileData.Builder>> mSharedBuilders;
+
+        /** Maps method ids to their corresponding method data builders for this thread. */
         private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
 
-        public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
-            long methodId = c.getMethodId();
-            MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
-            builder.addCallTime(c, parent, thread);
-            builder.incrementInvocationCount(c, parent, thread);
-            if (c.isRecursive()) {
-                builder.setRecursive();
+        public CallStatsTask(@NonNull ThreadInfo thread,
+                @NonNull ConcurrentMap<Long, Queue<MethodProfileData.Builder>> sharedBuilders) {
+            mThread = thread;
+            mSharedBuilders = sharedBuilders;
+        }
+
+        @Override
+        protected void compute() {
+            computeCallStats(mThread.getTopLevelCall());
+
+            for (Map.Entry<Long, MethodProfileData.Builder> entry : mBuilderMap.entrySet()) {
+                Queue<MethodProfileData.Builder> builders = mSharedBuilders.get(entry.getKey());
+                if (builders == null) {
+                    builders = new ConcurrentLinkedQueue<MethodProfileData.Builder>();
+                    Queue<MethodProfileData.Builder> existing =
+                            mSharedBuilders.putIfAbsent(entry.getKey(), builders);
+                    if (existing != null) {
+                        builders = existing;
+                    }
+                }
+                builders.add(entry.getValue());
             }
+            mBuilderMap.clear();
+        }
+
+        /**
+         * Visits the call hierarchy with an explicit stack, as it can be deeper than what the
+         * thread stack allows to recurse through.
+         */
+        private void computeCallStats(@NonNull Call top) {
+            List<Call> calls = new ArrayList<Call>();
+            List<Call> parents = new ArrayList<Call>();
+            calls.add(top);
+            parents.add(null);
+            while (!calls.isEmpty()) {
+                Call c = calls.remove(calls.size() - 1);
+                Call parent = parents.remove(parents.size() - 1);
+
+                MethodProfileData.Builder builder = getProfileDataBuilder(c.getMethodId());
+                builder.addCallTime(c, parent, mThread);
+                builder.incrementInvocationCount(c, parent, mThread);
+                if (c.isRecursive()) {
+                    builder.setRecursive();
+                }
 
-            for (Call callee: c.getCallees()) {
-                computeCallStats(callee, c, thread);
+                List<Call> callees = c.getCallees();
+                for (int i = callees.size() - 1; i >= 0; i--) {
+                    calls.add(callees.get(i));
+                    parents.add(c);
+                }
             }
         }
 
@@ -430,13 +563,5 @@ public class VmTraceParser {
             }
             return builder;
         }
-
-        public Set<Long> getMethodsWithProfileData() {
-            return mBuilderMap.keySet();
-        }
-
-        public MethodProfileData getProfileData(Long methodId) {
-            return mBuilderMap.get(methodId).build();
-        }
     }
 }
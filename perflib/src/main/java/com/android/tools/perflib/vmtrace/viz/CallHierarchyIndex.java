@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.viz;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.CallTable;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.ThreadInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+
+/**
+ * Index of the calls of a thread by depth and time, for a given clock.
+ *
+ * The calls at a given depth do not overlap, so they are kept sorted by entry time. Each depth
+ * also has a segment tree of the longest call duration in each range of calls, which lets
+ * {@link #getCalls} skip all the calls shorter than a minimum duration, typically a pixel, in
+ * logarithmic time. The number of calls returned for each depth is then bounded by the width of
+ * the queried range divided by that minimum duration, whatever the size of the trace.
+ */
+final class CallHierarchyIndex {
+    private final ClockType mClockType;
+
+    /** Entry time of the top level call, which all times in this index are relative to. */
+    private final long mStartTime;
+
+    /** The table the calls are from, or null if the calls are kept in {@link #mCalls}. */
+    @Nullable private final CallTable mCallTable;
+
+    /** The calls at each depth, when they are not from a {@link CallTable}. */
+    @Nullable private final Call[][] mCalls;
+
+    /** Indices in {@link #mCallTable} of the calls at each depth. */
+    @Nullable private final int[][] mCallIndices;
+
+    /** Entry times of the calls at each depth, relative to the top level call. */
+    private final long[][] mEntryTimes;
+
+    /** Inclusive times of the calls at each depth. */
+    private final long[][] mDurations;
+
+    /**
+     * Longest inclusive time at each depth, stored as a binary tree in an array: the node at
+     * index {@code i} has its children at {@code 2 * i} and {@code 2 * i + 1}, and the leaves
+     * start at the first power of 2 at least as large as the number of calls.
+     */
+    private final long[][] mMaxDurations;
+
+    public CallHierarchyIndex(@NonNull ThreadInfo thread, @NonNull ClockType clockType,
+            @NonNull TimeUnit units) {
+        mClockType = clockType;
+        Call topCall = thread.getTopLevelCall();
+        assert topCall != null;
+        mStartTime = topCall.getEntryTime(clockType, units);
+
+        List<TLongArrayList> entryTimes = new ArrayList<TLongArrayList>();
+        List<TLongArrayList> durations = new ArrayList<TLongArrayList>();
+        mCallTable = thread.getCallTable();
+        if (mCallTable != null) {
+            List<TIntArrayList> callIndices = new ArrayList<TIntArrayList>();
+            for (int i = 0; i < mCallTable.getCallCount(); i++) {
+                int depth = mCallTable.getDepth(i);
+                while (callIndices.size() <= depth) {
+                    callIndices.add(new TIntArrayList());
+                    entryTimes.add(new TLongArrayList());
+                    durations.add(new TLongArrayList());
+                }
+                callIndices.get(depth).add(i);
+                entryTimes.get(depth).add(
+                        mCallTable.getEntryTime(i, clockType, units) - mStartTime);
+                durations.get(depth).add(mCallTable.getInclusiveTime(i, clockType, units));
+            }
+
+            mCallIndices = new int[callIndices.size()][];
+            for (int depth = 0; depth < mCallIndices.length; depth++) {
+                mCallIndices[depth] = callIndices.get(depth).toNativeArray();
+            }
+            mCalls = null;
+        } else {
+            List<List<Call>> calls = new ArrayList<List<Call>>();
+            Iterator<Call> it = topCall.getCallHierarchyIterator();
+            while (it.hasNext()) {
+                Call c = it.next();
+                int depth = c.getDepth();
+                while (calls.size() <= depth) {
+                    calls.add(new ArrayList<Call>());
+                    entryTimes.add(new TLongArrayList());
+                    durations.add(new TLongArrayList());
+                }
+                calls.get(depth).add(c);
+                entryTimes.get(depth).add(c.getEntryTime(clockType, units) - mStartTime);
+                durations.get(depth).add(c.getInclusiveTime(clockType, units));
+            }
+
+            mCalls = new Call[calls.size()][];
+            for (int depth = 0; depth < mCalls.length; depth++) {
+                mCalls[depth] = calls.get(depth).toArray(new Call[calls.get(depth).size()]);
+            }
+            mCallIndices = null;
+        }
+
+        mEntryTimes = new long[entryTimes.size()][];
+        mDurations = new long[entryTimes.size()][];
+        mMaxDurations = new long[entryTimes.size()][];
+        for (int depth = 0; depth < mEntryTimes.length; depth++) {
+            mEntryTimes[depth] = entryTimes.get(depth).toNativeArray();
+            mDurations[depth] = durations.get(depth).toNativeArray();
+            mMaxDurations[depth] = buildMaxTree(mDurations[depth]);
+        }
+    }
+
+    @NonNull
+    private static long[] buildMaxTree(@NonNull long[] durations) {
+        int leaves = getLeafCount(durations.length);
+        long[] tree = new long[2 * leaves];
+        Arrays.fill(tree, Long.MIN_VALUE);
+        System.arraycopy(durations, 0, tree, leaves, durations.length);
+        for (int i = leaves - 1; i > 0; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+        return tree;
+    }
+
+    private static int getLeafCount(int count) {
+        return count <= 1 ? 1 : Integer.highestOneBit(count - 1) << 1;
+    }
+
+    @NonNull
+    public ClockType getClockType() {
+        return mClockType;
+    }
+
+    /** Returns the entry time of the top level call, which the queried times are relative to. */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public int getMaxDepth() {
+        return mEntryTimes.length - 1;
+    }
+
+    /**
+     * Returns the calls with a depth between {@code minDepth} and {@code maxDepth}, at least
+     * {@code minDuration} long, overlapping with the time range from {@code start} to {@code end},
+     * relative to the entry time of the top level call.
+     */
+    @NonNull
+    public List<Call> getCalls(long start, long end, int minDepth, int maxDepth,
+            long minDuration) {
+        List<Call> result = new ArrayList<Call>();
+        for (int depth = Math.max(minDepth, 0); depth <= Math.min(maxDepth, getMaxDepth());
+                depth++) {
+            long[] entryTimes = mEntryTimes[depth];
+            long[] durations = mDurations[depth];
+
+            // The call preceding the first one entered in range may still be running at start.
+            int i = Math.max(findFirstEntryAfter(entryTimes, start) - 1, 0);
+            while ((i = findNext(mMaxDurations[depth], entryTimes.length, i, minDuration)) >= 0
+                    && entryTimes[i] <= end) {
+                if (entryTimes[i] + durations[i] >= start) {
+                    result.add(getCall(depth, i));
+                }
+                i++;
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private Call getCall(int depth, int i) {
+        if (mCallTable != null) {
+            assert mCallIndices != null;
+            return mCallTable.getCall(mCallIndices[depth][i]);
+        }
+        assert mCalls != null;
+        return mCalls[depth][i];
+    }
+
+    /** Returns the index of the first call entered at or after {@code time}. */
+    private static int findFirstEntryAfter(@NonNull long[] entryTimes, long time) {
+        int index = Arrays.binarySearch(entryTimes, time);
+        if (index < 0) {
+            return -index - 1;
+        }
+        // move to the first of equal entry times
+        while (index > 0 && entryTimes[index - 1] == time) {
+            index--;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the first call at or after {@code from} that lasts at least
+     * {@code minDuration}, or -1 if there is none.
+     */
+    private static int findNext(@NonNull long[] maxDurations, int count, int from,
+            long minDuration) {
+        if (from >= count) {
+            return -1;
+        }
+
+        // Go up until reaching a subtree containing a long enough call...
+        int leaves = maxDurations.length / 2;
+        int node = leaves + from;
+        while (maxDurations[node] < minDuration) {
+            while ((node & 1) == 1) {
+                if (node == 1) {
+                    return -1;
+                }
+                node >>= 1;
+            }
+            node++;
+        }
+
+        // ...then down to its leftmost long enough call.
+        while (node < leaves) {
+            node = 2 * node;
+            if (maxDurations[node] < minDuration) {
+                node++;
+            }
+        }
+        return node - leaves;
+    }
+}
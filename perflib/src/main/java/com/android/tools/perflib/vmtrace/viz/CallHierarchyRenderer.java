@@ -26,10 +26,11 @@ import com.android.utils.HtmlBuilder;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.text.DecimalFormat;
-import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static com.android.tools.perflib.vmtrace.ClockType.THREAD;
@@ -57,6 +58,9 @@ public class CallHierarchyRenderer {
 
     private Font mFont;
 
+    /** Index of the calls for the current render clock, created when first rendering. */
+    private CallHierarchyIndex mIndex;
+
     public CallHierarchyRenderer(@NonNull VmTraceData vmTraceData, @NonNull ThreadInfo thread,
             int yOffset, TimeUnit defaultTimeUnits, RenderContext renderContext) {
         mTraceData = vmTraceData;
@@ -69,16 +73,34 @@ public class CallHierarchyRenderer {
 
     /**
      * Renders the call hierarchy on a given graphics context.
-     * This essentially iterates through every single call in the hierarchy and renders it if it is
-     * visible in the current viewport.
+     * Only the calls that may be visible in the current viewport and that are at least 1 pixel
+     * wide are looked at, using a {@link CallHierarchyIndex}, so the work done is bounded by the
+     * size of the viewport rather than by the number of calls.
      */
     public void render(Graphics2D g, AffineTransform viewPortTransform) {
         Rectangle clip = g.getClipBounds();
 
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
+        Rectangle2D visible;
+        try {
+            visible = viewPortTransform.createInverse().createTransformedShape(clip)
+                    .getBounds2D();
+        } catch (NoninvertibleTransformException e) {
+            // nothing can be visible with a transform that collapses the viewport
+            return;
+        }
+
+        CallHierarchyIndex index = getIndex();
+        int minDepth = (int) Math.floor((visible.getMinY() - mYOffset) / PER_LEVEL_HEIGHT_PX) - 1;
+        int maxDepth = (int) Math.ceil((visible.getMaxY() - mYOffset) / PER_LEVEL_HEIGHT_PX) + 1;
+        long start = (long) Math.floor(visible.getMinX()) - PADDING - 1;
+        long end = (long) Math.ceil(visible.getMaxX()) + 1;
 
+        // calls narrower than a pixel are not rendered
+        double scaleX = Math.abs(viewPortTransform.getScaleX());
+        long minDuration = scaleX > 0 ? (long) Math.floor(1 / scaleX) + 2 * PADDING : 0;
+
+        List<Call> calls = index.getCalls(start, end, minDepth, maxDepth, minDuration);
+        for (Call c : calls) {
             // obtain layout in item space
             fillLayoutBounds(c, mLayout);
 
@@ -106,6 +128,15 @@ public class CallHierarchyRenderer {
         }
     }
 
+    @NonNull
+    private CallHierarchyIndex getIndex() {
+        ClockType renderClock = mRenderContext.getRenderClock();
+        if (mIndex == null || mIndex.getClockType() != renderClock) {
+            mIndex = new CallHierarchyIndex(mThread, renderClock, mLayoutTimeUnits);
+        }
+        return mIndex;
+    }
+
     private Rectangle2D transformRect(AffineTransform viewPortTransform, Rectangle2D rect) {
         mTmpPoint1.setLocation(rect.getX(), rect.getY());
         mTmpPoint2.setLocation(rect.getWidth(), rect.getHeight());
@@ -160,10 +191,11 @@ public class CallHierarchyRenderer {
 
     /** Get the tooltip corresponding to given location (in item coordinates). */
     public String getToolTipFor(double x, double y) {
-        Iterator<Call> it = mTopCall.getCallHierarchyIterator();
-        while (it.hasNext()) {
-            Call c = it.next();
-
+        int depth = (int) Math.floor((y - mYOffset) / PER_LEVEL_HEIGHT_PX);
+        long time = (long) Math.floor(x);
+        List<Call> calls = getIndex().getCalls(time - PADDING - 1, time + 1, depth - 1, depth + 1,
+                0);
+        for (Call c : calls) {
             fillLayoutBounds(c, mLayout);
             if (mLayout.contains(x, y)) {
                 return formatToolTip(c);
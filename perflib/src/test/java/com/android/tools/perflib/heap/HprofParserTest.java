@@ -17,12 +17,16 @@
 package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class HprofParserTest extends TestCase {
 
@@ -151,6 +155,88 @@ public class HprofParserTest extends TestCase {
         assertEquals(0, fields.get(0).getValue());
     }
 
+    public void testParallelParsing() throws IOException {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file),
+                new ProguardMap(), pool);
+        pool.shutdown();
+
+        assertEquals(mSnapshot.getHeaps().size(), snapshot.getHeaps().size());
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap parallelHeap = snapshot.getHeap(heap.getId());
+            assertNotNull(parallelHeap);
+            assertEquals(heap.getName(), parallelHeap.getName());
+            assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+            assertEquals(heap.getClasses().size(), parallelHeap.getClasses().size());
+        }
+        assertEquals(mSnapshot.getGCRoots().size(), snapshot.getGCRoots().size());
+
+        ClassObj byteArray = snapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+        snapshot.dispose();
+    }
+
+    public void testParallelParsingOfTruncatedDump() throws IOException {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        File truncated = File.createTempFile("truncated", ".hprof");
+        try {
+            byte[] bytes = Files.toByteArray(file);
+            Files.write(Arrays.copyOf(bytes, bytes.length / 2), truncated);
+
+            Snapshot sequential = Snapshot.createSnapshot(new MemoryMappedFileBuffer(truncated));
+            ForkJoinPool pool = new ForkJoinPool(4);
+            Snapshot parallel = Snapshot.createSnapshot(new MemoryMappedFileBuffer(truncated),
+                    new ProguardMap(), pool);
+            pool.shutdown();
+
+            int instanceCount = 0;
+            for (Heap heap : sequential.getHeaps()) {
+                Heap parallelHeap = parallel.getHeap(heap.getId());
+                assertNotNull(parallelHeap);
+                assertEquals(heap.getInstancesCount(), parallelHeap.getInstancesCount());
+                assertEquals(heap.getClasses().size(), parallelHeap.getClasses().size());
+                instanceCount += heap.getInstancesCount();
+            }
+            assertEquals(sequential.getHeaps().size(), parallel.getHeaps().size());
+            assertEquals(sequential.getGCRoots().size(), parallel.getGCRoots().size());
+
+            int fullInstanceCount = 0;
+            for (Heap heap : mSnapshot.getHeaps()) {
+                fullInstanceCount += heap.getInstancesCount();
+            }
+            assertTrue(instanceCount > 0);
+            assertTrue(instanceCount < fullInstanceCount);
+
+            sequential.dispose();
+            parallel.dispose();
+        } finally {
+            truncated.delete();
+        }
+    }
+
+    public void testIndexedSnapshot() throws IOException {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot snapshot = Snapshot.createIndexedSnapshot(new MemoryMappedFileBuffer(file),
+                new ProguardMap());
+
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap indexedHeap = snapshot.getHeap(heap.getId());
+            assertNotNull(indexedHeap);
+            assertEquals(heap.getInstancesCount(), indexedHeap.getInstancesCount());
+        }
+
+        ClassObj byteArray = snapshot.findClass("byte[]");
+        assertEquals(1406, byteArray.getInstancesList().size());
+        assertEquals(681489, byteArray.getShallowSize());
+
+        ArrayInstance intArrayInstance = (ArrayInstance) snapshot.findInstance(0xB0F69F58);
+        assertEquals(snapshot.findClass("int[][]"), intArrayInstance.getClassObj());
+        assertEquals(40, intArrayInstance.getSize());
+        snapshot.dispose();
+    }
+
     /**
      * Tests getValues to make sure it's not adding duplicate entries to the back references.
      */
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import gnu.trove.TObjectProcedure;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class InstanceIndexTest extends TestCase {
+
+    private SnapshotBuilder createBuilder() {
+        return new SnapshotBuilder(6, 1, 0)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4, 6)
+                .addReferences(3, 4, 5)
+                .addReferences(4, 6)
+                .insertSoftReference(5, 2)
+                .addRoot(1);
+    }
+
+    public void testRowsAndLazyInstances() {
+        Snapshot snapshot = createBuilder().buildIndexed();
+        assertTrue(snapshot.isIndexed());
+
+        InstanceIndex index = snapshot.getInstanceIndex();
+        assertNotNull(index);
+        Heap heap = snapshot.getHeap(13);
+        assertNotNull(heap);
+        assertEquals(7, heap.getInstancesCount());
+
+        int row = index.indexOf(3);
+        assertTrue(row >= 0);
+        assertEquals(InstanceIndex.KIND_CLASS_INSTANCE, index.getKind(row));
+        assertEquals(103, index.getClassId(row));
+        assertEquals(3, index.getSize(snapshot, row));
+        assertEquals(-1, index.indexOf(1000));
+
+        Instance instance = snapshot.findInstance(3);
+        assertNotNull(instance);
+        assertSame(instance, snapshot.findInstance(3));
+        assertSame(heap, instance.getHeap());
+        assertEquals(3, instance.getSize());
+
+        ClassObj classObj = snapshot.findClass(103);
+        assertNotNull(classObj);
+        assertEquals(1, classObj.getInstanceCount());
+        assertSame(instance, classObj.getInstancesList().get(0));
+    }
+
+    public void testReferencesMatchObjectModel() {
+        Snapshot snapshot = createBuilder().build();
+        Snapshot indexedSnapshot = createBuilder().buildIndexed();
+        snapshot.resolveReferences();
+
+        InstanceIndex index = indexedSnapshot.getInstanceIndex();
+        assertNotNull(index);
+        int[] targets = index.getReferenceTargets(indexedSnapshot);
+        for (long id = 1; id <= 7; id++) {
+            int row = index.indexOf(id);
+            Set<Long> indexedReferences = new HashSet<Long>();
+            for (int i = index.getReferencesStart(indexedSnapshot, row);
+                    i < index.getReferencesStart(indexedSnapshot, row + 1); i++) {
+                indexedReferences.add(index.getId(targets[i]));
+            }
+
+            Set<Long> references = new HashSet<Long>();
+            for (Instance reference : snapshot.findInstance(id).getHardForwardReferences()) {
+                references.add(reference.getId());
+            }
+            assertEquals(references, indexedReferences);
+        }
+    }
+
+    public void testDominatorsOnIndexedSnapshot() {
+        Snapshot snapshot = createBuilder().buildIndexed();
+        snapshot.computeDominators();
+
+        assertEquals(7, snapshot.getReachableInstances().size());
+        assertEquals(1, snapshot.findInstance(4).getImmediateDominator().getId());
+        assertEquals(3, snapshot.findInstance(5).getImmediateDominator().getId());
+    }
+
+    public void testDominatorsDoNotCreateInstances() {
+        Snapshot snapshot = createBuilder().buildIndexed();
+        snapshot.computeDominators();
+
+        for (Heap heap : snapshot.getHeaps()) {
+            assertEquals(0, heap.getCachedInstanceCount());
+        }
+        InstanceIndex index = snapshot.getInstanceIndex();
+        assertNotNull(index);
+        assertEquals(index.indexOf(1), index.getImmediateDominatorRow(index.indexOf(4)));
+        assertEquals(InstanceIndex.SENTINEL_ROW, index.getImmediateDominatorRow(index.indexOf(1)));
+        assertEquals(2, index.getDistanceToGcRoot(index.indexOf(4)));
+        assertEquals(8, index.getRetainedSize(index.indexOf(3), 1));
+
+        // Looking up the results only creates the instances that are read.
+        assertEquals(7, snapshot.getReachableInstances().size());
+        assertEquals(0, snapshot.getHeap(13).getCachedInstanceCount());
+        assertEquals(8, snapshot.findInstance(3).getRetainedSize(1));
+        assertEquals(1, snapshot.getHeap(13).getCachedInstanceCount());
+    }
+
+    public void testForEachInstanceDoesNotCacheInstances() {
+        Snapshot snapshot = createBuilder().buildIndexed();
+        snapshot.computeDominators();
+        Heap heap = snapshot.getHeap(13);
+        assertNotNull(heap);
+        final Instance cached = snapshot.findInstance(3);
+        assertEquals(1, heap.getCachedInstanceCount());
+
+        final Set<Long> ids = new HashSet<Long>();
+        final boolean[] sawCached = new boolean[1];
+        heap.forEachInstance(new TObjectProcedure<Instance>() {
+            @Override
+            public boolean execute(Instance instance) {
+                ids.add(instance.getId());
+                assertNotNull(instance.getHeap());
+                sawCached[0] |= instance == cached;
+                return true;
+            }
+        });
+
+        assertEquals(7, ids.size());
+        assertTrue(sawCached[0]);
+        assertEquals(1, heap.getCachedInstanceCount());
+    }
+
+    public void testIndexedResultsMatchObjectModel() {
+        Snapshot snapshot = createBuilder().build();
+        snapshot.computeDominators();
+        Snapshot indexedSnapshot = createBuilder().buildIndexed();
+        indexedSnapshot.computeDominators();
+
+        assertEquals(snapshot.getTopologicalOrdering().size(),
+                indexedSnapshot.getTopologicalOrdering().size());
+        for (long id = 1; id <= 7; id++) {
+            Instance expected = snapshot.findInstance(id);
+            Instance actual = indexedSnapshot.findInstance(id);
+            assertEquals(expected.getDistanceToGcRoot(), actual.getDistanceToGcRoot());
+            assertEquals(expected.getTotalRetainedSize(), actual.getTotalRetainedSize());
+            assertEquals(getIds(expected.getHardForwardReferences()),
+                    getIds(actual.getHardForwardReferences()));
+            assertEquals(getIds(expected.getHardReverseReferences()),
+                    getIds(actual.getHardReverseReferences()));
+            assertEquals(getIds(expected.getSoftReverseReferences()),
+                    getIds(actual.getSoftReverseReferences()));
+            for (Instance reference : actual.getHardForwardReferences()) {
+                assertTrue(actual.getTopologicalOrder() < reference.getTopologicalOrder());
+            }
+            if (expected.getSoftForwardReference() == null) {
+                assertNull(actual.getSoftForwardReference());
+            } else {
+                assertEquals(expected.getSoftForwardReference().getId(),
+                        actual.getSoftForwardReference().getId());
+            }
+        }
+    }
+
+    private static Set<Long> getIds(Iterable<Instance> instances) {
+        Set<Long> ids = new HashSet<Long>();
+        if (instances != null) {
+            for (Instance instance : instances) {
+                ids.add(instance.getId());
+            }
+        }
+        return ids;
+    }
+}
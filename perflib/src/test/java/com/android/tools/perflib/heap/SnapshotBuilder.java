@@ -117,6 +117,17 @@ public class SnapshotBuilder {
     }
 
     public Snapshot build() {
+        return build(false);
+    }
+
+    /**
+     * Builds a snapshot backed by an {@link InstanceIndex} instead of one Instance per object.
+     */
+    public Snapshot buildIndexed() {
+        return build(true);
+    }
+
+    private Snapshot build(boolean indexed) {
         HprofStringBuilder strings = new HprofStringBuilder(0);
         List<HprofRecord> records = new ArrayList<HprofRecord>();
         List<HprofDumpRecord> dump = new ArrayList<HprofDumpRecord>();
@@ -195,7 +206,9 @@ public class SnapshotBuilder {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             hprof.write(os);
             InMemoryBuffer buffer = new InMemoryBuffer(os.toByteArray());
-            snapshot = Snapshot.createSnapshot(buffer);
+            snapshot = indexed
+                    ? Snapshot.createIndexedSnapshot(buffer, new ProguardMap())
+                    : Snapshot.createSnapshot(buffer);
         } catch (IOException e) {
             fail("IOException when writing to byte output stream: " + e);
         }
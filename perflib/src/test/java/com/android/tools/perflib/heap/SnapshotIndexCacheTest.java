@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+public class SnapshotIndexCacheTest extends TestCase {
+
+    private File mHprofFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        File source = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mHprofFile = File.createTempFile("dialer", ".android-hprof");
+        Files.copy(source, mHprofFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        SnapshotIndexCache.getIndexFile(mHprofFile).delete();
+        mHprofFile.delete();
+        super.tearDown();
+    }
+
+    private Snapshot open() throws IOException {
+        return SnapshotIndexCache.open(mHprofFile, new ProguardMap());
+    }
+
+    private Snapshot load() throws IOException {
+        return SnapshotIndexCache.load(mHprofFile, new ProguardMap());
+    }
+
+    public void testReopenMatchesComputedDominators() throws IOException {
+        assertNull(load());
+        open().dispose();
+        assertTrue(SnapshotIndexCache.getIndexFile(mHprofFile).isFile());
+
+        Snapshot computed = Snapshot.createIndexedSnapshot(
+                new MemoryMappedFileBuffer(mHprofFile), new ProguardMap());
+        computed.computeDominators();
+        Snapshot loaded = load();
+        assertNotNull(loaded);
+
+        // Only the rows of the index back the reopened snapshot.
+        for (Heap heap : loaded.getHeaps()) {
+            assertEquals(computed.getHeap(heap.getId()).getInstancesCount(),
+                    heap.getInstancesCount());
+            assertEquals(0, heap.getCachedInstanceCount());
+        }
+        assertEquals(computed.getGCRoots().size(), loaded.getGCRoots().size());
+
+        List<Instance> expected = computed.getTopologicalOrdering();
+        List<Instance> actual = loaded.getTopologicalOrdering();
+        assertEquals(expected.size(), actual.size());
+        assertEquals(computed.getReachableInstances().size(),
+                loaded.getReachableInstances().size());
+        int heapCount = computed.getHeaps().size();
+        for (int i = 0; i < expected.size(); i++) {
+            Instance expectedInstance = expected.get(i);
+            Instance actualInstance = actual.get(i);
+            assertEquals(expectedInstance.getId(), actualInstance.getId());
+            assertEquals(i + 1, actualInstance.getTopologicalOrder());
+            assertEquals(expectedInstance.getImmediateDominator().getId(),
+                    actualInstance.getImmediateDominator().getId());
+            assertEquals(expectedInstance.getDistanceToGcRoot(),
+                    actualInstance.getDistanceToGcRoot());
+            assertEquals(expectedInstance.getHardForwardReferences().size(),
+                    actualInstance.getHardForwardReferences().size());
+            assertEquals(expectedInstance.getHardReverseReferences().size(),
+                    actualInstance.getHardReverseReferences().size());
+            for (int heap = 0; heap < heapCount; heap++) {
+                assertEquals(expectedInstance.getRetainedSize(heap),
+                        actualInstance.getRetainedSize(heap));
+            }
+        }
+
+        ClassObj htmlParser = loaded.findClass("android.text.Html$HtmlParser");
+        assertEquals(116492,
+                htmlParser.getRetainedSize(loaded.getHeapIndex(loaded.getHeap("zygote"))));
+
+        computed.dispose();
+        loaded.dispose();
+    }
+
+    public void testStaleIndexIsRebuilt() throws IOException {
+        open().dispose();
+
+        assertTrue(mHprofFile.setLastModified(mHprofFile.lastModified() - 10000));
+        assertNull(load());
+        assertFalse(SnapshotIndexCache.getIndexFile(mHprofFile).exists());
+
+        open().dispose();
+        Snapshot snapshot = load();
+        assertNotNull(snapshot);
+        snapshot.dispose();
+    }
+
+    public void testTruncatedIndexIsRebuilt() throws IOException {
+        open().dispose();
+        File indexFile = SnapshotIndexCache.getIndexFile(mHprofFile);
+        long length = indexFile.length();
+
+        // Cut the index in the middle of the rows, past its valid header.
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            file.setLength(length / 2);
+        } finally {
+            file.close();
+        }
+        assertNull(load());
+        assertFalse(indexFile.exists());
+
+        Snapshot snapshot = open();
+        assertNotNull(snapshot.getTopologicalOrdering());
+        snapshot.dispose();
+        assertEquals(length, indexFile.length());
+        snapshot = load();
+        assertNotNull(snapshot);
+        snapshot.dispose();
+    }
+
+    public void testCorruptIndexIsRebuilt() throws IOException {
+        open().dispose();
+        File indexFile = SnapshotIndexCache.getIndexFile(mHprofFile);
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        try {
+            long position = SnapshotIndexCache.HEADER_SIZE + (file.length() / 2);
+            file.seek(position);
+            int value = file.read();
+            file.seek(position);
+            file.write(~value);
+        } finally {
+            file.close();
+        }
+        assertNull(load());
+        assertFalse(indexFile.exists());
+
+        open().dispose();
+        Snapshot snapshot = load();
+        assertNotNull(snapshot);
+        snapshot.dispose();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+public class ArrayDominatorsTest extends TestCase {
+
+    private ForkJoinPool mPool;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new ForkJoinPool(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPool.shutdown();
+        mPool = null;
+        super.tearDown();
+    }
+
+    public void testDoublyLinkedList() {
+        Snapshot snapshot = new SnapshotBuilder(9)
+                .addReferences(1, 2)
+                .addReferences(2, 3, 9)
+                .addReferences(3, 2, 4)
+                .addReferences(4, 3, 5)
+                .addReferences(5, 4, 6)
+                .addReferences(6, 5, 7)
+                .addReferences(7, 6, 8)
+                .addReferences(8, 7, 9)
+                .addReferences(9, 2, 8)
+                .addRoot(1)
+                .build();
+
+        snapshot.computeDominators(mPool);
+
+        assertEquals(9, snapshot.getReachableInstances().size());
+        assertEquals(45, snapshot.findInstance(1).getRetainedSize(1));
+        assertEquals(44, snapshot.findInstance(2).getRetainedSize(1));
+        for (int i = 3; i <= 9; i++) {
+            assertEquals(i, snapshot.findInstance(i).getRetainedSize(1));
+        }
+    }
+
+    public void testMultipleRootsAndSoftReferences() {
+        Snapshot snapshot = new SnapshotBuilder(6, 1, 0)
+                .addReferences(1, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 5)
+                .addReferences(4, 5)
+                .addReferences(5, 6)
+                .insertSoftReference(6, 2)
+                .addRoot(1)
+                .addRoot(2)
+                .build();
+
+        snapshot.computeDominators(mPool);
+
+        assertEquals(Snapshot.SENTINEL_ROOT, snapshot.findInstance(5).getImmediateDominator());
+        assertEquals(snapshot.findInstance(5), snapshot.findInstance(6).getImmediateDominator());
+        assertEquals(4, snapshot.findInstance(1).getRetainedSize(1));
+        assertEquals(11, snapshot.findInstance(5).getRetainedSize(1));
+    }
+
+    public void testIndexedSnapshot() {
+        SnapshotBuilder builder = new SnapshotBuilder(8, 1, 1)
+                .addReferences(1, 2, 3)
+                .addReferences(2, 4)
+                .addReferences(3, 4, 5)
+                .addReferences(4, 6)
+                .addReferences(5, 6, 7)
+                .addReferences(6, 8)
+                .insertSoftReference(7, 1)
+                .insertSoftAndHardReference(8, 2, 5)
+                .addRoot(1)
+                .addRoot(7);
+        Snapshot expected = builder.build();
+        expected.computeDominators(mPool);
+        Snapshot actual = builder.buildIndexed();
+        actual.computeDominators(mPool);
+
+        assertTrue(actual.getInstanceIndex().hasDominators());
+        int heapCount = expected.getHeaps().size();
+        for (long id = 1; id <= 10; id++) {
+            Instance expectedInstance = expected.findInstance(id);
+            Instance actualInstance = actual.findInstance(id);
+            Instance expectedDominator = expectedInstance.getImmediateDominator();
+            Instance actualDominator = actualInstance.getImmediateDominator();
+            if (expectedDominator == Snapshot.SENTINEL_ROOT) {
+                assertSame(Snapshot.SENTINEL_ROOT, actualDominator);
+            } else {
+                assertEquals(expectedDominator.getId(), actualDominator.getId());
+            }
+            for (int i = 0; i < heapCount; i++) {
+                assertEquals(expectedInstance.getRetainedSize(i), actualInstance.getRetainedSize(i));
+            }
+        }
+    }
+
+    public void testMatchesLinkEvalDominators() throws Exception {
+        File file = new File(ClassLoader.getSystemResource("dialer.android-hprof").getFile());
+        Snapshot expected = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        expected.computeDominators();
+        Snapshot actual = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        actual.computeDominators(mPool);
+
+        List<Instance> expectedReachable = expected.getReachableInstances();
+        assertEquals(expectedReachable.size(), actual.getReachableInstances().size());
+        int heapCount = expected.getHeaps().size();
+        for (Instance expectedInstance : expectedReachable) {
+            Instance actualInstance = actual.findInstance(expectedInstance.getId());
+            assertNotNull(actualInstance);
+            assertEquals(expectedInstance.getImmediateDominator().getId(),
+                    actualInstance.getImmediateDominator().getId());
+            for (int i = 0; i < heapCount; i++) {
+                assertEquals(expectedInstance.getRetainedSize(i), actualInstance.getRetainedSize(i));
+            }
+        }
+
+        expected.dispose();
+        actual.dispose();
+    }
+}
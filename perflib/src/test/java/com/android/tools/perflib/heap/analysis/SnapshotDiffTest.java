@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.ProguardMap;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import com.android.tools.perflib.heap.analysis.SnapshotDiff.Metric;
+
+import junit.framework.TestCase;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class SnapshotDiffTest extends TestCase {
+
+    // Node i is an instance of size i of class "Class" + (i / 2). Nodes form a single chain.
+    private static SnapshotBuilder createChain(int length) {
+        SnapshotBuilder builder = new SnapshotBuilder(length);
+        for (int i = 1; i < length; i++) {
+            builder.addReferences(i, i + 1);
+        }
+        return builder.addRoot(1);
+    }
+
+    public void testCountsAndSizes() {
+        Snapshot before = createChain(4).build();
+        Snapshot after = createChain(6).build();
+        before.computeDominators();
+        after.computeDominators();
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        int heap = diff.getHeapNames().indexOf("testHeap");
+        assertTrue(heap >= 0);
+
+        int class2 = diff.getClassIndex("Class2");
+        assertEquals(1, diff.getBefore(Metric.INSTANCE_COUNT, class2, heap));
+        assertEquals(2, diff.getAfter(Metric.INSTANCE_COUNT, class2, heap));
+        assertEquals(5, diff.getDelta(Metric.SHALLOW_SIZE, class2, heap));
+        assertEquals(11, diff.getDelta(Metric.RETAINED_SIZE, class2, heap));
+
+        int class3 = diff.getClassIndex("Class3");
+        assertEquals(0, diff.getBefore(Metric.INSTANCE_COUNT, class3, heap));
+        assertEquals(1, diff.getDelta(Metric.INSTANCE_COUNT, class3));
+        assertEquals(6, diff.getDelta(Metric.RETAINED_SIZE, class3));
+
+        int class1 = diff.getClassIndex("Class1");
+        assertEquals(0, diff.getDelta(Metric.INSTANCE_COUNT, class1));
+        assertEquals(11, diff.getDelta(Metric.RETAINED_SIZE, class1));
+
+        int[] growth = diff.getClassesByGrowth(Metric.SHALLOW_SIZE);
+        assertEquals(class3, growth[0]);
+        assertEquals(class2, growth[1]);
+        growth = diff.getClassesByGrowth(Metric.RETAINED_SIZE);
+        assertEquals(new HashSet<Integer>(Arrays.asList(class1, class2)),
+                new HashSet<Integer>(Arrays.asList(growth[0], growth[1])));
+
+        String report = diff.formatGrowthReport(Metric.INSTANCE_COUNT, 10);
+        assertTrue(report.contains("Class2"));
+        assertTrue(report.contains("Class3"));
+        assertFalse(report.contains("Class1 "));
+    }
+
+    public void testRetainedSizeOfSelfReferencingClass() {
+        // Like the nodes of a linked list, each instance of Class1 and Class2 holds the next one.
+        // Only the first instance of each class counts toward the retained size of the class.
+        for (boolean indexed : new boolean[] {false, true}) {
+            Snapshot before = indexed ? createChain(4).buildIndexed() : createChain(4).build();
+            Snapshot after = indexed ? createChain(6).buildIndexed() : createChain(6).build();
+            before.computeDominators();
+            after.computeDominators();
+
+            SnapshotDiff diff = SnapshotDiff.compute(before, after);
+            int heap = diff.getHeapNames().indexOf("testHeap");
+            int class1 = diff.getClassIndex("Class1");
+            assertEquals(2 + 3 + 4, diff.getBefore(Metric.RETAINED_SIZE, class1, heap));
+            assertEquals(2 + 3 + 4 + 5 + 6, diff.getAfter(Metric.RETAINED_SIZE, class1, heap));
+            int class2 = diff.getClassIndex("Class2");
+            assertEquals(4, diff.getBefore(Metric.RETAINED_SIZE, class2, heap));
+            assertEquals(4 + 5 + 6, diff.getAfter(Metric.RETAINED_SIZE, class2, heap));
+            int class0 = diff.getClassIndex("Class0");
+            assertEquals(1 + 2 + 3 + 4, diff.getBefore(Metric.RETAINED_SIZE, class0, heap));
+            assertEquals(2, diff.getAfter(Metric.INSTANCE_COUNT, class2, heap));
+            assertEquals(9, diff.getAfter(Metric.SHALLOW_SIZE, class2, heap));
+        }
+    }
+
+    public void testIndexedSnapshotsWithoutDominators() {
+        Snapshot before = createChain(4).buildIndexed();
+        Snapshot after = createChain(6).buildIndexed();
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        int heap = diff.getHeapNames().indexOf("testHeap");
+        int class2 = diff.getClassIndex("Class2");
+        assertEquals(1, diff.getDelta(Metric.INSTANCE_COUNT, class2, heap));
+        assertEquals(5, diff.getDelta(Metric.SHALLOW_SIZE, class2, heap));
+        assertEquals(0, diff.getDelta(Metric.RETAINED_SIZE, class2, heap));
+        assertEquals(-1, diff.getClassIndex("Class9"));
+    }
+
+    public void testDeobfuscation() throws Exception {
+        ProguardMap beforeMap = new ProguardMap();
+        beforeMap.readFromReader(new StringReader("com.example.Cache -> Class2:\n"));
+        ProguardMap afterMap = new ProguardMap();
+        afterMap.readFromReader(new StringReader("com.example.Cache -> Class3:\n"));
+
+        SnapshotDiff diff = SnapshotDiff.compute(createChain(4).build(), beforeMap,
+                createChain(6).build(), afterMap);
+        int cache = diff.getClassIndex("com.example.Cache");
+        assertEquals(2, diff.getDelta(Metric.SHALLOW_SIZE, cache));
+        assertEquals(4, diff.getBefore(Metric.SHALLOW_SIZE, cache,
+                diff.getHeapNames().indexOf("testHeap")));
+        assertEquals(6, diff.getAfter(Metric.SHALLOW_SIZE, cache,
+                diff.getHeapNames().indexOf("testHeap")));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ClassInstance;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.ProguardMap;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+import com.android.tools.perflib.heap.Type;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StreamingMemoryAnalyzerTaskTest extends TestCase {
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getClass().getResource("/dialer.android-hprof").getFile());
+    }
+
+    public void testRecordCallbacks() throws Exception {
+        final int[] counts = new int[3];
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile),
+                new ProguardMap(), new StreamingMemoryAnalyzerTask() {
+                    @Override
+                    public void onClassDump(@NonNull ClassObj classObj) {
+                        counts[0]++;
+                    }
+
+                    @Override
+                    public void onInstanceDump(@NonNull Heap heap, long id, long classId,
+                            int valuesLength, @NonNull DataBuffer buffer) {
+                        counts[1]++;
+                        buffer.setPosition(buffer.position() + valuesLength / 2);
+                    }
+
+                    @Override
+                    public void onPrimitiveArrayDump(@NonNull Heap heap, long id,
+                            @NonNull Type type, int length, @NonNull DataBuffer buffer) {
+                        counts[2]++;
+                    }
+
+                    @NonNull
+                    @Override
+                    List<AnalysisResultEntry> getResults(@NonNull Configuration configuration,
+                            @NonNull Snapshot snapshot) {
+                        return Collections.emptyList();
+                    }
+
+                    @NonNull
+                    @Override
+                    public String getTaskName() {
+                        return "Count";
+                    }
+
+                    @NonNull
+                    @Override
+                    public String getTaskDescription() {
+                        return "Counts records";
+                    }
+                });
+
+        int classCount = 0;
+        for (Heap heap : snapshot.getHeaps()) {
+            classCount += heap.getClasses().size();
+        }
+        assertEquals(classCount, counts[0]);
+        assertTrue(counts[1] > 0);
+        assertEquals(1406, snapshot.findClass("byte[]").getInstanceCount());
+        assertTrue(counts[2] > 1406);
+        snapshot.dispose();
+    }
+
+    public void testDuplicatedStrings() throws Exception {
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        List<AnalysisResultEntry> results = MemoryAnalyzer.analyzeWhileParsing(buffer,
+                new ProguardMap(),
+                Collections.singletonList(new StreamingDuplicatedStringsTask()));
+
+        // Count duplicates among all strings of the app heap of a fully parsed snapshot.
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+        ClassObj stringClass = snapshot.findClass("java.lang.String");
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        for (Instance instance : stringClass.getHeapInstances(snapshot.getHeap("app").getId())) {
+            char[] characters = ((ClassInstance) instance).getStringChars();
+            if (characters != null) {
+                String string = new String(characters);
+                Integer count = expected.get(string);
+                expected.put(string, count == null ? 1 : count + 1);
+            }
+        }
+        Map<String, Integer> duplicates = new HashMap<String, Integer>();
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            if (entry.getValue() > 1) {
+                duplicates.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        assertEquals(duplicates.size(), results.size());
+        for (AnalysisResultEntry result : results) {
+            assertEquals("Duplicated Strings", result.getCategory());
+            String string = result.getOffender().getOffendingDescription();
+            assertEquals(duplicates.get(string).intValue(),
+                    result.getOffender().getOffenders().size());
+        }
+
+        snapshot.dispose();
+        buffer.dispose();
+    }
+
+    public void testOnlyStringsAndBitmapsAreDeferred() throws Exception {
+        StreamingDuplicatedStringsTask stringsTask = new StreamingDuplicatedStringsTask();
+        StreamingBitmapSizesTask bitmapsTask = new StreamingBitmapSizesTask();
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        MemoryAnalyzer.analyzeWhileParsing(buffer, new ProguardMap(),
+                Arrays.asList(stringsTask, bitmapsTask));
+        buffer.dispose();
+
+        // The class ids are known from the LOAD_CLASS records, so only the instances of
+        // java.lang.String and android.graphics.Bitmap dumped before their class can be deferred.
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+        assertTrue(stringsTask.getDeferredInstanceCount()
+                <= snapshot.findClass("java.lang.String").getInstanceCount());
+        ClassObj bitmapClass = snapshot.findClass("android.graphics.Bitmap");
+        assertTrue(bitmapsTask.getDeferredInstanceCount()
+                <= (bitmapClass == null ? 0 : bitmapClass.getInstanceCount()));
+        snapshot.dispose();
+    }
+
+    public void testDeferralWithoutLoadClass() throws Exception {
+        Snapshot snapshot = new SnapshotBuilder(1).addRoot(1).build();
+        Heap heap = snapshot.getHeaps().iterator().next();
+        DataBuffer buffer = new MemoryMappedFileBuffer(mFile);
+        int idSize = snapshot.getTypeSize(Type.OBJECT);
+
+        StreamingDuplicatedStringsTask stringsTask = new StreamingDuplicatedStringsTask();
+        stringsTask.onHeaderRead(snapshot);
+        // Instances of classes that are already dumped, or too large to be a string, are dropped.
+        stringsTask.onInstanceDump(heap, 1000, 101, 4, buffer);
+        stringsTask.onInstanceDump(heap, 1001, 500, 2 * idSize + 16, buffer);
+        stringsTask.onInstanceDump(heap, 1002, 500, 1024, buffer);
+        assertEquals(1, stringsTask.getDeferredInstanceCount());
+
+        // Once the class id is known, nothing else is.
+        stringsTask.onLoadClass(501, "java.lang.String");
+        stringsTask.onInstanceDump(heap, 1003, 500, 8, buffer);
+        stringsTask.onInstanceDump(heap, 1004, 501, 8, buffer);
+        assertEquals(2, stringsTask.getDeferredInstanceCount());
+
+        StreamingBitmapSizesTask bitmapsTask = new StreamingBitmapSizesTask();
+        bitmapsTask.onHeaderRead(snapshot);
+        // Instances too small to hold the fields of a bitmap are dropped.
+        bitmapsTask.onInstanceDump(heap, 1000, 500, idSize, buffer);
+        bitmapsTask.onInstanceDump(heap, 1001, 500, idSize + 8, buffer);
+        assertEquals(1, bitmapsTask.getDeferredInstanceCount());
+        bitmapsTask.onLoadClass(502, "android.graphics.Bitmap");
+        bitmapsTask.onInstanceDump(heap, 1002, 500, 1024, buffer);
+        bitmapsTask.onInstanceDump(heap, 1003, 502, 1024, buffer);
+        assertEquals(2, bitmapsTask.getDeferredInstanceCount());
+
+        buffer.dispose();
+        snapshot.dispose();
+    }
+
+    public void testNoResultsForOtherSnapshots() throws Exception {
+        Snapshot snapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(mFile));
+        MemoryAnalyzerTask.Configuration configuration =
+                new MemoryAnalyzerTask.Configuration(snapshot.getHeaps());
+        assertTrue(new StreamingDuplicatedStringsTask().analyze(configuration, snapshot).isEmpty());
+        assertTrue(new StreamingBitmapSizesTask().analyze(configuration, snapshot).isEmpty());
+        snapshot.dispose();
+    }
+}
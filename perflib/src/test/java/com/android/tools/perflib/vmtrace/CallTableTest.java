@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class CallTableTest extends TestCase {
+    private void addTraceAction(CallStackReconstructor reconstructor, CallTable.Builder builder,
+            long methodId, TraceAction action, int time) {
+        reconstructor.addTraceAction(methodId, action, time, time + 1);
+        builder.addTraceAction(methodId, action, time, time + 1);
+    }
+
+    public void testMatchesCallStackReconstructor() {
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+        CallTable.Builder builder = new CallTable.Builder(0xff);
+
+        // exits without entries, recursive calls and calls never exited
+        addTraceAction(reconstructor, builder, 0x1, TraceAction.METHOD_EXIT, 5);
+        addTraceAction(reconstructor, builder, 0x2, TraceAction.METHOD_ENTER, 10);
+        addTraceAction(reconstructor, builder, 0x3, TraceAction.METHOD_ENTER, 11);
+        addTraceAction(reconstructor, builder, 0x3, TraceAction.METHOD_EXIT, 12);
+        addTraceAction(reconstructor, builder, 0x2, TraceAction.METHOD_EXIT, 13);
+        addTraceAction(reconstructor, builder, 0x4, TraceAction.METHOD_EXIT_UNROLL, 14);
+        addTraceAction(reconstructor, builder, 0x5, TraceAction.METHOD_ENTER, 15);
+        addTraceAction(reconstructor, builder, 0x6, TraceAction.METHOD_ENTER, 16);
+        addTraceAction(reconstructor, builder, 0x5, TraceAction.METHOD_ENTER, 17);
+        addTraceAction(reconstructor, builder, 0x5, TraceAction.METHOD_EXIT, 18);
+        addTraceAction(reconstructor, builder, 0x7, TraceAction.METHOD_ENTER, 19);
+
+        Call expected = reconstructor.getTopLevel();
+        CallTable callTable = builder.build();
+        assertEquals(9, callTable.getCallCount());
+        assertCallsEqual(expected, callTable.getTopLevelCall());
+    }
+
+    public void testDeepCallStack() {
+        CallTable.Builder builder = new CallTable.Builder(0xff);
+        int depth = 100000;
+        for (int i = 0; i < depth; i++) {
+            builder.addTraceAction(0x10, TraceAction.METHOD_ENTER, i, i);
+        }
+
+        CallTable callTable = builder.build();
+        assertEquals(depth + 1, callTable.getCallCount());
+        assertEquals(depth, callTable.getDepth(depth));
+        assertFalse(callTable.isRecursive(1));
+        assertTrue(callTable.isRecursive(depth));
+        assertEquals(callTable.getCallCount(), callTable.getSubtreeEnd(1));
+    }
+
+    public void testViewsAreEqual() {
+        CallTable.Builder builder = new CallTable.Builder(0xff);
+        builder.addTraceAction(0x1, TraceAction.METHOD_ENTER, 10, 10);
+        builder.addTraceAction(0x1, TraceAction.METHOD_EXIT, 15, 15);
+        CallTable callTable = builder.build();
+
+        Call callee = callTable.getTopLevelCall().getCallees().get(0);
+        assertEquals(callTable.getCall(1), callee);
+        assertEquals(callTable.getCall(1).hashCode(), callee.hashCode());
+        assertFalse(callTable.getTopLevelCall().equals(callee));
+    }
+
+    public void testParsedTracesMatch() throws IOException {
+        String[] traces = {"/basic.trace", "/basic-api10.trace", "/mismatched.trace",
+                "/exception.trace"};
+        for (String trace : traces) {
+            VmTraceData expected = parse(trace, false);
+            VmTraceData compact = parse(trace, true);
+
+            assertEquals(expected.getThreads().size(), compact.getThreads().size());
+            for (ThreadInfo thread : expected.getThreads()) {
+                ThreadInfo compactThread = compact.getThread(thread.getName());
+                assertNotNull(compactThread);
+                if (thread.getTopLevelCall() == null) {
+                    assertNull(compactThread.getTopLevelCall());
+                    continue;
+                }
+                assertNull(thread.getCallTable());
+                assertNotNull(compactThread.getCallTable());
+                assertCallsEqual(thread.getTopLevelCall(), compactThread.getTopLevelCall());
+
+                for (Map.Entry<Long, MethodInfo> entry : expected.getMethods().entrySet()) {
+                    MethodProfileData data = entry.getValue().getProfileData();
+                    MethodProfileData compactData =
+                            compact.getMethod(entry.getKey()).getProfileData();
+                    if (data == null) {
+                        assertNull(compactData);
+                        continue;
+                    }
+                    assertEquals(data.getInvocationCount(thread),
+                            compactData.getInvocationCount(compactThread));
+                    assertEquals(data.getExclusiveTime(thread, ClockType.GLOBAL,
+                                    TimeUnit.MICROSECONDS),
+                            compactData.getExclusiveTime(compactThread, ClockType.GLOBAL,
+                                    TimeUnit.MICROSECONDS));
+                    assertEquals(data.getCallers(thread), compactData.getCallers(compactThread));
+                }
+            }
+        }
+    }
+
+    private VmTraceData parse(String traceName, boolean compactCalls) throws IOException {
+        VmTraceParser parser = new VmTraceParser(getFile(traceName), compactCalls);
+        if (compactCalls) {
+            // map records straddling the windows
+            parser.setMaxMappedSize(101);
+        }
+        parser.parse();
+        return parser.getTraceData();
+    }
+
+    private static void assertCallsEqual(Call expected, Call actual) {
+        Iterator<Call> expectedCalls = expected.getCallHierarchyIterator();
+        Iterator<Call> actualCalls = actual.getCallHierarchyIterator();
+        while (expectedCalls.hasNext()) {
+            assertTrue(actualCalls.hasNext());
+            Call e = expectedCalls.next();
+            Call a = actualCalls.next();
+            assertEquals(e.getMethodId(), a.getMethodId());
+            assertEquals(e.getDepth(), a.getDepth());
+            assertEquals(e.isRecursive(), a.isRecursive());
+            assertEquals(e.getCallees().size(), a.getCallees().size());
+            for (ClockType clockType : ClockType.values()) {
+                assertEquals(e.getEntryTime(clockType, TimeUnit.MICROSECONDS),
+                        a.getEntryTime(clockType, TimeUnit.MICROSECONDS));
+                assertEquals(e.getExitTime(clockType, TimeUnit.MICROSECONDS),
+                        a.getExitTime(clockType, TimeUnit.MICROSECONDS));
+                assertEquals(e.getExclusiveTime(clockType, TimeUnit.MICROSECONDS),
+                        a.getExclusiveTime(clockType, TimeUnit.MICROSECONDS));
+            }
+        }
+        assertFalse(actualCalls.hasNext());
+    }
+
+    private File getFile(String path) {
+        URL resource = getClass().getResource(path);
+        // Note: When running from an IntelliJ, make sure the IntelliJ compiler settings treats
+        // *.trace files as resources, otherwise they are excluded from compiler output
+        // resulting in a NPE.
+        assertNotNull(path + " not found", resource);
+        return new File(resource.getFile());
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.android.tools.perflib.vmtrace;
 
+import com.google.common.base.Charsets;
 import com.google.common.primitives.Ints;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,6 +35,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 public class VmTraceParserTest extends TestCase {
@@ -335,6 +340,99 @@ public class VmTraceParserTest extends TestCase {
         }
     }
 
+    public void testParallelProfileData() throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (String trace : new String[] {"/basic.trace", "/mismatched.trace"}) {
+                VmTraceData expected = getVmTraceData(trace);
+                VmTraceParser parser = new VmTraceParser(getFile(trace));
+                parser.parse(pool);
+                VmTraceData traceData = parser.getTraceData();
+
+                for (ThreadInfo thread : expected.getThreads(true)) {
+                    ThreadInfo parallelThread = traceData.getThread(thread.getName());
+                    for (MethodInfo method : expected.getMethods().values()) {
+                        MethodProfileData profile = method.getProfileData();
+                        MethodProfileData parallelProfile =
+                                traceData.getMethod(method.id).getProfileData();
+                        if (profile == null) {
+                            assertNull(parallelProfile);
+                            continue;
+                        }
+                        assertEquals(profile.isRecursive(), parallelProfile.isRecursive());
+                        assertEquals(profile.getInvocationCount(thread),
+                                parallelProfile.getInvocationCount(parallelThread));
+                        for (ClockType type : ClockType.values()) {
+                            assertEquals(
+                                    profile.getInclusiveTime(thread, type, TimeUnit.MICROSECONDS),
+                                    parallelProfile.getInclusiveTime(parallelThread, type,
+                                            TimeUnit.MICROSECONDS));
+                            assertEquals(
+                                    profile.getExclusiveTime(thread, type, TimeUnit.MICROSECONDS),
+                                    parallelProfile.getExclusiveTime(parallelThread, type,
+                                            TimeUnit.MICROSECONDS));
+                        }
+                        assertEquals(profile.getCallees(thread),
+                                parallelProfile.getCallees(parallelThread));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testDeepCallStack() throws IOException {
+        int depth = 50000;
+        File f = File.createTempFile("deep", ".trace");
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            writeRecursiveTrace(f, depth);
+            VmTraceParser parser = new VmTraceParser(f, true);
+            parser.parse(pool);
+            VmTraceData traceData = parser.getTraceData();
+
+            ThreadInfo thread = traceData.getThread("main");
+            MethodProfileData profile = traceData.getMethod(0x10).getProfileData();
+            assertTrue(profile.isRecursive());
+            assertEquals(depth, profile.getInvocationCount(thread));
+            // only the outermost call counts towards the inclusive time of a recursive method
+            assertEquals(2 * depth - 1,
+                    profile.getInclusiveTime(thread, ClockType.THREAD, TimeUnit.MICROSECONDS));
+        } finally {
+            pool.shutdown();
+            assertTrue(f.delete());
+        }
+    }
+
+    /** Writes a trace of a method calling itself recursively {@code depth} times. */
+    private static void writeRecursiveTrace(File f, int depth) throws IOException {
+        String header = "*version\n3\nclock=thread-cpu\n*threads\n1\tmain\n*methods\n"
+                + "0x10\tFoo\trecurse\t()V\tFoo.java\t1\n*end\n";
+        int recordSize = 10;
+        ByteBuffer data = ByteBuffer.allocate(32 + 2 * depth * recordSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0x574f4c53); // 'SLOW'
+        data.putShort((short) 3);
+        data.putShort((short) 32);
+        data.putLong(0);
+        data.putShort((short) recordSize);
+        data.position(32);
+        for (int i = 0; i < 2 * depth; i++) {
+            data.putShort((short) 1);
+            data.putInt(i < depth ? 0x10 : 0x10 | 1);
+            data.putInt(i);
+        }
+
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(header.getBytes(Charsets.US_ASCII));
+            out.write(data.array());
+        } finally {
+            out.close();
+        }
+    }
+
     private VmTraceData getVmTraceData(String traceFilePath) throws IOException {
         VmTraceParser parser = new VmTraceParser(getFile(traceFilePath));
         parser.parse();
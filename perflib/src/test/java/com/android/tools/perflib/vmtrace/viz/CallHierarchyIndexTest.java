@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace.viz;
+
+import com.android.tools.perflib.vmtrace.Call;
+import com.android.tools.perflib.vmtrace.ClockType;
+import com.android.tools.perflib.vmtrace.ThreadInfo;
+import com.android.tools.perflib.vmtrace.VmTraceData;
+import com.android.tools.perflib.vmtrace.VmTraceParser;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class CallHierarchyIndexTest extends TestCase {
+    public void testMatchesAllCalls() throws IOException {
+        for (boolean compactCalls : new boolean[] {false, true}) {
+            VmTraceData traceData = getVmTraceData("/basic.trace", compactCalls);
+            ThreadInfo thread = traceData.getThread("AsyncTask #1");
+            for (ClockType clockType : ClockType.values()) {
+                CallHierarchyIndex index =
+                        new CallHierarchyIndex(thread, clockType, TimeUnit.MICROSECONDS);
+                assertEquals(clockType, index.getClockType());
+
+                long duration = thread.getTopLevelCall()
+                        .getInclusiveTime(clockType, TimeUnit.MICROSECONDS);
+                long[][] ranges = {{0, duration}, {0, duration / 3}, {duration / 2, duration},
+                        {duration / 4, duration / 4}};
+                for (long[] range : ranges) {
+                    for (long minDuration : new long[] {0, 10, duration / 10}) {
+                        assertEquals(getCalls(thread, clockType, range[0], range[1], 1, 5,
+                                        minDuration),
+                                new HashSet<Call>(index.getCalls(range[0], range[1], 1, 5,
+                                        minDuration)));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testCallsAreBoundedByDuration() throws IOException {
+        VmTraceData traceData = getVmTraceData("/basic.trace", true);
+        ThreadInfo thread = traceData.getThread("AsyncTask #1");
+        CallHierarchyIndex index =
+                new CallHierarchyIndex(thread, ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+        long duration = thread.getTopLevelCall()
+                .getInclusiveTime(ClockType.GLOBAL, TimeUnit.MICROSECONDS);
+
+        // with calls at least a tenth of the range long, no more than 11 fit at each depth
+        int depths = index.getMaxDepth() + 1;
+        List<Call> calls = index.getCalls(0, duration, 0, index.getMaxDepth(), duration / 10);
+        assertTrue(calls.size() <= 11 * depths);
+        assertTrue(calls.contains(thread.getTopLevelCall()));
+    }
+
+    private static Set<Call> getCalls(ThreadInfo thread, ClockType clockType, long start,
+            long end, int minDepth, int maxDepth, long minDuration) {
+        Set<Call> calls = new HashSet<Call>();
+        Call topCall = thread.getTopLevelCall();
+        long startTime = topCall.getEntryTime(clockType, TimeUnit.MICROSECONDS);
+        Iterator<Call> it = topCall.getCallHierarchyIterator();
+        while (it.hasNext()) {
+            Call c = it.next();
+            long entry = c.getEntryTime(clockType, TimeUnit.MICROSECONDS) - startTime;
+            long inclusive = c.getInclusiveTime(clockType, TimeUnit.MICROSECONDS);
+            if (c.getDepth() >= minDepth && c.getDepth() <= maxDepth && inclusive >= minDuration
+                    && entry <= end && entry + inclusive >= start) {
+                calls.add(c);
+            }
+        }
+        return calls;
+    }
+
+    private VmTraceData getVmTraceData(String traceFilePath, boolean compactCalls)
+            throws IOException {
+        VmTraceParser parser = new VmTraceParser(getFile(traceFilePath), compactCalls);
+        parser.parse();
+        return parser.getTraceData();
+    }
+
+    private File getFile(String path) {
+        URL resource = getClass().getResource(path);
+        assertNotNull(path + " not found", resource);
+        return new File(resource.getFile());
+    }
+}